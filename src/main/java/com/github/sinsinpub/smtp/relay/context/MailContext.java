@@ -1,36 +1,64 @@
 package com.github.sinsinpub.smtp.relay.context;
 
-import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import javax.mail.MessagingException;
 import javax.mail.Session;
 import javax.mail.internet.MimeMessage;
 
+import org.apache.commons.lang.StringUtils;
+
+import com.github.sinsinpub.smtp.relay.spool.HeapMessageStorage;
+import com.github.sinsinpub.smtp.relay.spool.MessageStorage;
+
 /**
  * The context container of a e-mail message.
+ * <p>
+ * Message data is kept by a {@link MessageStorage}, either in heap or in a spooled
+ * file, depending on its size. Recipients are the ones accepted by
+ * <code>RCPT TO</code>, which may differ from the addresses in the message headers.
  */
 public class MailContext implements Serializable {
 
     /** serialVersionUID */
-    private static final long serialVersionUID = 1L;
-    private byte[] messageData;
+    private static final long serialVersionUID = 2L;
+    /** Delimiter of recipients as kept by the journal and dead letter store */
+    public static final char RECIPIENT_DELIM = ',';
+    private MessageStorage messageStorage;
     private String envelopeSender;
-    private String envelopeReceiver;
-    private transient ByteArrayInputStream stream;
+    private List<String> envelopeRecipients = Collections.emptyList();
+    /** Id in the mail journal, 0 if not journaled */
+    private long journalId;
+    /** Tries failed so far, counted on by the next forwarder */
+    private int failedTries;
+    /** When the next try is due in epoch milliseconds, 0 if at once */
+    private long nextAttemptTime;
+    private String lastError;
 
     public MailContext() {
     }
 
-    public MailContext(String envelopeSender, String envelopeReceiver,
+    public MailContext(String envelopeSender, List<String> envelopeRecipients,
             byte[] messageData) {
         setEnvelopeSender(envelopeSender);
-        setEnvelopeReceiver(envelopeReceiver);
+        setEnvelopeRecipients(envelopeRecipients);
         setMessageData(messageData);
     }
 
+    public MailContext(String envelopeSender, List<String> envelopeRecipients,
+            MessageStorage messageStorage) {
+        setEnvelopeSender(envelopeSender);
+        setEnvelopeRecipients(envelopeRecipients);
+        setMessageStorage(messageStorage);
+    }
+
     /**
-     * New <code>MimeMessage</code> instance by message binary stream data.
+     * New <code>MimeMessage</code> instance by message binary stream data. The
+     * message content refers to the stored data instead of a copy of it.
      * 
      * @param session
      * @return new MimeMessage instance
@@ -38,17 +66,93 @@ public class MailContext implements Serializable {
      */
     public MimeMessage getMimeMessage(Session session)
             throws MessagingException {
-        resetStream();
-        return new MimeMessage(session, stream);
+        try {
+            return new MimeMessage(session, messageStorage.openStream());
+        } catch (IOException e) {
+            throw new MessagingException("Reading stored message failed", e);
+        }
+    }
+
+    /**
+     * New message sent as the stored data is, only its headers parsed.
+     * 
+     * @param session
+     * @return new RawMimeMessage instance
+     * @throws MessagingException
+     */
+    public MimeMessage getRawMimeMessage(Session session)
+            throws MessagingException {
+        return new RawMimeMessage(session, messageStorage);
     }
 
+    /**
+     * Discard the message data, deleting the spooled file if there is one.
+     */
+    public void release() {
+        if (messageStorage != null) {
+            messageStorage.release();
+        }
+    }
+
+    /**
+     * @return message data if it is held in heap, otherwise null
+     */
     public byte[] getMessageData() {
-        return messageData;
+        if (messageStorage instanceof HeapMessageStorage) {
+            return ((HeapMessageStorage) messageStorage).getData();
+        }
+        return null;
     }
 
     public void setMessageData(byte[] messageData) {
-        this.messageData = messageData;
-        resetStream();
+        setMessageStorage(new HeapMessageStorage(messageData));
+    }
+
+    public MessageStorage getMessageStorage() {
+        return messageStorage;
+    }
+
+    public void setMessageStorage(MessageStorage messageStorage) {
+        this.messageStorage = messageStorage;
+    }
+
+    /**
+     * @return size of the message data in bytes
+     */
+    public long getMessageSize() {
+        return messageStorage == null ? 0 : messageStorage.getSize();
+    }
+
+    public long getJournalId() {
+        return journalId;
+    }
+
+    public void setJournalId(long journalId) {
+        this.journalId = journalId;
+    }
+
+    public int getFailedTries() {
+        return failedTries;
+    }
+
+    public void setFailedTries(int failedTries) {
+        this.failedTries = failedTries;
+    }
+
+    public long getNextAttemptTime() {
+        return nextAttemptTime;
+    }
+
+    public void setNextAttemptTime(long nextAttemptTime) {
+        this.nextAttemptTime = nextAttemptTime;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    public void setLastError(String lastError) {
+        this.lastError = lastError;
     }
 
     public String getEnvelopeSender() {
@@ -60,20 +164,41 @@ public class MailContext implements Serializable {
 
     }
 
-    public String getEnvelopeReceiver() {
-        return envelopeReceiver;
+    /**
+     * @return recipients still to be forwarded to, unmodifiable
+     */
+    public List<String> getEnvelopeRecipients() {
+        return envelopeRecipients;
     }
 
-    public void setEnvelopeReceiver(String envelopeReceiver) {
-        this.envelopeReceiver = envelopeReceiver;
+    public void setEnvelopeRecipients(List<String> envelopeRecipients) {
+        this.envelopeRecipients = envelopeRecipients == null ? Collections
+                .<String> emptyList() : Collections.unmodifiableList(new ArrayList<String>(
+                envelopeRecipients));
     }
 
-    protected void resetStream() {
-        if (stream == null) {
-            this.stream = new ByteArrayInputStream(getMessageData());
-        } else {
-            stream.reset();
+    /**
+     * @return recipients joined by {@link #RECIPIENT_DELIM}, as logged and kept
+     */
+    public String getEnvelopeReceiver() {
+        return StringUtils.join(envelopeRecipients, RECIPIENT_DELIM);
+    }
+
+    /**
+     * @param envelopeReceiver recipients joined by {@link #RECIPIENT_DELIM}
+     * @return the recipients, none if blank
+     */
+    public static List<String> splitRecipients(String envelopeReceiver) {
+        String[] recipients = StringUtils.split(envelopeReceiver, RECIPIENT_DELIM);
+        List<String> list = new ArrayList<String>(recipients == null ? 0 : recipients.length);
+        if (recipients != null) {
+            for (String recipient : recipients) {
+                if (StringUtils.isNotBlank(recipient)) {
+                    list.add(recipient.trim());
+                }
+            }
         }
+        return list;
     }
 
 }
@@ -0,0 +1,182 @@
+package com.github.sinsinpub.smtp.relay.context;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.commons.lang.Validate;
+
+import com.github.sinsinpub.smtp.relay.spool.MessageStorage;
+
+/**
+ * Message written out as the bytes received, instead of parsed and serialized again
+ * by JavaMail, which may change headers and encodings on the way.
+ * <p>
+ * Only the header block is parsed, for recipients and logging. Saving changes
+ * leaves the headers as they are, and writing copies the stored data in one pass,
+ * leaving out the header lines asked to be ignored, <code>Bcc</code> when sent by
+ * SMTP. Dot-stuffing and line endings are left to the SMTP data stream of the
+ * transport, done while the data is copied.
+ *
+ * @see MailContext#getRawMimeMessage(Session)
+ * @author sin_sin
+ */
+public class RawMimeMessage extends MimeMessage {
+
+    private static final int BUFFER_SIZE = 8192;
+    private final MessageStorage storage;
+
+    /**
+     * @param session
+     * @param storage data of the message, read again on every write
+     * @throws MessagingException if the headers could not be read
+     */
+    public RawMimeMessage(Session session, MessageStorage storage) throws MessagingException {
+        super(session);
+        Validate.notNull(storage, "Message storage must not be null");
+        this.storage = storage;
+        InputStream in = openStream();
+        try {
+            this.headers = new InternetHeaders(in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        this.saved = true;
+    }
+
+    /**
+     * Headers are kept as received, no Message-ID or MIME-Version added.
+     */
+    @Override
+    protected void updateHeaders() {
+    }
+
+    @Override
+    public void writeTo(OutputStream os) throws IOException, MessagingException {
+        writeTo(os, null);
+    }
+
+    /**
+     * Copy the stored data, leaving out the header lines of the names given, case
+     * ignored, with their folded lines.
+     */
+    @Override
+    public void writeTo(OutputStream os, String[] ignoreList) throws IOException,
+            MessagingException {
+        InputStream in = new BufferedInputStream(openStream(), BUFFER_SIZE);
+        try {
+            copyHeaders(in, os, ignoreList);
+            IOUtils.copyLarge(in, os);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * @return the body as stored, after the header block
+     */
+    @Override
+    protected InputStream getContentStream() throws MessagingException {
+        InputStream in = new BufferedInputStream(openStream(), BUFFER_SIZE);
+        try {
+            copyHeaders(in, new NullOutputStream(), null);
+            return in;
+        } catch (IOException e) {
+            IOUtils.closeQuietly(in);
+            throw new MessagingException("Reading stored message failed", e);
+        }
+    }
+
+    /**
+     * @return size of the stored data, headers included
+     */
+    @Override
+    public int getSize() {
+        return (int) Math.min(Integer.MAX_VALUE, storage.getSize());
+    }
+
+    public MessageStorage getStorage() {
+        return storage;
+    }
+
+    private InputStream openStream() throws MessagingException {
+        try {
+            return storage.openStream();
+        } catch (IOException e) {
+            throw new MessagingException("Reading stored message failed", e);
+        }
+    }
+
+    /**
+     * Copy the header block up to and including the empty line ending it, the
+     * input left at the start of the body.
+     */
+    private static void copyHeaders(InputStream in, OutputStream out, String[] ignoreList)
+            throws IOException {
+        byte[] line = new byte[256];
+        boolean skipping = false;
+        while (true) {
+            int length = 0;
+            int b;
+            while ((b = in.read()) != -1) {
+                if (length == line.length) {
+                    byte[] grown = new byte[line.length * 2];
+                    System.arraycopy(line, 0, grown, 0, length);
+                    line = grown;
+                }
+                line[length++] = (byte) b;
+                if (b == '\n') {
+                    break;
+                }
+            }
+            if (length == 0) {
+                return;
+            }
+            boolean folded = line[0] == ' ' || line[0] == '\t';
+            if (!folded) {
+                skipping = isIgnored(line, length, ignoreList);
+            }
+            if (!skipping) {
+                out.write(line, 0, length);
+            }
+            if (b == -1 || isEmptyLine(line, length)) {
+                return;
+            }
+        }
+    }
+
+    private static boolean isEmptyLine(byte[] line, int length) {
+        return (length == 1 && line[0] == '\n')
+                || (length == 2 && line[0] == '\r' && line[1] == '\n');
+    }
+
+    private static boolean isIgnored(byte[] line, int length, String[] ignoreList) {
+        if (ignoreList == null) {
+            return false;
+        }
+        for (String name : ignoreList) {
+            int n = name.length();
+            if (length <= n || line[n] != ':') {
+                continue;
+            }
+            boolean matched = true;
+            for (int i = 0; i < n && matched; i++) {
+                matched = Character.toLowerCase((char) line[i]) == Character
+                        .toLowerCase(name.charAt(i));
+            }
+            if (matched) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,37 @@
+package com.github.sinsinpub.smtp.relay.core;
+
+/**
+ * The SMTP protocol server accepting client connections and passing received mail
+ * to a message handler factory.
+ * 
+ * @author sin_sin
+ */
+public interface FrontendServer {
+
+    /**
+     * Bind the listening socket and begin to accept connections.
+     */
+    void start();
+
+    /**
+     * Stop accepting connections and close the ones opened.
+     */
+    void stop();
+
+    /**
+     * Keep listening but refuse new connections with 421, so that clients try again
+     * later or elsewhere while the connections opened finish, until stopped.
+     */
+    void drain();
+
+    /**
+     * @return whether the server is accepting connections
+     */
+    boolean isRunning();
+
+    /**
+     * @return listening address in the form of host:port
+     */
+    String getDisplayableLocalSocketAddress();
+
+}
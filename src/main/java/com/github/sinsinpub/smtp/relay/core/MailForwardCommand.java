@@ -11,14 +11,43 @@ import com.github.sinsinpub.smtp.relay.context.MailContext;
  */
 public interface MailForwardCommand extends Runnable {
 
+    /** Priority lane of latency sensitive mail, such as password resets */
+    int LANE_HIGH = 0;
+    int LANE_NORMAL = 1;
+    /** Priority lane of bulk mail, such as reports */
+    int LANE_LOW = 2;
+
     /**
      * @param mail The mail message context to be forwarded
      */
     void setMail(MailContext mail);
 
+    /**
+     * @return the mail message context to be forwarded
+     */
+    MailContext getMail();
+
     /**
      * @param session The session of back-end mail server used to forward message
      */
     void setMailSession(Session session);
 
+    /**
+     * @param callback run once the mail is done with, forwarded or given up, but not
+     *            if the command is abandoned on stopping
+     */
+    void setCompletionCallback(Runnable callback);
+
+    /**
+     * @return name of the route the mail is delivered by, queued and limited
+     *         separately from other routes, or null if not known
+     */
+    String getRouteName();
+
+    /**
+     * @return priority lane the command is queued in, one of the
+     *         <code>LANE_</code> constants
+     */
+    int getLane();
+
 }
@@ -0,0 +1,95 @@
+package com.github.sinsinpub.smtp.relay.core.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.Validate;
+
+import com.github.sinsinpub.smtp.relay.core.FrontendServer;
+
+/**
+ * Front end made of several servers, for example one per listening endpoint, all
+ * started and stopped together.
+ *
+ * @author sin_sin
+ */
+public class CompositeFrontendServer implements FrontendServer {
+
+    private final List<FrontendServer> servers;
+
+    public CompositeFrontendServer(List<? extends FrontendServer> servers) {
+        Validate.notEmpty(servers, "Front end servers must not be empty");
+        this.servers = Collections.unmodifiableList(new ArrayList<FrontendServer>(servers));
+    }
+
+    /**
+     * Start all servers, or stop the ones started if any fails.
+     */
+    @Override
+    public void start() {
+        List<FrontendServer> started = new ArrayList<FrontendServer>(servers.size());
+        try {
+            for (FrontendServer server : servers) {
+                server.start();
+                started.add(server);
+            }
+        } catch (RuntimeException e) {
+            for (FrontendServer server : started) {
+                server.stop();
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void stop() {
+        for (FrontendServer server : servers) {
+            if (server.isRunning()) {
+                server.stop();
+            }
+        }
+    }
+
+    @Override
+    public void drain() {
+        for (FrontendServer server : servers) {
+            if (server.isRunning()) {
+                server.drain();
+            }
+        }
+    }
+
+    /**
+     * @return whether any server is accepting connections
+     */
+    @Override
+    public boolean isRunning() {
+        for (FrontendServer server : servers) {
+            if (server.isRunning()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return distinct addresses of the servers, separated by comma
+     */
+    @Override
+    public String getDisplayableLocalSocketAddress() {
+        Set<String> addresses = new LinkedHashSet<String>();
+        for (FrontendServer server : servers) {
+            addresses.add(server.getDisplayableLocalSocketAddress());
+        }
+        return StringUtils.join(addresses, ",");
+    }
+
+    public List<FrontendServer> getServers() {
+        return servers;
+    }
+
+}
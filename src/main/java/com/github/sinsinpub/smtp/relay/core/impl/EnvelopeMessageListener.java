@@ -0,0 +1,31 @@
+package com.github.sinsinpub.smtp.relay.core.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import org.subethamail.smtp.TooMuchDataException;
+import org.subethamail.smtp.helper.SimpleMessageListener;
+
+/**
+ * Listener taking a message once for all of its accepted recipients, instead of once
+ * per recipient.
+ *
+ * @see SingleDeliveryMessageListenerAdapter
+ * @author sin_sin
+ */
+public interface EnvelopeMessageListener extends SimpleMessageListener {
+
+    /**
+     * Deliver a message to the recipients accepted by {@link #accept(String, String)}.
+     *
+     * @param from envelope sender
+     * @param recipients envelope recipients, in the order accepted
+     * @param data message data, to be read fully or not at all
+     * @throws TooMuchDataException
+     * @throws IOException
+     */
+    void deliver(String from, List<String> recipients, InputStream data)
+            throws TooMuchDataException, IOException;
+
+}
@@ -1,6 +1,9 @@
 package com.github.sinsinpub.smtp.relay.core.impl;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -11,6 +14,7 @@ import java.util.concurrent.atomic.AtomicLong;
 import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 import javax.mail.Session;
+import javax.mail.internet.InternetHeaders;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.Validate;
@@ -27,11 +31,20 @@ import org.springframework.jmx.export.annotation.ManagedResource;
 import com.github.sinsinpub.smtp.relay.context.MailContext;
 import com.github.sinsinpub.smtp.relay.core.MailForwardCommand;
 import com.github.sinsinpub.smtp.relay.core.MailForwardCommandFactory;
+import com.github.sinsinpub.smtp.relay.spool.DeadLetterStore;
 import com.github.sinsinpub.smtp.relay.transport.AdditiveWaitRetryStrategy;
+import com.github.sinsinpub.smtp.relay.transport.MxRoute;
+import com.github.sinsinpub.smtp.relay.transport.RetryHandler;
+import com.github.sinsinpub.smtp.relay.transport.TransportPool;
 import com.github.sinsinpub.smtp.relay.utils.ConcurrentUtil;
+import com.github.sinsinpub.smtp.relay.utils.MailHeaderUtil;
 
 /**
  * Just build simple relay forwarder command by the received from address.
+ * <p>
+ * A delivering rule binds a from address to the bean name of a session, or of an
+ * {@link MxRoute} to deliver straight to the MX hosts of the recipients, with the
+ * session of the route.
  * 
  * @see SimpleRelayCommand
  * @author sin_sin
@@ -45,6 +58,7 @@ public class FromAddressRelayForwarderFactory implements
     public static final String DELIVER_RULE_DELIM = ",";
     public static final String ADDRESS_SESSION_DELIM = ":";
     public static final String DEFAULT_ADDRESS_WILDCARD = "*";
+    public static final int DEFAULT_MAX_CONCURRENCY_PER_SESSION = 32;
 
     private final static Logger logger = LoggerFactory.getLogger(FromAddressRelayForwarderFactory.class);
 
@@ -52,6 +66,8 @@ public class FromAddressRelayForwarderFactory implements
     protected BeanFactory beanFactory;
     @GuardedBy("getFromAddressSessionMap")
     protected Map<String, Session> fromAddressSessionMap;
+    /** MX routes by delivering rule, the rules left out send through their session */
+    protected final ConcurrentMap<String, MxRoute> mxRouteMap = new ConcurrentHashMap<String, MxRoute>();
     protected String[] fromAddressDeliverRules;
     @GuardedBy("itself")
     protected Session defaultSession;
@@ -59,8 +75,31 @@ public class FromAddressRelayForwarderFactory implements
     protected int retryTimes = AdditiveWaitRetryStrategy.DEFAULT_NUMBER_OF_RETRIES;
     protected long retryStartingWaitMillis = AdditiveWaitRetryStrategy.STARTING_WAIT_TIME;
     protected long retryWaitTimeIncrementMillis = AdditiveWaitRetryStrategy.WAIT_TIME_INCREMENT;
+    /**
+     * Max commands sending through the same session or MX route bean at once, over
+     * all delivering rules bound to it, 0 for no limit
+     */
+    protected volatile int maxConcurrencyPerSession = DEFAULT_MAX_CONCURRENCY_PER_SESSION;
+    /** Where commands queue by delivering rule, keeping to the limit above */
+    protected volatile RouteFairExecutor routeExecutor;
+    /** Where failed commands wait for the next try, null to wait on their thread */
+    protected volatile RetryHandler retryHandler;
+    /** Where commands borrow backend connections, null to connect for every message */
+    protected volatile TransportPool transportPool;
+    /** Where mail given up is kept, null to drop it */
+    protected volatile DeadLetterStore deadLetterStore;
+    /** Priority lanes by delivering rule, before any lane of message headers */
+    protected volatile Map<String, Integer> ruleLanes = Collections.emptyMap();
+    /**
+     * Whether X-Priority and the like choose the lane of rules without one, off as
+     * any sender could set them
+     */
+    protected volatile boolean laneFromHeaders = false;
+    /** Whether mail is relayed as the bytes received instead of written by JavaMail */
+    protected volatile boolean rawRelay = true;
     protected final ConcurrentMap<String, AtomicLong> numForwarded = new ConcurrentHashMap<String, AtomicLong>();
     protected final ConcurrentMap<String, AtomicLong> numForwardingException = new ConcurrentHashMap<String, AtomicLong>();
+    protected final ConcurrentMap<String, AtomicLong> numRecipientsRejected = new ConcurrentHashMap<String, AtomicLong>();
 
     /**
      * Default empty constructor.
@@ -113,8 +152,8 @@ public class FromAddressRelayForwarderFactory implements
                 mailContext,
                 // Finally matched session instance
                 backendSession,
-                // ErrDump not used yet
-                null,
+                // Where mail given up is kept, if anywhere
+                getDeadLetterStore(),
                 // Customized retry parameters
                 new AdditiveWaitRetryStrategy(getRetryTimes(),
                         getRetryStartingWaitMillis(),
@@ -122,9 +161,68 @@ public class FromAddressRelayForwarderFactory implements
         // For exception counting
         command.setSessionName(matchedRule);
         command.setExceptionCounter(numForwardingException);
+        command.setRejectedCounter(numRecipientsRejected);
+        command.setRetryHandler(getRetryHandler());
+        command.setTransportPool(getTransportPool());
+        command.setMxRoute(mxRouteMap.get(matchedRule));
+        command.setRawRelay(isRawRelay());
+        command.setLane(selectLane(matchedRule, mailContext));
         return command;
     }
 
+    /**
+     * @param rule matched delivering rule
+     * @param mailContext
+     * @return lane configured for the rule, else the lane asked for by message
+     *         headers if allowed, else normal
+     */
+    protected int selectLane(String rule, MailContext mailContext) {
+        Integer lane = ruleLanes.get(rule);
+        if (lane != null) {
+            return lane;
+        }
+        if (isLaneFromHeaders()) {
+            return laneOfHeaders(mailContext);
+        }
+        return MailForwardCommand.LANE_NORMAL;
+    }
+
+    /**
+     * Reads the header block only. <code>X-Priority</code> 1 and 2,
+     * <code>Importance: high</code> and <code>Priority: urgent</code> are high;
+     * <code>X-Priority</code> 4 and 5, <code>Importance: low</code>,
+     * <code>Priority: non-urgent</code> and <code>Precedence</code> bulk, list or
+     * junk are low.
+     *
+     * @param mailContext
+     * @return lane asked for by message headers, normal if none or unreadable
+     */
+    protected int laneOfHeaders(MailContext mailContext) {
+        InternetHeaders headers = MailHeaderUtil.readHeaders(mailContext.getMessageStorage());
+        if (headers == null) {
+            return MailForwardCommand.LANE_NORMAL;
+        }
+        String xPriority = StringUtils.trimToEmpty(headers.getHeader("X-Priority", null));
+        if (xPriority.startsWith("1") || xPriority.startsWith("2")) {
+            return MailForwardCommand.LANE_HIGH;
+        }
+        if (xPriority.startsWith("4") || xPriority.startsWith("5")) {
+            return MailForwardCommand.LANE_LOW;
+        }
+        String importance = StringUtils.trimToEmpty(headers.getHeader("Importance", null));
+        String priority = StringUtils.trimToEmpty(headers.getHeader("Priority", null));
+        if ("high".equalsIgnoreCase(importance) || "urgent".equalsIgnoreCase(priority)) {
+            return MailForwardCommand.LANE_HIGH;
+        }
+        String precedence = StringUtils.trimToEmpty(headers.getHeader("Precedence", null));
+        if ("low".equalsIgnoreCase(importance) || "non-urgent".equalsIgnoreCase(priority)
+                || "bulk".equalsIgnoreCase(precedence) || "list".equalsIgnoreCase(precedence)
+                || "junk".equalsIgnoreCase(precedence)) {
+            return MailForwardCommand.LANE_LOW;
+        }
+        return MailForwardCommand.LANE_NORMAL;
+    }
+
     /**
      * Update Session map according from address and spring bean name.
      */
@@ -144,9 +242,16 @@ public class FromAddressRelayForwarderFactory implements
                 String sessionBeanName = StringUtils.substringAfter(item,
                         ADDRESS_SESSION_DELIM);
                 try {
-                    this.fromAddressSessionMap.put(from,
-                            this.beanFactory.getBean(sessionBeanName,
-                                    Session.class));
+                    Object route = this.beanFactory.getBean(sessionBeanName);
+                    if (route instanceof MxRoute) {
+                        this.fromAddressSessionMap.put(from, ((MxRoute) route).getSession());
+                        this.mxRouteMap.put(from, (MxRoute) route);
+                    } else {
+                        this.fromAddressSessionMap.put(from,
+                                this.beanFactory.getBean(sessionBeanName,
+                                        Session.class));
+                        this.mxRouteMap.remove(from);
+                    }
                 } catch (RuntimeException e) {
                     logger.error(String.format(
                             "Failed on binding session '%s' with '%s': %s",
@@ -154,6 +259,28 @@ public class FromAddressRelayForwarderFactory implements
                 }
             }
         }
+        updateRouteBackends();
+    }
+
+    /**
+     * Tell the route executor which backend each delivering rule sends to, the MX
+     * route or else the session bound, so that rules sharing one share its limit.
+     */
+    protected void updateRouteBackends() {
+        RouteFairExecutor executor = this.routeExecutor;
+        Map<String, Session> sessionMap = getFromAddressSessionMap();
+        if (executor == null || sessionMap == null) {
+            return;
+        }
+        Map<String, Object> backends = new HashMap<String, Object>(sessionMap.size());
+        for (Entry<String, Session> entry : sessionMap.entrySet()) {
+            MxRoute mxRoute = mxRouteMap.get(entry.getKey());
+            Object backend = mxRoute != null ? mxRoute : entry.getValue();
+            if (backend != null) {
+                backends.put(entry.getKey(), backend);
+            }
+        }
+        executor.setRouteBackends(backends);
     }
 
     @Override
@@ -162,10 +289,12 @@ public class FromAddressRelayForwarderFactory implements
                 && this.fromAddressSessionMap == null) {
             buildAndUpdateSessionMap();
         }
-        if (this.fromAddressSessionMap != null) {
+        if (this.fromAddressSessionMap != null
+                && !this.mxRouteMap.containsKey(DEFAULT_ADDRESS_WILDCARD)) {
             this.fromAddressSessionMap.put(DEFAULT_ADDRESS_WILDCARD,
                     getDefaultSession());
         }
+        updateRouteBackends();
     }
 
     @Override
@@ -181,11 +310,22 @@ public class FromAddressRelayForwarderFactory implements
     public void setFromAddressSessionMap(
             Map<String, Session> fromAddressSessionMap) {
         this.fromAddressSessionMap = fromAddressSessionMap;
+        updateRouteBackends();
+    }
+
+    /**
+     * @return delivering rules bound to MX routes
+     */
+    @ManagedAttribute
+    public List<String> getMxRoutedRules() {
+        return new ArrayList<String>(mxRouteMap.keySet());
     }
 
     @ManagedOperation()
     public void clearFromAddressSessionMap() {
         this.fromAddressSessionMap.clear();
+        this.mxRouteMap.clear();
+        updateRouteBackends();
     }
 
     @ManagedAttribute
@@ -226,10 +366,12 @@ public class FromAddressRelayForwarderFactory implements
 
     public void setDefaultSession(Session defaultSession) {
         this.defaultSession = defaultSession;
-        if (this.fromAddressSessionMap != null) {
+        if (this.fromAddressSessionMap != null
+                && !this.mxRouteMap.containsKey(DEFAULT_ADDRESS_WILDCARD)) {
             this.fromAddressSessionMap.put(DEFAULT_ADDRESS_WILDCARD,
                     this.defaultSession);
         }
+        updateRouteBackends();
     }
 
     @ManagedAttribute
@@ -263,6 +405,136 @@ public class FromAddressRelayForwarderFactory implements
         this.retryWaitTimeIncrementMillis = retryWaitTimeIncrementMillis;
     }
 
+    public RetryHandler getRetryHandler() {
+        return retryHandler;
+    }
+
+    public void setRetryHandler(RetryHandler retryHandler) {
+        this.retryHandler = retryHandler;
+    }
+
+    public TransportPool getTransportPool() {
+        return transportPool;
+    }
+
+    public void setTransportPool(TransportPool transportPool) {
+        this.transportPool = transportPool;
+    }
+
+    public DeadLetterStore getDeadLetterStore() {
+        return deadLetterStore;
+    }
+
+    public void setDeadLetterStore(DeadLetterStore deadLetterStore) {
+        this.deadLetterStore = deadLetterStore;
+    }
+
+    public Map<String, Integer> getRuleLanes() {
+        return ruleLanes;
+    }
+
+    /**
+     * @param ruleLanes lanes by delivering rule, one of the <code>LANE_</code>
+     *            constants of {@link MailForwardCommand}
+     */
+    public void setRuleLanes(Map<String, Integer> ruleLanes) {
+        this.ruleLanes = ruleLanes == null ? Collections.<String, Integer> emptyMap()
+                : Collections.unmodifiableMap(new LinkedHashMap<String, Integer>(ruleLanes));
+    }
+
+    @ManagedAttribute
+    public String getRuleLanesByString() {
+        List<String> items = new ArrayList<String>(ruleLanes.size());
+        for (Entry<String, Integer> entry : ruleLanes.entrySet()) {
+            items.add(entry.getKey() + "=" + RouteFairExecutor.LANE_NAMES[entry.getValue()]);
+        }
+        return StringUtils.join(items, DELIVER_RULE_DELIM);
+    }
+
+    /**
+     * @param ruleLanes comma separated <code>rule=lane</code>, lane being high,
+     *            normal or low
+     */
+    @ManagedAttribute
+    public void setRuleLanesByString(String ruleLanes) {
+        Map<String, Integer> lanes = new LinkedHashMap<String, Integer>();
+        for (String item : StringUtils.split(StringUtils.defaultString(ruleLanes),
+                DELIVER_RULE_DELIM)) {
+            String rule = StringUtils.substringBeforeLast(item, "=").trim();
+            int lane = RouteFairExecutor.parseLane(StringUtils.substringAfterLast(item, "=")
+                    .trim());
+            Validate.isTrue(rule.length() > 0 && lane >= 0, "Bad rule lane: " + item);
+            lanes.put(rule, lane);
+        }
+        setRuleLanes(lanes);
+    }
+
+    @ManagedAttribute
+    public boolean isLaneFromHeaders() {
+        return laneFromHeaders;
+    }
+
+    @ManagedAttribute
+    public void setLaneFromHeaders(boolean laneFromHeaders) {
+        this.laneFromHeaders = laneFromHeaders;
+    }
+
+    @ManagedAttribute
+    public boolean isRawRelay() {
+        return rawRelay;
+    }
+
+    @ManagedAttribute
+    public void setRawRelay(boolean rawRelay) {
+        this.rawRelay = rawRelay;
+    }
+
+    @ManagedAttribute
+    public int getMaxConcurrencyPerSession() {
+        return maxConcurrencyPerSession;
+    }
+
+    /**
+     * Applies at once to the route executor, commands for a session or MX route at
+     * the limit wait queued instead of holding a forwarder.
+     */
+    @ManagedAttribute
+    public void setMaxConcurrencyPerSession(int maxConcurrencyPerSession) {
+        this.maxConcurrencyPerSession = maxConcurrencyPerSession;
+        RouteFairExecutor executor = this.routeExecutor;
+        if (executor != null) {
+            executor.setBackendLimit(maxConcurrencyPerSession);
+        }
+    }
+
+    public RouteFairExecutor getRouteExecutor() {
+        return routeExecutor;
+    }
+
+    /**
+     * @param routeExecutor where commands queue by delivering rule, given the max
+     *            concurrency per session, or null for none
+     */
+    public void setRouteExecutor(RouteFairExecutor routeExecutor) {
+        this.routeExecutor = routeExecutor;
+        if (routeExecutor != null) {
+            routeExecutor.setBackendLimit(getMaxConcurrencyPerSession());
+            updateRouteBackends();
+        }
+    }
+
+    /**
+     * @return commands running by delivering rule
+     */
+    @ManagedAttribute
+    public Map<String, Integer> getInFlightByRule() {
+        RouteFairExecutor executor = this.routeExecutor;
+        if (executor == null) {
+            return Collections.emptyMap();
+        }
+        return executor.getInFlightByRoute();
+    }
+
     @ManagedAttribute
     public Map<String, ?> getNumForwarded() {
         return numForwarded;
@@ -284,4 +556,12 @@ public class FromAddressRelayForwarderFactory implements
                 -1);
     }
 
+    /**
+     * @return recipients the backend rejected for good, by delivering rule
+     */
+    @ManagedAttribute
+    public Map<String, ?> getNumRecipientsRejected() {
+        return numRecipientsRejected;
+    }
+
 }
@@ -0,0 +1,184 @@
+package com.github.sinsinpub.smtp.relay.core.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.sinsinpub.smtp.relay.context.MailContext;
+import com.github.sinsinpub.smtp.relay.core.FrontendServer;
+import com.github.sinsinpub.smtp.relay.core.MailForwardCommand;
+import com.github.sinsinpub.smtp.relay.spool.DeadLetterStore;
+import com.github.sinsinpub.smtp.relay.transport.RetryScheduler;
+
+/**
+ * Stops the forwarding of a {@link SmtpListener} gracefully: refuses new mail,
+ * gives the queued and in flight commands up to a timeout to finish, then keeps the
+ * mail left over. Journaled mail stays in the journal with its retry state, other
+ * mail goes to the dead letter store, or is dropped without one.
+ *
+ * @author sin_sin
+ */
+@ThreadSafe
+class MailDrainer {
+
+    private final static Logger logger = LoggerFactory.getLogger(MailDrainer.class);
+
+    private final SmtpListener listener;
+    private final FrontendServer frontendServer;
+    private final RouteFairExecutor routeExecutor;
+    private final RetryScheduler retryScheduler;
+    private final ExecutorService executorService;
+    private final DeadLetterStore deadLetterStore;
+    /** New mail refused from the start of a drain on */
+    private volatile boolean draining;
+    private final AtomicLong numLeftOver = new AtomicLong();
+
+    /**
+     * @param listener whose queued commands are drained
+     * @param frontendServer
+     * @param routeExecutor
+     * @param retryScheduler
+     * @param executorService forwarders
+     * @param deadLetterStore null for dropping mail left over
+     */
+    MailDrainer(SmtpListener listener, FrontendServer frontendServer,
+            RouteFairExecutor routeExecutor, RetryScheduler retryScheduler,
+            ExecutorService executorService, DeadLetterStore deadLetterStore) {
+        this.listener = listener;
+        this.frontendServer = frontendServer;
+        this.routeExecutor = routeExecutor;
+        this.retryScheduler = retryScheduler;
+        this.executorService = executorService;
+        this.deadLetterStore = deadLetterStore;
+    }
+
+    /**
+     * @param timeoutMillis wait for queued and in flight forwarding at most, 0 for
+     *            not waiting
+     * @return number of messages left over
+     */
+    int drain(long timeoutMillis) {
+        long started = System.currentTimeMillis();
+        draining = true;
+        frontendServer.drain();
+        logger.info("Draining {} queued and {} in flight commands, waiting up to {} ms",
+                new Object[] { routeExecutor.getQueuedCnt(), routeExecutor.getInFlight(),
+                        timeoutMillis });
+        boolean idle;
+        try {
+            idle = routeExecutor.awaitIdle(Math.max(0L, timeoutMillis), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            idle = false;
+        }
+        List<Runnable> left = new ArrayList<Runnable>(routeExecutor.shutdownNow());
+        // Including the ones deferred while waiting
+        left.addAll(retryScheduler.shutdownNow());
+        if (!idle) {
+            logger.warn("Drain timed out, {} commands left over, interrupting {} in flight",
+                    left.size(), routeExecutor.getInFlight());
+        }
+        executorService.shutdownNow();
+        try {
+            executorService.awaitTermination(SmtpListener.DRAIN_INTERRUPT_GRACE_MILLIS,
+                    TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Rest of batches in flight
+        left.addAll(routeExecutor.takeUnrun());
+        frontendServer.stop();
+        int messages = keepLeftOver(left);
+        logger.info("Drained in {} ms, {} messages left over", System.currentTimeMillis()
+                - started, messages);
+        return messages;
+    }
+
+    /**
+     * Keep the mail of commands never run.
+     *
+     * @param tasks left in the route executor and retry scheduler
+     * @return number of messages left over
+     */
+    private int keepLeftOver(List<Runnable> tasks) {
+        int messages = 0;
+        for (Runnable task : tasks) {
+            task = listener.unqueue(task);
+            messages++;
+            if (!(task instanceof MailForwardCommand)) {
+                // Journaled retry, nothing in memory
+                continue;
+            }
+            MailForwardCommand command = (MailForwardCommand) task;
+            MailContext mail = command.getMail();
+            if (mail != null) {
+                keepUndelivered(mail, command.getRouteName());
+                mail.release();
+            }
+        }
+        numLeftOver.getAndAdd(messages);
+        return messages;
+    }
+
+    /**
+     * Keep the mail of a retry refused by the end of a drain.
+     *
+     * @param mail not released
+     * @param route
+     * @return false if dropped
+     */
+    boolean keepLeftOver(MailContext mail, String route) {
+        if (!keepUndelivered(mail, route)) {
+            return false;
+        }
+        numLeftOver.getAndIncrement();
+        return true;
+    }
+
+    /**
+     * @param mail not forwarded and not to be tried again by this instance
+     * @param route
+     * @return false if dropped
+     */
+    private boolean keepUndelivered(MailContext mail, String route) {
+        if (mail.getJournalId() != 0) {
+            return true;
+        }
+        DeadLetterStore store = deadLetterStore;
+        if (store == null) {
+            logger.error("Message from {} to {} left over and dropped", mail.getEnvelopeSender(),
+                    mail.getEnvelopeReceiver());
+            return false;
+        }
+        try {
+            long id = store.add(mail, route, SmtpListener.LEFT_OVER_REASON);
+            logger.info("Message from {} to {} left over as dead letter {}", new Object[] {
+                    mail.getEnvelopeSender(), mail.getEnvelopeReceiver(), id });
+            return true;
+        } catch (IOException e) {
+            logger.error("Keeping message from {} left over failed: {}",
+                    mail.getEnvelopeSender(), e.toString());
+            return false;
+        }
+    }
+
+    boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * @return messages left in the journal or kept as dead letters by drains
+     */
+    long getNumLeftOver() {
+        return numLeftOver.get();
+    }
+
+}
@@ -0,0 +1,417 @@
+package com.github.sinsinpub.smtp.relay.core.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.sinsinpub.smtp.relay.context.MailContext;
+import com.github.sinsinpub.smtp.relay.core.MailForwardCommand;
+import com.github.sinsinpub.smtp.relay.exception.DeliveryDeferredException;
+import com.github.sinsinpub.smtp.relay.spool.DeadLetterStore;
+import com.github.sinsinpub.smtp.relay.spool.MailJournal;
+import com.github.sinsinpub.smtp.relay.transport.RetryHandler;
+import com.github.sinsinpub.smtp.relay.transport.RetryScheduler;
+
+/**
+ * Keeps the journal of a {@link SmtpListener} up to date with forwarding, and
+ * queues mail again: the messages left in the journal at startup, the journaled
+ * ones whose next try is due, and the dead letters asked to be replayed.
+ * <p>
+ * A replay with no room in the forwarder queue waits until a queued command leaves
+ * it, instead of polling. Once stopped for a drain, nothing is queued any more, the
+ * mail not queued is left in the journal or the dead letter store.
+ *
+ * @author sin_sin
+ */
+@ThreadSafe
+class MailReplayer {
+
+    /** Longest wait for room before trying again, as refusals may have other causes */
+    static final long ROOM_WAIT_MILLIS = 1000L;
+
+    private final static Logger logger = LoggerFactory.getLogger(MailReplayer.class);
+
+    private final SmtpListener listener;
+    private final MailDrainer drainer;
+    /** Null for not journaling */
+    private final MailJournal journal;
+    private final RetryScheduler retryScheduler;
+    private volatile boolean stopped;
+    @GuardedBy("this")
+    private Thread deadLetterReplayer;
+
+    /** Commands that left the forwarder queue */
+    private final AtomicLong numLeftQueue = new AtomicLong();
+    private final Object room = new Object();
+    /** Changed holding the room lock, read without it to skip notifying */
+    private volatile int roomWaiters;
+
+    private final AtomicLong numReplayed = new AtomicLong();
+    private final AtomicLong numDeadLettersReplayed = new AtomicLong();
+
+    /**
+     * @param listener queueing the mail replayed
+     * @param drainer keeping mail refused by the end of a drain
+     * @param journal null for not journaling
+     * @param retryScheduler
+     */
+    MailReplayer(SmtpListener listener, MailDrainer drainer, MailJournal journal,
+            RetryScheduler retryScheduler) {
+        this.listener = listener;
+        this.drainer = drainer;
+        this.journal = journal;
+        this.retryScheduler = retryScheduler;
+    }
+
+    /**
+     * Schedule the journaled messages that were waiting for a retry at last
+     * shutdown, each for when its next try is due, and queue the messages left in
+     * the journal in the background.
+     *
+     * @param backlog journaled messages not done, null for none
+     * @param deferred journal ids by due time of their retry, null for none
+     */
+    void start(final List<MailContext> backlog, Map<Long, Long> deferred) {
+        if (deferred != null && !deferred.isEmpty()) {
+            long now = System.currentTimeMillis();
+            for (Map.Entry<Long, Long> entry : deferred.entrySet()) {
+                retryScheduler.schedule(new JournaledRetry(entry.getKey()), entry.getValue()
+                        - now);
+            }
+            logger.info("{} journaled messages scheduled for retry", deferred.size());
+        }
+        if (backlog == null || backlog.isEmpty()) {
+            return;
+        }
+        Thread replayer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                replayJournal(backlog);
+            }
+        }, "JournalReplay");
+        replayer.setDaemon(true);
+        replayer.start();
+    }
+
+    /**
+     * Stop queueing, waking the replays waiting for room.
+     */
+    void stop() {
+        stopped = true;
+        synchronized (room) {
+            room.notifyAll();
+        }
+    }
+
+    /**
+     * Told by the listener whenever a queued command leaves the forwarder queue.
+     */
+    void queueLeft() {
+        numLeftQueue.getAndIncrement();
+        if (roomWaiters > 0) {
+            synchronized (room) {
+                room.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Wait until a command leaves the forwarder queue after the count given was
+     * taken, or stopped, for a while at most.
+     */
+    private void awaitRoom(long numLeft) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + ROOM_WAIT_MILLIS;
+        synchronized (room) {
+            roomWaiters++;
+            try {
+                long wait;
+                while (!stopped && numLeftQueue.get() == numLeft
+                        && (wait = deadline - System.currentTimeMillis()) > 0) {
+                    room.wait(wait);
+                }
+            } finally {
+                roomWaiters--;
+            }
+        }
+    }
+
+    /**
+     * @return false if stopped before queued
+     */
+    private boolean queueWhenRoom(MailForwardCommand command, MailContext mail)
+            throws InterruptedException {
+        while (!stopped) {
+            long numLeft = numLeftQueue.get();
+            if (listener.tryQueue(command, mail)) {
+                return true;
+            }
+            awaitRoom(numLeft);
+        }
+        return false;
+    }
+
+    /**
+     * @param backlog journaled messages to be forwarded again, released if not
+     *            queued
+     */
+    private void replayJournal(List<MailContext> backlog) {
+        logger.info("Replaying {} journaled messages", backlog.size());
+        int i = 0;
+        try {
+            for (; i < backlog.size(); i++) {
+                MailContext mail = backlog.get(i);
+                MailForwardCommand command = newCommand(mail);
+                if (command == null) {
+                    continue;
+                }
+                if (!queueWhenRoom(command, mail)) {
+                    break;
+                }
+                numReplayed.getAndIncrement();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Kept in the journal, replayed again at next start
+        for (; i < backlog.size(); i++) {
+            backlog.get(i).release();
+        }
+        logger.info("Journal replay done, {} messages queued", numReplayed.get());
+    }
+
+    /**
+     * @return command completing the message in the journal once forwarded, or null
+     *         if none could be created, the message released and left in the journal
+     */
+    private MailForwardCommand newCommand(MailContext mail) {
+        try {
+            Validate.notNull(listener.getForwarderFactory(), "Forwarder factory must not be null");
+            MailForwardCommand command = listener.getForwarderFactory().newForwardCommand(mail);
+            command.setCompletionCallback(newCompletion(mail));
+            return command;
+        } catch (RuntimeException e) {
+            logger.error("Forwarder creating failed for journaled message {} from {}: {}",
+                    new Object[] { mail.getJournalId(), mail.getEnvelopeSender(), e.toString() });
+            mail.release();
+            return null;
+        }
+    }
+
+    /**
+     * Mark the message done in the journal, if journaled.
+     *
+     * @param mail
+     */
+    void complete(MailContext mail) {
+        if (journal != null && mail.getJournalId() != 0) {
+            journal.complete(mail);
+        }
+    }
+
+    /**
+     * @param mail
+     * @return callback marking the message done in the journal once forwarded
+     */
+    Runnable newCompletion(final MailContext mail) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                complete(mail);
+            }
+        };
+    }
+
+    /**
+     * Queue matching dead letters for forwarding again in the background.
+     *
+     * @return number of dead letters to be replayed
+     */
+    synchronized int replayDeadLetters(final DeadLetterStore store, String field,
+            String value, int limit) {
+        if (stopped) {
+            return 0;
+        }
+        if (deadLetterReplayer != null && deadLetterReplayer.isAlive()) {
+            throw new IllegalStateException("Dead letter replay running already");
+        }
+        final List<Long> ids = store.select(field, value, limit);
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        deadLetterReplayer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                replayDeadLetters(store, ids);
+            }
+        }, "DeadLetterReplay");
+        deadLetterReplayer.setDaemon(true);
+        deadLetterReplayer.start();
+        logger.info("Replaying {} dead letters by {}={}", new Object[] { ids.size(), field,
+                value });
+        return ids.size();
+    }
+
+    /**
+     * @param store
+     * @param ids dead letters to be forwarded again
+     */
+    private void replayDeadLetters(DeadLetterStore store, List<Long> ids) {
+        int replayed = 0;
+        try {
+            for (Long id : ids) {
+                if (stopped) {
+                    logger.info("Dead letter replay stopped after {} messages", replayed);
+                    return;
+                }
+                if (replayDeadLetter(store, id)) {
+                    replayed++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        logger.info("Dead letter replay done, {} of {} messages queued", replayed, ids.size());
+    }
+
+    /**
+     * Queue the dead letter as mail newly received, journaled first if journaling,
+     * and remove it once queued.
+     *
+     * @return false if kept in the store
+     */
+    private boolean replayDeadLetter(DeadLetterStore store, long id)
+            throws InterruptedException {
+        String[] envelope = store.getEnvelope(id);
+        while (envelope != null && !stopped) {
+            long numLeft = numLeftQueue.get();
+            InputStream data = null;
+            try {
+                data = store.openData(id);
+                listener.executeForwarding(envelope[0], MailContext.splitRecipients(envelope[1]),
+                        data);
+                store.remove(id);
+                numDeadLettersReplayed.getAndIncrement();
+                return true;
+            } catch (DeliveryDeferredException e) {
+                logger.debug("Replaying dead letter {} put off: {}", id, e.getMessage());
+            } catch (IOException e) {
+                // Kept for another try
+                logger.error("Replaying dead letter {} failed: {}", id, e.toString());
+                return false;
+            } finally {
+                IOUtils.closeQuietly(data);
+            }
+            awaitRoom(numLeft);
+        }
+        return false;
+    }
+
+    /**
+     * @return handler keeping the retry state of journaled mail in the journal
+     */
+    RetryHandler newRetryHandler() {
+        return new JournalRetryHandler();
+    }
+
+    long getNumReplayed() {
+        return numReplayed.get();
+    }
+
+    long getNumDeadLettersReplayed() {
+        return numDeadLettersReplayed.get();
+    }
+
+    /**
+     * Keeps the retry state of journaled mail in the journal, so that it survives a
+     * restart, and only the journal id in the retry scheduler, so that a large
+     * backlog of deferred mail costs little heap. Mail not journaled waits in the
+     * retry scheduler as it is.
+     */
+    private class JournalRetryHandler implements RetryHandler {
+        @Override
+        public Result defer(Runnable task, MailContext mail, long delayMillis) {
+            if (journal == null || mail.getJournalId() == 0) {
+                Result result = retryScheduler.defer(task, mail, delayMillis);
+                if (result == Result.REFUSED && drainer.isDraining()) {
+                    // Interrupted by the end of a drain
+                    String route = task instanceof MailForwardCommand ? ((MailForwardCommand) task)
+                            .getRouteName() : null;
+                    if (drainer.keepLeftOver(mail, route)) {
+                        return Result.HANDED_OVER;
+                    }
+                }
+                return result;
+            }
+            try {
+                journal.retry(mail);
+            } catch (IOException e) {
+                logger.warn("Recording retry of journaled message {} failed, kept in memory: {}",
+                        mail.getJournalId(), e.toString());
+                return retryScheduler.defer(task, mail, delayMillis);
+            }
+            boolean scheduled = retryScheduler.schedule(new JournaledRetry(mail.getJournalId()),
+                    delayMillis);
+            return scheduled ? Result.HANDED_OVER : Result.REFUSED;
+        }
+    }
+
+    /**
+     * Loads a journaled message once its next try is due and queues a new command
+     * for it on its route, counting on from its failed tries. Queued as received
+     * mail is, within the queue byte budget, and put off again while there is no
+     * room.
+     */
+    private class JournaledRetry implements Runnable {
+        private final long journalId;
+
+        JournaledRetry(long journalId) {
+            this.journalId = journalId;
+        }
+
+        @Override
+        public void run() {
+            if (journal == null || stopped) {
+                // Kept in the journal, tried again at next start
+                return;
+            }
+            MailContext mail;
+            try {
+                mail = journal.load(journalId);
+            } catch (IOException e) {
+                // Kept in the journal, tried again at next start
+                logger.error("Loading journaled message {} failed: {}", journalId, e.toString());
+                return;
+            }
+            if (mail == null) {
+                return;
+            }
+            MailForwardCommand command = newCommand(mail);
+            if (command == null) {
+                journal.unload(journalId);
+                return;
+            }
+            if (!listener.tryQueue(command, mail)) {
+                mail.release();
+                // Not handed out, may be relocated until loaded again
+                journal.unload(journalId);
+                if (!retryScheduler.schedule(this, RetryScheduler.REJECTED_RETRY_DELAY_MILLIS)) {
+                    // Kept in the journal, tried again at next start
+                    logger.warn("Retry of journaled message {} abandoned, forwarder queue full",
+                            journalId);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,752 @@
+package com.github.sinsinpub.smtp.relay.core.impl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.commons.lang.Validate;
+
+import com.github.sinsinpub.smtp.relay.core.MailForwardCommand;
+
+/**
+ * Executor keeping a queue per delivery route and priority lane, so that a slow
+ * backend holds no more workers than its cap while the other routes keep moving,
+ * and urgent mail passes bulk mail.
+ * <p>
+ * Lanes are served by strict priority, {@link MailForwardCommand#LANE_HIGH} first.
+ * Within a lane, routes with queued tasks are served by deficit round-robin: a route
+ * getting its turn has its weight added to its deficit, and hands one task per unit
+ * of deficit to the underlying executor before the next route's turn. A route at
+ * its in-flight cap, or whose backend is at its limit, is passed over until one of
+ * their tasks is done, without holding a worker meanwhile. Routes mapped to the
+ * same backend share its limit, the others are a backend each. A task waiting longer than
+ * the aging time in a lower lane moves up a lane, so that bulk mail is delayed but
+ * never starved.
+ * <p>
+ * No more tasks than the max in flight are handed over at once, so that the order
+ * is decided here instead of by the queue of the underlying executor.
+ * <p>
+ * When a hand-over takes the last free slot of the executor or of the route, up to
+ * the max batch size tasks queued in the lane of the route go together to one
+ * worker, run one after another within the batch scope, so that a backlog is sent
+ * over one backend connection. A batch counts as one task in flight, and as one
+ * unit of deficit per task in it, so that a route sending batches gets no more than
+ * its share. A route left in deficit by a batch passes its turns until its weight
+ * has paid it off.
+ *
+ * @author sin_sin
+ */
+@ThreadSafe
+public class RouteFairExecutor implements Executor {
+
+    /** Route of tasks not telling theirs */
+    public static final String UNROUTED = "unrouted";
+    public static final int DEFAULT_WEIGHT = 1;
+    public static final long DEFAULT_AGING_MILLIS = 5000L;
+    public static final int DEFAULT_BATCH_SIZE = 8;
+    /** Lane names by lane */
+    public static final String[] LANE_NAMES = { "high", "normal", "low" };
+
+    private final Executor executor;
+    private final int capacity;
+    private volatile int maxInFlightPerRoute;
+    private volatile int backendLimit;
+    private volatile Map<String, Integer> weights = Collections.emptyMap();
+    private volatile long agingNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_AGING_MILLIS);
+    private volatile int maxBatchSize = DEFAULT_BATCH_SIZE;
+    private volatile BatchScope batchScope;
+
+    @GuardedBy("this")
+    private final Map<String, Route> routes = new LinkedHashMap<String, Route>();
+    /** Backend keys by route name, routes left out being their own backend */
+    @GuardedBy("this")
+    private Map<String, ?> routeBackends = Collections.emptyMap();
+    @GuardedBy("this")
+    private final Map<Object, Backend> backends = new HashMap<Object, Backend>();
+    /** Routes with queued tasks by lane, the head one having its turn */
+    @GuardedBy("this")
+    private final List<ArrayDeque<Route>> active = new ArrayList<ArrayDeque<Route>>(
+            LANE_NAMES.length);
+    @GuardedBy("this")
+    private int maxInFlight;
+    @GuardedBy("this")
+    private int queuedCnt;
+    @GuardedBy("this")
+    private int inFlight;
+    @GuardedBy("this")
+    private long numPromoted;
+    @GuardedBy("this")
+    private long numBatches;
+    @GuardedBy("this")
+    private long numBatchedTasks;
+    /** Tasks of batches not run as shut down meanwhile */
+    @GuardedBy("this")
+    private final List<Runnable> unrun = new ArrayList<Runnable>();
+    @GuardedBy("this")
+    private boolean shutdown;
+
+    /**
+     * @param executor runs the tasks handed over
+     * @param maxInFlight tasks handed over at once, the worker count of a pool, 0
+     *            for no limit
+     * @param capacity tasks queued over all routes at most
+     */
+    public RouteFairExecutor(Executor executor, int maxInFlight, int capacity) {
+        Validate.notNull(executor, "Executor must not be null");
+        Validate.isTrue(capacity > 0, "Capacity must be positive");
+        this.executor = executor;
+        this.maxInFlight = maxInFlight > 0 ? maxInFlight : Integer.MAX_VALUE;
+        this.capacity = capacity;
+        for (int i = 0; i < LANE_NAMES.length; i++) {
+            active.add(new ArrayDeque<Route>());
+        }
+    }
+
+    /**
+     * Queue the task on the route and lane of the command it is, or the unrouted
+     * route in the normal lane.
+     */
+    @Override
+    public void execute(Runnable task) {
+        if (task instanceof MailForwardCommand) {
+            MailForwardCommand command = (MailForwardCommand) task;
+            execute(command.getRouteName(), command.getLane(), task);
+        } else {
+            execute(null, MailForwardCommand.LANE_NORMAL, task);
+        }
+    }
+
+    /**
+     * @param route name of the route, null for the unrouted one
+     * @param lane one of the <code>LANE_</code> constants of
+     *            {@link MailForwardCommand}, others taken as the nearest one
+     * @param task
+     * @throws RejectedExecutionException if full or shut down
+     */
+    public synchronized void execute(String route, int lane, Runnable task) {
+        Validate.notNull(task, "Task must not be null");
+        if (shutdown) {
+            throw new RejectedExecutionException("Route executor shut down");
+        }
+        if (queuedCnt >= capacity) {
+            throw new RejectedExecutionException("Route executor full with " + queuedCnt
+                    + " queued tasks");
+        }
+        String name = route == null ? UNROUTED : route;
+        Route queue = routes.get(name);
+        if (queue == null) {
+            queue = new Route(name);
+            queue.backend = backendOf(name);
+            routes.put(name, queue);
+        }
+        enqueue(queue, Math.max(0, Math.min(LANE_NAMES.length - 1, lane)), new Queued(task,
+                System.nanoTime()));
+        queuedCnt++;
+        dispatch();
+    }
+
+    /**
+     * Drop all queued tasks and take no more, tasks in flight are left to the
+     * underlying executor.
+     *
+     * @return number of tasks dropped
+     */
+    public int shutdown() {
+        return shutdownNow().size();
+    }
+
+    /**
+     * Take no more tasks and hand back the queued ones, tasks in flight are left to
+     * the underlying executor.
+     *
+     * @return tasks never handed over, by lane then route
+     */
+    public synchronized List<Runnable> shutdownNow() {
+        shutdown = true;
+        List<Runnable> dropped = new ArrayList<Runnable>(queuedCnt);
+        for (int lane = 0; lane < LANE_NAMES.length; lane++) {
+            for (Route route : routes.values()) {
+                for (Queued queued : route.lanes.get(lane)) {
+                    dropped.add(queued.task);
+                }
+                route.lanes.get(lane).clear();
+                route.deficits[lane] = 0;
+            }
+        }
+        for (ArrayDeque<Route> routesOfLane : active) {
+            routesOfLane.clear();
+        }
+        queuedCnt = 0;
+        return dropped;
+    }
+
+    /**
+     * @return tasks of batches in flight at shutdown that were not run since
+     */
+    public synchronized List<Runnable> takeUnrun() {
+        List<Runnable> tasks = new ArrayList<Runnable>(unrun);
+        unrun.clear();
+        return tasks;
+    }
+
+    /**
+     * Wait for the queued tasks to be handed over and all tasks to be done, queued
+     * ones still being taken meanwhile.
+     *
+     * @param timeout
+     * @param unit
+     * @return true if none queued nor in flight
+     * @throws InterruptedException
+     */
+    public synchronized boolean awaitIdle(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        long left;
+        while ((inFlight > 0 || queuedCnt > 0) && (left = deadline - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return inFlight == 0 && queuedCnt == 0;
+    }
+
+    @GuardedBy("this")
+    private void enqueue(Route route, int lane, Queued queued) {
+        ArrayDeque<Queued> tasks = route.lanes.get(lane);
+        if (tasks.isEmpty()) {
+            active.get(lane).addLast(route);
+        }
+        tasks.addLast(queued);
+    }
+
+    @GuardedBy("this")
+    private void dispatch() {
+        while (!shutdown && inFlight < maxInFlight && queuedCnt > 0) {
+            promoteAged();
+            if (!dispatchOne()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Hand over the next task of the highest lane having a route not at its cap.
+     *
+     * @return false if none could be handed over
+     */
+    @GuardedBy("this")
+    private boolean dispatchOne() {
+        for (int lane = 0; lane < LANE_NAMES.length; lane++) {
+            ArrayDeque<Route> routesOfLane = active.get(lane);
+            // Each round adds weights to the deficits, until one is paid off
+            boolean open = true;
+            while (open) {
+                open = false;
+                for (int passedOver = 0; passedOver < routesOfLane.size(); passedOver++) {
+                    Route route = routesOfLane.peekFirst();
+                    if (freeSlots(route) <= 0) {
+                        routesOfLane.addLast(routesOfLane.pollFirst());
+                        continue;
+                    }
+                    open = true;
+                    if (route.deficits[lane] <= 0) {
+                        route.deficits[lane] += weightOf(route.name);
+                        if (route.deficits[lane] <= 0) {
+                            // Still paying off a batch, turn passed
+                            routesOfLane.addLast(routesOfLane.pollFirst());
+                            continue;
+                        }
+                    }
+                    return handOver(route, lane);
+                }
+            }
+        }
+        return false;
+    }
+
+    @GuardedBy("this")
+    private boolean handOver(Route route, int lane) {
+        ArrayDeque<Route> routesOfLane = active.get(lane);
+        ArrayDeque<Queued> tasks = route.lanes.get(lane);
+        int size = batchSize(route, tasks.size());
+        List<Runnable> batch = new ArrayList<Runnable>(size);
+        List<Queued> taken = new ArrayList<Queued>(size);
+        for (int i = 0; i < size; i++) {
+            Queued queued = tasks.pollFirst();
+            taken.add(queued);
+            batch.add(queued.task);
+        }
+        queuedCnt -= size;
+        Backend backend = route.backend;
+        route.inFlight++;
+        backend.inFlight++;
+        inFlight++;
+        try {
+            executor.execute(new RouteTask(route, backend, batch));
+        } catch (RejectedExecutionException e) {
+            // Underlying executor stopping, left queued
+            for (int i = size - 1; i >= 0; i--) {
+                tasks.addFirst(taken.get(i));
+            }
+            queuedCnt += size;
+            route.inFlight--;
+            backend.inFlight--;
+            inFlight--;
+            return false;
+        }
+        if (size > 1) {
+            numBatches++;
+            numBatchedTasks += size;
+        }
+        route.deficits[lane] -= size;
+        if (tasks.isEmpty()) {
+            routesOfLane.pollFirst();
+            // No credit saved while idle, debts kept
+            route.deficits[lane] = Math.min(0, route.deficits[lane]);
+        } else if (route.deficits[lane] <= 0) {
+            routesOfLane.addLast(routesOfLane.pollFirst());
+        }
+        return true;
+    }
+
+    /**
+     * @return one, or when taking the last free slot of the executor or the route,
+     *         as many as queued up to the max batch size
+     */
+    @GuardedBy("this")
+    private int batchSize(Route route, int queued) {
+        int max = maxBatchSize;
+        if (max <= 1 || queued <= 1) {
+            return 1;
+        }
+        boolean lastSlot = inFlight + 1 >= maxInFlight || freeSlots(route) == 1;
+        return lastSlot ? Math.min(max, queued) : 1;
+    }
+
+    /**
+     * Move tasks having waited for the aging time up a lane, their wait starting
+     * over there.
+     */
+    @GuardedBy("this")
+    private void promoteAged() {
+        long aging = agingNanos;
+        if (aging <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        for (int lane = 1; lane < LANE_NAMES.length; lane++) {
+            Iterator<Route> it = active.get(lane).iterator();
+            while (it.hasNext()) {
+                Route route = it.next();
+                ArrayDeque<Queued> tasks = route.lanes.get(lane);
+                while (!tasks.isEmpty() && now - tasks.peekFirst().enqueuedNanos >= aging) {
+                    Queued queued = tasks.pollFirst();
+                    queued.enqueuedNanos = now;
+                    enqueue(route, lane - 1, queued);
+                    numPromoted++;
+                }
+                if (tasks.isEmpty()) {
+                    it.remove();
+                    route.deficits[lane] = Math.min(0, route.deficits[lane]);
+                }
+            }
+        }
+    }
+
+    private synchronized void done(Route route, Backend backend, int executed) {
+        route.inFlight--;
+        backend.inFlight--;
+        inFlight--;
+        route.numExecuted += executed;
+        dispatch();
+        if (inFlight == 0) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return tasks the route may still hand over, by the lower of its cap and the
+     *         limit of its backend, {@link Integer#MAX_VALUE} if neither
+     */
+    @GuardedBy("this")
+    private int freeSlots(Route route) {
+        int free = Integer.MAX_VALUE;
+        int cap = maxInFlightPerRoute;
+        if (cap > 0) {
+            free = cap - route.inFlight;
+        }
+        int limit = backendLimit;
+        if (limit > 0) {
+            free = Math.min(free, limit - route.backend.inFlight);
+        }
+        return free;
+    }
+
+    @GuardedBy("this")
+    private Backend backendOf(String route) {
+        Object key = routeBackends.get(route);
+        if (key == null) {
+            key = route;
+        }
+        Backend backend = backends.get(key);
+        if (backend == null) {
+            backend = new Backend();
+            backends.put(key, backend);
+        }
+        return backend;
+    }
+
+    private int weightOf(String route) {
+        Integer weight = weights.get(route);
+        return weight == null ? DEFAULT_WEIGHT : Math.max(1, weight);
+    }
+
+    /**
+     * @return tasks handed over at once, 0 for no limit
+     */
+    public synchronized int getMaxInFlight() {
+        return maxInFlight == Integer.MAX_VALUE ? 0 : maxInFlight;
+    }
+
+    /**
+     * @param maxInFlight tasks handed over at once, the worker count of a pool, 0
+     *            for no limit
+     */
+    public synchronized void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight > 0 ? maxInFlight : Integer.MAX_VALUE;
+        dispatch();
+    }
+
+    public int getMaxInFlightPerRoute() {
+        return maxInFlightPerRoute;
+    }
+
+    /**
+     * @param maxInFlightPerRoute tasks of a route handed over at once, 0 for no
+     *            limit
+     */
+    public synchronized void setMaxInFlightPerRoute(int maxInFlightPerRoute) {
+        this.maxInFlightPerRoute = maxInFlightPerRoute;
+        dispatch();
+    }
+
+    public int getBackendLimit() {
+        return backendLimit;
+    }
+
+    /**
+     * @param backendLimit tasks of all routes of a backend handed over at once, such
+     *            as the concurrency limit of a session, 0 for no limit
+     */
+    public synchronized void setBackendLimit(int backendLimit) {
+        this.backendLimit = backendLimit;
+        dispatch();
+    }
+
+    /**
+     * Group routes by backend, tasks in flight counting to the backend they were
+     * handed over for.
+     *
+     * @param routeBackends backend keys by route name, the routes left out being a
+     *            backend each
+     */
+    public synchronized void setRouteBackends(Map<String, ?> routeBackends) {
+        this.routeBackends = routeBackends == null ? Collections.<String, Object> emptyMap()
+                : new HashMap<String, Object>(routeBackends);
+        for (Route route : routes.values()) {
+            route.backend = backendOf(route.name);
+        }
+        Iterator<Backend> it = backends.values().iterator();
+        while (it.hasNext()) {
+            Backend backend = it.next();
+            if (backend.inFlight == 0 && !isUsed(backend)) {
+                it.remove();
+            }
+        }
+        dispatch();
+    }
+
+    @GuardedBy("this")
+    private boolean isUsed(Backend backend) {
+        for (Route route : routes.values()) {
+            if (route.backend == backend) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public Map<String, Integer> getWeights() {
+        return weights;
+    }
+
+    /**
+     * @param weights tasks a route hands over per turn by route name, others
+     *            {@value #DEFAULT_WEIGHT}
+     */
+    public void setWeights(Map<String, Integer> weights) {
+        this.weights = weights == null ? Collections.<String, Integer> emptyMap()
+                : Collections.unmodifiableMap(new HashMap<String, Integer>(weights));
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * @param maxBatchSize tasks of a route handed to one worker at once under
+     *            backlog, 1 for no batching
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        Validate.isTrue(maxBatchSize > 0, "Max batch size must be positive");
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public BatchScope getBatchScope() {
+        return batchScope;
+    }
+
+    /**
+     * @param batchScope wraps the run of every batch, or null for none
+     */
+    public void setBatchScope(BatchScope batchScope) {
+        this.batchScope = batchScope;
+    }
+
+    public long getAgingMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(agingNanos);
+    }
+
+    /**
+     * @param agingMillis wait in a lane before moving up, 0 for never
+     */
+    public void setAgingMillis(long agingMillis) {
+        this.agingNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, agingMillis));
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized int getQueuedCnt() {
+        return queuedCnt;
+    }
+
+    public synchronized int getRemainingCapacity() {
+        return shutdown ? 0 : Math.max(0, capacity - queuedCnt);
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return times a task moved up a lane for waiting too long
+     */
+    public synchronized long getNumPromoted() {
+        return numPromoted;
+    }
+
+    /**
+     * @return hand-overs of more than one task
+     */
+    public synchronized long getNumBatches() {
+        return numBatches;
+    }
+
+    public synchronized long getNumBatchedTasks() {
+        return numBatchedTasks;
+    }
+
+    /**
+     * @return queued tasks by route
+     */
+    public synchronized Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> depths = new LinkedHashMap<String, Integer>(routes.size());
+        for (Route route : routes.values()) {
+            int depth = 0;
+            for (ArrayDeque<Queued> tasks : route.lanes) {
+                depth += tasks.size();
+            }
+            depths.put(route.name, depth);
+        }
+        return depths;
+    }
+
+    /**
+     * @return queued tasks by lane name
+     */
+    public synchronized Map<String, Integer> getLaneDepths() {
+        Map<String, Integer> depths = new LinkedHashMap<String, Integer>(LANE_NAMES.length);
+        for (int lane = 0; lane < LANE_NAMES.length; lane++) {
+            int depth = 0;
+            for (Route route : active.get(lane)) {
+                depth += route.lanes.get(lane).size();
+            }
+            depths.put(LANE_NAMES[lane], depth);
+        }
+        return depths;
+    }
+
+    /**
+     * @return tasks handed over and not done yet by route
+     */
+    public synchronized Map<String, Integer> getInFlightByRoute() {
+        Map<String, Integer> inFlights = new LinkedHashMap<String, Integer>(routes.size());
+        for (Route route : routes.values()) {
+            inFlights.put(route.name, route.inFlight);
+        }
+        return inFlights;
+    }
+
+    /**
+     * @return tasks done by route
+     */
+    public synchronized Map<String, Long> getNumExecutedByRoute() {
+        Map<String, Long> executed = new LinkedHashMap<String, Long>(routes.size());
+        for (Route route : routes.values()) {
+            executed.put(route.name, route.numExecuted);
+        }
+        return executed;
+    }
+
+    /**
+     * @param name lane name, case ignored
+     * @return the lane, or -1 if no such lane
+     */
+    public static int parseLane(String name) {
+        for (int lane = 0; lane < LANE_NAMES.length; lane++) {
+            if (LANE_NAMES[lane].equalsIgnoreCase(name)) {
+                return lane;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Queues and counters of one route.
+     */
+    private static final class Route {
+        final String name;
+        final List<ArrayDeque<Queued>> lanes = new ArrayList<ArrayDeque<Queued>>(
+                LANE_NAMES.length);
+        final int[] deficits = new int[LANE_NAMES.length];
+        Backend backend;
+        int inFlight;
+        long numExecuted;
+
+        Route(String name) {
+            this.name = name;
+            for (int i = 0; i < LANE_NAMES.length; i++) {
+                lanes.add(new ArrayDeque<Queued>());
+            }
+        }
+    }
+
+    /**
+     * Tasks in flight to a backend over all its routes.
+     */
+    private static final class Backend {
+        int inFlight;
+    }
+
+    /**
+     * A task and since when it waits in its lane.
+     */
+    private static final class Queued {
+        final Runnable task;
+        long enqueuedNanos;
+
+        Queued(Runnable task, long enqueuedNanos) {
+            this.task = task;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+
+    /**
+     * Shares resources among the tasks of a batch, begun and ended on the thread
+     * running the batch.
+     */
+    public interface BatchScope {
+
+        void begin();
+
+        void end();
+
+    }
+
+    /**
+     * Runs the tasks of a hand-over in order and hands the next over once done. A
+     * task failing does not keep the next ones from running, the first failure is
+     * thrown at the end.
+     */
+    private final class RouteTask implements Runnable {
+        private final Route route;
+        private final Backend backend;
+        private final List<Runnable> tasks;
+
+        RouteTask(Route route, Backend backend, List<Runnable> tasks) {
+            this.route = route;
+            this.backend = backend;
+            this.tasks = tasks;
+        }
+
+        @Override
+        public void run() {
+            BatchScope scope = tasks.size() > 1 ? batchScope : null;
+            int executed = 0;
+            RuntimeException failure = null;
+            try {
+                if (scope != null) {
+                    scope.begin();
+                }
+                for (Runnable task : tasks) {
+                    if (executed > 0 && keepUnrun(tasks.subList(executed, tasks.size()))) {
+                        break;
+                    }
+                    executed++;
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        if (failure == null) {
+                            failure = e;
+                        }
+                    }
+                }
+            } finally {
+                try {
+                    if (scope != null) {
+                        scope.end();
+                    }
+                } finally {
+                    done(route, backend, executed);
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * @param rest tasks of a batch not run yet
+     * @return true if kept to be taken as shut down
+     */
+    private synchronized boolean keepUnrun(List<Runnable> rest) {
+        if (!shutdown) {
+            return false;
+        }
+        unrun.addAll(rest);
+        return true;
+    }
+
+}
@@ -1,30 +1,46 @@
 package com.github.sinsinpub.smtp.relay.core.impl;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.concurrent.NotThreadSafe;
 import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
 import javax.mail.Session;
 import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
 
-import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.github.sinsinpub.smtp.relay.context.MailContext;
 import com.github.sinsinpub.smtp.relay.core.MailForwardCommand;
 import com.github.sinsinpub.smtp.relay.exception.RetryException;
+import com.github.sinsinpub.smtp.relay.spool.DeadLetterStore;
 import com.github.sinsinpub.smtp.relay.transport.AdditiveWaitRetryStrategy;
+import com.github.sinsinpub.smtp.relay.transport.MxRoute;
+import com.github.sinsinpub.smtp.relay.transport.RetryHandler;
 import com.github.sinsinpub.smtp.relay.transport.RetryStrategy;
+import com.github.sinsinpub.smtp.relay.transport.TransportPool;
+import com.github.sinsinpub.smtp.relay.transport.TransportPool.PooledTransport;
 import com.github.sinsinpub.smtp.relay.utils.ConcurrentUtil;
 
 /**
  * Simple implementation of mail relay worker thread.
+ * <p>
+ * With a {@link RetryHandler}, a failed try gives the thread back and the mail is
+ * tried again once the next try is due, instead of sleeping in between. Tries are
+ * counted on from the failed tries recorded in the mail context.
+ * <p>
+ * Mail is sent to its envelope recipients in one transaction, not to the addresses
+ * of its headers. Recipients the backend answers for one by one are settled one by
+ * one: delivered ones are done, rejected ones kept as a dead letter of their own,
+ * and only the rest tried again.
  * 
  * @author sin_sin
  */
@@ -35,10 +51,18 @@ final class SimpleRelayCommand implements MailForwardCommand {
 
     private MailContext mail;
     private String mtaName;
+    private int lane = LANE_NORMAL;
     private Session mta;
-    private File errDump;
+    private DeadLetterStore deadLetterStore;
     private RetryStrategy retryStrategy;
     private ConcurrentMap<String, AtomicLong> exceptionCounter;
+    private ConcurrentMap<String, AtomicLong> rejectedCounter;
+    private RetryHandler retryHandler;
+    private TransportPool transportPool;
+    private MxRoute mxRoute;
+    private boolean rawRelay;
+    private Runnable completionCallback;
+    private boolean resumed;
 
     private MimeMessage mimeMsgCache = null;
 
@@ -50,12 +74,12 @@ final class SimpleRelayCommand implements MailForwardCommand {
         this(mail, session, null, null);
     }
 
-    public SimpleRelayCommand(MailContext mail, Session session, File errDump,
-            RetryStrategy retryStrategy) {
+    public SimpleRelayCommand(MailContext mail, Session session,
+            DeadLetterStore deadLetterStore, RetryStrategy retryStrategy) {
         this();
         this.mail = mail;
         this.mta = session;
-        this.errDump = errDump;
+        this.deadLetterStore = deadLetterStore;
         if (retryStrategy != null) {
             this.retryStrategy = retryStrategy;
         } else {
@@ -68,6 +92,11 @@ final class SimpleRelayCommand implements MailForwardCommand {
         this.mail = mail;
     }
 
+    @Override
+    public MailContext getMail() {
+        return mail;
+    }
+
     @Override
     public void setMailSession(Session session) {
         this.mta = session;
@@ -77,8 +106,28 @@ final class SimpleRelayCommand implements MailForwardCommand {
         this.mtaName = sessionName;
     }
 
-    public void setErrDump(File errDump) {
-        this.errDump = errDump;
+    /**
+     * @return the session name, the delivering rule matched
+     */
+    @Override
+    public String getRouteName() {
+        return mtaName;
+    }
+
+    @Override
+    public int getLane() {
+        return lane;
+    }
+
+    public void setLane(int lane) {
+        this.lane = lane;
+    }
+
+    /**
+     * @param deadLetterStore where mail given up is kept, or null to drop it
+     */
+    public void setDeadLetterStore(DeadLetterStore deadLetterStore) {
+        this.deadLetterStore = deadLetterStore;
     }
 
     public void setRetryStrategy(RetryStrategy retryStrategy) {
@@ -90,6 +139,70 @@ final class SimpleRelayCommand implements MailForwardCommand {
         this.exceptionCounter = exceptionCounter;
     }
 
+    /**
+     * @param rejectedCounter recipients rejected for good, by session name
+     */
+    public void setRejectedCounter(ConcurrentMap<String, AtomicLong> rejectedCounter) {
+        this.rejectedCounter = rejectedCounter;
+    }
+
+    /**
+     * @param retryHandler where to wait for the next try, or null to wait on the
+     *            running thread
+     */
+    public void setRetryHandler(RetryHandler retryHandler) {
+        this.retryHandler = retryHandler;
+    }
+
+    /**
+     * @param transportPool where to borrow backend connections, or null to connect
+     *            for every message
+     */
+    public void setTransportPool(TransportPool transportPool) {
+        this.transportPool = transportPool;
+    }
+
+    /**
+     * @param mxRoute where to deliver straight to the MX hosts of the recipients,
+     *            or null to send through the session
+     */
+    public void setMxRoute(MxRoute mxRoute) {
+        this.mxRoute = mxRoute;
+    }
+
+    /**
+     * @param rawRelay whether to send the bytes received as they are, instead of
+     *            the message parsed and written again by JavaMail
+     */
+    public void setRawRelay(boolean rawRelay) {
+        this.rawRelay = rawRelay;
+    }
+
+    @Override
+    public void setCompletionCallback(Runnable completionCallback) {
+        this.completionCallback = completionCallback;
+    }
+
+    private void complete() {
+        if (completionCallback != null) {
+            completionCallback.run();
+        }
+    }
+
+    /**
+     * What became of a run.
+     */
+    private enum Outcome {
+        /** Forwarded or given up */
+        DONE,
+        /** Run again once the next try is due */
+        RETRY_SCHEDULED,
+        /** Tried again by another command once due */
+        HANDED_OVER,
+        /** Stopped before done */
+        ABANDONED
+    }
+
     private void incrementExceptionCount() {
         if (exceptionCounter != null) {
             ConcurrentUtil.incrementLong(exceptionCounter,
@@ -106,80 +219,201 @@ final class SimpleRelayCommand implements MailForwardCommand {
         if (mta == null) {
             logger.error("No backend mail transport agent session configured correctly, stop forwarding");
             incrementExceptionCount();
+            mail.release();
+            complete();
             return;
         }
         if (retryStrategy == null) {
             logger.error("No retry strategy instance configured correctly, stop forwarding");
             incrementExceptionCount();
+            mail.release();
+            complete();
             return;
         }
+        if (!resumed) {
+            retryStrategy.resume(mail.getFailedTries());
+            resumed = true;
+        }
+        Outcome outcome = Outcome.ABANDONED;
+        try {
+            outcome = forward();
+        } finally {
+            if (outcome != Outcome.RETRY_SCHEDULED) {
+                mail.release();
+            }
+        }
+        if (outcome == Outcome.DONE) {
+            complete();
+        }
+    }
+
+    private Outcome forward() {
         while (retryStrategy.shouldRetry()) {
             try {
                 if (mimeMsgCache == null) {
-                    mimeMsgCache = mail.getMimeMessage(mta);
+                    mimeMsgCache = rawRelay ? mail.getRawMimeMessage(mta) : mail
+                            .getMimeMessage(mta);
                 }
-                Transport.send(mimeMsgCache);
-                for (Address address : mimeMsgCache.getAllRecipients())
-                    logger.info(mimeMsgCache.getMessageID() + " forwarded to "
-                            + address);
+                send(mimeMsgCache, toAddresses(mail.getEnvelopeRecipients()));
+                logger.info(mimeMsgCache.getMessageID() + " forwarded to "
+                        + mail.getEnvelopeRecipients());
                 break;
             } catch (Exception e) {
+                if (e instanceof SendFailedException && !settle((SendFailedException) e)) {
+                    // Every recipient delivered or rejected for good
+                    break;
+                }
                 try {
                     logger.error(
                             String.format("%s, retrying for %s...",
                                     e.toString(),
                                     retryStrategy.printRetriesCount()), e);
-                    retryStrategy.tryRetry();
+                    if (retryHandler == null) {
+                        retryStrategy.tryRetry();
+                    } else {
+                        return defer(retryStrategy.nextRetryDelay(), e);
+                    }
                 } catch (RetryException retryExp) {
                     incrementExceptionCount();
-                    if (errDump != null) {
-                        try {
-                            MimeMessage failedToSend = mimeMsgCache;
-                            String file = failedToSend.getMessageID()
-                                    .substring(
-                                            1,
-                                            failedToSend.getMessageID()
-                                                    .lastIndexOf(">"))
-                                    + ".msg";
-                            logger.error("Message dumped to " + file);
-                            int at = mail.getEnvelopeReceiver()
-                                    .lastIndexOf('@');
-                            File recipientDump;
-                            if (at > 0) {
-                                recipientDump = new File(errDump,
-                                        mail.getEnvelopeReceiver().substring(0,
-                                                at));
-                            } else {
-                                recipientDump = new File(errDump,
-                                        mail.getEnvelopeReceiver());
-                            }
-                            if (!recipientDump.exists()
-                                    && !recipientDump.mkdir()) {
-                                throw new IOException(
-                                        "Make new directory failed for "
-                                                + recipientDump.toString());
-                            }
-                            FileOutputStream fos = null;
-                            try {
-                                fos = new FileOutputStream(new File(
-                                        recipientDump, file));
-                                failedToSend.writeTo(fos);
-                            } finally {
-                                if (fos != null) {
-                                    IOUtils.closeQuietly(fos);
-                                }
-                            }
-                        } catch (Exception fatal) {
-                            logger.error(
-                                    "Dump mail message error: "
-                                            + fatal.toString(), fatal);
-                        }
-                    }
                     logger.error("Retry failed: " + retryExp.getMessage());
+                    if (!keepDeadLetter(mail, e)) {
+                        // Left to the journal, if any, instead of being lost
+                        return Outcome.ABANDONED;
+                    }
                     break;
                 }
             }
         }
+        return Outcome.DONE;
+    }
+
+    /**
+     * Send to the MX hosts of the recipients if an MX route is set, otherwise over a
+     * connection of the pool, if any, kept open for the next message unless the send
+     * failed.
+     * 
+     * @param recipients null for the ones of the message headers
+     */
+    private void send(MimeMessage message, Address[] recipients) throws MessagingException {
+        if (mxRoute != null) {
+            mxRoute.send(message, recipients == null ? message.getAllRecipients() : recipients);
+            return;
+        }
+        if (transportPool == null) {
+            if (recipients == null) {
+                Transport.send(message);
+            } else {
+                Transport.send(message, recipients);
+            }
+            return;
+        }
+        PooledTransport connection = transportPool.borrow(mta);
+        boolean sent = false;
+        try {
+            connection.send(message, recipients);
+            sent = true;
+        } finally {
+            transportPool.giveBack(connection, sent);
+        }
+    }
+
+    /**
+     * Envelope addresses are taken as they are, not parsed again.
+     * 
+     * @return null if none, for mail contexts built without recipients
+     */
+    private static Address[] toAddresses(List<String> recipients) {
+        if (recipients.isEmpty()) {
+            return null;
+        }
+        Address[] addresses = new Address[recipients.size()];
+        for (int i = 0; i < addresses.length; i++) {
+            InternetAddress address = new InternetAddress();
+            address.setAddress(recipients.get(i));
+            addresses[i] = address;
+        }
+        return addresses;
+    }
+
+    private static List<String> toRecipients(Address[] addresses) {
+        List<String> recipients = new ArrayList<String>(addresses == null ? 0
+                : addresses.length);
+        if (addresses != null) {
+            for (Address address : addresses) {
+                recipients.add(address instanceof InternetAddress ? ((InternetAddress) address)
+                        .getAddress() : address.toString());
+            }
+        }
+        return recipients;
+    }
+
+    /**
+     * Settle the recipients the backend answered for: the delivered ones are done,
+     * the rejected ones kept as a dead letter, the rest left in the mail context.
+     * 
+     * @return true if some recipients are left to be tried again
+     */
+    private boolean settle(SendFailedException e) {
+        List<String> sent = toRecipients(e.getValidSentAddresses());
+        List<String> rejected = toRecipients(e.getInvalidAddresses());
+        List<String> unsent = toRecipients(e.getValidUnsentAddresses());
+        if (sent.isEmpty() && rejected.isEmpty() && unsent.isEmpty()) {
+            // Failed as a whole
+            return true;
+        }
+        if (!sent.isEmpty()) {
+            logger.info("Message from {} forwarded to {}", mail.getEnvelopeSender(), sent);
+        }
+        if (!rejected.isEmpty()) {
+            if (rejectedCounter != null) {
+                ConcurrentUtil.addLong(rejectedCounter, String.valueOf(mtaName),
+                        rejected.size());
+            }
+            logger.error("Message from {} rejected for {}: {}", new Object[] {
+                    mail.getEnvelopeSender(), rejected, e.toString() });
+            keepDeadLetter(new MailContext(mail.getEnvelopeSender(), rejected,
+                    mail.getMessageStorage()), e);
+        }
+        mail.setEnvelopeRecipients(unsent);
+        return !unsent.isEmpty();
+    }
+
+    /**
+     * Hand the mail given up to the dead letter store, if any.
+     * 
+     * @param letter the mail, or a copy of its envelope for some of its recipients
+     * @return false if the store failed to keep it
+     */
+    private boolean keepDeadLetter(MailContext letter, Exception cause) {
+        if (deadLetterStore == null) {
+            logger.error("Message from {} to {} given up and dropped",
+                    letter.getEnvelopeSender(), letter.getEnvelopeReceiver());
+            return true;
+        }
+        try {
+            long id = deadLetterStore.add(letter, mtaName, cause.toString());
+            logger.error("Message from {} to {} kept as dead letter {}", new Object[] {
+                    letter.getEnvelopeSender(), letter.getEnvelopeReceiver(), id });
+            return true;
+        } catch (IOException fatal) {
+            logger.error("Keeping dead letter error: " + fatal.toString(), fatal);
+            return false;
+        }
+    }
+
+    private Outcome defer(long delayMillis, Exception cause) {
+        mail.setFailedTries(retryStrategy.getFailedTries());
+        mail.setNextAttemptTime(System.currentTimeMillis() + delayMillis);
+        mail.setLastError(cause.toString());
+        switch (retryHandler.defer(this, mail, delayMillis)) {
+        case SCHEDULED:
+            return Outcome.RETRY_SCHEDULED;
+        case HANDED_OVER:
+            return Outcome.HANDED_OVER;
+        default:
+            logger.warn("Retry handler stopped, forwarding abandoned");
+            return Outcome.ABANDONED;
+        }
     }
 
 }
@@ -5,19 +5,23 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 
-import org.apache.commons.lang.StringUtils;
+import org.apache.commons.io.input.CountingInputStream;
 import org.subethamail.smtp.MessageContext;
 import org.subethamail.smtp.MessageHandler;
 import org.subethamail.smtp.MessageHandlerFactory;
 import org.subethamail.smtp.RejectException;
 import org.subethamail.smtp.TooMuchDataException;
-import org.subethamail.smtp.helper.SimpleMessageListener;
+
+import com.github.sinsinpub.smtp.relay.exception.DeliveryDeferredException;
+import com.github.sinsinpub.smtp.relay.frontend.ClientRateLimiter;
+import com.github.sinsinpub.smtp.relay.spool.SpooledInputStream;
 
 /**
  * MessageHandlerFactory implementation which adapts to a collection of MessageListeners.
  * <p>
  * The key point is that for any message, all accepted recipient will get only single delivery.<br>
- * No multi-listener supported as single delivery data may not be safe.
+ * No multi-listener supported as single delivery data may not be safe. Recipients are
+ * handed over as accepted, not joined into one address.
  * 
  * @see org.subethamail.smtp.helper.SimpleMessageListenerAdapter
  * @author Jeff Schnitzer
@@ -25,12 +29,13 @@ import org.subethamail.smtp.helper.SimpleMessageListener;
  */
 public class SingleDeliveryMessageListenerAdapter implements MessageHandlerFactory {
 
-    private SimpleMessageListener listener;
+    private EnvelopeMessageListener listener;
+    private volatile ClientRateLimiter rateLimiter;
 
     /**
      * Initializes this factory with a single listener.
      */
-    public SingleDeliveryMessageListenerAdapter(SimpleMessageListener listener) {
+    public SingleDeliveryMessageListenerAdapter(EnvelopeMessageListener listener) {
         this.listener = listener;
     }
 
@@ -38,17 +43,22 @@ public class SingleDeliveryMessageListenerAdapter implements MessageHandlerFacto
         return new Handler(ctx);
     }
 
+    /**
+     * @param rateLimiter per client message and byte limits, or null for none
+     */
+    public void setRateLimiter(ClientRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
     /**
      * Needed by this class to track which listeners need delivery.
      */
     static class Delivery {
-        SimpleMessageListener listener;
-        String recipient;
+        EnvelopeMessageListener listener;
         List<String> recipients = new ArrayList<String>();
 
-        public Delivery(SimpleMessageListener listener, String recipient) {
+        public Delivery(EnvelopeMessageListener listener, String recipient) {
             this.listener = listener;
-            this.recipient = recipient;
             addRecipients(recipient);
         }
 
@@ -56,14 +66,10 @@ public class SingleDeliveryMessageListenerAdapter implements MessageHandlerFacto
             this.recipients.add(recipient);
         }
 
-        public SimpleMessageListener getListener() {
+        public EnvelopeMessageListener getListener() {
             return this.listener;
         }
 
-        public String getRecipient() {
-            return this.recipient;
-        }
-
         public List<String> getRecipients() {
             return recipients;
         }
@@ -83,6 +89,13 @@ public class SingleDeliveryMessageListenerAdapter implements MessageHandlerFacto
         }
 
         public void from(String from) throws RejectException {
+            ClientRateLimiter limiter = rateLimiter;
+            if (limiter != null
+                    && !limiter.tryAcquireMessage(ClientRateLimiter.toInetAddress(ctx
+                            .getRemoteAddress()))) {
+                throw new RejectException(451,
+                        "4.7.1 Too much mail from your address, try again later");
+            }
             this.from = from;
         }
 
@@ -98,12 +111,44 @@ public class SingleDeliveryMessageListenerAdapter implements MessageHandlerFacto
             }
         }
 
-        public void data(InputStream data) throws TooMuchDataException, IOException {
-            if (delivery.getRecipients().size() > 1) {
-                delivery.getListener().deliver(this.from,
-                        StringUtils.join(delivery.getRecipients(), ","), data);
-            } else {
-                delivery.getListener().deliver(this.from, delivery.getRecipient(), data);
+        public void data(InputStream data) throws RejectException, TooMuchDataException,
+                IOException {
+            ClientRateLimiter limiter = rateLimiter;
+            if (limiter == null) {
+                deliver(data);
+                return;
+            }
+            // Spooled data is taken over without reading, otherwise count what is read
+            CountingInputStream counter = data instanceof SpooledInputStream ? null
+                    : new CountingInputStream(data);
+            long size = counter == null ? ((SpooledInputStream) data).getSize() : 0;
+            try {
+                deliver(counter == null ? data : counter);
+            } finally {
+                limiter.consumeBytes(ClientRateLimiter.toInetAddress(ctx.getRemoteAddress()),
+                        counter == null ? size : counter.getByteCount());
+            }
+        }
+
+        private void deliver(InputStream data) throws RejectException, IOException {
+            try {
+                delivery.getListener().deliver(this.from, delivery.getRecipients(), data);
+            } catch (TooMuchDataException e) {
+                // Storing stopped as soon as the limit was crossed, skip the rest
+                discard(data);
+                throw new RejectException(552, "5.3.4 Message size exceeds fixed limit");
+            } catch (DeliveryDeferredException e) {
+                // Temporary failure, so that the client backs off and retries later.
+                // Rest of the data is discarded to keep the session in sync.
+                discard(data);
+                throw new RejectException(e.getReplyCode(), e.getMessage());
+            }
+        }
+
+        private void discard(InputStream data) throws IOException {
+            byte[] buffer = new byte[4096];
+            while (data.read(buffer) != -1) {
+                // Just skip it
             }
         }
 
@@ -1,20 +1,29 @@
 package com.github.sinsinpub.smtp.relay.core.impl;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.Validate;
 import org.slf4j.Logger;
@@ -23,15 +32,31 @@ import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.context.Lifecycle;
 import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
 import org.springframework.jmx.export.annotation.ManagedResource;
-import org.subethamail.smtp.TooMuchDataException;
-import org.subethamail.smtp.helper.SimpleMessageListener;
+import org.subethamail.smtp.MessageHandlerFactory;
 import org.subethamail.smtp.server.SMTPServer;
 
 import com.github.sinsinpub.smtp.relay.context.MailContext;
+import com.github.sinsinpub.smtp.relay.core.FrontendServer;
 import com.github.sinsinpub.smtp.relay.core.MailForwardCommand;
+import com.github.sinsinpub.smtp.relay.exception.DeliveryDeferredException;
+import com.github.sinsinpub.smtp.relay.frontend.ClientRateLimiter;
+import com.github.sinsinpub.smtp.relay.frontend.EndpointSmtpServer;
+import com.github.sinsinpub.smtp.relay.frontend.EndpointStats;
+import com.github.sinsinpub.smtp.relay.frontend.NioSmtpServer;
+import com.github.sinsinpub.smtp.relay.spool.ContentStore;
+import com.github.sinsinpub.smtp.relay.spool.DeadLetterStore;
+import com.github.sinsinpub.smtp.relay.spool.MailJournal;
+import com.github.sinsinpub.smtp.relay.spool.MailSpooler;
+import com.github.sinsinpub.smtp.relay.spool.MessageStorage;
+import com.github.sinsinpub.smtp.relay.transport.RetryScheduler;
+import com.github.sinsinpub.smtp.relay.transport.TransportPool;
+import com.github.sinsinpub.smtp.relay.utils.ConcurrentUtil;
+import com.github.sinsinpub.smtp.relay.utils.DomainSuffixMatcher;
 import com.github.sinsinpub.smtp.relay.utils.NameCustomizableThreadFactory;
 import com.github.sinsinpub.smtp.relay.utils.ObjectUtil;
+import com.github.sinsinpub.smtp.relay.utils.SocketUtil;
 
 /**
  * A simple SMTP protocol listener and delivering component.
@@ -40,29 +65,115 @@ import com.github.sinsinpub.smtp.relay.utils.ObjectUtil;
  */
 @ThreadSafe
 @ManagedResource(objectName = SmtpListener.OBJECT_NAME, description = "A simple SMTP protocol listener and delivering component.")
-public class SmtpListener implements SimpleMessageListener, Lifecycle, InitializingBean,
+public class SmtpListener implements EnvelopeMessageListener, Lifecycle, InitializingBean,
         DisposableBean {
 
     public static final String OBJECT_NAME = "com.github.sinsinpub.smtp.relay:type=Frontend,name=SmtpListener";
+    public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+    public static final long DEFAULT_QUEUE_BYTE_BUDGET = 128L * 1024 * 1024;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+    public static final long DEFAULT_DRAIN_TIMEOUT_MILLIS = 30000L;
+    /** Wait for forwarders interrupted at the end of a drain to give their mail up */
+    public static final long DRAIN_INTERRUPT_GRACE_MILLIS = 1000L;
+    public static final String LEFT_OVER_REASON = "Left over on shutdown";
+    /** SubEthaSMTP server, one thread per connection */
+    public static final String LISTENER_TYPE_BLOCKING = "blocking";
+    /** Event-driven server, a few I/O threads for all connections */
+    public static final String LISTENER_TYPE_NIO = "nio";
+    /** Fixed pool of platform threads */
+    public static final String THREAD_MODE_PLATFORM = "platform";
+    /** A new virtual thread per task, falls back to platform if not supported */
+    public static final String THREAD_MODE_VIRTUAL = "virtual";
     private final static Logger logger = LoggerFactory.getLogger(SmtpListener.class);
 
     @GuardedBy("itself")
-    protected SMTPServer frontendServer;
+    protected FrontendServer frontendServer;
     @GuardedBy("itself")
     protected ExecutorService executorService;
+    protected RetryScheduler retryScheduler;
+    /** Queues commands per route in front of the forwarders */
+    protected RouteFairExecutor routeExecutor;
+    /** Hand-off queue of the forwarder pool, bounded by the route executor */
+    protected BlockingQueue<Runnable> forwarderQueue;
     protected InetAddress bindAddress;
     protected int listenPort;
+    /** Listening endpoints, if empty the bind address and listen port */
+    protected String[] endpoints;
+    /** Acceptors per endpoint sharing its port by SO_REUSEPORT */
+    protected int acceptorCnt = 1;
+    protected volatile Map<String, EndpointStats> endpointStats = Collections.emptyMap();
+    protected String listenerType = LISTENER_TYPE_BLOCKING;
+    protected int ioThreadCnt;
+    /** Threads of the NIO listener running message handlers on mail data */
+    protected int deliveryThreadCnt;
+    protected int maxConnections = NioSmtpServer.DEFAULT_MAX_CONNECTIONS;
+    protected int connectionTimeout = NioSmtpServer.DEFAULT_CONNECTION_TIMEOUT;
     protected int forwarderCnt;
+    protected String forwarderThreadMode = THREAD_MODE_PLATFORM;
+    protected String sessionThreadMode = THREAD_MODE_PLATFORM;
+    /** Whether forwarders run on virtual threads actually */
+    protected boolean virtualForwarders;
+    protected int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    /** Commands running at once over all routes, no more than the pool threads */
+    protected int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    /** Commands of one route running at once, 0 for no limit */
+    protected int maxInFlightPerRoute;
+    /** Commands a route hands to forwarders per turn, by route name */
+    protected Map<String, Integer> routeWeights = Collections.emptyMap();
+    /** Wait of a command in a priority lane before moving up, 0 for never */
+    protected long laneAgingMillis = RouteFairExecutor.DEFAULT_AGING_MILLIS;
+    /** Commands of a route a forwarder takes at once under backlog, 1 for one */
+    protected int routeBatchSize = RouteFairExecutor.DEFAULT_BATCH_SIZE;
+    protected volatile long queueByteBudget = DEFAULT_QUEUE_BYTE_BUDGET;
+    protected File spoolDirectory;
+    protected int spoolMemoryThreshold = MailSpooler.DEFAULT_MEMORY_THRESHOLD;
+    /** Advertised by ESMTP SIZE, 0 for the spool limit */
+    protected long maxMessageSize;
+    protected MailSpooler mailSpooler;
+    /** Identical data at least this large is kept once, negative for not sharing */
+    protected int spoolDedupMinSize = ContentStore.DEFAULT_MIN_SIZE;
+    /** Spooled and dead-lettered data at least this large is deflated, negative for not */
+    protected long spoolCompressMinSize = -1;
+    protected ContentStore contentStore;
+    /** Where accepted mail is journaled until forwarded, null for not journaling */
+    protected File journalDirectory;
+    protected String journalFsyncPolicy = MailJournal.FSYNC_GROUP;
+    protected long journalSegmentSize = MailJournal.DEFAULT_SEGMENT_SIZE;
+    protected long journalGroupCommitMillis = MailJournal.DEFAULT_GROUP_COMMIT_MILLIS;
+    protected MailJournal mailJournal;
+    /** Journaled messages not done at last shutdown, replayed once started */
+    protected List<MailContext> journalBacklog;
+    /** Journaled messages waiting for a retry at last shutdown, by due time */
+    protected Map<Long, Long> journalDeferred;
+    /** Compacts the journal in the background, null for not compacting */
+    protected SpoolCompactor spoolCompactor;
+    /** Where mail given up is kept, null for dropping it */
+    protected File deadLetterDirectory;
+    protected long deadLetterSegmentSize = DeadLetterStore.DEFAULT_SEGMENT_SIZE;
+    protected DeadLetterStore deadLetterStore;
+    protected ClientRateLimiter rateLimiter;
+    /** Wait for queued and in flight forwarding when stopped */
+    protected volatile long drainTimeoutMillis = DEFAULT_DRAIN_TIMEOUT_MILLIS;
+    /** Keeps the journal up to date and queues journaled mail and dead letters again */
+    private MailReplayer replayer;
+    private MailDrainer drainer;
 
     protected FromAddressRelayForwarderFactory forwarderFactory;
     protected String myDomain;
     protected String[] allowedTo;
     protected String[] allowedFrom;
+    /** Compiled from the lists above whenever set */
+    protected volatile DomainSuffixMatcher myDomainMatcher = DomainSuffixMatcher.compile();
+    protected volatile DomainSuffixMatcher allowedToMatcher = DomainSuffixMatcher.compile();
+    protected volatile DomainSuffixMatcher allowedFromMatcher = DomainSuffixMatcher.compile();
 
     protected final AtomicLong numRejected = new AtomicLong();
     protected final AtomicLong numAccepted = new AtomicLong();
     protected final AtomicLong numForwarded = new AtomicLong();
     protected final AtomicLong numFailed = new AtomicLong();
+    protected final AtomicLong numDeferred = new AtomicLong();
+    protected final AtomicLong queuedBytes = new AtomicLong();
+    protected final AtomicInteger pendingCommands = new AtomicInteger();
 
     private boolean initialized = false;
 
@@ -81,9 +192,10 @@ public class SmtpListener implements SimpleMessageListener, Lifecycle, Initializ
         this.listenPort = port;
         this.forwarderCnt = forwarders;
         this.forwarderFactory = forwardFactory;
-        this.myDomain = myDomain;
-        this.allowedFrom = allowedFrom;
-        this.allowedTo = allowedTo;
+        setMyDomain(myDomain);
+        setAllowedFrom(allowedFrom);
+        setAllowedTo(allowedTo);
+        setDeadLetterDirectory(errDump);
     }
 
     @Override
@@ -97,7 +209,7 @@ public class SmtpListener implements SimpleMessageListener, Lifecycle, Initializ
     @Override
     public void destroy() throws Exception {
         if (isRunning()) {
-            stop();
+            drain(this.drainTimeoutMillis);
         }
         finialize();
     }
@@ -106,34 +218,298 @@ public class SmtpListener implements SimpleMessageListener, Lifecycle, Initializ
         if (!isInitialized()) {
             return;
         }
-        this.frontendServer = new SMTPServer(new SingleDeliveryMessageListenerAdapter(this));
-        if (this.bindAddress != null) {
-            this.frontendServer.setBindAddress(this.bindAddress);
+        // Without spool directory, keep the former behavior of buffering in heap
+        this.mailSpooler = new MailSpooler(this.spoolDirectory,
+                this.spoolDirectory == null ? Integer.MAX_VALUE : this.spoolMemoryThreshold,
+                MailSpooler.DEFAULT_BUFFER_SIZE, this.maxMessageSize, this.spoolCompressMinSize);
+        try {
+            this.mailSpooler.initialize();
+        } catch (IOException e) {
+            throw new IllegalStateException("Mail spool initializing failed: "
+                    + e.toString(), e);
+        }
+        if (this.spoolDedupMinSize >= 0) {
+            this.contentStore = new ContentStore(this.spoolDedupMinSize);
+            // Hashed as received, instead of read back for interning
+            this.mailSpooler.setDigestEnabled(true);
+        }
+        if (this.journalDirectory != null) {
+            this.mailJournal = new MailJournal(this.journalDirectory, this.journalFsyncPolicy,
+                    this.journalSegmentSize, this.journalGroupCommitMillis);
+            try {
+                this.journalBacklog = this.mailJournal.open();
+                this.journalDeferred = this.mailJournal.getDeferredDueTimes();
+            } catch (IOException e) {
+                throw new IllegalStateException("Mail journal opening failed: "
+                        + e.toString(), e);
+            }
+        }
+        if (this.deadLetterDirectory != null) {
+            this.deadLetterStore = new DeadLetterStore(this.deadLetterDirectory,
+                    this.deadLetterSegmentSize, this.spoolCompressMinSize);
+            try {
+                this.deadLetterStore.open();
+            } catch (IOException e) {
+                throw new IllegalStateException("Dead letter store opening failed: "
+                        + e.toString(), e);
+            }
+        }
+        SingleDeliveryMessageListenerAdapter handlerFactory = new SingleDeliveryMessageListenerAdapter(
+                this);
+        handlerFactory.setRateLimiter(this.rateLimiter);
+        this.frontendServer = createFrontendServer(handlerFactory);
+        if (THREAD_MODE_VIRTUAL.equals(this.forwarderThreadMode)) {
+            // Forwarders block on backend I/O and retry waits mostly, a virtual
+            // thread each is cheap, concurrency is limited by the route executor
+            this.executorService = ConcurrentUtil.newVirtualThreadPerTaskExecutor("Forwarder-");
+            if (this.executorService == null) {
+                logger.warn("Virtual threads not supported, forwarders fall back to fixed pool");
+            }
+        }
+        this.virtualForwarders = this.executorService != null;
+        int threadCnt = 0;
+        if (!this.virtualForwarders) {
+            threadCnt = this.forwarderCnt;
+            if (threadCnt < 1) {
+                threadCnt = Runtime.getRuntime().availableProcessors();
+            }
+            // No more than a command per thread is handed over by the route executor
+            this.forwarderQueue = new LinkedBlockingQueue<Runnable>();
+            this.executorService = new ThreadPoolExecutor(threadCnt, threadCnt, 0L,
+                    TimeUnit.MILLISECONDS, this.forwarderQueue,
+                    new NameCustomizableThreadFactory("Forwarder-"));
+        }
+        // Bounded, so that a slow backend pushes back on clients instead of piling up
+        this.routeExecutor = new RouteFairExecutor(this.executorService,
+                getEffectiveMaxInFlight(), Math.max(1, this.queueCapacity));
+        this.routeExecutor.setMaxInFlightPerRoute(this.maxInFlightPerRoute);
+        this.routeExecutor.setWeights(this.routeWeights);
+        this.routeExecutor.setAgingMillis(this.laneAgingMillis);
+        this.routeExecutor.setMaxBatchSize(this.routeBatchSize);
+        final TransportPool transportPool = this.forwarderFactory == null ? null
+                : this.forwarderFactory.getTransportPool();
+        if (transportPool != null) {
+            // The commands of a batch send over one backend connection
+            this.routeExecutor.setBatchScope(new RouteFairExecutor.BatchScope() {
+                @Override
+                public void begin() {
+                    transportPool.beginBatch();
+                }
+
+                @Override
+                public void end() {
+                    transportPool.endBatch();
+                }
+            });
         }
-        this.frontendServer.setPort(this.listenPort);
-        int threadCnt = this.forwarderCnt;
-        if (threadCnt < 1) {
-            threadCnt = Runtime.getRuntime().availableProcessors();
+        // Failed commands wait here for their next try, not on forwarder threads
+        this.retryScheduler = new RetryScheduler(this.routeExecutor);
+        this.drainer = new MailDrainer(this, this.frontendServer, this.routeExecutor,
+                this.retryScheduler, this.executorService, this.deadLetterStore);
+        this.replayer = new MailReplayer(this, this.drainer, this.mailJournal,
+                this.retryScheduler);
+        if (this.forwarderFactory != null) {
+            this.forwarderFactory.setRetryHandler(this.replayer.newRetryHandler());
+            this.forwarderFactory.setRouteExecutor(this.routeExecutor);
+            this.forwarderFactory.setDeadLetterStore(this.deadLetterStore);
         }
-        this.executorService = Executors.newFixedThreadPool(threadCnt,
-                new NameCustomizableThreadFactory("Forwarder-"));
         this.initialized = true;
     }
 
+    /**
+     * @param handlerFactory
+     * @return front end server of the configured listener type, listening on all
+     *         endpoints, not started yet
+     */
+    protected FrontendServer createFrontendServer(MessageHandlerFactory handlerFactory) {
+        List<InetSocketAddress> addresses = resolveEndpoints();
+        int acceptors = Math.max(1, this.acceptorCnt);
+        if (acceptors > 1 && !SocketUtil.isReusePortSupported()) {
+            logger.warn("SO_REUSEPORT not supported, one acceptor per endpoint only");
+            acceptors = 1;
+        }
+        Map<String, EndpointStats> stats = new LinkedHashMap<String, EndpointStats>();
+        for (InetSocketAddress address : addresses) {
+            String name = SocketUtil.toDisplayableString(address);
+            Validate.isTrue(!stats.containsKey(name), "Duplicate listening endpoint: " + name);
+            stats.put(name, new EndpointStats(name));
+        }
+        this.endpointStats = Collections.unmodifiableMap(stats);
+        boolean virtualSessions = THREAD_MODE_VIRTUAL.equals(this.sessionThreadMode);
+        if (virtualSessions && !ConcurrentUtil.isVirtualThreadSupported()) {
+            logger.warn("Virtual threads not supported, SMTP sessions fall back to platform threads");
+            virtualSessions = false;
+        }
+        if (LISTENER_TYPE_NIO.equals(this.listenerType)) {
+            NioSmtpServer server = new NioSmtpServer(handlerFactory, this.mailSpooler);
+            for (InetSocketAddress address : addresses) {
+                server.addEndpoint(address, stats.get(SocketUtil.toDisplayableString(address)));
+            }
+            server.setAcceptorCnt(acceptors);
+            if (this.ioThreadCnt > 0) {
+                server.setIoThreadCnt(this.ioThreadCnt);
+            }
+            if (virtualSessions) {
+                // Deliveries block on the queue or the journal, a virtual thread each
+                server.setDeliveryExecutor(ConcurrentUtil
+                        .newVirtualThreadPerTaskExecutor("SmtpDelivery-"));
+            } else if (this.deliveryThreadCnt > 0) {
+                server.setDeliveryThreadCnt(this.deliveryThreadCnt);
+            }
+            server.setMaxConnections(this.maxConnections);
+            server.setConnectionTimeout(this.connectionTimeout);
+            server.setRateLimiter(this.rateLimiter);
+            return server;
+        }
+        // SubEthaSMTP server has a single acceptor, one server per acceptor then
+        List<FrontendServer> servers = new ArrayList<FrontendServer>(addresses.size()
+                * acceptors);
+        for (InetSocketAddress address : addresses) {
+            EndpointStats endpoint = stats.get(SocketUtil.toDisplayableString(address));
+            for (int i = 0; i < acceptors; i++) {
+                EndpointSmtpServer server = new EndpointSmtpServer(handlerFactory,
+                        virtualSessions ? ConcurrentUtil
+                                .newVirtualThreadPerTaskExecutor("SmtpSession-") : null,
+                        this.rateLimiter, endpoint);
+                if (!address.getAddress().isAnyLocalAddress()) {
+                    server.setBindAddress(address.getAddress());
+                }
+                server.setPort(address.getPort());
+                server.setReusePort(acceptors > 1);
+                // Declared SIZE checked at MAIL FROM, data size checked while spooling
+                server.setMaxMessageSize((int) this.mailSpooler.getMaxMessageSize());
+                // Acceptors of an endpoint share its connections
+                server.setMaxConnections(Math.max(1, (this.maxConnections + acceptors - 1)
+                        / acceptors));
+                server.setConnectionTimeout(this.connectionTimeout);
+                servers.add(new SubethaFrontendServer(server));
+            }
+        }
+        return servers.size() == 1 ? servers.get(0) : new CompositeFrontendServer(servers);
+    }
+
+    /**
+     * @return addresses of the endpoints, or of the bind address and listen port if
+     *         no endpoints given
+     */
+    protected List<InetSocketAddress> resolveEndpoints() {
+        List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+        if (this.endpoints != null) {
+            for (String endpoint : this.endpoints) {
+                if (StringUtils.isNotBlank(endpoint)) {
+                    addresses.add(SocketUtil.parseEndpoint(endpoint, this.listenPort));
+                }
+            }
+        }
+        if (addresses.isEmpty()) {
+            addresses.add(this.bindAddress == null ? new InetSocketAddress(this.listenPort)
+                    : new InetSocketAddress(this.bindAddress, this.listenPort));
+        }
+        return addresses;
+    }
+
+    /**
+     * @throws IllegalStateException if drained already, as the journal and the dead
+     *             letter store are closed then
+     */
     public synchronized void start() {
         isMustInitialized();
+        if (this.drainer.isDraining()) {
+            throw new IllegalStateException(
+                    "Listener drained and stopped already, a new instance is needed to start again");
+        }
+        this.retryScheduler.start();
+        this.replayer.start(this.journalBacklog, this.journalDeferred);
+        this.journalBacklog = null;
+        this.journalDeferred = null;
+        if (this.mailJournal != null && this.spoolCompactor != null) {
+            this.spoolCompactor.start(this.mailJournal);
+        }
         this.frontendServer.start();
     }
 
-    public synchronized void stop() {
+    /**
+     * Drain for the configured timeout.
+     */
+    public void stop() {
+        drain(this.drainTimeoutMillis);
+    }
+
+    /**
+     * Stop gracefully: refuse new connections and mail with 421, give the queued
+     * and in flight forwarding up to the timeout to finish, then stop. Mail left
+     * queued or waiting for a retry stays in the journal with its retry state, so
+     * that it is tried again when due after restart instead of all at once, or
+     * without a journal is kept as dead letters to be replayed. The listener can
+     * not be started again once drained.
+     *
+     * @param timeoutMillis wait for queued and in flight forwarding at most, 0 for
+     *            not waiting
+     * @return number of messages left over
+     */
+    @ManagedOperation(description = "Refuse new mail, forward the queued mail up to the timeout in milliseconds, then stop keeping the mail left over")
+    public synchronized int drain(long timeoutMillis) {
         isMustInitialized();
-        this.frontendServer.stop();
-        this.executorService.shutdownNow();
+        if (!isRunning()) {
+            return 0;
+        }
+        this.replayer.stop();
+        int messages = this.drainer.drain(timeoutMillis);
+        if (this.spoolCompactor != null) {
+            this.spoolCompactor.stop();
+        }
+        if (this.mailJournal != null) {
+            this.mailJournal.close();
+        }
+        if (this.deadLetterStore != null) {
+            this.deadLetterStore.close();
+        }
+        return messages;
+    }
+
+    /**
+     * Queue a command of mail received before, within the queue byte budget.
+     *
+     * @return false if no room in the forwarder queue for now
+     */
+    boolean tryQueue(MailForwardCommand command, MailContext mail) {
+        long size = mail.getMessageSize();
+        if (!reserveQueueBytes(size)) {
+            return false;
+        }
+        try {
+            pendingCommands.getAndIncrement();
+            routeExecutor.execute(command.getRouteName(), command.getLane(),
+                    new QueuedCommand(command, size, virtualForwarders));
+            return true;
+        } catch (RejectedExecutionException e) {
+            pendingCommands.getAndDecrement();
+            queuedBytes.getAndAdd(-size);
+            return false;
+        }
+    }
+
+    /**
+     * @param task left in the route executor or retry scheduler
+     * @return the command queued by the task, its reserved bytes given back
+     */
+    Runnable unqueue(Runnable task) {
+        if (!(task instanceof QueuedCommand)) {
+            return task;
+        }
+        QueuedCommand queued = (QueuedCommand) task;
+        queued.dequeue();
+        return queued.command;
     }
 
     public synchronized void finialize() {
         this.frontendServer = null;
         this.executorService = null;
+        this.retryScheduler = null;
+        this.routeExecutor = null;
+        this.forwarderQueue = null;
+        this.mailSpooler = null;
+        this.contentStore = null;
         this.forwarderFactory = null;
     }
 
@@ -142,46 +518,40 @@ public class SmtpListener implements SimpleMessageListener, Lifecycle, Initializ
         return this.initialized && this.frontendServer != null && this.frontendServer.isRunning();
     }
 
+    /**
+     * Domains of the lists are matched on label boundaries, see
+     * {@link DomainSuffixMatcher}.
+     */
     public boolean accept(String from, String recipient) {
-        if (allowedFrom != null && allowedFrom.length > 0) {
-            if (StringUtils.isBlank(myDomain) || !from.endsWith(myDomain)) {
-                boolean okay = false;
-                for (String domain : allowedFrom) {
-                    if (from.endsWith(domain)) {
-                        okay = true;
-                        break;
-                    }
-                }
-                if (!okay) {
-                    numRejected.getAndIncrement();
-                    logger.info("Rejected mail from: {}", from);
-                    return false;
-                }
-            }
+        DomainSuffixMatcher mine = myDomainMatcher;
+        DomainSuffixMatcher fromMatcher = allowedFromMatcher;
+        if (!fromMatcher.isEmpty() && !mine.matches(from) && !fromMatcher.matches(from)) {
+            numRejected.getAndIncrement();
+            logger.info("Rejected mail from: {}", from);
+            return false;
         }
-        if (allowedTo != null && allowedTo.length > 0) {
-            if (StringUtils.isBlank(myDomain) || !recipient.endsWith(myDomain)) {
-                boolean okay = false;
-                for (String domain : allowedTo) {
-                    if (recipient.endsWith(domain)) {
-                        okay = true;
-                        break;
-                    }
-                }
-                if (!okay) {
-                    numRejected.getAndIncrement();
-                    logger.info("Rejected mail to: {}", recipient);
-                    return false;
-                }
-            }
+        DomainSuffixMatcher toMatcher = allowedToMatcher;
+        if (!toMatcher.isEmpty() && !mine.matches(recipient) && !toMatcher.matches(recipient)) {
+            numRejected.getAndIncrement();
+            logger.info("Rejected mail to: {}", recipient);
+            return false;
         }
         numAccepted.getAndIncrement();
         return true;
     }
 
     public void deliver(String from, String recipient, InputStream data) throws IOException {
+        deliver(from, Collections.singletonList(recipient), data);
+    }
+
+    public void deliver(String from, List<String> recipients, InputStream data)
+            throws IOException {
         try {
-            executeForwarding(from, recipient, data);
+            executeForwarding(from, recipients, data);
+        } catch (DeliveryDeferredException e) {
+            numDeferred.getAndIncrement();
+            logger.warn("Deferred mail from {}: {}", from, e.getMessage());
+            throw e;
         } catch (IOException e) {
             numFailed.getAndIncrement();
             throw e;
@@ -189,39 +559,167 @@ public class SmtpListener implements SimpleMessageListener, Lifecycle, Initializ
     }
 
     /**
-     * Invoked by {@link #deliver(String, String, InputStream)} internally.
+     * Invoked by {@link #deliver(String, List, InputStream)} internally.
      * 
      * @param from
-     * @param recipient
+     * @param recipients
      * @param data
      * @throws IOException
      */
-    protected void executeForwarding(String from, String recipient, InputStream data)
+    protected void executeForwarding(String from, List<String> recipients, InputStream data)
             throws IOException {
         isMustInitialized();
-        logger.info("Forwarding message from " + from + " to " + recipient);
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        int size = IOUtils.copy(data, baos);
-        baos.close();
-        if (size == -1) {
-            throw new TooMuchDataException("Received mail data larger than 2GB");
-        }
-        MailContext received = new MailContext(from, recipient, baos.toByteArray());
+        if (drainer.isDraining()) {
+            throw new DeliveryDeferredException(421,
+                    "4.3.2 Service shutting down, try again later");
+        }
+        logger.info("Forwarding message from " + from + " to " + recipients);
+        // Refuse before reading any data if the queue is full already
+        checkQueueCapacity();
+        MailContext received = receive(from, recipients, data);
         MailForwardCommand command = null;
         try {
             Validate.notNull(getForwarderFactory(), "Forwarder factory must not be null");
             command = getForwarderFactory().newForwardCommand(received);
+            if (mailJournal != null) {
+                command.setCompletionCallback(replayer.newCompletion(received));
+            }
         } catch (RuntimeException e) {
+            received.release();
             logger.error("Forwarder creating failed on " + e.toString(), e);
             throw new IOException("No mail forwarder available", e);
         }
+        long size = received.getMessageSize();
+        if (!reserveQueueBytes(size)) {
+            received.release();
+            throw new DeliveryDeferredException(452,
+                    "4.3.1 Forwarder queue byte budget exhausted, try again later");
+        }
+        // Given back on any failure below, the message is not queued then
+        boolean queued = false;
+        pendingCommands.getAndIncrement();
         try {
-            executorService.execute(command);
+            if (mailJournal != null) {
+                // Durable before the client is told the message is accepted
+                try {
+                    mailJournal.append(received);
+                } catch (IOException e) {
+                    logger.error("Mail journal writing failed: " + e.toString(), e);
+                    throw new DeliveryDeferredException(451,
+                            "4.3.0 Mail journal not writable, try again later", e);
+                }
+            }
+            try {
+                routeExecutor.execute(command.getRouteName(), command.getLane(),
+                        new QueuedCommand(command, size, virtualForwarders));
+            } catch (RejectedExecutionException e) {
+                logger.error("Concurrent forwarder queue overflow: " + e.toString());
+                throw new DeliveryDeferredException(451,
+                        "4.3.0 Forwarder queue is full, try again later", e);
+            }
+            queued = true;
             numForwarded.getAndIncrement();
-        } catch (RejectedExecutionException e) {
-            logger.error("Concurrent forwarder thread insufficent: " + e.toString(), e);
-            throw new IOException("Forwarder worker thread count overflow", e);
+        } finally {
+            if (!queued) {
+                pendingCommands.getAndDecrement();
+                queuedBytes.getAndAdd(-size);
+                replayer.complete(received);
+                received.release();
+            }
+        }
+    }
+
+    /**
+     * @throws DeliveryDeferredException if no more message could be queued for now
+     */
+    protected void checkQueueCapacity() throws DeliveryDeferredException {
+        if (getQueueRemainingCapacity() <= 0) {
+            throw new DeliveryDeferredException(451,
+                    "4.3.0 Forwarder queue is full, try again later");
+        }
+        if (queuedBytes.get() >= queueByteBudget) {
+            throw new DeliveryDeferredException(452,
+                    "4.3.1 Forwarder queue byte budget exhausted, try again later");
+        }
+    }
+
+    /**
+     * Account message bytes into the queue byte budget. A message larger than the
+     * whole budget is still taken when nothing else is queued, or it could never be.
+     * 
+     * @param size
+     * @return false if the budget would be exceeded
+     */
+    protected boolean reserveQueueBytes(long size) {
+        long before = queuedBytes.getAndAdd(size);
+        if (before > 0 && before + size > queueByteBudget) {
+            queuedBytes.getAndAdd(-size);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Gives the reserved bytes back once the command leaves the queue. On virtual
+     * threads a command starts at once and may wait for backend permits inside, so
+     * it is counted as queued until done. Retries of the command waiting in memory
+     * are not counted, journaled ones are queued anew once due.
+     */
+    private class QueuedCommand implements Runnable {
+        final Runnable command;
+        private final long size;
+        private final boolean pendingWhileRunning;
+
+        QueuedCommand(Runnable command, long size, boolean pendingWhileRunning) {
+            this.command = command;
+            this.size = size;
+            this.pendingWhileRunning = pendingWhileRunning;
+        }
+
+        @Override
+        public void run() {
+            if (!pendingWhileRunning) {
+                dequeue();
+            }
+            try {
+                command.run();
+            } finally {
+                if (pendingWhileRunning) {
+                    dequeue();
+                }
+            }
+        }
+
+        void dequeue() {
+            pendingCommands.getAndDecrement();
+            queuedBytes.getAndAdd(-size);
+            replayer.queueLeft();
+        }
+    }
+
+    /**
+     * Read the whole mail data into a new mail context, small ones buffered in heap
+     * and large ones streamed into a spool file when spooling is enabled.
+     *
+     * @param from
+     * @param recipients
+     * @param data
+     * @return mail context holding the received data
+     * @throws IOException
+     */
+    protected MailContext receive(String from, List<String> recipients, InputStream data)
+            throws IOException {
+        MessageStorage storage = mailSpooler.spool(data);
+        ContentStore store = this.contentStore;
+        if (store != null) {
+            try {
+                storage = store.intern(storage);
+            } catch (IOException e) {
+                storage.release();
+                throw e;
+            }
         }
+        return new MailContext(from, recipients, storage);
     }
 
     /**
@@ -294,101 +792,882 @@ public class SmtpListener implements SimpleMessageListener, Lifecycle, Initializ
         return allowedFrom;
     }
 
-    public SMTPServer getFrontendServer() {
-        return frontendServer;
+    @ManagedAttribute
+    public String getSpoolDirectoryPath() {
+        return spoolDirectory == null ? "Not spooling" : spoolDirectory.getAbsolutePath();
     }
 
     @ManagedAttribute
-    public void setAllowedFrom(String[] allowedFrom) {
-        this.allowedFrom = allowedFrom;
+    public int getSpoolMemoryThreshold() {
+        return spoolMemoryThreshold;
     }
 
     @ManagedAttribute
-    public String getAllowedFromByString() {
-        return StringUtils.join(getAllowedFrom(), ",");
+    public long getSpoolCompressMinSize() {
+        return spoolCompressMinSize;
     }
 
     @ManagedAttribute
-    public void setAllowedFromByString(String allowedFrom) {
-        if (StringUtils.isNotEmpty(allowedFrom)) {
-            setAllowedFrom(StringUtils.split(allowedFrom, ","));
-        } else {
-            setAllowedFrom(null);
+    public Number getNumSpoolCompressed() {
+        return mailSpooler == null ? 0 : mailSpooler.getNumCompressed();
+    }
+
+    /**
+     * @return deflated spool file bytes to message bytes, 1 if none deflated
+     */
+    @ManagedAttribute
+    public double getSpoolCompressionRatio() {
+        MailSpooler spooler = this.mailSpooler;
+        if (spooler == null || spooler.getNumCompressedBytes() == 0) {
+            return 1.0;
         }
+        return (double) spooler.getNumCompressedStoredBytes() / spooler.getNumCompressedBytes();
     }
 
     @ManagedAttribute
-    public void setAllowedTo(String[] allowedTo) {
-        this.allowedTo = allowedTo;
+    public int getSpoolDedupMinSize() {
+        return spoolDedupMinSize;
     }
 
+    /**
+     * @return number of distinct message data kept shared
+     */
     @ManagedAttribute
-    public String getAllowedToByString() {
-        return StringUtils.join(getAllowedTo(), ",");
+    public int getSpoolSharedBodyCnt() {
+        return contentStore == null ? 0 : contentStore.getBodyCnt();
     }
 
     @ManagedAttribute
-    public void setAllowedToByString(String allowedTo) {
-        if (StringUtils.isNotEmpty(allowedTo)) {
-            setAllowedTo(StringUtils.split(allowedTo, ","));
-        } else {
-            setAllowedTo(null);
-        }
+    public long getSpoolSharedBodyBytes() {
+        return contentStore == null ? 0 : contentStore.getBodyBytes();
     }
 
+    /**
+     * @return number of messages the data of which was kept already
+     */
     @ManagedAttribute
-    public void setMyDomain(String myDomain) {
-        this.myDomain = myDomain;
+    public Number getNumSpoolDeduplicated() {
+        return contentStore == null ? 0 : contentStore.getNumDeduplicated();
     }
 
-    public void setBindAddress(InetAddress bindAddress) {
-        if (isInitialized()) {
-            this.bindAddress = bindAddress;
-        }
+    @ManagedAttribute
+    public Number getNumSpoolDeduplicatedBytes() {
+        return contentStore == null ? 0 : contentStore.getNumDeduplicatedBytes();
     }
 
-    public void setBindAddressByString(String bindAddress) {
-        if (StringUtils.isNotEmpty(bindAddress)) {
-            try {
-                setBindAddress(InetAddress.getByName(bindAddress));
-            } catch (UnknownHostException e) {
-                throw new IllegalArgumentException(e);
-            }
-        } else {
-            setBindAddress(null);
-        }
+    @ManagedAttribute
+    public String getJournalDirectoryPath() {
+        return journalDirectory == null ? "Not journaling" : journalDirectory.getAbsolutePath();
     }
 
-    public void setListenPort(int listenPort) {
-        if (isInitialized()) {
-            this.listenPort = listenPort;
-        }
+    @ManagedAttribute
+    public String getJournalFsyncPolicy() {
+        return journalFsyncPolicy;
     }
 
-    public void setForwarderCnt(int forwarderCnt) {
-        if (isInitialized()) {
-            this.forwarderCnt = forwarderCnt;
-        }
+    @ManagedAttribute
+    public int getJournalPendingCnt() {
+        return mailJournal == null ? 0 : mailJournal.getPendingCnt();
     }
 
     @ManagedAttribute
-    public Number getNumRejected() {
-        return numRejected.get();
+    public int getJournalSegmentCnt() {
+        return mailJournal == null ? 0 : mailJournal.getSegmentCnt();
     }
 
     @ManagedAttribute
-    public Number getNumAccepted() {
-        return numAccepted.get();
+    public Number getNumJournalAppends() {
+        return mailJournal == null ? 0 : mailJournal.getNumAppends();
     }
 
     @ManagedAttribute
-    public Number getNumForwarded() {
-        return numForwarded.get();
+    public Number getNumJournalSyncs() {
+        return mailJournal == null ? 0 : mailJournal.getNumSyncs();
     }
 
     @ManagedAttribute
-    public Number getNumFailed() {
-        return numFailed.get();
+    public int getRetryPendingCnt() {
+        return retryScheduler == null ? 0 : retryScheduler.getPendingCnt();
+    }
+
+    /**
+     * @return milliseconds the earliest pending retry has been due for, negative if
+     *         not due yet
+     */
+    @ManagedAttribute
+    public long getRetryOldestDueAgeMillis() {
+        return retryScheduler == null ? 0L : retryScheduler.getOldestDueAgeMillis();
+    }
+
+    @ManagedAttribute
+    public Number getNumRetriesScheduled() {
+        return retryScheduler == null ? 0L : retryScheduler.getNumScheduled();
+    }
+
+    @ManagedAttribute
+    public Number getNumReplayed() {
+        return replayer == null ? 0L : replayer.getNumReplayed();
+    }
+
+    @ManagedAttribute
+    public boolean isDraining() {
+        return drainer != null && drainer.isDraining();
+    }
+
+    @ManagedAttribute
+    public long getDrainTimeoutMillis() {
+        return drainTimeoutMillis;
+    }
+
+    @ManagedAttribute
+    public void setDrainTimeoutMillis(long drainTimeoutMillis) {
+        Validate.isTrue(drainTimeoutMillis >= 0, "Drain timeout must not be negative");
+        this.drainTimeoutMillis = drainTimeoutMillis;
+    }
+
+    /**
+     * @return messages left in the journal or kept as dead letters by drains
+     */
+    @ManagedAttribute
+    public Number getNumLeftOver() {
+        return drainer == null ? 0L : drainer.getNumLeftOver();
+    }
+
+    @ManagedAttribute
+    public String getDeadLetterDirectoryPath() {
+        return deadLetterDirectory == null ? "Dropping dead letters" : deadLetterDirectory
+                .getAbsolutePath();
+    }
+
+    @ManagedAttribute
+    public int getDeadLetterCnt() {
+        return deadLetterStore == null ? 0 : deadLetterStore.getEntryCnt();
+    }
+
+    @ManagedAttribute
+    public Map<String, ?> getDeadLettersByReason() {
+        return deadLetterStore == null ? Collections.<String, Integer> emptyMap()
+                : deadLetterStore.countBy(DeadLetterStore.FIELD_REASON);
+    }
+
+    @ManagedAttribute
+    public Map<String, ?> getDeadLettersByRoute() {
+        return deadLetterStore == null ? Collections.<String, Integer> emptyMap()
+                : deadLetterStore.countBy(DeadLetterStore.FIELD_ROUTE);
+    }
+
+    @ManagedAttribute
+    public Map<String, ?> getDeadLettersBySender() {
+        return deadLetterStore == null ? Collections.<String, Integer> emptyMap()
+                : deadLetterStore.countBy(DeadLetterStore.FIELD_SENDER);
+    }
+
+    @ManagedAttribute
+    public Number getNumDeadLettersReplayed() {
+        return replayer == null ? 0L : replayer.getNumDeadLettersReplayed();
+    }
+
+    /**
+     * @param field all, messageId, sender, route or reason
+     * @param value exact value of the field, ignored for all
+     * @param limit most entries listed, 0 for all
+     * @return a line per matching dead letter, oldest first
+     */
+    @ManagedOperation(description = "List dead letters by field (all, messageId, sender, route, reason), value and limit")
+    public List<String> listDeadLetters(String field, String value, int limit) {
+        DeadLetterStore store = this.deadLetterStore;
+        if (store == null) {
+            return Collections.emptyList();
+        }
+        List<String> lines = new ArrayList<String>();
+        for (Long id : store.select(field, value, limit)) {
+            String line = store.describe(id);
+            if (line != null) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    @ManagedOperation(description = "Count dead letters by field (all, messageId, sender, route, reason) and value")
+    public int countDeadLetters(String field, String value) {
+        DeadLetterStore store = this.deadLetterStore;
+        return store == null ? 0 : store.count(field, value);
+    }
+
+    /**
+     * Drop matching dead letters for good.
+     *
+     * @return number of dead letters dropped
+     */
+    @ManagedOperation(description = "Drop dead letters by field (all, messageId, sender, route, reason), value and limit")
+    public int purgeDeadLetters(String field, String value, int limit) {
+        DeadLetterStore store = this.deadLetterStore;
+        if (store == null) {
+            return 0;
+        }
+        int purged = 0;
+        for (Long id : store.select(field, value, limit)) {
+            if (store.remove(id)) {
+                purged++;
+            }
+        }
+        logger.info("{} dead letters purged by {}={}", new Object[] { purged, field, value });
+        return purged;
+    }
+
+    /**
+     * Queue matching dead letters for forwarding again in the background, waiting
+     * for room in the forwarder queue as needed. A dead letter is removed once
+     * queued, journaled first if journaling.
+     *
+     * @return number of dead letters to be replayed
+     */
+    @ManagedOperation(description = "Replay dead letters by field (all, messageId, sender, route, reason), value and limit")
+    public int replayDeadLetters(String field, String value, int limit) {
+        DeadLetterStore store = this.deadLetterStore;
+        if (store == null || !isRunning()) {
+            return 0;
+        }
+        return replayer.replayDeadLetters(store, field, value, limit);
+    }
+
+    public DeadLetterStore getDeadLetterStore() {
+        return deadLetterStore;
+    }
+
+    public MailJournal getMailJournal() {
+        return mailJournal;
+    }
+
+    @ManagedAttribute
+    public long getMaxMessageSize() {
+        return mailSpooler == null ? maxMessageSize : mailSpooler.getMaxMessageSize();
+    }
+
+    @ManagedAttribute
+    public String getForwarderThreadMode() {
+        return forwarderThreadMode;
+    }
+
+    @ManagedAttribute
+    public String getSessionThreadMode() {
+        return sessionThreadMode;
+    }
+
+    @ManagedAttribute
+    public boolean isVirtualForwarders() {
+        return virtualForwarders;
+    }
+
+    @ManagedAttribute
+    public String getListenerType() {
+        return listenerType;
+    }
+
+    @ManagedAttribute
+    public int getIoThreadCnt() {
+        return ioThreadCnt;
+    }
+
+    @ManagedAttribute
+    public int getDeliveryThreadCnt() {
+        return deliveryThreadCnt;
+    }
+
+    @ManagedAttribute
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    @ManagedAttribute
+    public int getConnectionTimeout() {
+        return connectionTimeout;
+    }
+
+    @ManagedAttribute
+    public int getOpenConnectionCnt() {
+        int open = 0;
+        for (EndpointStats stats : endpointStats.values()) {
+            open += stats.getOpenConnections();
+        }
+        return open;
+    }
+
+    @ManagedAttribute
+    public String[] getEndpoints() {
+        return endpoints;
+    }
+
+    @ManagedAttribute
+    public String getEndpointsByString() {
+        return StringUtils.join(getEndpoints(), ",");
+    }
+
+    @ManagedAttribute
+    public int getAcceptorCnt() {
+        return acceptorCnt;
+    }
+
+    @ManagedAttribute
+    public Map<String, ?> getNumAcceptedConnectionsByEndpoint() {
+        Map<String, Long> accepted = new HashMap<String, Long>(endpointStats.size());
+        for (EndpointStats stats : endpointStats.values()) {
+            accepted.put(stats.getName(), stats.getNumAccepted());
+        }
+        return accepted;
+    }
+
+    @ManagedAttribute
+    public Map<String, ?> getNumRefusedConnectionsByEndpoint() {
+        Map<String, Long> refused = new HashMap<String, Long>(endpointStats.size());
+        for (EndpointStats stats : endpointStats.values()) {
+            refused.put(stats.getName(), stats.getNumRefused());
+        }
+        return refused;
+    }
+
+    @ManagedAttribute
+    public Map<String, ?> getOpenConnectionsByEndpoint() {
+        Map<String, Integer> open = new HashMap<String, Integer>(endpointStats.size());
+        for (EndpointStats stats : endpointStats.values()) {
+            open.put(stats.getName(), stats.getOpenConnections());
+        }
+        return open;
+    }
+
+    public Map<String, EndpointStats> getEndpointStats() {
+        return endpointStats;
+    }
+
+    public ClientRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    public void setRateLimiter(ClientRateLimiter rateLimiter) {
+        if (isInitialized()) {
+            this.rateLimiter = rateLimiter;
+        }
+    }
+
+    public SpoolCompactor getSpoolCompactor() {
+        return spoolCompactor;
+    }
+
+    public void setSpoolCompactor(SpoolCompactor spoolCompactor) {
+        if (isInitialized()) {
+            this.spoolCompactor = spoolCompactor;
+        }
+    }
+
+    public FrontendServer getFrontendServer() {
+        return frontendServer;
+    }
+
+    @ManagedAttribute
+    public void setAllowedFrom(String[] allowedFrom) {
+        this.allowedFrom = allowedFrom;
+        this.allowedFromMatcher = DomainSuffixMatcher.compile(allowedFrom);
+    }
+
+    @ManagedAttribute
+    public String getAllowedFromByString() {
+        return StringUtils.join(getAllowedFrom(), ",");
+    }
+
+    @ManagedAttribute
+    public void setAllowedFromByString(String allowedFrom) {
+        if (StringUtils.isNotEmpty(allowedFrom)) {
+            setAllowedFrom(StringUtils.split(allowedFrom, ","));
+        } else {
+            setAllowedFrom(null);
+        }
+    }
+
+    @ManagedAttribute
+    public void setAllowedTo(String[] allowedTo) {
+        this.allowedTo = allowedTo;
+        this.allowedToMatcher = DomainSuffixMatcher.compile(allowedTo);
+    }
+
+    @ManagedAttribute
+    public String getAllowedToByString() {
+        return StringUtils.join(getAllowedTo(), ",");
+    }
+
+    @ManagedAttribute
+    public void setAllowedToByString(String allowedTo) {
+        if (StringUtils.isNotEmpty(allowedTo)) {
+            setAllowedTo(StringUtils.split(allowedTo, ","));
+        } else {
+            setAllowedTo(null);
+        }
+    }
+
+    @ManagedAttribute
+    public void setMyDomain(String myDomain) {
+        this.myDomain = myDomain;
+        this.myDomainMatcher = StringUtils.isBlank(myDomain) ? DomainSuffixMatcher.compile()
+                : DomainSuffixMatcher.compile(myDomain);
+    }
+
+    public void setBindAddress(InetAddress bindAddress) {
+        if (isInitialized()) {
+            this.bindAddress = bindAddress;
+        }
+    }
+
+    public void setBindAddressByString(String bindAddress) {
+        if (StringUtils.isNotEmpty(bindAddress)) {
+            try {
+                setBindAddress(InetAddress.getByName(bindAddress));
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException(e);
+            }
+        } else {
+            setBindAddress(null);
+        }
+    }
+
+    public void setListenPort(int listenPort) {
+        if (isInitialized()) {
+            this.listenPort = listenPort;
+        }
+    }
+
+    public void setEndpoints(String[] endpoints) {
+        if (isInitialized()) {
+            this.endpoints = endpoints;
+        }
+    }
+
+    /**
+     * @param endpoints comma separated, see {@link SocketUtil#parseEndpoint(String, int)}
+     */
+    public void setEndpointsByString(String endpoints) {
+        if (StringUtils.isNotBlank(endpoints)) {
+            setEndpoints(StringUtils.split(endpoints, ", "));
+        } else {
+            setEndpoints(null);
+        }
+    }
+
+    public void setAcceptorCnt(int acceptorCnt) {
+        if (isInitialized()) {
+            this.acceptorCnt = acceptorCnt;
+        }
+    }
+
+    public void setListenerType(String listenerType) {
+        String type = StringUtils.lowerCase(StringUtils.trimToNull(listenerType));
+        Validate.isTrue(type == null || LISTENER_TYPE_BLOCKING.equals(type)
+                || LISTENER_TYPE_NIO.equals(type), "Unknown listener type: " + listenerType);
+        if (isInitialized()) {
+            this.listenerType = type == null ? LISTENER_TYPE_BLOCKING : type;
+        }
+    }
+
+    public void setForwarderThreadMode(String forwarderThreadMode) {
+        if (isInitialized()) {
+            this.forwarderThreadMode = checkThreadMode(forwarderThreadMode);
+        }
+    }
+
+    public void setSessionThreadMode(String sessionThreadMode) {
+        if (isInitialized()) {
+            this.sessionThreadMode = checkThreadMode(sessionThreadMode);
+        }
+    }
+
+    private static String checkThreadMode(String threadMode) {
+        String mode = StringUtils.lowerCase(StringUtils.trimToNull(threadMode));
+        Validate.isTrue(mode == null || THREAD_MODE_PLATFORM.equals(mode)
+                || THREAD_MODE_VIRTUAL.equals(mode), "Unknown thread mode: " + threadMode);
+        return mode == null ? THREAD_MODE_PLATFORM : mode;
+    }
+
+    public void setIoThreadCnt(int ioThreadCnt) {
+        if (isInitialized()) {
+            this.ioThreadCnt = ioThreadCnt;
+        }
+    }
+
+    public void setDeliveryThreadCnt(int deliveryThreadCnt) {
+        if (isInitialized()) {
+            this.deliveryThreadCnt = deliveryThreadCnt;
+        }
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        if (isInitialized()) {
+            this.maxConnections = maxConnections;
+        }
+    }
+
+    public void setConnectionTimeout(int connectionTimeout) {
+        if (isInitialized()) {
+            this.connectionTimeout = connectionTimeout;
+        }
+    }
+
+    public void setSpoolDirectory(File spoolDirectory) {
+        if (isInitialized()) {
+            this.spoolDirectory = spoolDirectory;
+        }
+    }
+
+    public void setSpoolDirectoryByString(String spoolDirectory) {
+        if (StringUtils.isNotBlank(spoolDirectory)) {
+            setSpoolDirectory(new File(StringUtils.strip(spoolDirectory)));
+        } else {
+            setSpoolDirectory(null);
+        }
+    }
+
+    public void setSpoolMemoryThreshold(int spoolMemoryThreshold) {
+        if (isInitialized()) {
+            this.spoolMemoryThreshold = spoolMemoryThreshold;
+        }
+    }
+
+    public void setSpoolCompressMinSize(long spoolCompressMinSize) {
+        if (isInitialized()) {
+            this.spoolCompressMinSize = spoolCompressMinSize;
+        }
+    }
+
+    public void setSpoolDedupMinSize(int spoolDedupMinSize) {
+        if (isInitialized()) {
+            this.spoolDedupMinSize = spoolDedupMinSize;
+        }
+    }
+
+    public void setJournalDirectory(File journalDirectory) {
+        if (isInitialized()) {
+            this.journalDirectory = journalDirectory;
+        }
+    }
+
+    public void setJournalDirectoryByString(String journalDirectory) {
+        if (StringUtils.isNotBlank(journalDirectory)) {
+            setJournalDirectory(new File(StringUtils.strip(journalDirectory)));
+        } else {
+            setJournalDirectory(null);
+        }
+    }
+
+    public void setJournalFsyncPolicy(String journalFsyncPolicy) {
+        String policy = StringUtils.lowerCase(StringUtils.trimToNull(journalFsyncPolicy));
+        Validate.isTrue(policy == null || MailJournal.FSYNC_MESSAGE.equals(policy)
+                || MailJournal.FSYNC_GROUP.equals(policy) || MailJournal.FSYNC_NONE.equals(policy),
+                "Unknown fsync policy: " + journalFsyncPolicy);
+        if (isInitialized()) {
+            this.journalFsyncPolicy = policy == null ? MailJournal.FSYNC_GROUP : policy;
+        }
+    }
+
+    public void setDeadLetterDirectory(File deadLetterDirectory) {
+        if (isInitialized()) {
+            this.deadLetterDirectory = deadLetterDirectory;
+        }
+    }
+
+    public void setDeadLetterDirectoryByString(String deadLetterDirectory) {
+        if (StringUtils.isNotBlank(deadLetterDirectory)) {
+            setDeadLetterDirectory(new File(StringUtils.strip(deadLetterDirectory)));
+        } else {
+            setDeadLetterDirectory(null);
+        }
+    }
+
+    public void setDeadLetterSegmentSize(long deadLetterSegmentSize) {
+        if (isInitialized()) {
+            this.deadLetterSegmentSize = deadLetterSegmentSize;
+        }
+    }
+
+    public void setJournalSegmentSize(long journalSegmentSize) {
+        if (isInitialized()) {
+            this.journalSegmentSize = journalSegmentSize;
+        }
+    }
+
+    public void setJournalGroupCommitMillis(long journalGroupCommitMillis) {
+        if (isInitialized()) {
+            this.journalGroupCommitMillis = journalGroupCommitMillis;
+        }
+    }
+
+    public void setMaxMessageSize(long maxMessageSize) {
+        if (isInitialized()) {
+            this.maxMessageSize = maxMessageSize;
+        }
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        if (isInitialized()) {
+            this.queueCapacity = queueCapacity;
+        }
+    }
+
+    /**
+     * Applies at once if started already.
+     *
+     * @param maxInFlight commands running at once over all routes, on virtual
+     *            threads too, 0 for {@value #DEFAULT_MAX_IN_FLIGHT}
+     */
+    @ManagedAttribute
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+        RouteFairExecutor executor = this.routeExecutor;
+        if (executor != null) {
+            executor.setMaxInFlight(getEffectiveMaxInFlight());
+        }
+    }
+
+    /**
+     * @return the max in flight, no more than the threads of a forwarder pool, as
+     *         commands handed over beyond them would wait in its queue out of turn
+     */
+    protected int getEffectiveMaxInFlight() {
+        int cap = this.maxInFlight > 0 ? this.maxInFlight : DEFAULT_MAX_IN_FLIGHT;
+        ExecutorService executor = this.executorService;
+        if (executor instanceof ThreadPoolExecutor) {
+            cap = Math.min(cap, ((ThreadPoolExecutor) executor).getMaximumPoolSize());
+        }
+        return cap;
+    }
+
+    /**
+     * Applies at once if started already.
+     *
+     * @param maxInFlightPerRoute commands of one route running at once, 0 for no
+     *            limit
+     */
+    @ManagedAttribute
+    public void setMaxInFlightPerRoute(int maxInFlightPerRoute) {
+        this.maxInFlightPerRoute = maxInFlightPerRoute;
+        RouteFairExecutor executor = this.routeExecutor;
+        if (executor != null) {
+            executor.setMaxInFlightPerRoute(maxInFlightPerRoute);
+        }
+    }
+
+    /**
+     * Applies at once if started already.
+     *
+     * @param laneAgingMillis wait of a command in a priority lane before moving up,
+     *            so that bulk mail is not starved, 0 for never
+     */
+    @ManagedAttribute
+    public void setLaneAgingMillis(long laneAgingMillis) {
+        this.laneAgingMillis = laneAgingMillis;
+        RouteFairExecutor executor = this.routeExecutor;
+        if (executor != null) {
+            executor.setAgingMillis(laneAgingMillis);
+        }
+    }
+
+    /**
+     * Applies at once if started already.
+     *
+     * @param routeBatchSize commands of a route a forwarder takes at once when the
+     *            forwarders or the route are busy, sent over one backend connection,
+     *            1 for no batching
+     */
+    @ManagedAttribute
+    public void setRouteBatchSize(int routeBatchSize) {
+        this.routeBatchSize = routeBatchSize;
+        RouteFairExecutor executor = this.routeExecutor;
+        if (executor != null) {
+            executor.setMaxBatchSize(routeBatchSize);
+        }
+    }
+
+    @ManagedAttribute
+    public int getRouteBatchSize() {
+        return routeBatchSize;
+    }
+
+    /**
+     * @return times more than one command was taken at once
+     */
+    @ManagedAttribute
+    public Number getNumRouteBatches() {
+        return routeExecutor == null ? 0L : routeExecutor.getNumBatches();
+    }
+
+    @ManagedAttribute
+    public Number getNumRouteBatchedCommands() {
+        return routeExecutor == null ? 0L : routeExecutor.getNumBatchedTasks();
+    }
+
+    /**
+     * Applies at once if started already.
+     *
+     * @param routeWeights commands a route hands to forwarders per turn, by route
+     *            name, others get {@value RouteFairExecutor#DEFAULT_WEIGHT}
+     */
+    public void setRouteWeights(Map<String, Integer> routeWeights) {
+        this.routeWeights = routeWeights == null ? Collections.<String, Integer> emptyMap()
+                : new LinkedHashMap<String, Integer>(routeWeights);
+        RouteFairExecutor executor = this.routeExecutor;
+        if (executor != null) {
+            executor.setWeights(this.routeWeights);
+        }
+    }
+
+    /**
+     * @param routeWeights comma separated <code>route=weight</code>, a route being a
+     *            delivering rule
+     */
+    @ManagedAttribute
+    public void setRouteWeightsByString(String routeWeights) {
+        Map<String, Integer> weights = new LinkedHashMap<String, Integer>();
+        for (String item : StringUtils.split(StringUtils.defaultString(routeWeights), ",")) {
+            String route = StringUtils.substringBeforeLast(item, "=").trim();
+            String weight = StringUtils.substringAfterLast(item, "=").trim();
+            Validate.isTrue(route.length() > 0 && StringUtils.isNumeric(weight)
+                    && weight.length() > 0, "Bad route weight: " + item);
+            weights.put(route, Integer.valueOf(weight));
+        }
+        setRouteWeights(weights);
+    }
+
+    public void setForwarderCnt(int forwarderCnt) {
+        if (isInitialized()) {
+            this.forwarderCnt = forwarderCnt;
+        }
+    }
+
+    @ManagedAttribute
+    public Number getNumRejected() {
+        return numRejected.get();
+    }
+
+    @ManagedAttribute
+    public Number getNumAccepted() {
+        return numAccepted.get();
+    }
+
+    @ManagedAttribute
+    public Number getNumForwarded() {
+        return numForwarded.get();
+    }
+
+    @ManagedAttribute
+    public Number getNumFailed() {
+        return numFailed.get();
+    }
+
+    @ManagedAttribute
+    public Number getNumDeferred() {
+        return numDeferred.get();
+    }
+
+    @ManagedAttribute
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    @ManagedAttribute
+    public int getQueueSize() {
+        if (virtualForwarders) {
+            return pendingCommands.get();
+        }
+        return routeExecutor == null ? 0 : routeExecutor.getQueuedCnt();
+    }
+
+    @ManagedAttribute
+    public int getQueueRemainingCapacity() {
+        if (virtualForwarders) {
+            return Math.max(0, queueCapacity - pendingCommands.get());
+        }
+        return routeExecutor == null ? 0 : routeExecutor.getRemainingCapacity();
+    }
+
+    @ManagedAttribute
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    @ManagedAttribute
+    public int getMaxInFlightPerRoute() {
+        return maxInFlightPerRoute;
+    }
+
+    public Map<String, Integer> getRouteWeights() {
+        return routeWeights;
+    }
+
+    @ManagedAttribute
+    public String getRouteWeightsByString() {
+        List<String> items = new ArrayList<String>(routeWeights.size());
+        for (Map.Entry<String, Integer> entry : routeWeights.entrySet()) {
+            items.add(entry.getKey() + "=" + entry.getValue());
+        }
+        return StringUtils.join(items, ",");
+    }
+
+    /**
+     * @return commands queued by route, waiting for their turn
+     */
+    @ManagedAttribute
+    public Map<String, ?> getRouteQueueDepths() {
+        return routeExecutor == null ? Collections.<String, Integer> emptyMap()
+                : routeExecutor.getQueueDepths();
+    }
+
+    /**
+     * @return commands running by route
+     */
+    @ManagedAttribute
+    public Map<String, ?> getRouteInFlight() {
+        return routeExecutor == null ? Collections.<String, Integer> emptyMap()
+                : routeExecutor.getInFlightByRoute();
+    }
+
+    @ManagedAttribute
+    public long getLaneAgingMillis() {
+        return laneAgingMillis;
+    }
+
+    /**
+     * @return commands queued by priority lane
+     */
+    @ManagedAttribute
+    public Map<String, ?> getLaneQueueDepths() {
+        return routeExecutor == null ? Collections.<String, Integer> emptyMap()
+                : routeExecutor.getLaneDepths();
+    }
+
+    /**
+     * @return times a queued command moved up a lane for waiting too long
+     */
+    @ManagedAttribute
+    public Number getNumLanePromotions() {
+        return routeExecutor == null ? 0L : routeExecutor.getNumPromoted();
+    }
+
+    @ManagedAttribute
+    public Map<String, ?> getNumExecutedByRoute() {
+        return routeExecutor == null ? Collections.<String, Long> emptyMap()
+                : routeExecutor.getNumExecutedByRoute();
+    }
+
+    @ManagedAttribute
+    public Number getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    @ManagedAttribute
+    public long getQueueByteBudget() {
+        return queueByteBudget;
+    }
+
+    @ManagedAttribute
+    public void setQueueByteBudget(long queueByteBudget) {
+        this.queueByteBudget = queueByteBudget;
     }
 
 }
@@ -0,0 +1,333 @@
+package com.github.sinsinpub.smtp.relay.core.impl;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.commons.lang.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import com.github.sinsinpub.smtp.relay.spool.MailJournal;
+
+/**
+ * Background compactor of the mail journal, so that disk use and replay time at
+ * startup follow the mail not forwarded yet rather than all mail ever accepted.
+ * <p>
+ * Every interval, the messages left in segments with a live ratio below the
+ * threshold are relocated to the current segment, one at a time so that appends
+ * of the front end only wait for a single record copy. Copying is paced to the
+ * byte rate given, leaving disk bandwidth for foreground writes. A compacted
+ * segment is deleted once the segments it refers to are gone.
+ *
+ * @author sin_sin
+ */
+@ThreadSafe
+@ManagedResource(objectName = SpoolCompactor.OBJECT_NAME, description = "Background compactor of the mail journal segments.")
+public class SpoolCompactor {
+
+    public static final String OBJECT_NAME = "com.github.sinsinpub.smtp.relay:type=Frontend,name=SpoolCompactor";
+    public static final double DEFAULT_LIVE_RATIO_THRESHOLD = 0.5;
+    public static final long DEFAULT_BYTES_PER_SECOND = 8L * 1024 * 1024;
+    public static final long DEFAULT_INTERVAL_MILLIS = 30000L;
+
+    private final static Logger logger = LoggerFactory.getLogger(SpoolCompactor.class);
+
+    private volatile double liveRatioThreshold = DEFAULT_LIVE_RATIO_THRESHOLD;
+    private volatile long bytesPerSecond = DEFAULT_BYTES_PER_SECOND;
+    private volatile long intervalMillis = DEFAULT_INTERVAL_MILLIS;
+    private volatile boolean enabled = true;
+
+    private volatile MailJournal journal;
+    @GuardedBy("this")
+    private Thread thread;
+    @GuardedBy("this")
+    private boolean compactRequested;
+    private volatile boolean running;
+
+    private final AtomicLong numCompactions = new AtomicLong();
+    private final AtomicLong numSegmentsCompacted = new AtomicLong();
+    private final AtomicLong numRelocatedBytes = new AtomicLong();
+    private final AtomicLong numReclaimedBytes = new AtomicLong();
+    private final AtomicLong totalCompactionMillis = new AtomicLong();
+    private volatile long lastCompactionMillis;
+    private volatile long lastCompactionTime;
+
+    /**
+     * @param journal to be compacted until stopped
+     */
+    public synchronized void start(MailJournal journal) {
+        Validate.notNull(journal, "Mail journal must not be null");
+        if (running) {
+            return;
+        }
+        this.journal = journal;
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "SpoolCompactor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop compacting, waiting for the record being copied if any. Not by interrupt,
+     * which would close the journal channel being copied to.
+     */
+    public void stop() {
+        Thread stopping;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            stopping = thread;
+            thread = null;
+            notifyAll();
+        }
+        try {
+            stopping.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        journal = null;
+    }
+
+    /**
+     * Compact now instead of at the next interval.
+     */
+    @ManagedOperation(description = "Compact the mail journal now")
+    public synchronized void compactNow() {
+        compactRequested = true;
+        notifyAll();
+    }
+
+    private void loop() {
+        while (running) {
+            boolean requested;
+            synchronized (this) {
+                long deadline = System.currentTimeMillis() + intervalMillis;
+                long wait;
+                while (running && !compactRequested
+                        && (wait = deadline - System.currentTimeMillis()) > 0) {
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                requested = compactRequested;
+                compactRequested = false;
+            }
+            if (!running) {
+                return;
+            }
+            if (enabled || requested) {
+                try {
+                    compact();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (RuntimeException e) {
+                    logger.error("Journal compaction failed: " + e.toString(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Relocate the messages of all candidate segments, at the paced byte rate.
+     *
+     * @throws InterruptedException if stopped meanwhile
+     */
+    protected void compact() throws InterruptedException {
+        MailJournal journal = this.journal;
+        if (journal == null) {
+            return;
+        }
+        List<Long> candidates = journal.getCompactionCandidates(liveRatioThreshold);
+        if (candidates.isEmpty()) {
+            return;
+        }
+        long started = System.currentTimeMillis();
+        long deletedBefore = journal.getNumDeletedBytes();
+        long relocated = 0;
+        long paceStart = System.nanoTime();
+        for (Long index : candidates) {
+            List<Long> ids = journal.beginCompaction(index);
+            try {
+                for (Long id : ids) {
+                    if (!running) {
+                        throw new InterruptedException();
+                    }
+                    relocated += journal.relocate(id);
+                    pace(relocated, paceStart);
+                }
+            } catch (IOException e) {
+                logger.warn("Compacting journal segment {} failed: {}", index, e.toString());
+            } finally {
+                try {
+                    journal.endCompaction(index);
+                } catch (IOException e) {
+                    logger.warn("Ending compaction of journal segment {} failed: {}", index,
+                            e.toString());
+                }
+            }
+            numSegmentsCompacted.getAndIncrement();
+        }
+        long elapsed = System.currentTimeMillis() - started;
+        long reclaimed = journal.getNumDeletedBytes() - deletedBefore;
+        numCompactions.getAndIncrement();
+        numRelocatedBytes.getAndAdd(relocated);
+        numReclaimedBytes.getAndAdd(reclaimed);
+        totalCompactionMillis.getAndAdd(elapsed);
+        lastCompactionMillis = elapsed;
+        lastCompactionTime = started;
+        logger.info(
+                "Journal compacted in {} ms: {} segments, {} bytes relocated, {} bytes reclaimed",
+                new Object[] { elapsed, candidates.size(), relocated, reclaimed });
+    }
+
+    /**
+     * Sleep as long as the bytes copied since the start are ahead of the rate.
+     */
+    private void pace(long copied, long startNanos) throws InterruptedException {
+        long rate = bytesPerSecond;
+        if (rate <= 0) {
+            return;
+        }
+        long dueNanos = startNanos + TimeUnit.SECONDS.toNanos(1) * copied / rate;
+        synchronized (this) {
+            long ahead;
+            while (running && (ahead = dueNanos - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, ahead);
+            }
+        }
+    }
+
+    @ManagedAttribute
+    public boolean isRunning() {
+        return running;
+    }
+
+    @ManagedAttribute
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @ManagedAttribute
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @ManagedAttribute
+    public double getLiveRatioThreshold() {
+        return liveRatioThreshold;
+    }
+
+    @ManagedAttribute
+    public void setLiveRatioThreshold(double liveRatioThreshold) {
+        Validate.isTrue(liveRatioThreshold >= 0 && liveRatioThreshold <= 1,
+                "Live ratio threshold must be between 0 and 1");
+        this.liveRatioThreshold = liveRatioThreshold;
+    }
+
+    @ManagedAttribute
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * @param bytesPerSecond relocation rate limit, 0 for no limit
+     */
+    @ManagedAttribute
+    public void setBytesPerSecond(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    @ManagedAttribute
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    @ManagedAttribute
+    public void setIntervalMillis(long intervalMillis) {
+        Validate.isTrue(intervalMillis > 0, "Compaction interval must be positive");
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * @return live bytes to total bytes of the journal, 1 if not journaling
+     */
+    @ManagedAttribute
+    public double getLiveRatio() {
+        MailJournal journal = this.journal;
+        return journal == null ? 1.0 : journal.getLiveRatio();
+    }
+
+    @ManagedAttribute
+    public long getLiveBytes() {
+        MailJournal journal = this.journal;
+        return journal == null ? 0 : journal.getLiveBytes();
+    }
+
+    @ManagedAttribute
+    public long getTotalBytes() {
+        MailJournal journal = this.journal;
+        return journal == null ? 0 : journal.getTotalBytes();
+    }
+
+    @ManagedAttribute
+    public int getSegmentCnt() {
+        MailJournal journal = this.journal;
+        return journal == null ? 0 : journal.getSegmentCnt();
+    }
+
+    @ManagedAttribute
+    public Number getNumCompactions() {
+        return numCompactions.get();
+    }
+
+    @ManagedAttribute
+    public Number getNumSegmentsCompacted() {
+        return numSegmentsCompacted.get();
+    }
+
+    @ManagedAttribute
+    public Number getNumRelocatedBytes() {
+        return numRelocatedBytes.get();
+    }
+
+    /**
+     * @return bytes of segment files deleted while compacting
+     */
+    @ManagedAttribute
+    public Number getNumReclaimedBytes() {
+        return numReclaimedBytes.get();
+    }
+
+    @ManagedAttribute
+    public long getLastCompactionMillis() {
+        return lastCompactionMillis;
+    }
+
+    @ManagedAttribute
+    public long getLastCompactionTime() {
+        return lastCompactionTime;
+    }
+
+    @ManagedAttribute
+    public Number getTotalCompactionMillis() {
+        return totalCompactionMillis.get();
+    }
+
+}
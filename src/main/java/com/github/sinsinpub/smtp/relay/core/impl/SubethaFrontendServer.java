@@ -0,0 +1,57 @@
+package com.github.sinsinpub.smtp.relay.core.impl;
+
+import org.subethamail.smtp.server.SMTPServer;
+
+import com.github.sinsinpub.smtp.relay.core.FrontendServer;
+import com.github.sinsinpub.smtp.relay.frontend.EndpointSmtpServer;
+
+/**
+ * Front end running on SubEthaSMTP server, which takes one blocking thread per
+ * client connection.
+ * 
+ * @author sin_sin
+ */
+public class SubethaFrontendServer implements FrontendServer {
+
+    private final SMTPServer smtpServer;
+
+    public SubethaFrontendServer(SMTPServer smtpServer) {
+        this.smtpServer = smtpServer;
+    }
+
+    @Override
+    public void start() {
+        smtpServer.start();
+    }
+
+    @Override
+    public void stop() {
+        smtpServer.stop();
+    }
+
+    /**
+     * Only an endpoint server refuses connections, others keep accepting and leave
+     * refusing to the message listener.
+     */
+    @Override
+    public void drain() {
+        if (smtpServer instanceof EndpointSmtpServer) {
+            ((EndpointSmtpServer) smtpServer).drain();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return smtpServer.isRunning();
+    }
+
+    @Override
+    public String getDisplayableLocalSocketAddress() {
+        return smtpServer.getDisplayableLocalSocketAddress();
+    }
+
+    public SMTPServer getSmtpServer() {
+        return smtpServer;
+    }
+
+}
@@ -0,0 +1,34 @@
+package com.github.sinsinpub.smtp.relay.exception;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a message can not be taken for now, carrying the temporary SMTP reply
+ * code which tells the client to try again later.
+ * 
+ * @author sin_sin
+ */
+public class DeliveryDeferredException extends IOException {
+
+    /** serialVersionUID */
+    private static final long serialVersionUID = 1L;
+    private final int replyCode;
+
+    public DeliveryDeferredException(int replyCode, String message) {
+        super(message);
+        this.replyCode = replyCode;
+    }
+
+    public DeliveryDeferredException(int replyCode, String message, Throwable cause) {
+        super(message, cause);
+        this.replyCode = replyCode;
+    }
+
+    /**
+     * @return the 4xx SMTP reply code
+     */
+    public int getReplyCode() {
+        return replyCode;
+    }
+
+}
@@ -0,0 +1,372 @@
+package com.github.sinsinpub.smtp.relay.frontend;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Limits what a single client IP may take from the front end: concurrent
+ * connections, and messages and bytes per second by token buckets. Bytes are
+ * charged after the data is received, so a large message puts the bucket in debt
+ * and further messages are refused until it refills.
+ * <p>
+ * State is kept per client in a concurrent map. When the map grows over the
+ * tracked clients limit, clients without connections whose buckets have refilled
+ * are evicted, as a new state would start out the same. Clients still throttled
+ * are kept, even over the limit, until they have paid off. A limit of zero means
+ * no limit.
+ *
+ * @author sin_sin
+ */
+@ThreadSafe
+@ManagedResource(objectName = ClientRateLimiter.OBJECT_NAME, description = "Per client IP limits of the SMTP front end.")
+public class ClientRateLimiter {
+
+    public static final String OBJECT_NAME = "com.github.sinsinpub.smtp.relay:type=Frontend,name=ClientRateLimiter";
+    public static final int DEFAULT_MAX_TRACKED_CLIENTS = 10000;
+
+    private final static Logger logger = LoggerFactory.getLogger(ClientRateLimiter.class);
+
+    /** Handed out when connections are not limited, releasing it does nothing */
+    private static final ClientState UNTRACKED = new ClientState(0, 0);
+
+    private final ConcurrentMap<InetAddress, ClientState> clients = new ConcurrentHashMap<InetAddress, ClientState>();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private volatile int maxConnectionsPerClient;
+    private volatile double messageRate;
+    private volatile double messageBurst = 10;
+    private volatile double byteRate;
+    private volatile double byteBurst = 10 * 1024 * 1024;
+    private volatile int maxTrackedClients = DEFAULT_MAX_TRACKED_CLIENTS;
+
+    private final AtomicLong numRefusedConnections = new AtomicLong();
+    private final AtomicLong numThrottledMessages = new AtomicLong();
+    private final AtomicLong numEvictedClients = new AtomicLong();
+
+    /**
+     * @param address client address
+     * @return connection ticket to release once closed, or null if the client has
+     *         too many connections open
+     */
+    public ClientState acquireConnection(InetAddress address) {
+        int max = maxConnectionsPerClient;
+        if (max <= 0 || address == null) {
+            return UNTRACKED;
+        }
+        while (true) {
+            ClientState state = getState(address);
+            int connections = state.connections.incrementAndGet();
+            if (connections <= 0) {
+                // Evicted meanwhile, counted on the state replacing it
+                continue;
+            }
+            if (connections > max) {
+                state.connections.decrementAndGet();
+                numRefusedConnections.getAndIncrement();
+                logger.info("Refused connection from {}: {} connections open already",
+                        address, max);
+                return null;
+            }
+            return state;
+        }
+    }
+
+    /**
+     * @param ticket from {@link #acquireConnection(InetAddress)}
+     */
+    public void releaseConnection(ClientState ticket) {
+        if (ticket != null && ticket != UNTRACKED) {
+            ticket.connections.decrementAndGet();
+        }
+    }
+
+    /**
+     * Take a token for a new message.
+     *
+     * @param address client address
+     * @return false if the client sends too many messages or bytes for now
+     */
+    public boolean tryAcquireMessage(InetAddress address) {
+        double msgRate = messageRate;
+        double bRate = byteRate;
+        if ((msgRate <= 0 && bRate <= 0) || address == null) {
+            return true;
+        }
+        ClientState state;
+        boolean taken;
+        do {
+            state = getState(address);
+            taken = state.tryTakeMessage(System.nanoTime(), msgRate, Math.max(messageBurst,
+                    msgRate), bRate, Math.max(byteBurst, bRate));
+        } while (state.isRetired());
+        if (!taken) {
+            numThrottledMessages.getAndIncrement();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Charge received message bytes.
+     *
+     * @param address client address
+     * @param bytes size of the message received
+     */
+    public void consumeBytes(InetAddress address, long bytes) {
+        double bRate = byteRate;
+        if (bRate <= 0 || address == null || bytes <= 0) {
+            return;
+        }
+        ClientState state;
+        do {
+            state = getState(address);
+            state.takeBytes(System.nanoTime(), bytes, bRate, Math.max(byteBurst, bRate));
+        } while (state.isRetired());
+    }
+
+    /**
+     * @param address socket address of a client
+     * @return its IP address, or null if it is not an IP socket
+     */
+    public static InetAddress toInetAddress(SocketAddress address) {
+        return address instanceof InetSocketAddress ? ((InetSocketAddress) address)
+                .getAddress() : null;
+    }
+
+    /**
+     * @return the state of the client, a new one if none or evicted
+     */
+    private ClientState getState(InetAddress address) {
+        while (true) {
+            ClientState state = clients.get(address);
+            if (state != null && !state.isRetired()) {
+                return state;
+            }
+            if (state != null) {
+                clients.remove(address, state);
+                continue;
+            }
+            ClientState created = new ClientState(messageBurst, byteBurst);
+            if (clients.putIfAbsent(address, created) == null) {
+                if (clients.size() > maxTrackedClients) {
+                    evict();
+                }
+                return created;
+            }
+        }
+    }
+
+    /**
+     * Drop clients without connections and with their buckets refilled, until
+     * under three quarters of the limit or none is left to drop.
+     */
+    private void evict() {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long now = System.nanoTime();
+            double msgRate = messageRate;
+            double bRate = byteRate;
+            double msgBurst = Math.max(messageBurst, msgRate);
+            double bBurst = Math.max(byteBurst, bRate);
+            int target = maxTrackedClients * 3 / 4;
+            int evicted = 0;
+            Iterator<Entry<InetAddress, ClientState>> it = clients.entrySet().iterator();
+            while (it.hasNext() && clients.size() > target) {
+                Entry<InetAddress, ClientState> entry = it.next();
+                ClientState state = entry.getValue();
+                if (state.retire(now, msgRate, msgBurst, bRate, bBurst)) {
+                    clients.remove(entry.getKey(), state);
+                    evicted++;
+                }
+            }
+            numEvictedClients.getAndAdd(evicted);
+            logger.debug("Evicted {} client states, {} left", evicted, clients.size());
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    /**
+     * Connections and token buckets of one client. Once retired by eviction, the
+     * connection count stays negative and nothing is taken from it any more.
+     */
+    @ThreadSafe
+    public static final class ClientState {
+        private static final int RETIRED = Integer.MIN_VALUE / 2;
+
+        private final AtomicInteger connections = new AtomicInteger();
+        @GuardedBy("this")
+        private double messageTokens;
+        @GuardedBy("this")
+        private double byteTokens;
+        @GuardedBy("this")
+        private long lastRefillNanos = System.nanoTime();
+
+        ClientState(double messageTokens, double byteTokens) {
+            this.messageTokens = messageTokens;
+            this.byteTokens = byteTokens;
+        }
+
+        synchronized boolean tryTakeMessage(long now, double msgRate, double msgBurst,
+                double bRate, double bBurst) {
+            refill(now, msgRate, msgBurst, bRate, bBurst);
+            if (bRate > 0 && byteTokens < 0) {
+                return false;
+            }
+            if (msgRate > 0) {
+                if (messageTokens < 1) {
+                    return false;
+                }
+                messageTokens--;
+            }
+            return true;
+        }
+
+        synchronized void takeBytes(long now, long bytes, double bRate, double bBurst) {
+            refill(now, 0, 0, bRate, bBurst);
+            byteTokens -= bytes;
+        }
+
+        /**
+         * Retire the state if it has no connections and its buckets are full, so
+         * that a new one would start out the same. Taking from the buckets holds the
+         * monitor too, and leaves them not full, so nothing taken is lost.
+         *
+         * @return whether retired
+         */
+        synchronized boolean retire(long now, double msgRate, double msgBurst, double bRate,
+                double bBurst) {
+            refill(now, msgRate, msgBurst, bRate, bBurst);
+            boolean refilled = (msgRate <= 0 || messageTokens >= msgBurst)
+                    && (bRate <= 0 || byteTokens >= bBurst);
+            return refilled && connections.compareAndSet(0, RETIRED);
+        }
+
+        boolean isRetired() {
+            return connections.get() < 0;
+        }
+
+        private void refill(long now, double msgRate, double msgBurst, double bRate,
+                double bBurst) {
+            double seconds = (now - lastRefillNanos) / 1e9;
+            if (seconds <= 0) {
+                return;
+            }
+            lastRefillNanos = now;
+            if (msgRate > 0) {
+                messageTokens = Math.min(msgBurst, messageTokens + seconds * msgRate);
+            }
+            if (bRate > 0) {
+                byteTokens = Math.min(bBurst, byteTokens + seconds * bRate);
+            }
+        }
+
+        public int getConnections() {
+            return Math.max(0, connections.get());
+        }
+    }
+
+    @ManagedAttribute
+    public int getMaxConnectionsPerClient() {
+        return maxConnectionsPerClient;
+    }
+
+    @ManagedAttribute
+    public void setMaxConnectionsPerClient(int maxConnectionsPerClient) {
+        this.maxConnectionsPerClient = maxConnectionsPerClient;
+    }
+
+    @ManagedAttribute
+    public double getMessageRate() {
+        return messageRate;
+    }
+
+    /**
+     * @param messageRate messages per second per client
+     */
+    @ManagedAttribute
+    public void setMessageRate(double messageRate) {
+        this.messageRate = messageRate;
+    }
+
+    @ManagedAttribute
+    public double getMessageBurst() {
+        return messageBurst;
+    }
+
+    @ManagedAttribute
+    public void setMessageBurst(double messageBurst) {
+        this.messageBurst = messageBurst;
+    }
+
+    @ManagedAttribute
+    public double getByteRate() {
+        return byteRate;
+    }
+
+    /**
+     * @param byteRate message bytes per second per client
+     */
+    @ManagedAttribute
+    public void setByteRate(double byteRate) {
+        this.byteRate = byteRate;
+    }
+
+    @ManagedAttribute
+    public double getByteBurst() {
+        return byteBurst;
+    }
+
+    @ManagedAttribute
+    public void setByteBurst(double byteBurst) {
+        this.byteBurst = byteBurst;
+    }
+
+    @ManagedAttribute
+    public int getMaxTrackedClients() {
+        return maxTrackedClients;
+    }
+
+    @ManagedAttribute
+    public void setMaxTrackedClients(int maxTrackedClients) {
+        this.maxTrackedClients = maxTrackedClients;
+    }
+
+    @ManagedAttribute
+    public int getTrackedClientCnt() {
+        return clients.size();
+    }
+
+    @ManagedAttribute
+    public Number getNumRefusedConnections() {
+        return numRefusedConnections.get();
+    }
+
+    @ManagedAttribute
+    public Number getNumThrottledMessages() {
+        return numThrottledMessages.get();
+    }
+
+    @ManagedAttribute
+    public Number getNumEvictedClients() {
+        return numEvictedClients.get();
+    }
+
+}
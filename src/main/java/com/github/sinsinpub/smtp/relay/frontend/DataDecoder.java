@@ -0,0 +1,147 @@
+package com.github.sinsinpub.smtp.relay.frontend;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Incremental decoder of the DATA section: removes dot-stuffing and detects the
+ * terminating CRLF.CRLF sequence, in one pass over whatever bytes are available.
+ * BDAT chunks are copied as they are through the same staging buffer.
+ * 
+ * @author sin_sin
+ */
+@NotThreadSafe
+final class DataDecoder {
+
+    private static final int LINE_START = 0;
+    private static final int IN_LINE = 1;
+    private static final int CR = 2;
+    private static final int DOT = 3;
+    private static final int DOT_CR = 4;
+    private static final int END = 5;
+
+    private final byte[] staging;
+    private int staged;
+    private int state = LINE_START;
+
+    DataDecoder(int bufferSize) {
+        this.staging = new byte[bufferSize];
+    }
+
+    /**
+     * Decode bytes from the buffer into the sink, until the buffer is drained or the
+     * end of data is met. Bytes following the terminator are left in the buffer.
+     * 
+     * @param in received bytes
+     * @param out sink of decoded data, or null to discard it
+     * @return true if the end of data has been met
+     * @throws IOException from the sink, after which decoding may go on with no sink
+     *             till the end of data
+     */
+    boolean decode(ByteBuffer in, OutputStream out) throws IOException {
+        if (state == END) {
+            // Sink failed on the final flush last time
+            state = LINE_START;
+            return true;
+        }
+        while (in.hasRemaining()) {
+            byte b = in.get();
+            // State goes first, so that a failing sink does not lose track of lines
+            switch (state) {
+            case LINE_START:
+                if (b == '.') {
+                    state = DOT;
+                } else {
+                    state = b == '\r' ? CR : IN_LINE;
+                    emit(b, out);
+                }
+                break;
+            case IN_LINE:
+                if (b == '\r') {
+                    state = CR;
+                }
+                emit(b, out);
+                break;
+            case CR:
+                if (b == '\n') {
+                    state = LINE_START;
+                } else if (b != '\r') {
+                    state = IN_LINE;
+                }
+                emit(b, out);
+                break;
+            case DOT:
+                if (b == '\r') {
+                    state = DOT_CR;
+                } else {
+                    // Leading dot removed
+                    state = IN_LINE;
+                    emit(b, out);
+                }
+                break;
+            case DOT_CR:
+                if (b == '\n') {
+                    state = END;
+                    flush(out);
+                    state = LINE_START;
+                    return true;
+                }
+                state = b == '\r' ? CR : IN_LINE;
+                emit((byte) '\r', out);
+                emit(b, out);
+                break;
+            default:
+                throw new IllegalStateException("Unknown state " + state);
+            }
+        }
+        flush(out);
+        return false;
+    }
+
+    private void emit(byte b, OutputStream out) throws IOException {
+        staging[staged++] = b;
+        if (staged == staging.length) {
+            flush(out);
+        }
+    }
+
+    private void flush(OutputStream out) throws IOException {
+        int n = staged;
+        staged = 0;
+        if (n > 0 && out != null) {
+            out.write(staging, 0, n);
+        }
+    }
+
+    /**
+     * Pass bytes through as they are, for BDAT chunks are not dot-stuffed.
+     * 
+     * @param in received bytes, at least length remaining
+     * @param length number of bytes to pass
+     * @param out sink of data, or null to discard it
+     * @throws IOException from the sink
+     */
+    void copy(ByteBuffer in, int length, OutputStream out) throws IOException {
+        int left = length;
+        while (left > 0) {
+            int n = Math.min(left, staging.length);
+            in.get(staging, 0, n);
+            left -= n;
+            if (out != null) {
+                out.write(staging, 0, n);
+            }
+        }
+    }
+
+    /**
+     * Get ready for the next message.
+     */
+    void reset() {
+        state = LINE_START;
+        staged = 0;
+    }
+
+}
@@ -0,0 +1,172 @@
+package com.github.sinsinpub.smtp.relay.frontend;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.MessageHandlerFactory;
+import org.subethamail.smtp.server.SMTPServer;
+
+import com.github.sinsinpub.smtp.relay.utils.SocketUtil;
+
+/**
+ * SubEthaSMTP server listening on one endpoint. It counts connections of the
+ * endpoint, refuses the ones over the per client limit of {@link ClientRateLimiter}
+ * right after accepting them, before a session thread is taken, and may share its
+ * port with other servers by <code>SO_REUSEPORT</code>.
+ *
+ * @author sin_sin
+ */
+public class EndpointSmtpServer extends SMTPServer {
+
+    private final static Logger logger = LoggerFactory.getLogger(EndpointSmtpServer.class);
+
+    private final ClientRateLimiter rateLimiter;
+    private final EndpointStats stats;
+    private int backlog = 50;
+    private boolean reusePort;
+    private volatile boolean draining;
+
+    /**
+     * @param handlerFactory
+     * @param executorService runs sessions, or null for the default one
+     * @param rateLimiter per client limits, or null for none
+     * @param stats connection counters of the endpoint
+     */
+    public EndpointSmtpServer(MessageHandlerFactory handlerFactory,
+            ExecutorService executorService, ClientRateLimiter rateLimiter, EndpointStats stats) {
+        super(handlerFactory, null, executorService);
+        this.rateLimiter = rateLimiter;
+        Validate.notNull(stats, "Endpoint stats must not be null");
+        this.stats = stats;
+    }
+
+    @Override
+    public void setBacklog(int backlog) {
+        super.setBacklog(backlog);
+        this.backlog = backlog;
+    }
+
+    /**
+     * @param reusePort whether to bind with <code>SO_REUSEPORT</code>, so that other
+     *            servers may listen on the same port
+     */
+    public void setReusePort(boolean reusePort) {
+        this.reusePort = reusePort;
+    }
+
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    /**
+     * Refuse connections accepted from now on with 421, sessions opened go on.
+     */
+    public void drain() {
+        draining = true;
+    }
+
+    public boolean isDraining() {
+        return draining;
+    }
+
+    @Override
+    public synchronized void start() {
+        draining = false;
+        super.start();
+    }
+
+    public EndpointStats getStats() {
+        return stats;
+    }
+
+    @Override
+    protected ServerSocket createServerSocket() throws IOException {
+        InetSocketAddress address = getBindAddress() == null ? new InetSocketAddress(getPort())
+                : new InetSocketAddress(getBindAddress(), getPort());
+        ServerSocket serverSocket = new CountingServerSocket();
+        serverSocket.setReuseAddress(true);
+        if (reusePort) {
+            SocketUtil.setReusePort(serverSocket);
+        }
+        serverSocket.bind(address, backlog);
+        return serverSocket;
+    }
+
+    /**
+     * Accepts until a client within its limit comes.
+     */
+    private class CountingServerSocket extends ServerSocket {
+
+        CountingServerSocket() throws IOException {
+            super();
+        }
+
+        @Override
+        public Socket accept() throws IOException {
+            while (true) {
+                TrackedSocket socket = new TrackedSocket();
+                implAccept(socket);
+                stats.connectionAccepted();
+                if (draining) {
+                    refuse(socket, " Service shutting down, try again later");
+                    continue;
+                }
+                if (rateLimiter == null) {
+                    return socket;
+                }
+                ClientRateLimiter.ClientState ticket = rateLimiter.acquireConnection(socket
+                        .getInetAddress());
+                if (ticket != null) {
+                    socket.ticket = ticket;
+                    return socket;
+                }
+                refuse(socket, " Too many connections from your address, try again later");
+            }
+        }
+
+        private void refuse(Socket socket, String reason) {
+            stats.connectionRefused();
+            try {
+                socket.getOutputStream().write(
+                        ("421 " + (draining ? "4.3.2 " : "4.7.0 ") + getHostName() + reason + "\r\n")
+                                .getBytes("US-ASCII"));
+            } catch (IOException e) {
+                logger.debug("Refusing connection failed: {}", e.toString());
+            } finally {
+                IOUtils.closeQuietly(socket);
+            }
+        }
+    }
+
+    /**
+     * Counts the connection closed and gives it back to the limiter once closed by
+     * the session.
+     */
+    private class TrackedSocket extends Socket {
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile ClientRateLimiter.ClientState ticket;
+
+        @Override
+        public synchronized void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (closed.compareAndSet(false, true)) {
+                    stats.connectionClosed();
+                    if (rateLimiter != null) {
+                        rateLimiter.releaseConnection(ticket);
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,70 @@
+package com.github.sinsinpub.smtp.relay.frontend;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Connection counters of one listening endpoint, shared by all acceptors bound to
+ * it.
+ *
+ * @author sin_sin
+ */
+@ThreadSafe
+public class EndpointStats {
+
+    private final String name;
+    private final AtomicLong numAccepted = new AtomicLong();
+    private final AtomicLong numRefused = new AtomicLong();
+    private final AtomicInteger openConnections = new AtomicInteger();
+
+    /**
+     * @param name endpoint address in the form of host:port
+     */
+    public EndpointStats(String name) {
+        this.name = name;
+    }
+
+    /**
+     * A connection was accepted and is open until {@link #connectionClosed()}.
+     */
+    public void connectionAccepted() {
+        numAccepted.getAndIncrement();
+        openConnections.getAndIncrement();
+    }
+
+    /**
+     * An accepted connection was turned away with 421, it is still to be closed.
+     */
+    public void connectionRefused() {
+        numRefused.getAndIncrement();
+    }
+
+    public void connectionClosed() {
+        openConnections.getAndDecrement();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getNumAccepted() {
+        return numAccepted.get();
+    }
+
+    public long getNumRefused() {
+        return numRefused.get();
+    }
+
+    public int getOpenConnections() {
+        return openConnections.get();
+    }
+
+    @Override
+    public String toString() {
+        return name + " accepted=" + getNumAccepted() + " refused=" + getNumRefused()
+                + " open=" + getOpenConnections();
+    }
+
+}
@@ -0,0 +1,179 @@
+package com.github.sinsinpub.smtp.relay.frontend;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A selector thread multiplexing many client sessions. Everything but
+ * {@link #register(NioSmtpSession)}, {@link #execute(Runnable)} and
+ * {@link #shutdown()} runs on the loop thread.
+ * 
+ * @author sin_sin
+ */
+@ThreadSafe
+final class IoEventLoop implements Runnable {
+
+    /** Also the period of sweeping idle sessions */
+    private static final long SELECT_TIMEOUT_MILLIS = 1000L;
+
+    private final static Logger logger = LoggerFactory.getLogger(IoEventLoop.class);
+
+    private final NioSmtpServer server;
+    private final Selector selector;
+    private final Queue<NioSmtpSession> pendingSessions = new ConcurrentLinkedQueue<NioSmtpSession>();
+    /** Handed over by other threads, such as completions of mail delivery */
+    private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<Runnable>();
+    /** Shared by all sessions of this loop, input is consumed right after read */
+    private final ByteBuffer readBuffer;
+    @GuardedBy("loop thread")
+    private final Set<NioSmtpSession> sessions = new HashSet<NioSmtpSession>();
+    private volatile boolean running = true;
+
+    IoEventLoop(NioSmtpServer server, int readBufferSize) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+        this.readBuffer = ByteBuffer.allocateDirect(readBufferSize);
+    }
+
+    /**
+     * Hand the session of an accepted channel over to this loop.
+     */
+    void register(NioSmtpSession session) {
+        pendingSessions.add(session);
+        selector.wakeup();
+    }
+
+    /**
+     * Run the task on the loop thread soon, or on closing if the loop is stopping.
+     */
+    void execute(Runnable task) {
+        pendingTasks.add(task);
+        selector.wakeup();
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        long lastSweepTime = System.currentTimeMillis();
+        try {
+            while (running) {
+                selector.select(SELECT_TIMEOUT_MILLIS);
+                registerPendingSessions();
+                runPendingTasks();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handle(key);
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastSweepTime >= SELECT_TIMEOUT_MILLIS) {
+                    sweepIdleSessions(now);
+                    lastSweepTime = now;
+                }
+            }
+        } catch (IOException e) {
+            logger.error("I/O event loop failed: " + e.toString(), e);
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void registerPendingSessions() {
+        NioSmtpSession session;
+        while ((session = pendingSessions.poll()) != null) {
+            sessions.add(session);
+            try {
+                session.open(session.getChannel().register(selector, SelectionKey.OP_READ,
+                        session));
+            } catch (IOException e) {
+                logger.debug("Session opening failed: {}", e.toString());
+                session.close();
+            }
+        }
+    }
+
+    private void runPendingTasks() {
+        Runnable task;
+        while ((task = pendingTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.error("I/O loop task failed: " + e.toString(), e);
+            }
+        }
+    }
+
+    private void handle(SelectionKey key) {
+        NioSmtpSession session = (NioSmtpSession) key.attachment();
+        try {
+            if (key.isValid() && key.isWritable()) {
+                session.onWritable();
+            }
+            if (key.isValid() && key.isReadable()) {
+                session.onReadable(readBuffer);
+            }
+        } catch (IOException e) {
+            logger.debug("Connection from {} closed on {}", session.getRemoteAddress(),
+                    e.toString());
+            session.close();
+        } catch (RuntimeException e) {
+            logger.error("Session failed: " + e.toString(), e);
+            session.close();
+        }
+    }
+
+    private void sweepIdleSessions(long now) {
+        long timeout = server.getConnectionTimeout();
+        if (timeout <= 0) {
+            return;
+        }
+        for (NioSmtpSession session : sessions.toArray(new NioSmtpSession[sessions.size()])) {
+            if (now - session.getLastActiveTime() > timeout) {
+                session.timeout();
+            }
+        }
+    }
+
+    /**
+     * Invoked by a session once closed.
+     */
+    void sessionClosed(NioSmtpSession session) {
+        sessions.remove(session);
+    }
+
+    private void closeAll() {
+        // Deliveries completed let go of their handlers before sessions close
+        runPendingTasks();
+        for (NioSmtpSession session : sessions.toArray(new NioSmtpSession[sessions.size()])) {
+            session.close();
+        }
+        NioSmtpSession session;
+        while ((session = pendingSessions.poll()) != null) {
+            session.close();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.debug("Selector closing failed: {}", e.toString());
+        }
+    }
+
+}
@@ -0,0 +1,539 @@
+package com.github.sinsinpub.smtp.relay.frontend;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.MessageHandlerFactory;
+
+import com.github.sinsinpub.smtp.relay.core.FrontendServer;
+import com.github.sinsinpub.smtp.relay.spool.MailSpooler;
+import com.github.sinsinpub.smtp.relay.utils.NameCustomizableThreadFactory;
+import com.github.sinsinpub.smtp.relay.utils.SocketUtil;
+
+/**
+ * Event-driven SMTP server: acceptor threads and a small number of I/O threads
+ * each multiplexing many connections, so that idle or slow clients do not hold a
+ * thread apiece. Mail data is decoded straight into the spool of
+ * {@link MailSpooler}, and handed to the same {@link MessageHandlerFactory} the
+ * SubEthaSMTP server would use, on delivery threads apart from the I/O threads.
+ * <p>
+ * The server may listen on several endpoints, each with its own acceptor thread,
+ * or several ones sharing the port by <code>SO_REUSEPORT</code>. All of them deal
+ * connections out to the same I/O threads.
+ * 
+ * @author sin_sin
+ */
+@ThreadSafe
+public class NioSmtpServer implements FrontendServer {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 1000;
+    public static final int DEFAULT_CONNECTION_TIMEOUT = 60000;
+    public static final int DEFAULT_READ_BUFFER_SIZE = 16384;
+    public static final int DEFAULT_DELIVERY_THREAD_CNT = 16;
+    public static final String DEFAULT_SOFTWARE_NAME = "SMTP Relay";
+
+    private static final long DELIVERY_SHUTDOWN_TIMEOUT_SECONDS = 30L;
+
+    private final static Logger logger = LoggerFactory.getLogger(NioSmtpServer.class);
+
+    private final MessageHandlerFactory handlerFactory;
+    private final MailSpooler mailSpooler;
+    private volatile ClientRateLimiter rateLimiter;
+    private InetAddress bindAddress;
+    private int port = 25;
+    private int backlog = 50;
+    private int ioThreadCnt = Runtime.getRuntime().availableProcessors();
+    private int deliveryThreadCnt = DEFAULT_DELIVERY_THREAD_CNT;
+    /** Runs message handlers on mail data, as they may block */
+    private volatile ExecutorService deliveryExecutor;
+    private volatile int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private volatile int connectionTimeout = DEFAULT_CONNECTION_TIMEOUT;
+    private int readBufferSize = DEFAULT_READ_BUFFER_SIZE;
+    private volatile String hostName;
+    private String softwareName = DEFAULT_SOFTWARE_NAME;
+
+    @GuardedBy("this")
+    private final List<Endpoint> endpoints = new ArrayList<Endpoint>();
+    private int acceptorCnt = 1;
+    @GuardedBy("this")
+    private List<Endpoint> boundEndpoints;
+    @GuardedBy("this")
+    private List<ServerSocketChannel> serverChannels;
+    @GuardedBy("this")
+    private List<Thread> acceptorThreads;
+    @GuardedBy("this")
+    private IoEventLoop[] eventLoops;
+    @GuardedBy("this")
+    private Thread[] eventLoopThreads;
+    private volatile boolean running;
+    private volatile boolean draining;
+    private final AtomicInteger connectionCnt = new AtomicInteger();
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    public NioSmtpServer(MessageHandlerFactory handlerFactory, MailSpooler mailSpooler) {
+        Validate.notNull(handlerFactory, "Message handler factory must not be null");
+        Validate.notNull(mailSpooler, "Mail spooler must not be null");
+        this.handlerFactory = handlerFactory;
+        this.mailSpooler = mailSpooler;
+        try {
+            this.hostName = InetAddress.getLocalHost().getCanonicalHostName();
+        } catch (UnknownHostException e) {
+            this.hostName = "localhost";
+        }
+    }
+
+    /**
+     * Listen on the endpoint besides the ones added before. If none added, the
+     * server listens on the bind address and port.
+     *
+     * @param address
+     * @param stats connection counters of the endpoint
+     */
+    public synchronized void addEndpoint(InetSocketAddress address, EndpointStats stats) {
+        Validate.notNull(address, "Endpoint address must not be null");
+        Validate.notNull(stats, "Endpoint stats must not be null");
+        endpoints.add(new Endpoint(address, stats));
+    }
+
+    @Override
+    public synchronized void start() {
+        if (running) {
+            throw new IllegalStateException("NIO SMTP server already started");
+        }
+        List<Endpoint> bound = new ArrayList<Endpoint>(endpoints);
+        if (bound.isEmpty()) {
+            InetSocketAddress address = bindAddress == null ? new InetSocketAddress(port)
+                    : new InetSocketAddress(bindAddress, port);
+            bound.add(new Endpoint(address, new EndpointStats(SocketUtil
+                    .toDisplayableString(address))));
+        }
+        int acceptors = Math.max(1, acceptorCnt);
+        serverChannels = new ArrayList<ServerSocketChannel>(bound.size() * acceptors);
+        InetSocketAddress address = null;
+        try {
+            for (Endpoint endpoint : bound) {
+                address = endpoint.address;
+                for (int i = 0; i < acceptors; i++) {
+                    ServerSocketChannel channel = ServerSocketChannel.open();
+                    serverChannels.add(channel);
+                    channel.socket().setReuseAddress(true);
+                    if (acceptors > 1) {
+                        // The kernel balances connections among the sockets
+                        SocketUtil.setReusePort(channel);
+                    }
+                    channel.socket().bind(address, backlog);
+                }
+            }
+            if (deliveryExecutor == null || deliveryExecutor.isShutdown()) {
+                deliveryExecutor = Executors.newFixedThreadPool(Math.max(1, deliveryThreadCnt),
+                        new NameCustomizableThreadFactory("SmtpDelivery-"));
+            }
+            ThreadFactory ioThreadFactory = new NameCustomizableThreadFactory("SmtpIo-");
+            int loopCnt = Math.max(1, ioThreadCnt);
+            eventLoops = new IoEventLoop[loopCnt];
+            eventLoopThreads = new Thread[loopCnt];
+            for (int i = 0; i < loopCnt; i++) {
+                eventLoops[i] = new IoEventLoop(this, readBufferSize);
+                eventLoopThreads[i] = ioThreadFactory.newThread(eventLoops[i]);
+                eventLoopThreads[i].start();
+            }
+        } catch (IOException e) {
+            closeServerChannels();
+            shutdownDeliveryExecutor();
+            shutdownEventLoops();
+            throw new RuntimeException("NIO SMTP server binding failed on " + address, e);
+        }
+        running = true;
+        draining = false;
+        boundEndpoints = bound;
+        acceptorThreads = new ArrayList<Thread>(serverChannels.size());
+        int index = 0;
+        for (Endpoint endpoint : bound) {
+            for (int i = 0; i < acceptors; i++) {
+                Thread thread = new Thread(new Acceptor(serverChannels.get(index++),
+                        endpoint.stats), "SmtpAcceptor-" + endpoint.address.getPort() + "-" + i);
+                acceptorThreads.add(thread);
+                thread.start();
+            }
+        }
+        logger.info("NIO SMTP server started on {} with {} acceptors and {} I/O threads",
+                new Object[] { getDisplayableLocalSocketAddress(), acceptorThreads.size(),
+                        eventLoops.length });
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        closeServerChannels();
+        for (Thread thread : acceptorThreads) {
+            join(thread);
+        }
+        shutdownDeliveryExecutor();
+        shutdownEventLoops();
+        acceptorThreads = null;
+        logger.info("NIO SMTP server stopped on {}", getDisplayableLocalSocketAddress());
+        boundEndpoints = null;
+    }
+
+    /**
+     * Refuse connections accepted from now on with 421, sessions opened go on.
+     */
+    @Override
+    public void drain() {
+        draining = true;
+        logger.info("NIO SMTP server draining on {}", getDisplayableLocalSocketAddress());
+    }
+
+    public boolean isDraining() {
+        return draining;
+    }
+
+    private void closeServerChannels() {
+        if (serverChannels == null) {
+            return;
+        }
+        for (ServerSocketChannel channel : serverChannels) {
+            IOUtils.closeQuietly(channel);
+        }
+        serverChannels = null;
+    }
+
+    /**
+     * Let deliveries going on finish, so that their replies get back to the loops
+     * before they close.
+     */
+    private void shutdownDeliveryExecutor() {
+        ExecutorService executor = deliveryExecutor;
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(DELIVERY_SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                logger.warn("Mail deliveries still going on after {} seconds",
+                        DELIVERY_SHUTDOWN_TIMEOUT_SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void shutdownEventLoops() {
+        if (eventLoops == null) {
+            return;
+        }
+        for (IoEventLoop loop : eventLoops) {
+            if (loop != null) {
+                loop.shutdown();
+            }
+        }
+        for (Thread thread : eventLoopThreads) {
+            join(thread);
+        }
+        eventLoops = null;
+        eventLoopThreads = null;
+    }
+
+    private static void join(Thread thread) {
+        if (thread == null) {
+            return;
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Accepts blocking, and deals channels out to event loops in turn.
+     */
+    private class Acceptor implements Runnable {
+        private final ServerSocketChannel channel;
+        private final EndpointStats stats;
+        private final IoEventLoop[] loops;
+
+        Acceptor(ServerSocketChannel channel, EndpointStats stats) {
+            this.channel = channel;
+            this.stats = stats;
+            this.loops = eventLoops;
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                SocketChannel client;
+                try {
+                    client = channel.accept();
+                } catch (ClosedChannelException e) {
+                    break;
+                } catch (IOException e) {
+                    if (!running) {
+                        break;
+                    }
+                    logger.error("Accepting connection failed: {}", e.toString());
+                    // Likely out of file descriptors, do not spin
+                    pause();
+                    continue;
+                }
+                stats.connectionAccepted();
+                if (connectionCnt.incrementAndGet() > maxConnections) {
+                    refuse(client, " Too many connections, try again later");
+                    continue;
+                }
+                if (draining) {
+                    refuse(client, " Service shutting down, try again later");
+                    continue;
+                }
+                try {
+                    client.configureBlocking(false);
+                    int index = (nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length;
+                    loops[index].register(new NioSmtpSession(NioSmtpServer.this, loops[index],
+                            client, stats));
+                } catch (IOException e) {
+                    IOUtils.closeQuietly(client);
+                    connectionClosed();
+                    stats.connectionClosed();
+                }
+            }
+        }
+
+        private void refuse(SocketChannel client, String reason) {
+            try {
+                client.write(ByteBuffer.wrap(("421 4.3.2 " + hostName + reason + "\r\n")
+                        .getBytes(NioSmtpSession.ASCII)));
+            } catch (IOException e) {
+                logger.debug("Refusing connection failed: {}", e.toString());
+            } finally {
+                IOUtils.closeQuietly(client);
+                stats.connectionRefused();
+                connectionClosed();
+                stats.connectionClosed();
+            }
+        }
+
+        private void pause() {
+            try {
+                Thread.sleep(100L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Invoked by a session once its connection closed.
+     */
+    void connectionClosed() {
+        connectionCnt.decrementAndGet();
+    }
+
+    /**
+     * @return ESMTP extension keywords announced in reply to EHLO
+     */
+    List<String> getExtensions() {
+        List<String> extensions = new ArrayList<String>();
+        extensions.add("PIPELINING");
+        extensions.add("8BITMIME");
+        extensions.add("CHUNKING");
+        extensions.add("SIZE " + mailSpooler.getMaxMessageSize());
+        return Collections.unmodifiableList(extensions);
+    }
+
+    int getDataBufferSize() {
+        return mailSpooler.getBufferSize();
+    }
+
+    public ClientRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * @param rateLimiter per client limits, or null for none
+     */
+    public void setRateLimiter(ClientRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    MessageHandlerFactory getHandlerFactory() {
+        return handlerFactory;
+    }
+
+    MailSpooler getMailSpooler() {
+        return mailSpooler;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public synchronized String getDisplayableLocalSocketAddress() {
+        List<Endpoint> listed = boundEndpoints != null ? boundEndpoints : endpoints;
+        if (listed.isEmpty()) {
+            return (bindAddress == null ? "*" : bindAddress.toString()) + ":" + port;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Endpoint endpoint : listed) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(endpoint.stats.getName());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return number of connections open now
+     */
+    public int getConnectionCnt() {
+        return connectionCnt.get();
+    }
+
+    public InetAddress getBindAddress() {
+        return bindAddress;
+    }
+
+    public synchronized void setBindAddress(InetAddress bindAddress) {
+        this.bindAddress = bindAddress;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public synchronized void setPort(int port) {
+        this.port = port;
+    }
+
+    public int getAcceptorCnt() {
+        return acceptorCnt;
+    }
+
+    /**
+     * @param acceptorCnt acceptor threads per endpoint, more than one needs
+     *            <code>SO_REUSEPORT</code>
+     */
+    public synchronized void setAcceptorCnt(int acceptorCnt) {
+        this.acceptorCnt = acceptorCnt;
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public synchronized void setBacklog(int backlog) {
+        this.backlog = backlog;
+    }
+
+    public int getIoThreadCnt() {
+        return ioThreadCnt;
+    }
+
+    public synchronized void setIoThreadCnt(int ioThreadCnt) {
+        this.ioThreadCnt = ioThreadCnt;
+    }
+
+    public int getDeliveryThreadCnt() {
+        return deliveryThreadCnt;
+    }
+
+    /**
+     * @param deliveryThreadCnt threads running message handlers on mail data, unless
+     *            a delivery executor is given
+     */
+    public synchronized void setDeliveryThreadCnt(int deliveryThreadCnt) {
+        this.deliveryThreadCnt = deliveryThreadCnt;
+    }
+
+    ExecutorService getDeliveryExecutor() {
+        return deliveryExecutor;
+    }
+
+    /**
+     * @param deliveryExecutor runs message handlers on mail data in place of a pool
+     *            of delivery threads, shut down on stop
+     */
+    public synchronized void setDeliveryExecutor(ExecutorService deliveryExecutor) {
+        this.deliveryExecutor = deliveryExecutor;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public synchronized void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public int getConnectionTimeout() {
+        return connectionTimeout;
+    }
+
+    public void setConnectionTimeout(int connectionTimeout) {
+        this.connectionTimeout = connectionTimeout;
+    }
+
+    public int getReadBufferSize() {
+        return readBufferSize;
+    }
+
+    public synchronized void setReadBufferSize(int readBufferSize) {
+        this.readBufferSize = readBufferSize;
+    }
+
+    public String getHostName() {
+        return hostName;
+    }
+
+    public synchronized void setHostName(String hostName) {
+        this.hostName = hostName;
+    }
+
+    public String getSoftwareName() {
+        return softwareName;
+    }
+
+    public synchronized void setSoftwareName(String softwareName) {
+        this.softwareName = softwareName;
+    }
+
+    /**
+     * A listening address and its counters.
+     */
+    private static final class Endpoint {
+        final InetSocketAddress address;
+        final EndpointStats stats;
+
+        Endpoint(InetSocketAddress address, EndpointStats stats) {
+            this.address = address;
+            this.stats = stats;
+        }
+    }
+
+}
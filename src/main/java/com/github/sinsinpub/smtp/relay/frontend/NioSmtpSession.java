@@ -0,0 +1,739 @@
+package com.github.sinsinpub.smtp.relay.frontend;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.AuthenticationHandler;
+import org.subethamail.smtp.MessageContext;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.RejectException;
+import org.subethamail.smtp.TooMuchDataException;
+import org.subethamail.smtp.server.SMTPServer;
+
+import com.github.sinsinpub.smtp.relay.spool.SpoolOutputStream;
+import com.github.sinsinpub.smtp.relay.spool.SpooledInputStream;
+
+/**
+ * One client connection of {@link NioSmtpServer}, driven by the event loop it is
+ * registered to. Commands are handled as soon as their lines are complete, and
+ * replies are written out once the input read has been consumed, so pipelined
+ * commands get their replies in one write. Mail data comes by DATA or by BDAT
+ * chunks, either way written into the spool as it arrives.
+ * <p>
+ * Once the data is complete, the message handler takes it on a delivery thread of
+ * the server, as it may block on the queue or the journal. Reading stops till the
+ * reply comes back to the loop, input already read being held over till then.
+ * 
+ * @author sin_sin
+ */
+@NotThreadSafe
+final class NioSmtpSession implements MessageContext {
+
+    static final int MAX_LINE_LENGTH = 4096;
+    static final int MAX_RECIPIENTS = 1000;
+    static final Charset ASCII = Charset.forName("ISO-8859-1");
+    private static final String CRLF = "\r\n";
+    private static final String RECEIVED_DATE_FORMAT = "EEE, d MMM yyyy HH:mm:ss Z";
+
+    private final static Logger logger = LoggerFactory.getLogger(NioSmtpSession.class);
+
+    private final NioSmtpServer server;
+    private final IoEventLoop loop;
+    private final SocketChannel channel;
+    private final SocketAddress remoteAddress;
+    private final EndpointStats stats;
+    private SelectionKey key;
+    private ClientRateLimiter rateLimiter;
+    private ClientRateLimiter.ClientState rateLimitTicket;
+    private long lastActiveTime = System.currentTimeMillis();
+    private boolean closing;
+    private boolean closed;
+
+    private byte[] lineBuffer = new byte[128];
+    private int lineLength;
+    private boolean lineTooLong;
+    private final StringBuilder replies = new StringBuilder();
+    private ByteBuffer pendingOutput;
+
+    private String helo;
+    private MessageHandler handler;
+    private int recipientCnt;
+    private boolean inData;
+    private DataDecoder decoder;
+    private SpoolOutputStream dataOut;
+    private IOException dataError;
+    private boolean inChunk;
+    private long chunkSize;
+    private long chunkRemaining;
+    private boolean lastChunk;
+    private String chunkRejection;
+    /** Data handed to the handler on a delivery thread, the reply not back yet */
+    private boolean delivering;
+    /** Pipelined input read while delivering */
+    private ByteBuffer heldInput;
+
+    NioSmtpSession(NioSmtpServer server, IoEventLoop loop, SocketChannel channel,
+            EndpointStats stats) {
+        this.server = server;
+        this.loop = loop;
+        this.channel = channel;
+        this.stats = stats;
+        this.remoteAddress = channel.socket().getRemoteSocketAddress();
+    }
+
+    /**
+     * Send greeting once registered to the selector.
+     */
+    void open(SelectionKey key) throws IOException {
+        this.key = key;
+        this.rateLimiter = server.getRateLimiter();
+        if (rateLimiter != null) {
+            rateLimitTicket = rateLimiter.acquireConnection(ClientRateLimiter
+                    .toInetAddress(remoteAddress));
+            if (rateLimitTicket == null) {
+                stats.connectionRefused();
+                reply("421 4.7.0 " + server.getHostName()
+                        + " Too many connections from your address, try again later");
+                closing = true;
+                flush();
+                return;
+            }
+        }
+        reply("220 " + server.getHostName() + " ESMTP " + server.getSoftwareName());
+        flush();
+    }
+
+    void onReadable(ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        int n = channel.read(buffer);
+        if (n < 0) {
+            close();
+            return;
+        }
+        if (n == 0) {
+            return;
+        }
+        lastActiveTime = System.currentTimeMillis();
+        buffer.flip();
+        process(buffer);
+        flush();
+    }
+
+    void onWritable() throws IOException {
+        flush();
+    }
+
+    /**
+     * Consume all bytes read, as the buffer is shared by sessions of the same loop.
+     */
+    private void process(ByteBuffer buffer) {
+        while (buffer.hasRemaining() && !closing) {
+            if (delivering) {
+                holdInput(buffer);
+            } else if (inData || inChunk) {
+                try {
+                    if (inData) {
+                        consumeData(buffer);
+                    } else {
+                        consumeChunk(buffer);
+                    }
+                } catch (RuntimeException e) {
+                    logger.error("Mail data processing failed: " + e.toString(), e);
+                    resetTransaction();
+                    reply("451 4.3.0 Error: internal error, try again later");
+                    // Where the data ends is unknown
+                    inChunk = false;
+                    closing = true;
+                }
+            } else {
+                String line = readLine(buffer);
+                if (line == null) {
+                    break;
+                }
+                try {
+                    processCommand(line);
+                } catch (RuntimeException e) {
+                    logger.error("Command processing failed: " + e.toString(), e);
+                    resetTransaction();
+                    reply("451 4.3.0 Error: internal error, try again later");
+                }
+            }
+        }
+    }
+
+    /**
+     * Keep the rest of the input till the delivery is done.
+     */
+    private void holdInput(ByteBuffer buffer) {
+        if (heldInput == null) {
+            heldInput = ByteBuffer.allocate(Math.max(buffer.remaining(), lineBuffer.length));
+        } else if (heldInput.remaining() < buffer.remaining()) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(heldInput.position()
+                    + buffer.remaining(), heldInput.capacity() * 2));
+            heldInput.flip();
+            larger.put(heldInput);
+            heldInput = larger;
+        }
+        heldInput.put(buffer);
+    }
+
+    /**
+     * @return a complete command line without CRLF, or null if more input needed
+     */
+    private String readLine(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if (b == '\n') {
+                int length = lineLength;
+                boolean tooLong = lineTooLong;
+                lineLength = 0;
+                lineTooLong = false;
+                if (tooLong) {
+                    reply("500 5.5.2 Error: line too long");
+                    continue;
+                }
+                if (length > 0 && lineBuffer[length - 1] == '\r') {
+                    length--;
+                }
+                return new String(lineBuffer, 0, length, ASCII);
+            }
+            if (lineLength == MAX_LINE_LENGTH) {
+                lineTooLong = true;
+            } else if (!lineTooLong) {
+                if (lineLength == lineBuffer.length) {
+                    byte[] larger = new byte[Math.min(lineBuffer.length * 2, MAX_LINE_LENGTH)];
+                    System.arraycopy(lineBuffer, 0, larger, 0, lineLength);
+                    lineBuffer = larger;
+                }
+                lineBuffer[lineLength++] = b;
+            }
+        }
+        return null;
+    }
+
+    private void processCommand(String line) {
+        int sp = line.indexOf(' ');
+        String verb = (sp < 0 ? line : line.substring(0, sp)).toUpperCase(Locale.ENGLISH);
+        String arg = sp < 0 ? "" : line.substring(sp + 1).trim();
+        if ("EHLO".equals(verb)) {
+            doEhlo(arg);
+        } else if ("HELO".equals(verb)) {
+            doHelo(arg);
+        } else if ("MAIL".equals(verb)) {
+            doMail(arg);
+        } else if ("RCPT".equals(verb)) {
+            doRcpt(arg);
+        } else if ("DATA".equals(verb)) {
+            doData();
+        } else if ("BDAT".equals(verb)) {
+            doBdat(arg);
+        } else if ("RSET".equals(verb)) {
+            resetTransaction();
+            reply("250 Ok");
+        } else if ("NOOP".equals(verb)) {
+            reply("250 Ok");
+        } else if ("QUIT".equals(verb)) {
+            reply("221 2.0.0 Bye");
+            closing = true;
+        } else if ("VRFY".equals(verb) || "EXPN".equals(verb)) {
+            reply("502 5.5.1 " + verb + " command is disabled");
+        } else if (verb.length() == 0) {
+            reply("500 5.5.2 Error: bad syntax");
+        } else {
+            reply("500 5.5.1 Error: command not recognized");
+        }
+    }
+
+    private void doEhlo(String arg) {
+        if (arg.length() == 0) {
+            reply("501 5.5.4 Syntax: EHLO hostname");
+            return;
+        }
+        resetTransaction();
+        this.helo = arg;
+        StringBuilder sb = new StringBuilder("250-").append(server.getHostName());
+        List<String> extensions = server.getExtensions();
+        for (int i = 0; i < extensions.size(); i++) {
+            sb.append(CRLF).append(i == extensions.size() - 1 ? "250 " : "250-");
+            sb.append(extensions.get(i));
+        }
+        reply(sb.toString());
+    }
+
+    private void doHelo(String arg) {
+        if (arg.length() == 0) {
+            reply("501 5.5.4 Syntax: HELO hostname");
+            return;
+        }
+        resetTransaction();
+        this.helo = arg;
+        reply("250 " + server.getHostName());
+    }
+
+    private void doMail(String arg) {
+        if (handler != null) {
+            reply("503 5.5.1 Error: nested MAIL command");
+            return;
+        }
+        String from = extractAddress(arg, "FROM:");
+        if (from == null) {
+            reply("501 5.5.4 Syntax: MAIL FROM:<address>");
+            return;
+        }
+        long declaredSize = extractDeclaredSize(arg);
+        if (declaredSize > server.getMailSpooler().getMaxMessageSize()) {
+            // Refused before any byte of data is sent
+            reply("552 5.3.4 Message size exceeds fixed limit");
+            return;
+        }
+        handler = server.getHandlerFactory().create(this);
+        try {
+            handler.from(from);
+            reply("250 Ok");
+        } catch (RejectException e) {
+            resetTransaction();
+            reply(e.getErrorResponse());
+        }
+    }
+
+    private void doRcpt(String arg) {
+        if (handler == null) {
+            reply("503 5.5.1 Error: need MAIL command");
+            return;
+        }
+        if (recipientCnt >= MAX_RECIPIENTS) {
+            reply("452 4.5.3 Error: too many recipients");
+            return;
+        }
+        String recipient = extractAddress(arg, "TO:");
+        if (recipient == null || recipient.length() == 0) {
+            reply("501 5.1.3 Bad recipient address syntax");
+            return;
+        }
+        try {
+            handler.recipient(recipient);
+            recipientCnt++;
+            reply("250 Ok");
+        } catch (RejectException e) {
+            reply(e.getErrorResponse());
+        }
+    }
+
+    private void doData() {
+        if (handler == null) {
+            reply("503 5.5.1 Error: need MAIL command");
+            return;
+        }
+        if (recipientCnt == 0) {
+            reply("503 5.5.1 Error: need RCPT command");
+            return;
+        }
+        if (dataOut != null) {
+            reply("503 5.5.1 Error: BDAT in progress");
+            return;
+        }
+        beginData();
+        decoder.reset();
+        inData = true;
+        reply("354 End data with <CR><LF>.<CR><LF>");
+    }
+
+    /**
+     * BDAT size [LAST], RFC 3030. The chunk always follows the command, so it is
+     * consumed even if the command is refused.
+     */
+    private void doBdat(String arg) {
+        String[] args = StringUtils.split(arg);
+        long size = -1;
+        boolean last = args.length == 2 && "LAST".equalsIgnoreCase(args[1]);
+        if (args.length == 1 || last) {
+            try {
+                size = Long.parseLong(args[0]);
+            } catch (NumberFormatException e) {
+                size = -1;
+            }
+        }
+        if (size < 0) {
+            // No way to tell where the chunk ends
+            reply("501 5.5.4 Syntax: BDAT size [LAST]");
+            closing = true;
+            return;
+        }
+        if (handler == null) {
+            chunkRejection = "503 5.5.1 Error: need MAIL command";
+        } else if (recipientCnt == 0) {
+            chunkRejection = "503 5.5.1 Error: need RCPT command";
+        } else if (dataOut == null) {
+            beginData();
+        }
+        inChunk = true;
+        chunkSize = size;
+        chunkRemaining = size;
+        lastChunk = last;
+        if (size == 0) {
+            endChunk();
+        }
+    }
+
+    private void beginData() {
+        if (decoder == null) {
+            decoder = new DataDecoder(server.getDataBufferSize());
+        }
+        dataOut = server.getMailSpooler().newOutputStream();
+        try {
+            dataOut.write(buildReceivedHeader().getBytes(ASCII));
+        } catch (IOException e) {
+            dataError = e;
+        }
+    }
+
+    private void consumeChunk(ByteBuffer buffer) {
+        int n = (int) Math.min(buffer.remaining(), chunkRemaining);
+        int end = buffer.position() + n;
+        if (chunkRejection != null) {
+            // Out of sequence, no data begun and maybe no decoder yet
+            buffer.position(end);
+        } else {
+            try {
+                decoder.copy(buffer, n, dataError == null ? dataOut : null);
+            } catch (IOException e) {
+                dataError = e;
+                buffer.position(end);
+            }
+        }
+        chunkRemaining -= n;
+        if (chunkRemaining == 0) {
+            endChunk();
+        }
+    }
+
+    private void endChunk() {
+        inChunk = false;
+        if (chunkRejection != null) {
+            reply(chunkRejection);
+            chunkRejection = null;
+        } else if (dataError != null) {
+            IOException error = dataError;
+            resetTransaction();
+            reply(dataErrorReply(error));
+        } else if (lastChunk) {
+            finishData();
+        } else {
+            reply("250 2.0.0 " + chunkSize + " octets received");
+        }
+    }
+
+    private void consumeData(ByteBuffer buffer) {
+        while (true) {
+            try {
+                if (decoder.decode(buffer, dataError == null ? dataOut : null)) {
+                    finishData();
+                }
+                return;
+            } catch (IOException e) {
+                // Keep reading till the end of data, but not storing any more
+                dataError = e;
+            }
+        }
+    }
+
+    private void finishData() {
+        SpoolOutputStream out = dataOut;
+        IOException error = dataError;
+        dataOut = null;
+        dataError = null;
+        inData = false;
+        SpooledInputStream data = null;
+        if (error == null) {
+            try {
+                out.close();
+                data = new SpooledInputStream(out.getStorage());
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        if (error != null) {
+            out.discard();
+            resetTransaction();
+            reply(dataErrorReply(error));
+            return;
+        }
+        deliver(data);
+    }
+
+    /**
+     * Hand the data over to the handler on a delivery thread, the reply is sent by
+     * {@link #delivered(String)} back on the loop.
+     */
+    private void deliver(final SpooledInputStream data) {
+        final MessageHandler deliveryHandler = handler;
+        delivering = true;
+        try {
+            server.getDeliveryExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    final String reply = handleData(deliveryHandler, data);
+                    loop.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            delivered(reply);
+                        }
+                    });
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            delivering = false;
+            data.detach().release();
+            resetTransaction();
+            logger.warn("Mail data from {} not taken: delivery refused", remoteAddress);
+            reply("451 4.3.0 Error: message not taken, try again later");
+        }
+    }
+
+    /**
+     * Runs on a delivery thread.
+     * 
+     * @return the reply to the data
+     */
+    private String handleData(MessageHandler deliveryHandler, SpooledInputStream data) {
+        try {
+            deliveryHandler.data(data);
+            return "250 Ok";
+        } catch (RejectException e) {
+            return e.getErrorResponse();
+        } catch (IOException e) {
+            return dataErrorReply(e);
+        } catch (RuntimeException e) {
+            logger.error("Message handler failed on data: " + e.toString(), e);
+            return "451 4.3.0 Error: internal error, try again later";
+        } finally {
+            if (!data.isDetached()) {
+                data.detach().release();
+            }
+        }
+    }
+
+    /**
+     * Back on the loop once the handler has taken the data: reply, and go on with
+     * the input held over.
+     */
+    private void delivered(String reply) {
+        delivering = false;
+        lastActiveTime = System.currentTimeMillis();
+        resetTransaction();
+        if (closed) {
+            heldInput = null;
+            return;
+        }
+        reply(reply);
+        ByteBuffer held = heldInput;
+        heldInput = null;
+        if (held != null) {
+            held.flip();
+            process(held);
+        }
+        try {
+            flush();
+        } catch (IOException e) {
+            logger.debug("Connection from {} closed on {}", remoteAddress, e.toString());
+            close();
+        }
+    }
+
+    private String dataErrorReply(IOException e) {
+        if (e instanceof TooMuchDataException) {
+            return "552 5.3.4 Message size exceeds fixed limit";
+        }
+        logger.warn("Mail data from {} not taken: {}", remoteAddress, e.toString());
+        return "451 4.3.0 Error: message not taken, try again later";
+    }
+
+    private String buildReceivedHeader() {
+        String host = remoteAddress instanceof InetSocketAddress ? ((InetSocketAddress) remoteAddress).getAddress()
+                .getHostAddress()
+                : String.valueOf(remoteAddress);
+        return "Received: from " + (helo == null ? "unknown" : helo) + " ([" + host + "])"
+                + CRLF + "        by " + server.getHostName() + " with ESMTP;" + CRLF
+                + "        "
+                + new SimpleDateFormat(RECEIVED_DATE_FORMAT, Locale.US).format(new Date())
+                + CRLF;
+    }
+
+    /**
+     * Pick the address out of arguments like FROM:&lt;address&gt; PARAM=VALUE.
+     * 
+     * @return the address, maybe empty, or null if syntax is bad
+     */
+    static String extractAddress(String arg, String prefix) {
+        if (!arg.regionMatches(true, 0, prefix, 0, prefix.length())) {
+            return null;
+        }
+        String rest = arg.substring(prefix.length()).trim();
+        if (rest.startsWith("<")) {
+            int end = rest.indexOf('>');
+            return end < 0 ? null : rest.substring(1, end).trim();
+        }
+        int sp = rest.indexOf(' ');
+        return sp < 0 ? rest : rest.substring(0, sp);
+    }
+
+    /**
+     * @return value of the SIZE parameter of MAIL FROM, or -1 if not given or bad
+     */
+    static long extractDeclaredSize(String arg) {
+        int end = arg.indexOf('>');
+        for (String param : StringUtils.split(arg.substring(end + 1))) {
+            if (param.regionMatches(true, 0, "SIZE=", 0, 5)) {
+                try {
+                    return Long.parseLong(param.substring(5));
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * While delivering, the handler is left to {@link #delivered(String)}.
+     */
+    private void resetTransaction() {
+        if (handler != null && !delivering) {
+            try {
+                handler.done();
+            } catch (RuntimeException e) {
+                logger.error("Message handler failed on done: " + e.toString(), e);
+            }
+            handler = null;
+        }
+        recipientCnt = 0;
+        if (dataOut != null) {
+            dataOut.discard();
+            dataOut = null;
+        }
+        dataError = null;
+        inData = false;
+    }
+
+    private void reply(String line) {
+        replies.append(line).append(CRLF);
+    }
+
+    /**
+     * Write out replies queued. Reading is suspended while a reply can not be
+     * written completely, so a client that does not read can not pile up replies.
+     */
+    private void flush() throws IOException {
+        if (closed) {
+            return;
+        }
+        if (replies.length() > 0) {
+            ByteBuffer out = ASCII.encode(CharBuffer.wrap(replies));
+            replies.setLength(0);
+            if (pendingOutput != null) {
+                ByteBuffer merged = ByteBuffer.allocate(pendingOutput.remaining()
+                        + out.remaining());
+                merged.put(pendingOutput).put(out).flip();
+                out = merged;
+            }
+            pendingOutput = out;
+        }
+        if (pendingOutput != null) {
+            channel.write(pendingOutput);
+            if (pendingOutput.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            pendingOutput = null;
+        }
+        if (closing) {
+            close();
+        } else {
+            // Reading resumes once delivered, so held input stays within one read
+            key.interestOps(delivering ? 0 : SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Say goodbye to a client idle for too long.
+     */
+    void timeout() {
+        if (delivering) {
+            // Not idle, waiting for the handler
+            return;
+        }
+        resetTransaction();
+        reply("421 4.4.2 " + server.getHostName() + " Error: timeout exceeded");
+        closing = true;
+        try {
+            flush();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        resetTransaction();
+        if (key != null) {
+            key.cancel();
+        }
+        IOUtils.closeQuietly(channel);
+        if (rateLimitTicket != null) {
+            rateLimiter.releaseConnection(rateLimitTicket);
+            rateLimitTicket = null;
+        }
+        loop.sessionClosed(this);
+        server.connectionClosed();
+        stats.connectionClosed();
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    long getLastActiveTime() {
+        return lastActiveTime;
+    }
+
+    @Override
+    public SMTPServer getSMTPServer() {
+        // Not running on SubEthaSMTP server
+        return null;
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public AuthenticationHandler getAuthenticationHandler() {
+        return null;
+    }
+
+    public String getHelo() {
+        return helo;
+    }
+
+}
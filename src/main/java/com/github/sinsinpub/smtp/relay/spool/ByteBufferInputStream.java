@@ -0,0 +1,95 @@
+package com.github.sinsinpub.smtp.relay.spool;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.mail.internet.SharedInputStream;
+
+/**
+ * An input stream reading from a byte buffer without copying it. Sub-streams
+ * share the same underlying buffer content.
+ *
+ * @author sin_sin
+ */
+@NotThreadSafe
+public class ByteBufferInputStream extends InputStream implements SharedInputStream {
+
+    private final ByteBuffer buffer;
+    private int mark;
+
+    /**
+     * @param buffer buffer to read from its position to its limit; the buffer's
+     *            position and mark will be modified, so pass a duplicate if shared
+     */
+    public ByteBufferInputStream(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.mark = buffer.position();
+    }
+
+    @Override
+    public int read() {
+        return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        int n = Math.min(len, buffer.remaining());
+        buffer.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) {
+        if (n <= 0) {
+            return 0;
+        }
+        int skipped = (int) Math.min(n, buffer.remaining());
+        buffer.position(buffer.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public void mark(int readlimit) {
+        mark = buffer.position();
+    }
+
+    @Override
+    public void reset() {
+        buffer.position(mark);
+    }
+
+    @Override
+    public long getPosition() {
+        return buffer.position();
+    }
+
+    @Override
+    public InputStream newStream(long start, long end) {
+        if (start < 0) {
+            throw new IllegalArgumentException("Negative start position: " + start);
+        }
+        int limit = end == -1 ? buffer.limit() : (int) Math.min(end, buffer.limit());
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(limit);
+        slice.position((int) Math.min(start, limit));
+        return new ByteBufferInputStream(slice.slice());
+    }
+
+}
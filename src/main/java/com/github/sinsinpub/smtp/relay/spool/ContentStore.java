@@ -0,0 +1,224 @@
+package com.github.sinsinpub.smtp.relay.spool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.Validate;
+
+/**
+ * Keeps a single copy of identical message data, addressed by its SHA-256 digest
+ * and size, so that the same large body sent to many recipients in separate
+ * transactions is held in heap or spooled on disk only once.
+ * <p>
+ * Every message interned gets a reference of its own; the data is released with
+ * the last reference. Data smaller than the minimum size is not worth the digest
+ * and is returned as is. Data spooled with digests enabled, see
+ * {@link MailSpooler#setDigestEnabled(boolean)}, is hashed as it is received
+ * instead of read back here.
+ *
+ * @author sin_sin
+ */
+@ThreadSafe
+public class ContentStore {
+
+    public static final int DEFAULT_MIN_SIZE = 4096;
+    public static final String DIGEST_ALGORITHM = "SHA-256";
+
+    private static final int BUFFER_SIZE = 65536;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final int minSize;
+    @GuardedBy("this")
+    private final Map<String, Body> bodies = new HashMap<String, Body>();
+    @GuardedBy("this")
+    private long bodyBytes;
+    private final AtomicLong numInterned = new AtomicLong();
+    private final AtomicLong numDeduplicated = new AtomicLong();
+    private final AtomicLong numDeduplicatedBytes = new AtomicLong();
+
+    /**
+     * @param minSize smaller data is not deduplicated
+     */
+    public ContentStore(int minSize) {
+        Validate.isTrue(minSize >= 0, "Minimum size must not be negative");
+        this.minSize = minSize;
+    }
+
+    /**
+     * Look the data up by content. If the same data is kept already, the storage
+     * given is released and the kept one referred to instead.
+     *
+     * @param storage newly received data, taken over by this method
+     * @return reference to the kept data, to be released like any storage, or the
+     *         storage given if smaller than the minimum size
+     * @throws IOException if the data could not be read, the storage is left as is
+     */
+    public MessageStorage intern(MessageStorage storage) throws IOException {
+        byte[] hash = null;
+        if (storage instanceof DigestedMessageStorage) {
+            hash = ((DigestedMessageStorage) storage).getDigest();
+            storage = ((DigestedMessageStorage) storage).getStorage();
+        }
+        long size = storage.getSize();
+        if (size < minSize) {
+            return storage;
+        }
+        String key = toKey(hash == null ? digest(storage) : hash, size);
+        Body body;
+        synchronized (this) {
+            body = bodies.get(key);
+            if (body == null) {
+                body = new Body(key, storage);
+                bodies.put(key, body);
+                bodyBytes += size;
+            }
+            body.refs++;
+        }
+        numInterned.getAndIncrement();
+        if (body.storage != storage) {
+            numDeduplicated.getAndIncrement();
+            numDeduplicatedBytes.getAndAdd(size);
+            storage.release();
+        }
+        return new SharedStorage(body);
+    }
+
+    private void release(Body body) {
+        synchronized (this) {
+            if (--body.refs > 0) {
+                return;
+            }
+            bodies.remove(body.key);
+            bodyBytes -= body.storage.getSize();
+        }
+        body.storage.release();
+    }
+
+    /**
+     * @return new digest of the algorithm the data is addressed by
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(DIGEST_ALGORITHM + " not supported", e);
+        }
+    }
+
+    private static byte[] digest(MessageStorage storage) throws IOException {
+        MessageDigest digest = newDigest();
+        InputStream in = storage.openStream();
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+            }
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        return digest.digest();
+    }
+
+    /**
+     * @return hex digest of the data followed by its size
+     */
+    private static String toKey(byte[] hash, long size) {
+        StringBuilder key = new StringBuilder(hash.length * 2 + 12);
+        for (byte b : hash) {
+            key.append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+        }
+        return key.append(':').append(size).toString();
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    /**
+     * @return number of distinct data kept
+     */
+    public synchronized int getBodyCnt() {
+        return bodies.size();
+    }
+
+    /**
+     * @return bytes of distinct data kept
+     */
+    public synchronized long getBodyBytes() {
+        return bodyBytes;
+    }
+
+    public long getNumInterned() {
+        return numInterned.get();
+    }
+
+    /**
+     * @return number of messages found kept already
+     */
+    public long getNumDeduplicated() {
+        return numDeduplicated.get();
+    }
+
+    /**
+     * @return bytes not stored again as they were kept already
+     */
+    public long getNumDeduplicatedBytes() {
+        return numDeduplicatedBytes.get();
+    }
+
+    /**
+     * Data kept once and the number of references to it.
+     */
+    private static final class Body {
+        final String key;
+        final MessageStorage storage;
+        /** Guarded by the store */
+        int refs;
+
+        Body(String key, MessageStorage storage) {
+            this.key = key;
+            this.storage = storage;
+        }
+    }
+
+    /**
+     * A reference to kept data, released once however often asked to.
+     */
+    private final class SharedStorage implements MessageStorage {
+        private final Body body;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        SharedStorage(Body body) {
+            this.body = body;
+        }
+
+        @Override
+        public long getSize() {
+            return body.storage.getSize();
+        }
+
+        @Override
+        public InputStream openStream() throws IOException {
+            return body.storage.openStream();
+        }
+
+        @Override
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                ContentStore.this.release(body);
+            }
+        }
+    }
+
+}
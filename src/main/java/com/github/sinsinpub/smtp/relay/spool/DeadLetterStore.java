@@ -0,0 +1,593 @@
+package com.github.sinsinpub.smtp.relay.spool;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.sinsinpub.smtp.relay.context.MailContext;
+import com.github.sinsinpub.smtp.relay.utils.MailHeaderUtil;
+
+/**
+ * Keeps the mail given up after all retries, so that it can be looked at and
+ * forwarded again once the cause is gone.
+ * <p>
+ * Message data is appended to segment files, each message a gzip member of its own.
+ * Every segment has an index file of tab separated lines, an entry line per message
+ * with where its data is, envelope, Message-ID, route and failure reason, and a
+ * removal line per message replayed or purged. Entries are kept in memory, looked
+ * up by {@link #FIELD_MESSAGE_ID}, {@link #FIELD_SENDER}, {@link #FIELD_ROUTE} or
+ * {@link #FIELD_REASON}. A segment is deleted once all its entries are removed.
+ * <p>
+ * Messages at least the compression threshold are deflated at the fastest level,
+ * smaller ones are stored in the gzip member as is, not worth the CPU.
+ *
+ * @author sin_sin
+ */
+@ThreadSafe
+public class DeadLetterStore {
+
+    /** Matches every entry, the value ignored */
+    public static final String FIELD_ALL = "all";
+    public static final String FIELD_MESSAGE_ID = "messageId";
+    public static final String FIELD_SENDER = "sender";
+    public static final String FIELD_ROUTE = "route";
+    public static final String FIELD_REASON = "reason";
+    public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+    public static final String SEGMENT_FILE_PREFIX = "deadletter-";
+    public static final String DATA_FILE_SUFFIX = ".gz";
+    public static final String INDEX_FILE_SUFFIX = ".idx";
+    /** Longer failure reasons are cut, in characters */
+    public static final int MAX_REASON_LENGTH = 256;
+
+    private static final String LINE_ENTRY = "E";
+    private static final String LINE_REMOVED = "R";
+    private static final int ENTRY_FIELD_CNT = 11;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final List<String> INDEXED_FIELDS = Arrays.asList(FIELD_MESSAGE_ID,
+            FIELD_SENDER, FIELD_ROUTE, FIELD_REASON);
+
+    private final static Logger logger = LoggerFactory.getLogger(DeadLetterStore.class);
+
+    private final File directory;
+    private final long segmentSize;
+    private final long compressMinSize;
+
+    @GuardedBy("this")
+    private final Map<Long, Entry> entries = new LinkedHashMap<Long, Entry>();
+    /** Entry ids by field, then by field value */
+    @GuardedBy("this")
+    private final Map<String, Map<String, Set<Long>>> indexes = new HashMap<String, Map<String, Set<Long>>>();
+    @GuardedBy("this")
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+    @GuardedBy("this")
+    private Segment current;
+    @GuardedBy("this")
+    private long nextId = 1;
+    @GuardedBy("this")
+    private boolean closed = true;
+    private final AtomicLong numAdded = new AtomicLong();
+    private final AtomicLong numRemoved = new AtomicLong();
+
+    /**
+     * @param directory where segment and index files are kept
+     * @param segmentSize a new segment is started once the current one is larger
+     */
+    public DeadLetterStore(File directory, long segmentSize) {
+        this(directory, segmentSize, -1);
+    }
+
+    /**
+     * @param directory
+     * @param segmentSize
+     * @param compressMinSize messages at least this large are deflated at the
+     *            fastest level and smaller ones stored, negative for the default
+     *            level for all
+     */
+    public DeadLetterStore(File directory, long segmentSize, long compressMinSize) {
+        Validate.notNull(directory, "Dead letter directory must not be null");
+        Validate.isTrue(segmentSize > 0, "Segment size must be positive");
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.compressMinSize = compressMinSize;
+        for (String field : INDEXED_FIELDS) {
+            indexes.put(field, new HashMap<String, Set<Long>>());
+        }
+    }
+
+    /**
+     * Read all index files, and start a new segment for appending.
+     *
+     * @throws IOException if the directory or an index can not be read
+     */
+    public synchronized void open() throws IOException {
+        Validate.isTrue(closed, "Dead letter store opened already");
+        FileUtils.forceMkdir(directory);
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().startsWith(SEGMENT_FILE_PREFIX)
+                        && file.getName().endsWith(INDEX_FILE_SUFFIX);
+            }
+        });
+        if (files == null) {
+            throw new IOException("Dead letter directory is not readable: " + directory);
+        }
+        long lastIndex = 0;
+        for (File file : files) {
+            String name = file.getName();
+            long index;
+            try {
+                index = Long.parseLong(name.substring(SEGMENT_FILE_PREFIX.length(),
+                        name.length() - INDEX_FILE_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            segments.put(index, new Segment(directory, index));
+            lastIndex = Math.max(lastIndex, index);
+        }
+        for (Segment segment : segments.values()) {
+            readIndex(segment);
+        }
+        closed = false;
+        current = newSegment(lastIndex + 1);
+        for (Segment segment : new ArrayList<Segment>(segments.values())) {
+            deleteIfEmpty(segment);
+        }
+        logger.info("Dead letter store opened in {} with {} messages",
+                directory.getAbsolutePath(), entries.size());
+    }
+
+    /**
+     * Keep the message, its data compressed. Both data and index are forced to disk
+     * before returning.
+     *
+     * @param mail message given up
+     * @param route delivering route it failed on
+     * @param reason last error
+     * @return id of the new entry
+     * @throws IOException if the message could not be written
+     */
+    public long add(MailContext mail, String route, String reason) throws IOException {
+        String messageId = MailHeaderUtil.readHeader(mail.getMessageStorage(), "Message-ID");
+        InputStream data = mail.getMessageStorage().openStream();
+        try {
+            synchronized (this) {
+                checkOpen();
+                long id = nextId++;
+                Entry entry = new Entry(id, current);
+                entry.time = System.currentTimeMillis();
+                entry.size = mail.getMessageSize();
+                entry.messageId = clean(messageId, Integer.MAX_VALUE);
+                entry.sender = clean(mail.getEnvelopeSender(), Integer.MAX_VALUE);
+                entry.receiver = clean(mail.getEnvelopeReceiver(), Integer.MAX_VALUE);
+                entry.route = clean(route, Integer.MAX_VALUE);
+                entry.reason = clean(reason, MAX_REASON_LENGTH);
+                writeData(entry, data);
+                appendLine(current, entryLine(entry));
+                put(entry);
+                numAdded.getAndIncrement();
+                if (current.dataFile.length() >= segmentSize) {
+                    current = newSegment(current.index + 1);
+                }
+                return id;
+            }
+        } finally {
+            IOUtils.closeQuietly(data);
+        }
+    }
+
+    /**
+     * @param id entry id
+     * @return decompressed message data, to be closed by the caller
+     * @throws IOException if no such entry or not readable
+     */
+    public InputStream openData(long id) throws IOException {
+        Entry entry;
+        synchronized (this) {
+            checkOpen();
+            entry = entries.get(id);
+        }
+        if (entry == null) {
+            throw new IOException("No dead letter " + id);
+        }
+        FileInputStream in = new FileInputStream(entry.segment.dataFile);
+        try {
+            in.getChannel().position(entry.offset);
+            return new GZIPInputStream(new BoundedInputStream(in, entry.length));
+        } catch (IOException e) {
+            IOUtils.closeQuietly(in);
+            throw e;
+        }
+    }
+
+    /**
+     * Drop the entry, once replayed or purged.
+     *
+     * @param id entry id
+     * @return false if no such entry
+     */
+    public synchronized boolean remove(long id) {
+        Entry entry = entries.get(id);
+        if (entry == null || closed) {
+            return false;
+        }
+        try {
+            appendLine(entry.segment, LINE_REMOVED + "\t" + id);
+        } catch (IOException e) {
+            logger.warn("Recording removal of dead letter {} failed, it may come back: {}",
+                    id, e.toString());
+        }
+        entries.remove(id);
+        unindex(entry);
+        entry.segment.live--;
+        numRemoved.getAndIncrement();
+        deleteIfEmpty(entry.segment);
+        return true;
+    }
+
+    /**
+     * @param field one of the <code>FIELD_</code> constants
+     * @param value exact value of the field, ignored for {@link #FIELD_ALL}
+     * @param limit most ids returned, 0 or less for all
+     * @return ids of matching entries, oldest first
+     */
+    public synchronized List<Long> select(String field, String value, int limit) {
+        Iterable<Long> ids;
+        if (FIELD_ALL.equals(field)) {
+            ids = entries.keySet();
+        } else {
+            Map<String, Set<Long>> index = indexes.get(field);
+            Validate.notNull(index, "Unknown dead letter field: " + field);
+            Set<Long> matched = index.get(StringUtils.defaultString(value));
+            ids = matched == null ? Collections.<Long> emptySet() : matched;
+        }
+        List<Long> selected = new ArrayList<Long>();
+        for (Long id : ids) {
+            if (limit > 0 && selected.size() >= limit) {
+                break;
+            }
+            selected.add(id);
+        }
+        return selected;
+    }
+
+    /**
+     * @param field one of the <code>FIELD_</code> constants
+     * @param value exact value of the field, ignored for {@link #FIELD_ALL}
+     * @return number of matching entries
+     */
+    public synchronized int count(String field, String value) {
+        if (FIELD_ALL.equals(field)) {
+            return entries.size();
+        }
+        Map<String, Set<Long>> index = indexes.get(field);
+        Validate.notNull(index, "Unknown dead letter field: " + field);
+        Set<Long> matched = index.get(StringUtils.defaultString(value));
+        return matched == null ? 0 : matched.size();
+    }
+
+    /**
+     * @param field one of the <code>FIELD_</code> constants but {@link #FIELD_ALL}
+     * @return number of entries by value of the field
+     */
+    public synchronized Map<String, Integer> countBy(String field) {
+        Map<String, Set<Long>> index = indexes.get(field);
+        Validate.notNull(index, "Unknown dead letter field: " + field);
+        Map<String, Integer> counts = new TreeMap<String, Integer>();
+        for (Map.Entry<String, Set<Long>> item : index.entrySet()) {
+            counts.put(item.getKey(), item.getValue().size());
+        }
+        return counts;
+    }
+
+    /**
+     * @param id entry id
+     * @return envelope, route, failure and when of the entry in a line, or null if
+     *         no such entry
+     */
+    public synchronized String describe(long id) {
+        Entry entry = entries.get(id);
+        if (entry == null) {
+            return null;
+        }
+        return String.format("%d %tFT%<tT %s -> %s via %s, %d bytes, %s: %s", id, entry.time,
+                entry.sender, entry.receiver, entry.route, entry.size, entry.messageId,
+                entry.reason);
+    }
+
+    /**
+     * @param id entry id
+     * @return envelope sender and receiver, or null if no such entry
+     */
+    public synchronized String[] getEnvelope(long id) {
+        Entry entry = entries.get(id);
+        return entry == null ? null : new String[] { entry.sender, entry.receiver };
+    }
+
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        entries.clear();
+        segments.clear();
+        for (Map<String, Set<Long>> index : indexes.values()) {
+            index.clear();
+        }
+        current = null;
+        logger.info("Dead letter store closed in {}", directory.getAbsolutePath());
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Dead letter store is closed");
+        }
+    }
+
+    /**
+     * Append the data as a gzip member, truncated back on failure.
+     */
+    @GuardedBy("this")
+    private void writeData(Entry entry, InputStream data) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(entry.segment.dataFile, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            long start = channel.size();
+            channel.position(start);
+            try {
+                final int level = compressMinSize < 0 ? Deflater.DEFAULT_COMPRESSION
+                        : entry.size >= compressMinSize ? Deflater.BEST_SPEED
+                                : Deflater.NO_COMPRESSION;
+                GZIPOutputStream gzip = new GZIPOutputStream(Channels.newOutputStream(channel),
+                        65536) {
+                    {
+                        def.setLevel(level);
+                    }
+                };
+                IOUtils.copy(data, gzip);
+                gzip.finish();
+                channel.force(false);
+            } catch (IOException e) {
+                channel.truncate(start);
+                throw e;
+            }
+            entry.offset = start;
+            entry.length = channel.size() - start;
+        } finally {
+            IOUtils.closeQuietly(raf);
+        }
+    }
+
+    @GuardedBy("this")
+    private static void appendLine(Segment segment, String line) throws IOException {
+        FileOutputStream out = new FileOutputStream(segment.indexFile, true);
+        try {
+            out.write((line + "\n").getBytes(UTF8));
+            out.getChannel().force(false);
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    private static String entryLine(Entry entry) {
+        return StringUtils.join(new Object[] { LINE_ENTRY, entry.id, entry.offset,
+                entry.length, entry.size, entry.time, entry.messageId, entry.sender,
+                entry.receiver, entry.route, entry.reason }, "\t");
+    }
+
+    /**
+     * Lines cut short by a crash or otherwise malformed are skipped.
+     */
+    @GuardedBy("this")
+    private void readIndex(Segment segment) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(
+                segment.indexFile), UTF8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = StringUtils.splitPreserveAllTokens(line, '\t');
+                try {
+                    if (LINE_ENTRY.equals(fields[0]) && fields.length == ENTRY_FIELD_CNT) {
+                        Entry entry = new Entry(Long.parseLong(fields[1]), segment);
+                        entry.offset = Long.parseLong(fields[2]);
+                        entry.length = Long.parseLong(fields[3]);
+                        entry.size = Long.parseLong(fields[4]);
+                        entry.time = Long.parseLong(fields[5]);
+                        entry.messageId = fields[6];
+                        entry.sender = fields[7];
+                        entry.receiver = fields[8];
+                        entry.route = fields[9];
+                        entry.reason = fields[10];
+                        if (entry.offset + entry.length <= segment.dataFile.length()) {
+                            put(entry);
+                        }
+                        nextId = Math.max(nextId, entry.id + 1);
+                    } else if (LINE_REMOVED.equals(fields[0]) && fields.length == 2) {
+                        Entry entry = entries.remove(Long.parseLong(fields[1]));
+                        if (entry != null) {
+                            unindex(entry);
+                            entry.segment.live--;
+                        }
+                    }
+                } catch (NumberFormatException e) {
+                    logger.warn("Malformed line in {} skipped", segment.indexFile.getName());
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+    }
+
+    @GuardedBy("this")
+    private void put(Entry entry) {
+        entries.put(entry.id, entry);
+        for (String field : INDEXED_FIELDS) {
+            Map<String, Set<Long>> index = indexes.get(field);
+            String value = entry.get(field);
+            Set<Long> ids = index.get(value);
+            if (ids == null) {
+                ids = new LinkedHashSet<Long>();
+                index.put(value, ids);
+            }
+            ids.add(entry.id);
+        }
+        entry.segment.live++;
+    }
+
+    @GuardedBy("this")
+    private void unindex(Entry entry) {
+        for (String field : INDEXED_FIELDS) {
+            Map<String, Set<Long>> index = indexes.get(field);
+            String value = entry.get(field);
+            Set<Long> ids = index.get(value);
+            if (ids != null) {
+                ids.remove(entry.id);
+                if (ids.isEmpty()) {
+                    index.remove(value);
+                }
+            }
+        }
+    }
+
+    @GuardedBy("this")
+    private Segment newSegment(long index) throws IOException {
+        Segment segment = new Segment(directory, index);
+        if (!segment.indexFile.exists() && !segment.indexFile.createNewFile()) {
+            throw new IOException("Creating dead letter index failed: " + segment.indexFile);
+        }
+        segments.put(index, segment);
+        return segment;
+    }
+
+    @GuardedBy("this")
+    private void deleteIfEmpty(Segment segment) {
+        if (segment.live > 0 || segment == current) {
+            return;
+        }
+        segments.remove(segment.index);
+        // Index first, data without an index is never read
+        if (!segment.indexFile.delete() && segment.indexFile.exists()) {
+            logger.warn("Deleting dead letter index {} failed", segment.indexFile);
+            return;
+        }
+        if (!segment.dataFile.delete() && segment.dataFile.exists()) {
+            logger.warn("Deleting dead letter segment {} failed", segment.dataFile);
+        }
+    }
+
+    /**
+     * @return the value on a single line, cut to the length, empty if null
+     */
+    private static String clean(String value, int maxLength) {
+        String cleaned = StringUtils.defaultString(value).replace('\t', ' ').replace('\r', ' ')
+                .replace('\n', ' ');
+        return StringUtils.left(cleaned, maxLength);
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public synchronized int getEntryCnt() {
+        return entries.size();
+    }
+
+    public synchronized int getSegmentCnt() {
+        return segments.size();
+    }
+
+    public long getNumAdded() {
+        return numAdded.get();
+    }
+
+    public long getNumRemoved() {
+        return numRemoved.get();
+    }
+
+    /**
+     * A data file, its index file, and the number of its entries not removed.
+     */
+    private static final class Segment {
+        final long index;
+        final File dataFile;
+        final File indexFile;
+        int live;
+
+        Segment(File directory, long index) {
+            this.index = index;
+            String name = String.format("%s%016d", SEGMENT_FILE_PREFIX, index);
+            this.dataFile = new File(directory, name + DATA_FILE_SUFFIX);
+            this.indexFile = new File(directory, name + INDEX_FILE_SUFFIX);
+        }
+    }
+
+    /**
+     * Where a message is and what is known of it.
+     */
+    private static final class Entry {
+        final long id;
+        final Segment segment;
+        long offset;
+        long length;
+        long size;
+        long time;
+        String messageId;
+        String sender;
+        String receiver;
+        String route;
+        String reason;
+
+        Entry(long id, Segment segment) {
+            this.id = id;
+            this.segment = segment;
+        }
+
+        String get(String field) {
+            if (FIELD_MESSAGE_ID.equals(field)) {
+                return messageId;
+            } else if (FIELD_SENDER.equals(field)) {
+                return sender;
+            } else if (FIELD_ROUTE.equals(field)) {
+                return route;
+            } else if (FIELD_REASON.equals(field)) {
+                return reason;
+            }
+            throw new IllegalArgumentException("Unknown dead letter field: " + field);
+        }
+    }
+
+}
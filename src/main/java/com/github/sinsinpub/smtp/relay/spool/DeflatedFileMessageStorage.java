@@ -0,0 +1,192 @@
+package com.github.sinsinpub.smtp.relay.spool;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.mail.internet.SharedInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.Validate;
+
+/**
+ * Message data kept deflated in a spool file, inflated as a stream on every read,
+ * so that a large text message takes a fraction of the disk and page cache.
+ * <p>
+ * Streams are shared streams as required, a sub-stream inflates the file again
+ * from its start and skips to its own, which costs CPU but no heap.
+ *
+ * @see SpoolOutputStream
+ * @author sin_sin
+ */
+@ThreadSafe
+public class DeflatedFileMessageStorage implements MessageStorage, Serializable {
+
+    /** serialVersionUID */
+    private static final long serialVersionUID = 1L;
+    private static final int BUFFER_SIZE = 65536;
+    /** Headers are parsed a byte at a time, not worth an inflate call each */
+    private static final int READ_BUFFER_SIZE = 8192;
+    private final File file;
+    private final long size;
+
+    /**
+     * @param file deflated spool file, deleted on release
+     * @param size length of the inflated message data
+     */
+    public DeflatedFileMessageStorage(File file, long size) {
+        Validate.notNull(file, "Message file must not be null");
+        this.file = file;
+        this.size = size;
+    }
+
+    @Override
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public InputStream openStream() throws IOException {
+        if (!file.isFile()) {
+            throw new IOException("Spool file not found: " + file);
+        }
+        return new InflatingInputStream(file, 0, size);
+    }
+
+    @Override
+    public void release() {
+        FileUtils.deleteQuietly(file);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return length of the deflated file
+     */
+    public long getStoredSize() {
+        return file.length();
+    }
+
+    /**
+     * Inflates a region of the file, opened at first read.
+     */
+    @NotThreadSafe
+    private static final class InflatingInputStream extends InputStream implements
+            SharedInputStream {
+        private final File file;
+        private final long start;
+        private final long end;
+        private InputStream in;
+        /** Inflated bytes read, from the start of the file */
+        private long position;
+        private boolean closed;
+
+        InflatingInputStream(File file, long start, long end) {
+            this.file = file;
+            this.start = start;
+            this.end = end;
+            this.position = start;
+        }
+
+        private InputStream open() throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (in == null) {
+                // Own inflater for the buffer size, ended on close
+                in = new BufferedInputStream(new InflaterInputStream(new FileInputStream(file),
+                        new Inflater(), BUFFER_SIZE) {
+                    @Override
+                    public void close() throws IOException {
+                        super.close();
+                        inf.end();
+                    }
+                }, READ_BUFFER_SIZE);
+                long skip = start;
+                while (skip > 0) {
+                    long n = in.skip(skip);
+                    if (n <= 0) {
+                        throw new EOFException("Spool file shorter than expected: " + file);
+                    }
+                    skip -= n;
+                }
+            }
+            return in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            int b = open().read();
+            if (b != -1) {
+                position++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= end) {
+                return -1;
+            }
+            int n = open().read(b, off, (int) Math.min(len, end - position));
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0 || position >= end) {
+                return 0;
+            }
+            long skipped = open().skip(Math.min(n, end - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            IOUtils.closeQuietly(in);
+            in = null;
+        }
+
+        @Override
+        public long getPosition() {
+            return position - start;
+        }
+
+        @Override
+        public InputStream newStream(long from, long to) {
+            if (from < 0) {
+                throw new IllegalArgumentException("Negative start position: " + from);
+            }
+            long limit = to == -1 ? end : Math.min(start + to, end);
+            return new InflatingInputStream(file, Math.min(start + from, limit), limit);
+        }
+    }
+
+}
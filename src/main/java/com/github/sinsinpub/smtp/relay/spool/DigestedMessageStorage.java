@@ -0,0 +1,51 @@
+package com.github.sinsinpub.smtp.relay.spool;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Spooled data with its digest taken as it was written, so that the
+ * {@link ContentStore} need not read it back.
+ *
+ * @author sin_sin
+ */
+final class DigestedMessageStorage implements MessageStorage {
+
+    private final MessageStorage storage;
+    private final byte[] digest;
+
+    DigestedMessageStorage(MessageStorage storage, byte[] digest) {
+        this.storage = storage;
+        this.digest = digest;
+    }
+
+    @Override
+    public long getSize() {
+        return storage.getSize();
+    }
+
+    @Override
+    public InputStream openStream() throws IOException {
+        return storage.openStream();
+    }
+
+    @Override
+    public void release() {
+        storage.release();
+    }
+
+    /**
+     * @return the data as spooled
+     */
+    MessageStorage getStorage() {
+        return storage;
+    }
+
+    /**
+     * @return {@link ContentStore#DIGEST_ALGORITHM} digest of the data
+     */
+    byte[] getDigest() {
+        return digest;
+    }
+
+}
@@ -0,0 +1,48 @@
+package com.github.sinsinpub.smtp.relay.spool;
+
+import java.io.InputStream;
+import java.io.Serializable;
+
+import javax.mail.util.SharedByteArrayInputStream;
+
+import org.apache.commons.lang.Validate;
+
+/**
+ * Message data held in a heap byte array, for small messages.
+ *
+ * @author sin_sin
+ */
+public class HeapMessageStorage implements MessageStorage, Serializable {
+
+    /** serialVersionUID */
+    private static final long serialVersionUID = 1L;
+    private final byte[] data;
+
+    public HeapMessageStorage(byte[] data) {
+        Validate.notNull(data, "Message data must not be null");
+        this.data = data;
+    }
+
+    @Override
+    public long getSize() {
+        return data.length;
+    }
+
+    @Override
+    public InputStream openStream() {
+        return new SharedByteArrayInputStream(data);
+    }
+
+    @Override
+    public void release() {
+        // Nothing to do, left for GC
+    }
+
+    /**
+     * @return the backing array itself, not a copy
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+}
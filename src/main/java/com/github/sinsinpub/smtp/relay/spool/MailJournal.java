@@ -0,0 +1,1180 @@
+package com.github.sinsinpub.smtp.relay.spool;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.sinsinpub.smtp.relay.context.MailContext;
+
+/**
+ * Append-only journal of accepted mail, so that mail acknowledged to the client
+ * survives a crash or restart until it has been forwarded.
+ * <p>
+ * Records go into segment files of about the segment size. A message is appended
+ * as an ENQUEUE record, with envelope and data, before the client is told it has
+ * been accepted, and marked by a DONE record once forwarded. A segment is deleted
+ * when all its messages are done, and the older segments its DONE records refer to
+ * are deleted already, so that a DONE record never outlives the ENQUEUE record it
+ * refers to.
+ * <p>
+ * Durability of ENQUEUE records depends on the fsync policy:
+ * <ul>
+ * <li>{@link #FSYNC_MESSAGE}: every append is forced to disk before it returns</li>
+ * <li>{@link #FSYNC_GROUP}: appends wait for a shared force, one writer forcing for
+ * all records written meanwhile, so that concurrent clients share the cost</li>
+ * <li>{@link #FSYNC_NONE}: left to the OS, lost on power failure</li>
+ * </ul>
+ * DONE records are never forced; losing one only means the message is forwarded
+ * again, for at-least-once delivery.
+ * <p>
+ * A message waiting for its next try gets a RETRY record with failed tries, next
+ * attempt time, last error and the recipients still to be tried, so that the ones
+ * delivered already are not sent to again. Only its id, due time and record position are kept
+ * in memory then, its envelope and data are {@link #load(long) loaded} once due, so
+ * that a large backlog of deferred mail costs little heap. Losing a RETRY record
+ * only means the message is tried again sooner.
+ * <p>
+ * A segment with few messages left keeps all of its bytes on disk, and pins newer
+ * segments by their DONE records. {@link #relocate(long) Relocating} copies the
+ * ENQUEUE record of a message left as is to the current segment, followed by its
+ * retry state, so that the old segment can go. A newer copy replaces an older one
+ * on replay, so the segment holding it is pinned by the old one in turn. Messages
+ * handed out and not deferred since are left in place, as their data may still be
+ * read from the old segment file.
+ * <p>
+ * Every record is <code>magic, type, id, payload length, CRC32</code> followed by
+ * the payload, the CRC covering type, id and payload. Reading a segment stops at
+ * the first record not intact, which is the torn tail of a crash. Message data is
+ * only checked in the newest segment, older ones were forced when rolled over, so
+ * that opening a large journal does not read all of it.
+ * <p>
+ * An ENQUEUE record goes into a region reserved at the end of the segment, so that
+ * appends copy message data at the same time. The region is a RESERVED record,
+ * skipped on replay, until the ENQUEUE header replaces it once all data is written.
+ *
+ * @author sin_sin
+ */
+@ThreadSafe
+public class MailJournal {
+
+    public static final String FSYNC_MESSAGE = "message";
+    public static final String FSYNC_GROUP = "group";
+    public static final String FSYNC_NONE = "none";
+    public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+    public static final long DEFAULT_GROUP_COMMIT_MILLIS = 2L;
+    public static final String SEGMENT_FILE_PREFIX = "journal-";
+    public static final String SEGMENT_FILE_SUFFIX = ".log";
+
+    private static final int MAGIC = 0x4d4a524e;
+    private static final byte TYPE_ENQUEUE = 1;
+    private static final byte TYPE_DONE = 2;
+    private static final byte TYPE_RETRY = 3;
+    private static final byte TYPE_RESERVED = 4;
+    /** Longer last errors are cut, in characters */
+    private static final int MAX_ERROR_LENGTH = 512;
+    private static final int HEADER_SIZE = 4 + 1 + 8 + 4 + 4;
+    /** Largest payload of a record other than ENQUEUE, a RETRY with all its fields */
+    private static final int MAX_STATE_RECORD_SIZE = 4 + 8 + 2 * (2 + 0xffff);
+    private static final int COPY_BUFFER_SIZE = 65536;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final static Logger logger = LoggerFactory.getLogger(MailJournal.class);
+
+    private final File directory;
+    private final String fsyncPolicy;
+    private final long segmentSize;
+    private final long groupCommitMillis;
+
+    @GuardedBy("this")
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+    /** Messages not done yet, in the order appended */
+    @GuardedBy("this")
+    private final Map<Long, Entry> liveEntries = new LinkedHashMap<Long, Entry>();
+    @GuardedBy("this")
+    private Segment current;
+    @GuardedBy("this")
+    private long nextId = 1;
+    /** Bytes of records complete since opened, a position in the whole journal */
+    @GuardedBy("this")
+    private long writtenPosition;
+    @GuardedBy("this")
+    private long numAppends;
+    @GuardedBy("this")
+    private long numRelocated;
+    @GuardedBy("this")
+    private long numDeletedBytes;
+    @GuardedBy("this")
+    private boolean closed = true;
+
+    private final Object syncLock = new Object();
+    @GuardedBy("syncLock")
+    private long syncedPosition;
+    @GuardedBy("syncLock")
+    private boolean syncing;
+    @GuardedBy("syncLock")
+    private long numSyncs;
+
+    /**
+     * @param directory where segment files are kept
+     * @param fsyncPolicy {@link #FSYNC_MESSAGE}, {@link #FSYNC_GROUP} or
+     *            {@link #FSYNC_NONE}
+     * @param segmentSize a new segment is started once the current one is larger
+     * @param groupCommitMillis how long a group force waits for more writers to join
+     */
+    public MailJournal(File directory, String fsyncPolicy, long segmentSize,
+            long groupCommitMillis) {
+        Validate.notNull(directory, "Journal directory must not be null");
+        Validate.isTrue(FSYNC_MESSAGE.equals(fsyncPolicy) || FSYNC_GROUP.equals(fsyncPolicy)
+                || FSYNC_NONE.equals(fsyncPolicy), "Unknown fsync policy: " + fsyncPolicy);
+        Validate.isTrue(segmentSize > 0, "Segment size must be positive");
+        this.directory = directory;
+        this.fsyncPolicy = fsyncPolicy;
+        this.segmentSize = segmentSize;
+        this.groupCommitMillis = Math.max(0L, groupCommitMillis);
+    }
+
+    /**
+     * Read all segments, and start a new one for appending.
+     *
+     * @return messages not done yet and not waiting for a retry, in the order
+     *         appended, with their data referring to the segment files
+     * @throws IOException if the directory or a segment can not be read
+     * @see #getDeferredDueTimes()
+     */
+    public synchronized List<MailContext> open() throws IOException {
+        Validate.isTrue(closed, "Mail journal opened already");
+        FileUtils.forceMkdir(directory);
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().startsWith(SEGMENT_FILE_PREFIX)
+                        && file.getName().endsWith(SEGMENT_FILE_SUFFIX);
+            }
+        });
+        if (files == null) {
+            throw new IOException("Journal directory is not readable: " + directory);
+        }
+        Arrays.sort(files);
+        long lastIndex = 0;
+        for (int i = 0; i < files.length; i++) {
+            Segment segment = new Segment(files[i], parseIndex(files[i]));
+            segments.add(segment);
+            lastIndex = Math.max(lastIndex, segment.index);
+            readSegment(segment, i == files.length - 1);
+        }
+        List<MailContext> pending = new ArrayList<MailContext>();
+        for (Map.Entry<Long, Entry> live : liveEntries.entrySet()) {
+            Entry entry = live.getValue();
+            entry.segment.live++;
+            entry.segment.liveBytes += entry.length;
+            if (entry.retrySegment != null) {
+                entry.retrySegment.retries++;
+            }
+            if (entry.nextAttemptTime == 0) {
+                entry.inUse = true;
+                pending.add(readEntry(live.getKey(), entry));
+            }
+        }
+        closed = false;
+        current = newSegment(lastIndex + 1);
+        deleteDoneSegments();
+        logger.info(
+                "Mail journal opened in {} with {} segments, {} messages to replay, {} to retry",
+                new Object[] { directory.getAbsolutePath(), segments.size(), pending.size(),
+                        liveEntries.size() - pending.size() });
+        return pending;
+    }
+
+    /**
+     * @return ids of the messages waiting for a retry, mapped to when their next
+     *         try is due in epoch milliseconds
+     */
+    public synchronized Map<Long, Long> getDeferredDueTimes() {
+        Map<Long, Long> deferred = new LinkedHashMap<Long, Long>();
+        for (Map.Entry<Long, Entry> live : liveEntries.entrySet()) {
+            if (live.getValue().nextAttemptTime != 0) {
+                deferred.put(live.getKey(), live.getValue().nextAttemptTime);
+            }
+        }
+        return deferred;
+    }
+
+    /**
+     * Append the message, and wait until it is durable as of the fsync policy. The
+     * journal id is set to the mail context.
+     *
+     * @param mail received mail
+     * @throws IOException if the message could not be written
+     */
+    public void append(MailContext mail) throws IOException {
+        ByteBuffer envelope = envelopeOf(mail);
+        long dataLength = mail.getMessageStorage().getSize();
+        long payloadLength = envelope.remaining() + dataLength;
+        if (payloadLength > Integer.MAX_VALUE) {
+            throw new IOException("Journal record too large: " + payloadLength);
+        }
+        Segment segment;
+        FileChannel channel;
+        long id;
+        long start;
+        synchronized (this) {
+            checkOpen();
+            segment = current;
+            channel = segment.channel;
+            id = nextId++;
+            start = segment.end;
+            reserve(channel, id, start, payloadLength);
+            segment.end = start + HEADER_SIZE + payloadLength;
+            segment.writers++;
+        }
+        boolean written = false;
+        try {
+            writeEnqueue(channel, id, start, envelope, mail, dataLength);
+            written = true;
+        } finally {
+            if (!written) {
+                synchronized (this) {
+                    released(segment);
+                }
+            }
+        }
+        long position;
+        synchronized (this) {
+            try {
+                checkOpen();
+                if (segment != current && !FSYNC_NONE.equals(fsyncPolicy)) {
+                    // Rolled over meanwhile, forced before the record was complete
+                    channel.force(false);
+                }
+                Entry entry = new Entry(segment, start, HEADER_SIZE + payloadLength);
+                liveEntries.put(id, entry);
+                segment.live++;
+                segment.liveBytes += entry.length;
+                numAppends++;
+                writtenPosition += entry.length;
+                position = writtenPosition;
+                mail.setJournalId(id);
+            } finally {
+                released(segment);
+            }
+            rollIfFull();
+        }
+        if (FSYNC_MESSAGE.equals(fsyncPolicy)) {
+            try {
+                channel.force(false);
+            } catch (ClosedChannelException e) {
+                // Rolled over meanwhile, forced by the roll then
+            }
+            synced(position);
+        } else if (FSYNC_GROUP.equals(fsyncPolicy)) {
+            awaitSynced(position);
+        }
+    }
+
+    /**
+     * Record the retry state of the message, failed tries, next attempt time, last
+     * error and recipients left. Not forced, as losing it only means an earlier try,
+     * to all recipients enqueued.
+     *
+     * @param mail mail context appended before
+     * @throws IOException if the message is not live or could not be written
+     */
+    public synchronized void retry(MailContext mail) throws IOException {
+        checkOpen();
+        long id = mail.getJournalId();
+        Entry entry = liveEntries.get(id);
+        if (entry == null) {
+            throw new IOException("Message " + id + " not in the journal");
+        }
+        String error = StringUtils.left(StringUtils.defaultString(mail.getLastError()),
+                MAX_ERROR_LENGTH);
+        String recipients = mail.getEnvelopeReceiver();
+        Segment retrySegment = current;
+        writeRetry(id, mail.getFailedTries(), mail.getNextAttemptTime(), error, recipients);
+        retried(entry, retrySegment);
+        entry.failedTries = mail.getFailedTries();
+        entry.nextAttemptTime = mail.getNextAttemptTime();
+        entry.lastError = error;
+        entry.recipients = recipients;
+        entry.inUse = false;
+        rollIfFull();
+    }
+
+    /**
+     * Read a message not done yet back from its segment, with its retry state.
+     *
+     * @param id journal id
+     * @return the message with its data referring to the segment file, or null if
+     *         done already
+     * @throws IOException if the segment can not be read
+     */
+    public synchronized MailContext load(long id) throws IOException {
+        checkOpen();
+        Entry entry = liveEntries.get(id);
+        if (entry == null) {
+            return null;
+        }
+        entry.inUse = true;
+        return readEntry(id, entry);
+    }
+
+    /**
+     * Take back a message loaded but not handed out after all, so that it may be
+     * relocated again. Its data must not be read any more.
+     *
+     * @param id journal id
+     */
+    public synchronized void unload(long id) {
+        Entry entry = liveEntries.get(id);
+        if (entry != null) {
+            entry.inUse = false;
+        }
+    }
+
+    /**
+     * Mark the message done, it will not be replayed any more.
+     *
+     * @param mail mail context appended before, others ignored
+     */
+    public synchronized void complete(MailContext mail) {
+        long id = mail.getJournalId();
+        Entry entry = liveEntries.remove(id);
+        if (entry == null || closed) {
+            return;
+        }
+        Segment segment = entry.segment;
+        Segment doneSegment = current;
+        try {
+            writeRecord(TYPE_DONE, id, ByteBuffer.allocate(0));
+            if (doneSegment != segment) {
+                doneSegment.dependsOn.add(segment);
+            }
+            rollIfFull();
+        } catch (IOException e) {
+            logger.warn("Marking message {} done failed, it may be forwarded again: {}", id,
+                    e.toString());
+        }
+        segment.live--;
+        segment.liveBytes -= entry.length;
+        if (entry.retrySegment != null) {
+            entry.retrySegment.retries--;
+        }
+        deleteDoneSegments();
+    }
+
+    /**
+     * Segments worth relocating the messages of, oldest first: closed segments with
+     * a live ratio below the threshold, or the oldest closed segment with messages
+     * left when the whole journal is below it, as that one pins the newer ones.
+     *
+     * @param liveRatioThreshold 0 to 1
+     * @return segment indexes
+     */
+    public synchronized List<Long> getCompactionCandidates(double liveRatioThreshold) {
+        List<Long> candidates = new ArrayList<Long>();
+        if (closed) {
+            return candidates;
+        }
+        Segment oldestLive = null;
+        for (Segment segment : segments) {
+            if (segment == current || (segment.live == 0 && segment.retries == 0)) {
+                continue;
+            }
+            if (oldestLive == null) {
+                oldestLive = segment;
+            }
+            if (segment.size > 0 && (double) segment.liveBytes / segment.size < liveRatioThreshold) {
+                candidates.add(segment.index);
+            }
+        }
+        if (candidates.isEmpty() && oldestLive != null && getLiveRatio() < liveRatioThreshold) {
+            candidates.add(oldestLive.index);
+        }
+        return candidates;
+    }
+
+    /**
+     * Start compacting the segment, it is kept until {@link #endCompaction(long)}
+     * even if all its messages are done or relocated meanwhile.
+     *
+     * @param index segment index
+     * @return ids of the messages in the segment, or with their retry state in it,
+     *         that may be relocated, empty if no such segment
+     */
+    public synchronized List<Long> beginCompaction(long index) {
+        List<Long> ids = new ArrayList<Long>();
+        Segment segment = findSegment(index);
+        if (closed || segment == null || segment == current) {
+            return ids;
+        }
+        segment.compacting = true;
+        for (Map.Entry<Long, Entry> live : liveEntries.entrySet()) {
+            Entry entry = live.getValue();
+            if ((entry.segment == segment || entry.retrySegment == segment) && !entry.inUse) {
+                ids.add(live.getKey());
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Copy the ENQUEUE record of the message as is to the current segment, followed
+     * by its retry state, or only write its retry state again if just that is in a
+     * segment being compacted. Not forced, see {@link #endCompaction(long)}.
+     *
+     * @param id journal id of a message in a segment being compacted
+     * @return bytes written, 0 if the message is done, handed out or not in a
+     *         segment being compacted
+     * @throws IOException if the record could not be copied
+     */
+    public synchronized long relocate(long id) throws IOException {
+        checkOpen();
+        Entry entry = liveEntries.get(id);
+        if (entry == null || entry.inUse) {
+            return 0;
+        }
+        Segment to = current;
+        if (!entry.segment.compacting) {
+            if (entry.retrySegment == null || !entry.retrySegment.compacting) {
+                return 0;
+            }
+            long start = to.end;
+            writeRetry(id, entry.failedTries, entry.nextAttemptTime,
+                    StringUtils.defaultString(entry.lastError), entry.recipients);
+            retried(entry, to);
+            long written = to.end - start;
+            rollIfFull();
+            return written;
+        }
+        Segment from = entry.segment;
+        long start = to.end;
+        RandomAccessFile raf = new RandomAccessFile(from.file, "r");
+        try {
+            FileChannel source = raf.getChannel();
+            source.position(entry.position);
+            long copied = 0;
+            while (copied < entry.length) {
+                long n = to.channel.transferFrom(source, start + copied, entry.length - copied);
+                if (n <= 0) {
+                    throw new IOException("Unexpected end of journal segment " + from.file);
+                }
+                copied += n;
+            }
+        } catch (IOException e) {
+            to.channel.truncate(start);
+            throw e;
+        } finally {
+            IOUtils.closeQuietly(raf);
+        }
+        to.end = start + entry.length;
+        writtenPosition += entry.length;
+        Entry moved = new Entry(to, start, entry.length);
+        moved.failedTries = entry.failedTries;
+        moved.nextAttemptTime = entry.nextAttemptTime;
+        moved.lastError = entry.lastError;
+        moved.recipients = entry.recipients;
+        moved.retrySegment = entry.retrySegment;
+        liveEntries.put(id, moved);
+        to.dependsOn.add(from);
+        to.live++;
+        to.liveBytes += moved.length;
+        from.live--;
+        from.liveBytes -= entry.length;
+        numRelocated++;
+        if (moved.retrySegment != null) {
+            // The relocated copy replaces the state written before it on replay
+            writeRetry(id, moved.failedTries, moved.nextAttemptTime,
+                    StringUtils.defaultString(moved.lastError), moved.recipients);
+            retried(moved, to);
+        }
+        rollIfFull();
+        return entry.length;
+    }
+
+    /**
+     * Force the relocated records, then let the segment go if nothing is left in it.
+     *
+     * @param index segment index passed to {@link #beginCompaction(long)}
+     * @throws IOException if forcing failed, the segment is kept then
+     */
+    public void endCompaction(long index) throws IOException {
+        FileChannel channel;
+        synchronized (this) {
+            checkOpen();
+            channel = current.channel;
+        }
+        if (!FSYNC_NONE.equals(fsyncPolicy)) {
+            try {
+                channel.force(false);
+            } catch (ClosedChannelException e) {
+                // Rolled over meanwhile, forced by the roll then
+            }
+        }
+        synchronized (this) {
+            Segment segment = findSegment(index);
+            if (segment != null) {
+                segment.compacting = false;
+            }
+            deleteDoneSegments();
+        }
+    }
+
+    /**
+     * Force and close the current segment. Messages not done stay for the next
+     * open.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (!FSYNC_NONE.equals(fsyncPolicy)) {
+                current.channel.force(false);
+            }
+        } catch (IOException e) {
+            logger.warn("Forcing journal segment failed: {}", e.toString());
+        }
+        IOUtils.closeQuietly(current.channel);
+        synced(writtenPosition);
+        segments.clear();
+        liveEntries.clear();
+        current = null;
+        logger.info("Mail journal closed in {}", directory.getAbsolutePath());
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Mail journal is closed");
+        }
+    }
+
+    /**
+     * Wait until the journal is forced up to the position. The first writer finding
+     * no force in progress forces for everyone, after giving others a moment to
+     * write their records.
+     */
+    private void awaitSynced(long position) throws IOException {
+        while (true) {
+            synchronized (syncLock) {
+                while (syncing && syncedPosition < position) {
+                    try {
+                        syncLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted waiting for journal force");
+                    }
+                }
+                if (syncedPosition >= position) {
+                    return;
+                }
+                syncing = true;
+            }
+            long forced = 0;
+            try {
+                if (groupCommitMillis > 0) {
+                    Thread.sleep(groupCommitMillis);
+                }
+                FileChannel channel;
+                long target;
+                synchronized (this) {
+                    checkOpen();
+                    channel = current.channel;
+                    target = writtenPosition;
+                }
+                try {
+                    channel.force(false);
+                    forced = target;
+                } catch (ClosedChannelException e) {
+                    // Rolled over meanwhile, forced by the roll then
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for journal force");
+            } finally {
+                synchronized (syncLock) {
+                    syncing = false;
+                    if (forced > syncedPosition) {
+                        syncedPosition = forced;
+                        numSyncs++;
+                    }
+                    syncLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    private void synced(long position) {
+        synchronized (syncLock) {
+            if (position > syncedPosition) {
+                syncedPosition = position;
+                numSyncs++;
+            }
+            syncLock.notifyAll();
+        }
+    }
+
+    /**
+     * Move the latest retry state of the entry to the segment, which keeps it from
+     * being deleted in turn.
+     */
+    private static void retried(Entry entry, Segment segment) {
+        if (entry.retrySegment != null) {
+            entry.retrySegment.retries--;
+        }
+        entry.retrySegment = segment;
+        segment.retries++;
+    }
+
+    @GuardedBy("this")
+    private void writeRetry(long id, int failedTries, long nextAttemptTime, String error,
+            String recipients) throws IOException {
+        byte[] errorBytes = error.getBytes(UTF8);
+        byte[] recipientBytes = recipients == null ? null : recipients.getBytes(UTF8);
+        if (recipientBytes != null && recipientBytes.length > 0xffff) {
+            throw new IOException("Envelope recipients too long to journal: "
+                    + recipientBytes.length + " bytes");
+        }
+        ByteBuffer payload = ByteBuffer.allocate(4 + 8 + 2 + errorBytes.length
+                + (recipientBytes == null ? 0 : 2 + recipientBytes.length));
+        payload.putInt(failedTries).putLong(nextAttemptTime);
+        payload.putShort((short) errorBytes.length).put(errorBytes);
+        if (recipientBytes != null) {
+            payload.putShort((short) recipientBytes.length).put(recipientBytes);
+        }
+        payload.flip();
+        writeRecord(TYPE_RETRY, id, payload);
+    }
+
+    private static ByteBuffer envelopeOf(MailContext mail) throws IOException {
+        byte[] sender = StringUtils.defaultString(mail.getEnvelopeSender()).getBytes(UTF8);
+        byte[] receiver = StringUtils.defaultString(mail.getEnvelopeReceiver()).getBytes(UTF8);
+        if (sender.length > 0xffff || receiver.length > 0xffff) {
+            throw new IOException("Envelope too long to journal: "
+                    + Math.max(sender.length, receiver.length) + " bytes");
+        }
+        ByteBuffer envelope = ByteBuffer.allocate(4 + sender.length + receiver.length);
+        envelope.putShort((short) sender.length).put(sender);
+        envelope.putShort((short) receiver.length).put(receiver);
+        envelope.flip();
+        return envelope;
+    }
+
+    /**
+     * Mark the region as a RESERVED record, and make the file cover it, so that the
+     * records after it are read, and written, whatever becomes of it.
+     */
+    private static void reserve(FileChannel channel, long id, long start, long length)
+            throws IOException {
+        writeFully(channel, header(TYPE_RESERVED, id, length, 0), start);
+        writeFully(channel, ByteBuffer.allocate(1), start + HEADER_SIZE + length - 1);
+    }
+
+    /**
+     * Copy envelope and data into the region reserved, then replace the RESERVED
+     * header by the ENQUEUE one. Not holding the monitor, the region is this
+     * writer's alone.
+     */
+    private static void writeEnqueue(FileChannel channel, long id, long start,
+            ByteBuffer envelope, MailContext mail, long dataLength) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer typeAndId = ByteBuffer.allocate(9);
+        typeAndId.put(TYPE_ENQUEUE).putLong(id);
+        crc.update(typeAndId.array(), 0, 9);
+        crc.update(envelope.array(), envelope.arrayOffset() + envelope.position(),
+                envelope.remaining());
+        long length = envelope.remaining();
+        long position = start + HEADER_SIZE;
+        position += writeFully(channel, envelope, position);
+        long end = position + dataLength;
+        InputStream data = mail.getMessageStorage().openStream();
+        try {
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int n;
+            while ((n = data.read(buffer)) != -1) {
+                if (position + n > end) {
+                    break;
+                }
+                crc.update(buffer, 0, n);
+                position += writeFully(channel, ByteBuffer.wrap(buffer, 0, n), position);
+                length += n;
+            }
+        } finally {
+            IOUtils.closeQuietly(data);
+        }
+        if (position != end) {
+            throw new IOException("Message data not of its size " + dataLength
+                    + " while journaled");
+        }
+        // Header last, the region stays RESERVED if cut short
+        writeFully(channel, header(TYPE_ENQUEUE, id, length, crc.getValue()), start);
+    }
+
+    private static ByteBuffer header(byte type, long id, long length, long crc) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).put(type).putLong(id).putInt((int) length).putInt((int) crc);
+        header.flip();
+        return header;
+    }
+
+    /**
+     * An append is done writing into the segment, close it if rolled over meanwhile
+     * and no other append is left writing.
+     */
+    @GuardedBy("this")
+    private void released(Segment segment) {
+        segment.writers--;
+        if (segment != current && segment.writers == 0 && segment.channel != null) {
+            IOUtils.closeQuietly(segment.channel);
+            segment.channel = null;
+        }
+    }
+
+    /**
+     * Write a record at the end of the current segment. On failure the segment is
+     * truncated back, so that later records are still readable.
+     *
+     * @return journal position after the record
+     */
+    @GuardedBy("this")
+    private long writeRecord(byte type, long id, ByteBuffer payload) throws IOException {
+        FileChannel channel = current.channel;
+        long start = current.end;
+        try {
+            long length = payload.remaining();
+            long crc = crc(type, id, payload);
+            long position = start + HEADER_SIZE;
+            position += writeFully(channel, payload, position);
+            // Header last, a record cut short is not intact
+            writeFully(channel, header(type, id, length, crc), start);
+            current.end = position;
+            writtenPosition += position - start;
+            return writtenPosition;
+        } catch (IOException e) {
+            try {
+                channel.truncate(start);
+            } catch (IOException truncating) {
+                logger.error("Truncating journal segment failed, starting a new one: {}",
+                        truncating.toString());
+                roll();
+            }
+            throw e;
+        }
+    }
+
+    private static int writeFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer, position + written);
+        }
+        return written;
+    }
+
+    @GuardedBy("this")
+    private void rollIfFull() throws IOException {
+        if (current.end >= segmentSize) {
+            roll();
+        }
+    }
+
+    /**
+     * Force and close the current segment, continue in a new one. Appends still
+     * writing into it close it when done.
+     */
+    @GuardedBy("this")
+    private void roll() throws IOException {
+        Segment old = current;
+        try {
+            old.size = old.end;
+            if (!FSYNC_NONE.equals(fsyncPolicy)) {
+                old.channel.force(false);
+            }
+        } finally {
+            if (old.writers == 0) {
+                IOUtils.closeQuietly(old.channel);
+                old.channel = null;
+            }
+        }
+        synced(writtenPosition);
+        current = newSegment(old.index + 1);
+        deleteDoneSegments();
+    }
+
+    @GuardedBy("this")
+    private Segment newSegment(long index) throws IOException {
+        File file = new File(directory, String.format("%s%016d%s", SEGMENT_FILE_PREFIX, index,
+                SEGMENT_FILE_SUFFIX));
+        Segment segment = new Segment(file, index);
+        segment.channel = new RandomAccessFile(file, "rw").getChannel();
+        segments.add(segment);
+        return segment;
+    }
+
+    /**
+     * Delete the segments all messages of which are done, holding no latest retry
+     * state, and not pinned by older segments. Segments only depend on older ones, so a single pass from the oldest
+     * on will do.
+     */
+    @GuardedBy("this")
+    private void deleteDoneSegments() {
+        Iterator<Segment> it = segments.iterator();
+        while (it.hasNext()) {
+            Segment segment = it.next();
+            if (segment == current || segment.live > 0 || segment.retries > 0
+                    || segment.writers > 0 || segment.compacting || segment.isPinned()) {
+                continue;
+            }
+            it.remove();
+            segment.deleted = true;
+            numDeletedBytes += segment.size;
+            if (!segment.file.delete() && segment.file.exists()) {
+                logger.warn("Deleting journal segment {} failed", segment.file);
+            }
+        }
+    }
+
+    @GuardedBy("this")
+    private Segment findSegment(long index) {
+        for (Segment segment : segments) {
+            if (segment.index == index) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param verifyData whether to check the CRC of message data too, records other
+     *            than ENQUEUE are always checked
+     */
+    @GuardedBy("this")
+    private void readSegment(Segment segment, boolean verifyData) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(segment.file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            segment.size = size;
+            long position = 0;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+            while (position + HEADER_SIZE <= size) {
+                header.clear();
+                readFully(channel, header, position);
+                header.flip();
+                int magic = header.getInt();
+                byte type = header.get();
+                long id = header.getLong();
+                long length = header.getInt() & 0xffffffffL;
+                int crcValue = header.getInt();
+                long payloadStart = position + HEADER_SIZE;
+                boolean intact = magic == MAGIC && payloadStart + length <= size;
+                ByteBuffer payload = null;
+                if (intact && type == TYPE_RESERVED) {
+                    // Append not complete, skipped as is
+                    nextId = Math.max(nextId, id + 1);
+                    position = payloadStart + length;
+                    continue;
+                } else if (intact && type != TYPE_ENQUEUE) {
+                    intact = length <= MAX_STATE_RECORD_SIZE;
+                    if (intact) {
+                        payload = ByteBuffer.allocate((int) length);
+                        readFully(channel, payload, payloadStart);
+                        payload.flip();
+                        intact = crcValue == (int) crc(type, id, payload);
+                    }
+                } else if (intact && verifyData) {
+                    intact = crcValue == (int) payloadCrc(channel, type, id, payloadStart,
+                            length, buffer);
+                }
+                if (!intact) {
+                    logger.warn("Journal segment {} not intact at {}, {} bytes ignored",
+                            new Object[] { segment.file.getName(), position, size - position });
+                    break;
+                }
+                nextId = Math.max(nextId, id + 1);
+                if (type == TYPE_ENQUEUE) {
+                    // A relocated copy replaces the older one
+                    Entry older = liveEntries.put(id, new Entry(segment, position, HEADER_SIZE
+                            + length));
+                    if (older != null && older.segment != segment) {
+                        segment.dependsOn.add(older.segment);
+                    }
+                } else if (type == TYPE_DONE) {
+                    Entry done = liveEntries.remove(id);
+                    if (done != null && done.segment != segment) {
+                        segment.dependsOn.add(done.segment);
+                    }
+                } else if (type == TYPE_RETRY) {
+                    Entry entry = liveEntries.get(id);
+                    if (entry != null) {
+                        entry.retrySegment = segment;
+                        entry.failedTries = payload.getInt();
+                        entry.nextAttemptTime = payload.getLong();
+                        entry.lastError = readString(payload);
+                        // Not there in records of older versions
+                        entry.recipients = payload.hasRemaining() ? readString(payload) : null;
+                    }
+                }
+                position = payloadStart + length;
+            }
+        } finally {
+            IOUtils.closeQuietly(raf);
+        }
+    }
+
+    private static long crc(byte type, long id, ByteBuffer payload) {
+        CRC32 crc = new CRC32();
+        ByteBuffer typeAndId = ByteBuffer.allocate(9);
+        typeAndId.put(type).putLong(id);
+        crc.update(typeAndId.array(), 0, 9);
+        crc.update(payload.array(), payload.arrayOffset() + payload.position(),
+                payload.remaining());
+        return crc.getValue();
+    }
+
+    private static long payloadCrc(FileChannel channel, byte type, long id, long start,
+            long length, ByteBuffer buffer) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer typeAndId = ByteBuffer.allocate(9);
+        typeAndId.put(type).putLong(id);
+        crc.update(typeAndId.array(), 0, 9);
+        long position = start;
+        long end = start + length;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            readFully(channel, buffer, position);
+            crc.update(buffer.array(), 0, buffer.limit());
+            position += buffer.limit();
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Read the ENQUEUE record of the entry into a new mail context.
+     */
+    private static MailContext readEntry(long id, Entry entry) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(entry.segment.file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header, entry.position);
+            header.flip();
+            header.position(4 + 1 + 8);
+            long start = entry.position + HEADER_SIZE;
+            long length = header.getInt() & 0xffffffffL;
+            ByteBuffer prefix = ByteBuffer.allocate((int) Math.min(length, 4 + 2 * 0xffff));
+            readFully(channel, prefix, start);
+            prefix.flip();
+            String sender = readString(prefix);
+            String receiver = readString(prefix);
+            if (entry.recipients != null) {
+                // Recipients left replace the ones enqueued
+                receiver = entry.recipients;
+            }
+            long dataStart = start + prefix.position();
+            MailContext mail = new MailContext(sender, MailContext.splitRecipients(receiver),
+                    new MappedFileMessageStorage(entry.segment.file, dataStart, start + length
+                            - dataStart, false));
+            mail.setJournalId(id);
+            mail.setFailedTries(entry.failedTries);
+            mail.setNextAttemptTime(entry.nextAttemptTime);
+            mail.setLastError(entry.lastError);
+            return mail;
+        } finally {
+            IOUtils.closeQuietly(raf);
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xffff];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, offset);
+            if (n < 0) {
+                throw new IOException("Unexpected end of journal segment");
+            }
+            offset += n;
+        }
+    }
+
+    private static long parseIndex(File file) {
+        String name = file.getName();
+        try {
+            return Long.parseLong(name.substring(SEGMENT_FILE_PREFIX.length(), name.length()
+                    - SEGMENT_FILE_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public String getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    public synchronized int getPendingCnt() {
+        return liveEntries.size();
+    }
+
+    public synchronized int getSegmentCnt() {
+        return segments.size();
+    }
+
+    public synchronized long getNumAppends() {
+        return numAppends;
+    }
+
+    /**
+     * @return bytes of the ENQUEUE records of messages not done yet
+     */
+    public synchronized long getLiveBytes() {
+        long live = 0;
+        for (Segment segment : segments) {
+            live += segment.liveBytes;
+        }
+        return live;
+    }
+
+    /**
+     * @return bytes of all segment files
+     */
+    public synchronized long getTotalBytes() {
+        long total = 0;
+        for (Segment segment : segments) {
+            total += segment.size;
+        }
+        if (current != null) {
+            total += current.end - current.size;
+        }
+        return total;
+    }
+
+    /**
+     * @return live bytes to total bytes, 1 if empty
+     */
+    public synchronized double getLiveRatio() {
+        long total = getTotalBytes();
+        return total == 0 ? 1.0 : (double) getLiveBytes() / total;
+    }
+
+    public synchronized long getNumRelocated() {
+        return numRelocated;
+    }
+
+    /**
+     * @return bytes of segment files deleted since opened
+     */
+    public synchronized long getNumDeletedBytes() {
+        return numDeletedBytes;
+    }
+
+    /**
+     * @return number of forces, fewer than appends when group commit works
+     */
+    public long getNumSyncs() {
+        synchronized (syncLock) {
+            return numSyncs;
+        }
+    }
+
+    /**
+     * Where the ENQUEUE record of a message not done yet is, and its retry state.
+     */
+    private static final class Entry {
+        final Segment segment;
+        final long position;
+        final long length;
+        int failedTries;
+        long nextAttemptTime;
+        String lastError;
+        /** Recipients left as of the last RETRY record, null for the ones enqueued */
+        String recipients;
+        /** Where the last RETRY record is, null if none since the ENQUEUE record */
+        Segment retrySegment;
+        /** Handed out by open or load, and not deferred or unloaded since */
+        boolean inUse;
+
+        Entry(Segment segment, long position, long length) {
+            this.segment = segment;
+            this.position = position;
+            this.length = length;
+        }
+    }
+
+    /**
+     * A segment file, its messages not done yet, and the older segments it may not
+     * outlive.
+     */
+    private static final class Segment {
+        final File file;
+        final long index;
+        final Set<Segment> dependsOn = new HashSet<Segment>();
+        FileChannel channel;
+        /** File size, as of the last roll for the current segment */
+        long size;
+        /** End of the records written and regions reserved, where the next one goes */
+        long end;
+        /** Appends still writing into a region reserved */
+        int writers;
+        int live;
+        long liveBytes;
+        /** Messages the last RETRY record of which is in this segment */
+        int retries;
+        boolean compacting;
+        boolean deleted;
+
+        Segment(File file, long index) {
+            this.file = file;
+            this.index = index;
+        }
+
+        boolean isPinned() {
+            Iterator<Segment> it = dependsOn.iterator();
+            while (it.hasNext()) {
+                if (it.next().deleted) {
+                    it.remove();
+                }
+            }
+            return !dependsOn.isEmpty();
+        }
+    }
+
+}
@@ -0,0 +1,210 @@
+package com.github.sinsinpub.smtp.relay.spool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.TooMuchDataException;
+
+/**
+ * Streams received mail data into size-tiered storage with a fixed-size copy
+ * buffer: messages up to the memory threshold stay in heap, larger ones are
+ * spooled into files and read back through memory mapping. Spooled messages
+ * reaching the compression threshold, if any, are deflated instead and inflated as
+ * a stream when read.
+ *
+ * @see HeapMessageStorage
+ * @see MappedFileMessageStorage
+ * @see DeflatedFileMessageStorage
+ * @author sin_sin
+ */
+@ThreadSafe
+public class MailSpooler {
+
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+    public static final int DEFAULT_MEMORY_THRESHOLD = 65536;
+    /** Mapped buffers are addressed by int */
+    public static final long MAX_SPOOLED_SIZE = Integer.MAX_VALUE;
+    public static final String SPOOL_FILE_PREFIX = "mail-";
+    public static final String SPOOL_FILE_SUFFIX = ".eml";
+
+    private final static Logger logger = LoggerFactory.getLogger(MailSpooler.class);
+
+    private final File spoolDirectory;
+    private final int memoryThreshold;
+    private final int bufferSize;
+    private final long maxMessageSize;
+    private final long compressMinSize;
+    private final AtomicLong numCompressed = new AtomicLong();
+    private final AtomicLong numCompressedBytes = new AtomicLong();
+    private final AtomicLong numCompressedStoredBytes = new AtomicLong();
+    private volatile boolean digestEnabled;
+
+    /**
+     * @param spoolDirectory where large messages are spooled, or null to keep all
+     *            messages up to the memory threshold in heap and refuse larger ones
+     * @param memoryThreshold messages larger than this are spooled into files
+     */
+    public MailSpooler(File spoolDirectory, int memoryThreshold) {
+        this(spoolDirectory, memoryThreshold, DEFAULT_BUFFER_SIZE);
+    }
+
+    public MailSpooler(File spoolDirectory, int memoryThreshold, int bufferSize) {
+        this(spoolDirectory, memoryThreshold, bufferSize, MAX_SPOOLED_SIZE);
+    }
+
+    /**
+     * @param spoolDirectory
+     * @param memoryThreshold
+     * @param bufferSize
+     * @param maxMessageSize data larger than this is refused, not positive or over
+     *            {@link #MAX_SPOOLED_SIZE} means the latter
+     */
+    public MailSpooler(File spoolDirectory, int memoryThreshold, int bufferSize,
+            long maxMessageSize) {
+        this(spoolDirectory, memoryThreshold, bufferSize, maxMessageSize, -1);
+    }
+
+    /**
+     * @param spoolDirectory
+     * @param memoryThreshold
+     * @param bufferSize
+     * @param maxMessageSize
+     * @param compressMinSize spooled data at least this large is deflated, negative
+     *            for never
+     */
+    public MailSpooler(File spoolDirectory, int memoryThreshold, int bufferSize,
+            long maxMessageSize, long compressMinSize) {
+        Validate.isTrue(memoryThreshold >= 0, "Memory threshold must not be negative");
+        Validate.isTrue(bufferSize > 0, "Spool buffer size must be positive");
+        this.spoolDirectory = spoolDirectory;
+        this.memoryThreshold = memoryThreshold;
+        this.bufferSize = bufferSize;
+        this.maxMessageSize = maxMessageSize <= 0 || maxMessageSize > MAX_SPOOLED_SIZE
+                ? MAX_SPOOLED_SIZE : maxMessageSize;
+        this.compressMinSize = compressMinSize;
+    }
+
+    /**
+     * Make sure the spool directory exists and is writable.
+     *
+     * @throws IOException if the directory can not be created
+     */
+    public void initialize() throws IOException {
+        if (spoolDirectory == null) {
+            logger.info("No spool directory, mail data held in heap up to {} bytes",
+                    memoryThreshold);
+            return;
+        }
+        FileUtils.forceMkdir(spoolDirectory);
+        if (!spoolDirectory.canWrite()) {
+            throw new IOException("Spool directory is not writable: " + spoolDirectory);
+        }
+        logger.info("Spooling mail data larger than {} bytes into {}", memoryThreshold,
+                spoolDirectory.getAbsolutePath());
+    }
+
+    /**
+     * Read the whole data stream into heap or a new spool file, depending on its
+     * size. Data stored already by a {@link SpooledInputStream} is taken over as is.
+     *
+     * @param data mail data stream, not closed by this method
+     * @return storage of the received data
+     * @throws TooMuchDataException if data is over the max message size, or could be
+     *             neither held nor spooled, thrown as soon as known
+     * @throws IOException
+     */
+    public MessageStorage spool(InputStream data) throws IOException {
+        if (data instanceof SpooledInputStream) {
+            return ((SpooledInputStream) data).detach();
+        }
+        SpoolOutputStream out = newOutputStream();
+        boolean done = false;
+        try {
+            byte[] buffer = new byte[bufferSize];
+            int n;
+            while ((n = data.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            out.close();
+            done = true;
+            return out.getStorage();
+        } finally {
+            if (!done) {
+                out.discard();
+            }
+        }
+    }
+
+    /**
+     * @return new stream for writing mail data piece by piece into tiered storage
+     */
+    public SpoolOutputStream newOutputStream() {
+        return new SpoolOutputStream(spoolDirectory, memoryThreshold, bufferSize,
+                maxMessageSize, compressMinSize, this);
+    }
+
+    void compressed(long size, long storedSize) {
+        numCompressed.getAndIncrement();
+        numCompressedBytes.getAndAdd(size);
+        numCompressedStoredBytes.getAndAdd(storedSize);
+    }
+
+    public File getSpoolDirectory() {
+        return spoolDirectory;
+    }
+
+    public int getMemoryThreshold() {
+        return memoryThreshold;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public long getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
+    public long getCompressMinSize() {
+        return compressMinSize;
+    }
+
+    public boolean isDigestEnabled() {
+        return digestEnabled;
+    }
+
+    /**
+     * @param digestEnabled whether data is hashed as it is spooled, for a
+     *            {@link ContentStore} to intern it without reading it back
+     */
+    public void setDigestEnabled(boolean digestEnabled) {
+        this.digestEnabled = digestEnabled;
+    }
+
+    public long getNumCompressed() {
+        return numCompressed.get();
+    }
+
+    /**
+     * @return size of the data deflated, before deflating
+     */
+    public long getNumCompressedBytes() {
+        return numCompressedBytes.get();
+    }
+
+    /**
+     * @return size of the data deflated, as spooled
+     */
+    public long getNumCompressedStoredBytes() {
+        return numCompressedStoredBytes.get();
+    }
+
+}
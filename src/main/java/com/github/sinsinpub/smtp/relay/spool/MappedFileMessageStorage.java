@@ -0,0 +1,105 @@
+package com.github.sinsinpub.smtp.relay.spool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.Validate;
+
+/**
+ * Message data kept in a spool file, read through a read-only memory mapping so
+ * neither queuing nor sending the message copies it into heap.
+ *
+ * @author sin_sin
+ */
+@ThreadSafe
+public class MappedFileMessageStorage implements MessageStorage, Serializable {
+
+    /** serialVersionUID */
+    private static final long serialVersionUID = 1L;
+    private final File file;
+    private final long offset;
+    private final long size;
+    private final boolean owner;
+    @GuardedBy("this")
+    private transient MappedByteBuffer mapped;
+
+    /**
+     * Refer to the whole file, which will be deleted on release.
+     *
+     * @param file spool file
+     */
+    public MappedFileMessageStorage(File file) {
+        this(file, 0, file.length(), true);
+    }
+
+    /**
+     * Refer to a region of a file.
+     *
+     * @param file file containing message data
+     * @param offset position of the first byte
+     * @param size length of the message data
+     * @param owner whether the file should be deleted on release
+     */
+    public MappedFileMessageStorage(File file, long offset, long size, boolean owner) {
+        Validate.notNull(file, "Message file must not be null");
+        Validate.isTrue(size <= Integer.MAX_VALUE, "Message data too large to be mapped",
+                size);
+        this.file = file;
+        this.offset = offset;
+        this.size = size;
+        this.owner = owner;
+    }
+
+    @Override
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public InputStream openStream() throws IOException {
+        return new ByteBufferInputStream(map().duplicate());
+    }
+
+    /**
+     * Map the file region at first use. The mapping remains valid after the channel
+     * is closed, so no file handle is held while the message waits in queue.
+     */
+    protected synchronized MappedByteBuffer map() throws IOException {
+        if (mapped == null) {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, size);
+            } finally {
+                IOUtils.closeQuietly(raf);
+            }
+        }
+        return mapped;
+    }
+
+    @Override
+    public synchronized void release() {
+        mapped = null;
+        if (owner) {
+            FileUtils.deleteQuietly(file);
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+}
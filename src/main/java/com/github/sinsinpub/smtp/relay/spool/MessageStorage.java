@@ -0,0 +1,33 @@
+package com.github.sinsinpub.smtp.relay.spool;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Where the raw data of a received message is kept until it has been forwarded.
+ *
+ * @author sin_sin
+ */
+public interface MessageStorage {
+
+    /**
+     * @return size of the message data in bytes
+     */
+    long getSize();
+
+    /**
+     * Open a new stream over the whole message data. Streams returned also implement
+     * {@link javax.mail.internet.SharedInputStream}, so a <code>MimeMessage</code>
+     * parsed from them refers to the stored data rather than copying it.
+     *
+     * @return new stream positioned at the first byte
+     * @throws IOException
+     */
+    InputStream openStream() throws IOException;
+
+    /**
+     * Discard the message data. Streams opened before must not be used afterwards.
+     */
+    void release();
+
+}
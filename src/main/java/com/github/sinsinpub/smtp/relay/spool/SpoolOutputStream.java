@@ -0,0 +1,207 @@
+package com.github.sinsinpub.smtp.relay.spool;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.subethamail.smtp.TooMuchDataException;
+
+/**
+ * Collects mail data written in pieces, held in heap until the memory threshold is
+ * crossed and spooled into a file after that. The resulting storage is available
+ * once the stream is closed.
+ * <p>
+ * A spool file is deflated at the fastest level once the data reaches the
+ * compression threshold. If the file was started plain below it, what is written so
+ * far is deflated into a new file once, at most the threshold in bytes.
+ * <p>
+ * When the spooler has digests enabled, the data is hashed as it is written, and
+ * the storage carries the digest on to the {@link ContentStore}.
+ *
+ * @see MailSpooler#newOutputStream()
+ * @author sin_sin
+ */
+@NotThreadSafe
+public class SpoolOutputStream extends OutputStream {
+
+    private final File spoolDirectory;
+    private final int memoryThreshold;
+    private final int bufferSize;
+    private final long maxSize;
+    private final long compressMinSize;
+    private final MailSpooler spooler;
+    private final MessageDigest digest;
+    private ByteArrayOutputStream head;
+    private File file;
+    private OutputStream fileOut;
+    private Deflater deflater;
+    private long size;
+    private MessageStorage storage;
+
+    SpoolOutputStream(File spoolDirectory, int memoryThreshold, int bufferSize, long maxSize,
+            long compressMinSize, MailSpooler spooler) {
+        this.spoolDirectory = spoolDirectory;
+        this.memoryThreshold = memoryThreshold;
+        this.bufferSize = bufferSize;
+        this.maxSize = maxSize;
+        this.compressMinSize = compressMinSize;
+        this.spooler = spooler;
+        this.digest = spooler != null && spooler.isDigestEnabled() ? ContentStore.newDigest()
+                : null;
+        this.head = new ByteArrayOutputStream(Math.min(bufferSize, memoryThreshold));
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (storage != null) {
+            throw new IOException("Spool stream closed already");
+        }
+        // Refuse as soon as the limit is crossed, nothing more is buffered
+        if (size + len > maxSize) {
+            throw new TooMuchDataException("Received mail data larger than " + maxSize
+                    + " bytes");
+        }
+        size += len;
+        if (digest != null) {
+            digest.update(b, off, len);
+        }
+        if (fileOut == null && head.size() + len > memoryThreshold) {
+            overflowToFile();
+        } else if (deflater == null && fileOut != null && isCompressible()) {
+            deflateFile();
+        }
+        if (fileOut != null) {
+            fileOut.write(b, off, len);
+        } else {
+            head.write(b, off, len);
+        }
+    }
+
+    private void overflowToFile() throws IOException {
+        if (spoolDirectory == null) {
+            throw new TooMuchDataException("Received mail data larger than "
+                    + memoryThreshold + " bytes");
+        }
+        file = newSpoolFile();
+        fileOut = isCompressible() ? newDeflaterStream(file) : new BufferedOutputStream(
+                new FileOutputStream(file), bufferSize);
+        head.writeTo(fileOut);
+        head = null;
+    }
+
+    private boolean isCompressible() {
+        return compressMinSize >= 0 && size >= compressMinSize;
+    }
+
+    private File newSpoolFile() throws IOException {
+        return File.createTempFile(MailSpooler.SPOOL_FILE_PREFIX,
+                MailSpooler.SPOOL_FILE_SUFFIX, spoolDirectory);
+    }
+
+    private OutputStream newDeflaterStream(File target) throws IOException {
+        deflater = new Deflater(Deflater.BEST_SPEED);
+        return new DeflaterOutputStream(new FileOutputStream(target), deflater, bufferSize);
+    }
+
+    /**
+     * Continue in a deflated file, with the plain data written so far.
+     */
+    private void deflateFile() throws IOException {
+        fileOut.close();
+        File plain = file;
+        file = newSpoolFile();
+        fileOut = newDeflaterStream(file);
+        FileInputStream in = new FileInputStream(plain);
+        try {
+            IOUtils.copy(in, fileOut);
+        } finally {
+            IOUtils.closeQuietly(in);
+            FileUtils.deleteQuietly(plain);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (fileOut != null) {
+            fileOut.flush();
+        }
+    }
+
+    /**
+     * Finish writing and build the storage of the data written.
+     */
+    @Override
+    public void close() throws IOException {
+        if (storage != null) {
+            return;
+        }
+        if (fileOut != null && deflater != null) {
+            try {
+                fileOut.close();
+            } finally {
+                deflater.end();
+            }
+            DeflatedFileMessageStorage deflated = new DeflatedFileMessageStorage(file, size);
+            storage = deflated;
+            if (spooler != null) {
+                spooler.compressed(size, deflated.getStoredSize());
+            }
+        } else if (fileOut != null) {
+            fileOut.close();
+            storage = new MappedFileMessageStorage(file);
+        } else {
+            storage = new HeapMessageStorage(head.toByteArray());
+            head = null;
+        }
+        if (digest != null) {
+            storage = new DigestedMessageStorage(storage, digest.digest());
+        }
+    }
+
+    /**
+     * Give up the data written, deleting the spool file if any.
+     */
+    public void discard() {
+        if (storage != null) {
+            storage.release();
+        } else if (file != null) {
+            IOUtils.closeQuietly(fileOut);
+            if (deflater != null) {
+                deflater.end();
+            }
+            FileUtils.deleteQuietly(file);
+        }
+        head = null;
+    }
+
+    /**
+     * @return number of bytes written so far
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return storage of the data written, null if not closed yet
+     */
+    public MessageStorage getStorage() {
+        return storage;
+    }
+
+}
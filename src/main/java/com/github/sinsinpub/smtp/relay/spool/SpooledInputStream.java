@@ -0,0 +1,49 @@
+package com.github.sinsinpub.smtp.relay.spool;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * A stream over data stored already, which lets {@link MailSpooler} take over the
+ * storage instead of copying the data once more.
+ *
+ * @author sin_sin
+ */
+@NotThreadSafe
+public class SpooledInputStream extends FilterInputStream {
+
+    private final MessageStorage storage;
+    private boolean detached;
+
+    public SpooledInputStream(MessageStorage storage) throws IOException {
+        super(storage.openStream());
+        this.storage = storage;
+    }
+
+    /**
+     * @return size of the stored data
+     */
+    public long getSize() {
+        return storage.getSize();
+    }
+
+    /**
+     * Take over the storage. The caller becomes responsible for releasing it.
+     *
+     * @return the stored data
+     */
+    public MessageStorage detach() {
+        detached = true;
+        return storage;
+    }
+
+    /**
+     * @return whether the storage has been taken over by someone else
+     */
+    public boolean isDetached() {
+        return detached;
+    }
+
+}
@@ -0,0 +1,686 @@
+package com.github.sinsinpub.smtp.relay.transport;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.IDN;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import com.github.sinsinpub.smtp.relay.utils.SocketUtil;
+
+/**
+ * Stub resolver asking recursive DNS servers by UDP, again by TCP if the answer is
+ * truncated, with answers kept in memory for their TTL.
+ * <p>
+ * Names that do not exist and names without records of the type asked for are kept
+ * too, for the negative TTL of the SOA record of the answer as of RFC 2308. Both
+ * are capped by the configured maximum. Server failures and timeouts are not kept,
+ * each server is asked in turn instead. Servers default to the
+ * <code>nameserver</code> lines of <code>/etc/resolv.conf</code>.
+ *
+ * @author sin_sin
+ */
+@ThreadSafe
+@ManagedResource(objectName = DnsResolver.OBJECT_NAME, description = "A caching resolver of MX and address records.")
+public class DnsResolver implements InitializingBean {
+
+    public static final String OBJECT_NAME = "com.github.sinsinpub.smtp.relay:type=Backend,name=DnsResolver";
+    public static final int TYPE_A = 1;
+    public static final int TYPE_SOA = 6;
+    public static final int TYPE_MX = 15;
+    public static final int TYPE_AAAA = 28;
+    public static final int RCODE_NOERROR = 0;
+    public static final int RCODE_SERVFAIL = 2;
+    public static final int RCODE_NXDOMAIN = 3;
+    public static final int DNS_PORT = 53;
+    public static final String RESOLV_CONF = "/etc/resolv.conf";
+    public static final long DEFAULT_TIMEOUT_MILLIS = 2000L;
+    public static final int DEFAULT_ATTEMPTS = 2;
+    public static final long DEFAULT_MAX_TTL_SECONDS = 3600L;
+    public static final long DEFAULT_MAX_NEGATIVE_TTL_SECONDS = 300L;
+    public static final int DEFAULT_MAX_CACHE_ENTRIES = 10000;
+
+    private static final int CLASS_IN = 1;
+    private static final int FLAG_RESPONSE = 0x8000;
+    private static final int FLAG_TRUNCATED = 0x0200;
+    private static final int FLAG_RECURSION_DESIRED = 0x0100;
+    private static final int HEADER_SIZE = 12;
+    private static final int RECEIVE_BUFFER_SIZE = 4096;
+    /** Compression pointers followed at most in one name, against loops */
+    private static final int MAX_POINTERS = 32;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final static Logger logger = LoggerFactory.getLogger(DnsResolver.class);
+
+    private volatile List<InetSocketAddress> servers;
+    private volatile long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    private volatile int attempts = DEFAULT_ATTEMPTS;
+    private volatile long maxTtlSeconds = DEFAULT_MAX_TTL_SECONDS;
+    private volatile long maxNegativeTtlSeconds = DEFAULT_MAX_NEGATIVE_TTL_SECONDS;
+    private volatile int maxCacheEntries = DEFAULT_MAX_CACHE_ENTRIES;
+    private final ConcurrentMap<String, Answer> cache = new ConcurrentHashMap<String, Answer>();
+    private final SecureRandom random = new SecureRandom();
+
+    private final AtomicLong numLookups = new AtomicLong();
+    private final AtomicLong numCacheHits = new AtomicLong();
+    private final AtomicLong numNegativeHits = new AtomicLong();
+    private final AtomicLong numQueries = new AtomicLong();
+    private final AtomicLong numTimeouts = new AtomicLong();
+    private final AtomicLong numServerFailures = new AtomicLong();
+
+    /**
+     * Default empty constructor.
+     */
+    public DnsResolver() {
+        super();
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (this.servers == null || this.servers.isEmpty()) {
+            this.servers = readResolvConf(new File(RESOLV_CONF));
+            logger.info("DNS servers of {}: {}", RESOLV_CONF, getServersByString());
+        }
+    }
+
+    /**
+     * @param name domain name, a trailing dot or Unicode labels allowed
+     * @param type one of the <code>TYPE_</code> constants
+     * @return answer kept from before if not expired, otherwise of a server
+     * @throws IOException if no server gave an answer
+     * @throws IllegalArgumentException if the name is not a valid domain name
+     */
+    public Answer lookup(String name, int type) throws IOException {
+        String domain = toAsciiName(name);
+        String key = type + " " + domain;
+        numLookups.getAndIncrement();
+        long now = System.currentTimeMillis();
+        Answer cached = cache.get(key);
+        if (cached != null && cached.expiresMillis > now) {
+            numCacheHits.getAndIncrement();
+            if (cached.records.isEmpty()) {
+                numNegativeHits.getAndIncrement();
+            }
+            return cached;
+        }
+        Answer answer = query(domain, type);
+        if (answer.expiresMillis > now) {
+            keep(key, answer, now);
+        } else if (cached != null) {
+            cache.remove(key, cached);
+        }
+        return answer;
+    }
+
+    /**
+     * Drop the answers kept, so that all names are asked for again.
+     */
+    @ManagedOperation(description = "Drop the answers kept")
+    public void clearCache() {
+        cache.clear();
+    }
+
+    /**
+     * Ask each server in turn until one answers, as many rounds as attempts.
+     */
+    protected Answer query(String domain, int type) throws IOException {
+        List<InetSocketAddress> targets = this.servers;
+        if (targets == null || targets.isEmpty()) {
+            throw new IOException("No DNS server configured");
+        }
+        IOException last = null;
+        for (int attempt = 0; attempt < Math.max(1, attempts); attempt++) {
+            for (InetSocketAddress server : targets) {
+                int id = random.nextInt(0x10000);
+                byte[] request = newQuery(id, domain, type);
+                numQueries.getAndIncrement();
+                try {
+                    byte[] response = exchangeUdp(server, request, id);
+                    if ((readUnsignedShort(response, 2) & FLAG_TRUNCATED) != 0) {
+                        response = exchangeTcp(server, request, id);
+                    }
+                    Answer answer = parse(response, domain, type);
+                    if (answer.rcode != RCODE_NOERROR && answer.rcode != RCODE_NXDOMAIN) {
+                        numServerFailures.getAndIncrement();
+                        last = new IOException("DNS server " + server + " answered rcode "
+                                + answer.rcode + " for " + domain);
+                        continue;
+                    }
+                    return answer;
+                } catch (SocketTimeoutException e) {
+                    numTimeouts.getAndIncrement();
+                    last = new IOException("DNS server " + server + " timed out for " + domain,
+                            e);
+                } catch (IOException e) {
+                    numServerFailures.getAndIncrement();
+                    last = e;
+                }
+            }
+        }
+        throw last;
+    }
+
+    private byte[] exchangeUdp(InetSocketAddress server, byte[] request, int id)
+            throws IOException {
+        DatagramSocket socket = new DatagramSocket();
+        try {
+            // Only datagrams of the server are received then
+            socket.connect(server);
+            socket.send(new DatagramPacket(request, request.length));
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            byte[] buffer = new byte[RECEIVE_BUFFER_SIZE];
+            while (true) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("DNS query timed out");
+                }
+                socket.setSoTimeout((int) remaining);
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+                if (packet.getLength() >= HEADER_SIZE && readUnsignedShort(buffer, 0) == id) {
+                    return Arrays.copyOf(buffer, packet.getLength());
+                }
+                // Late answer of an earlier query, or forged, wait on
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    private byte[] exchangeTcp(InetSocketAddress server, byte[] request, int id)
+            throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(server, (int) timeoutMillis);
+            socket.setSoTimeout((int) timeoutMillis);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeShort(request.length);
+            out.write(request);
+            out.flush();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            byte[] response = new byte[in.readUnsignedShort()];
+            in.readFully(response);
+            if (response.length < HEADER_SIZE || readUnsignedShort(response, 0) != id) {
+                throw new IOException("Unexpected DNS response of " + server);
+            }
+            return response;
+        } finally {
+            IOUtils.closeQuietly(socket);
+        }
+    }
+
+    private static byte[] newQuery(int id, String domain, int type) {
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + domain.length() + 2 + 4);
+        out.putShort((short) id).putShort((short) FLAG_RECURSION_DESIRED);
+        out.putShort((short) 1).putShort((short) 0).putShort((short) 0).putShort((short) 0);
+        for (String label : StringUtils.split(domain, '.')) {
+            byte[] bytes = label.getBytes(ASCII);
+            out.put((byte) bytes.length).put(bytes);
+        }
+        out.put((byte) 0).putShort((short) type).putShort((short) CLASS_IN);
+        return Arrays.copyOf(out.array(), out.position());
+    }
+
+    /**
+     * Records of the type asked for in the answer section, following any CNAME the
+     * server has followed. The TTL is the least of the answer section, or for a
+     * negative answer the SOA one of the authority section.
+     */
+    private Answer parse(byte[] response, String domain, int type) throws IOException {
+        try {
+            ByteBuffer in = ByteBuffer.wrap(response);
+            in.getShort();
+            int flags = in.getShort() & 0xffff;
+            if ((flags & FLAG_RESPONSE) == 0) {
+                throw new IOException("DNS query echoed instead of answered");
+            }
+            int rcode = flags & 0x0f;
+            int questions = in.getShort() & 0xffff;
+            int answers = in.getShort() & 0xffff;
+            int authorities = in.getShort() & 0xffff;
+            in.getShort();
+            for (int i = 0; i < questions; i++) {
+                String asked = readName(in);
+                in.getInt();
+                if (!asked.equalsIgnoreCase(domain)) {
+                    throw new IOException("DNS answer for " + asked + " instead of " + domain);
+                }
+            }
+            List<Record> records = new ArrayList<Record>(answers);
+            long ttl = maxTtlSeconds;
+            for (int i = 0; i < answers; i++) {
+                readName(in);
+                int recordType = in.getShort() & 0xffff;
+                int recordClass = in.getShort() & 0xffff;
+                long recordTtl = readTtl(in);
+                int end = (in.getShort() & 0xffff) + in.position();
+                if (recordClass == CLASS_IN) {
+                    ttl = Math.min(ttl, recordTtl);
+                    if (recordType == type) {
+                        records.add(readRecord(in, type, recordTtl, end));
+                    }
+                }
+                in.position(end);
+            }
+            if (records.isEmpty()) {
+                ttl = maxNegativeTtlSeconds;
+                for (int i = 0; i < authorities; i++) {
+                    readName(in);
+                    int recordType = in.getShort() & 0xffff;
+                    in.getShort();
+                    long recordTtl = readTtl(in);
+                    int end = (in.getShort() & 0xffff) + in.position();
+                    if (recordType == TYPE_SOA) {
+                        // Serial, refresh, retry and expire before the minimum
+                        readName(in);
+                        readName(in);
+                        in.position(in.position() + 16);
+                        ttl = Math.min(ttl, Math.min(recordTtl, readTtl(in)));
+                    }
+                    in.position(end);
+                }
+            }
+            return new Answer(rcode, records, System.currentTimeMillis() + ttl * 1000L);
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed DNS answer for " + domain + ": " + e.toString());
+        }
+    }
+
+    private static Record readRecord(ByteBuffer in, int type, long ttl, int end)
+            throws IOException {
+        if (type == TYPE_MX) {
+            int preference = in.getShort() & 0xffff;
+            return new Record(type, ttl, preference, readName(in), null);
+        }
+        byte[] address = new byte[end - in.position()];
+        in.get(address);
+        return new Record(type, ttl, 0, null, InetAddress.getByAddress(address));
+    }
+
+    /**
+     * TTL with the top bit set is taken as 0, as of RFC 2181.
+     */
+    private static long readTtl(ByteBuffer in) {
+        int ttl = in.getInt();
+        return ttl < 0 ? 0 : ttl;
+    }
+
+    /**
+     * Read a name at the position, following compression pointers, leaving the
+     * position after the name as written there.
+     */
+    private static String readName(ByteBuffer in) throws IOException {
+        byte[] data = in.array();
+        StringBuilder name = new StringBuilder();
+        int position = in.position();
+        int after = -1;
+        int pointers = 0;
+        while (true) {
+            int length = data[position] & 0xff;
+            if ((length & 0xc0) == 0xc0) {
+                if (++pointers > MAX_POINTERS) {
+                    throw new IOException("DNS name compression loop");
+                }
+                if (after < 0) {
+                    after = position + 2;
+                }
+                position = (length & 0x3f) << 8 | data[position + 1] & 0xff;
+                continue;
+            }
+            position++;
+            if (length == 0) {
+                break;
+            }
+            if (name.length() > 0) {
+                name.append('.');
+            }
+            name.append(new String(data, position, length, ASCII));
+            position += length;
+        }
+        in.position(after < 0 ? position : after);
+        return name.toString();
+    }
+
+    private static int readUnsignedShort(byte[] data, int offset) {
+        return (data[offset] & 0xff) << 8 | data[offset + 1] & 0xff;
+    }
+
+    /**
+     * @return name of ASCII labels, lower case, without the trailing dot
+     * @throws IllegalArgumentException if not a valid domain name
+     */
+    static String toAsciiName(String name) {
+        Validate.notEmpty(name, "Domain name must not be empty");
+        String ascii = IDN.toASCII(StringUtils.removeEnd(name.trim(), "."))
+                .toLowerCase(Locale.ENGLISH);
+        Validate.isTrue(ascii.length() > 0 && ascii.length() <= 253, "Invalid domain name: "
+                + name);
+        for (String label : StringUtils.split(ascii, '.')) {
+            Validate.isTrue(label.length() <= 63, "Invalid domain name: " + name);
+        }
+        Validate.isTrue(!ascii.startsWith(".") && !ascii.contains(".."), "Invalid domain name: "
+                + name);
+        return ascii;
+    }
+
+    private void keep(String key, Answer answer, long now) {
+        if (cache.size() >= maxCacheEntries) {
+            for (Iterator<Answer> it = cache.values().iterator(); it.hasNext();) {
+                if (it.next().expiresMillis <= now) {
+                    it.remove();
+                }
+            }
+            // Still full of live answers, make room at random
+            for (Iterator<Answer> it = cache.values().iterator(); it.hasNext()
+                    && cache.size() >= maxCacheEntries;) {
+                it.next();
+                it.remove();
+            }
+        }
+        cache.put(key, answer);
+    }
+
+    /**
+     * @return addresses of the <code>nameserver</code> lines, the local host if none
+     */
+    static List<InetSocketAddress> readResolvConf(File file) {
+        List<InetSocketAddress> found = new ArrayList<InetSocketAddress>();
+        if (file.isFile()) {
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                        ASCII));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = StringUtils.split(line);
+                    if (fields != null && fields.length >= 2 && "nameserver".equals(fields[0])) {
+                        // Zone of link local addresses left out
+                        found.add(new InetSocketAddress(InetAddress.getByName(StringUtils
+                                .substringBefore(fields[1], "%")), DNS_PORT));
+                    }
+                }
+            } catch (IOException e) {
+                logger.warn("Reading {} failed: {}", file, e.toString());
+            } finally {
+                IOUtils.closeQuietly(reader);
+            }
+        }
+        if (found.isEmpty()) {
+            found.add(new InetSocketAddress(InetAddress.getLoopbackAddress(), DNS_PORT));
+        }
+        return found;
+    }
+
+    public List<InetSocketAddress> getServers() {
+        return servers;
+    }
+
+    public void setServers(List<InetSocketAddress> servers) {
+        this.servers = servers == null ? null : Collections
+                .unmodifiableList(new ArrayList<InetSocketAddress>(servers));
+    }
+
+    @ManagedAttribute
+    public String getServersByString() {
+        List<InetSocketAddress> targets = this.servers;
+        if (targets == null) {
+            return null;
+        }
+        List<String> displayable = new ArrayList<String>(targets.size());
+        for (InetSocketAddress server : targets) {
+            displayable.add(SocketUtil.toDisplayableString(server));
+        }
+        return StringUtils.join(displayable, ",");
+    }
+
+    /**
+     * @param servers <code>host:port</code> or <code>[ipv6]:port</code> joined by
+     *            commas, port 53 if not given, blank for the ones of
+     *            <code>/etc/resolv.conf</code>
+     */
+    @ManagedAttribute
+    public void setServersByString(String servers) {
+        if (StringUtils.isBlank(servers)) {
+            this.servers = null;
+            return;
+        }
+        List<InetSocketAddress> parsed = new ArrayList<InetSocketAddress>();
+        for (String server : StringUtils.split(servers, ',')) {
+            if (StringUtils.isNotBlank(server)) {
+                parsed.add(SocketUtil.parseEndpoint(server.trim(), DNS_PORT));
+            }
+        }
+        setServers(parsed);
+    }
+
+    @ManagedAttribute
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * @param timeoutMillis wait for one server to answer one query at most
+     */
+    @ManagedAttribute
+    public void setTimeoutMillis(long timeoutMillis) {
+        Validate.isTrue(timeoutMillis > 0, "Timeout must be positive");
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @ManagedAttribute
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * @param attempts rounds over all servers before giving up
+     */
+    @ManagedAttribute
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    @ManagedAttribute
+    public long getMaxTtlSeconds() {
+        return maxTtlSeconds;
+    }
+
+    @ManagedAttribute
+    public void setMaxTtlSeconds(long maxTtlSeconds) {
+        this.maxTtlSeconds = maxTtlSeconds;
+    }
+
+    @ManagedAttribute
+    public long getMaxNegativeTtlSeconds() {
+        return maxNegativeTtlSeconds;
+    }
+
+    /**
+     * @param maxNegativeTtlSeconds keep answers without records this long at most,
+     *            and this long if there is no SOA record in them, 0 for not at all
+     */
+    @ManagedAttribute
+    public void setMaxNegativeTtlSeconds(long maxNegativeTtlSeconds) {
+        this.maxNegativeTtlSeconds = maxNegativeTtlSeconds;
+    }
+
+    @ManagedAttribute
+    public int getMaxCacheEntries() {
+        return maxCacheEntries;
+    }
+
+    @ManagedAttribute
+    public void setMaxCacheEntries(int maxCacheEntries) {
+        Validate.isTrue(maxCacheEntries > 0, "Max cache entries must be positive");
+        this.maxCacheEntries = maxCacheEntries;
+    }
+
+    @ManagedAttribute
+    public int getCacheSize() {
+        return cache.size();
+    }
+
+    @ManagedAttribute
+    public long getNumLookups() {
+        return numLookups.get();
+    }
+
+    @ManagedAttribute
+    public long getNumCacheHits() {
+        return numCacheHits.get();
+    }
+
+    /**
+     * @return cache hits of answers without records
+     */
+    @ManagedAttribute
+    public long getNumNegativeHits() {
+        return numNegativeHits.get();
+    }
+
+    /**
+     * @return queries sent to servers, including the ones of retries
+     */
+    @ManagedAttribute
+    public long getNumQueries() {
+        return numQueries.get();
+    }
+
+    @ManagedAttribute
+    public long getNumTimeouts() {
+        return numTimeouts.get();
+    }
+
+    @ManagedAttribute
+    public long getNumServerFailures() {
+        return numServerFailures.get();
+    }
+
+    /**
+     * Records of one name and type as answered, with the time until which they may be
+     * used.
+     */
+    @Immutable
+    public static final class Answer {
+        private final int rcode;
+        private final List<Record> records;
+        private final long expiresMillis;
+
+        Answer(int rcode, List<Record> records, long expiresMillis) {
+            this.rcode = rcode;
+            this.records = Collections.unmodifiableList(records);
+            this.expiresMillis = expiresMillis;
+        }
+
+        public int getRcode() {
+            return rcode;
+        }
+
+        /**
+         * @return true if the name does not exist at all
+         */
+        public boolean isNameError() {
+            return rcode == RCODE_NXDOMAIN;
+        }
+
+        /**
+         * @return records of the type asked for, empty if none
+         */
+        public List<Record> getRecords() {
+            return records;
+        }
+
+        public long getExpiresMillis() {
+            return expiresMillis;
+        }
+    }
+
+    /**
+     * MX or address record.
+     */
+    @Immutable
+    public static final class Record {
+        private final int type;
+        private final long ttl;
+        private final int preference;
+        private final String host;
+        private final InetAddress address;
+
+        Record(int type, long ttl, int preference, String host, InetAddress address) {
+            this.type = type;
+            this.ttl = ttl;
+            this.preference = preference;
+            this.host = host;
+            this.address = address;
+        }
+
+        public int getType() {
+            return type;
+        }
+
+        public long getTtl() {
+            return ttl;
+        }
+
+        /**
+         * @return preference of an MX record, lower first
+         */
+        public int getPreference() {
+            return preference;
+        }
+
+        /**
+         * @return exchange host of an MX record, empty for the null MX of RFC 7505
+         */
+        public String getHost() {
+            return host;
+        }
+
+        /**
+         * @return address of an A or AAAA record
+         */
+        public InetAddress getAddress() {
+            return address;
+        }
+
+        @Override
+        public String toString() {
+            return type == TYPE_MX ? preference + " " + host : String.valueOf(address);
+        }
+    }
+
+}
@@ -0,0 +1,385 @@
+package com.github.sinsinpub.smtp.relay.transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.annotation.concurrent.ThreadSafe;
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+import com.github.sinsinpub.smtp.relay.transport.DnsResolver.Answer;
+import com.github.sinsinpub.smtp.relay.transport.DnsResolver.Record;
+import com.sun.mail.smtp.SMTPSendFailedException;
+
+/**
+ * Route delivering straight to the MX hosts of the recipient domains, instead of
+ * through a smarthost. Bound to a delivering rule of
+ * {@link com.github.sinsinpub.smtp.relay.core.impl.FromAddressRelayForwarderFactory}
+ * by its bean name, in place of a session.
+ * <p>
+ * Recipients are grouped by domain, one transaction each. MX hosts are tried in
+ * order of preference, the ones of equal preference in random order, each at its
+ * addresses in turn, until one takes the mail or rejects recipients for good, by
+ * a 5xx reply to RCPT TO, or to MAIL FROM or the message data for all of them. A
+ * domain without MX records is its own host, and a domain that does not exist or
+ * has the null MX of RFC 7505 rejects its recipients for good. An address literal
+ * such as <code>[192.0.2.1]</code> is the host itself.
+ * <p>
+ * The session gives the SMTP properties of the connections, such as timeouts,
+ * <code>mail.smtp.localhost</code> and <code>mail.smtp.starttls.enable</code>; its
+ * host and port are not used. Connections are made to the addresses resolved, so
+ * that the JVM resolver and its cache are left out. They are not kept by the
+ * {@link TransportPool}, which connects to the host of the session, and closed once
+ * the domain is done.
+ *
+ * @author sin_sin
+ */
+@ThreadSafe
+public class MxRoute implements InitializingBean {
+
+    public static final int SMTP_PORT = 25;
+    public static final int DEFAULT_MAX_ADDRESSES = 10;
+
+    private final static Logger logger = LoggerFactory.getLogger(MxRoute.class);
+
+    private volatile Session session;
+    private volatile DnsResolver resolver;
+    private volatile int port = SMTP_PORT;
+    private volatile int maxAddresses = DEFAULT_MAX_ADDRESSES;
+    private volatile boolean ipv6Enabled;
+    private final Random random = new Random();
+
+    /**
+     * Default empty constructor.
+     */
+    public MxRoute() {
+        super();
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        Validate.notNull(session, "Mail session must not be null");
+        Validate.notNull(resolver, "DNS resolver must not be null");
+    }
+
+    /**
+     * Send to each domain of the recipients in turn.
+     *
+     * @param message saved before sending
+     * @param recipients envelope recipients
+     * @throws SendFailedException with the recipients delivered, rejected and left,
+     *             if not delivered to all
+     * @throws MessagingException
+     */
+    public void send(Message message, Address[] recipients) throws MessagingException {
+        Validate.notEmpty(recipients, "Recipients must not be empty");
+        message.saveChanges();
+        Map<String, List<Address>> domains = new LinkedHashMap<String, List<Address>>();
+        for (Address recipient : recipients) {
+            String domain = StringUtils.substringAfterLast(toString(recipient), "@")
+                    .toLowerCase();
+            List<Address> group = domains.get(domain);
+            if (group == null) {
+                group = new ArrayList<Address>();
+                domains.put(domain, group);
+            }
+            group.add(recipient);
+        }
+        Delivery delivery = new Delivery();
+        for (Map.Entry<String, List<Address>> entry : domains.entrySet()) {
+            sendToDomain(message, entry.getKey(), entry.getValue(), delivery);
+        }
+        if (!delivery.rejected.isEmpty() || !delivery.unsent.isEmpty()) {
+            throw new SendFailedException(delivery.unsent.isEmpty() ? "Recipients rejected"
+                    : "Not delivered to all domains", delivery.cause, toArray(delivery.sent),
+                    toArray(delivery.unsent), toArray(delivery.rejected));
+        }
+    }
+
+    private void sendToDomain(Message message, String domain, List<Address> group,
+            Delivery delivery) {
+        List<InetAddress> targets;
+        try {
+            targets = lookupTargets(domain);
+        } catch (IOException e) {
+            logger.warn("Looking up MX hosts of {} failed: {}", domain, e.toString());
+            delivery.fail(group, null, e);
+            return;
+        } catch (IllegalArgumentException e) {
+            delivery.fail(null, group, new MessagingException(e.getMessage()));
+            return;
+        }
+        if (targets == null) {
+            delivery.fail(null, group, new MessagingException("Domain " + domain
+                    + " does not exist or accepts no mail"));
+            return;
+        }
+        if (targets.isEmpty()) {
+            delivery.fail(group, null, new MessagingException("No address of the MX hosts of "
+                    + domain));
+            return;
+        }
+        List<Address> left = group;
+        for (InetAddress target : targets) {
+            try {
+                left = sendToHost(message, target, left, delivery);
+            } catch (MessagingException e) {
+                logger.warn("Sending to {} for {} failed: {}", new Object[] {
+                        target.getHostAddress(), domain, e.toString() });
+                delivery.cause = e;
+            }
+            if (left.isEmpty()) {
+                return;
+            }
+        }
+        delivery.fail(left, null, null);
+    }
+
+    /**
+     * @return recipients left to the next host, none if delivered or rejected
+     */
+    private List<Address> sendToHost(Message message, InetAddress target, List<Address> group,
+            Delivery delivery) throws MessagingException {
+        Transport transport = session.getTransport("smtp");
+        transport.connect(target.getHostAddress(), port, null, null);
+        try {
+            transport.sendMessage(message, toArray(group));
+            delivery.sent.addAll(group);
+            logger.info("Delivered to {} by MX {}", group, target.getHostAddress());
+            return Collections.emptyList();
+        } catch (SendFailedException e) {
+            delivery.cause = e;
+            addAll(delivery.sent, e.getValidSentAddresses());
+            addAll(delivery.rejected, e.getInvalidAddresses());
+            if (isPermanent(e)) {
+                // Sender or message refused for good, by any other host as well
+                addAll(delivery.rejected, e.getValidUnsentAddresses());
+                return Collections.emptyList();
+            }
+            List<Address> left = new ArrayList<Address>();
+            addAll(left, e.getValidUnsentAddresses());
+            return left;
+        } finally {
+            try {
+                transport.close();
+            } catch (MessagingException e) {
+                logger.debug("Closing connection to {} failed: {}", target, e.toString());
+            }
+        }
+    }
+
+    /**
+     * @return whether MAIL FROM or the message data got a 5xx reply
+     */
+    private static boolean isPermanent(SendFailedException e) {
+        return e instanceof SMTPSendFailedException
+                && ((SMTPSendFailedException) e).getReturnCode() >= 500;
+    }
+
+    /**
+     * @param domain
+     * @return addresses to try in turn, null if the domain accepts no mail, empty if
+     *         none of its hosts has an address
+     * @throws IOException if DNS gave no answer
+     */
+    public List<InetAddress> lookupTargets(String domain) throws IOException {
+        if (domain.startsWith("[") && domain.endsWith("]")) {
+            return Collections.singletonList(toLiteralAddress(domain));
+        }
+        List<String> hosts = lookupHosts(domain);
+        if (hosts == null) {
+            return null;
+        }
+        List<InetAddress> targets = new ArrayList<InetAddress>();
+        IOException failure = null;
+        for (String host : hosts) {
+            try {
+                addAddresses(targets, host, DnsResolver.TYPE_A);
+                if (ipv6Enabled) {
+                    addAddresses(targets, host, DnsResolver.TYPE_AAAA);
+                }
+            } catch (IOException e) {
+                // Other hosts may do
+                failure = e;
+            } catch (IllegalArgumentException e) {
+                logger.warn("MX host {} of {} skipped: {}", new Object[] { host, domain,
+                        e.getMessage() });
+            }
+            if (targets.size() >= maxAddresses) {
+                return targets.subList(0, maxAddresses);
+            }
+        }
+        if (targets.isEmpty() && failure != null) {
+            throw failure;
+        }
+        return targets;
+    }
+
+    /**
+     * @param domain
+     * @return MX hosts by preference, the ones of equal preference shuffled, or the
+     *         domain itself if it has none; null if the domain accepts no mail
+     * @throws IOException if DNS gave no answer
+     */
+    public List<String> lookupHosts(String domain) throws IOException {
+        Answer answer = resolver.lookup(domain, DnsResolver.TYPE_MX);
+        if (answer.isNameError()) {
+            return null;
+        }
+        List<Record> records = new ArrayList<Record>(answer.getRecords());
+        if (records.isEmpty()) {
+            // Implicit MX, as of RFC 5321 section 5.1
+            return Collections.singletonList(domain);
+        }
+        if (records.size() == 1 && records.get(0).getHost().length() == 0) {
+            return null;
+        }
+        Collections.shuffle(records, random);
+        Collections.sort(records, new Comparator<Record>() {
+            @Override
+            public int compare(Record a, Record b) {
+                return a.getPreference() < b.getPreference() ? -1
+                        : a.getPreference() == b.getPreference() ? 0 : 1;
+            }
+        });
+        List<String> hosts = new ArrayList<String>(records.size());
+        for (Record record : records) {
+            if (record.getHost().length() > 0 && !hosts.contains(record.getHost())) {
+                hosts.add(record.getHost());
+            }
+        }
+        return hosts;
+    }
+
+    /**
+     * @throws IllegalArgumentException if not an IPv4 or IPv6 address literal
+     */
+    private static InetAddress toLiteralAddress(String domain) {
+        String literal = StringUtils.removeStartIgnoreCase(
+                domain.substring(1, domain.length() - 1), "IPv6:");
+        Validate.isTrue(literal.length() > 0 && StringUtils.containsOnly(literal.toLowerCase(),
+                "0123456789abcdef.:"), "Invalid address literal: " + domain);
+        try {
+            // Not looked up, as it is an address already
+            return InetAddress.getByName(literal);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid address literal: " + domain);
+        }
+    }
+
+    private void addAddresses(List<InetAddress> targets, String host, int type)
+            throws IOException {
+        for (Record record : resolver.lookup(host, type).getRecords()) {
+            if (!targets.contains(record.getAddress())) {
+                targets.add(record.getAddress());
+            }
+        }
+    }
+
+    private static String toString(Address address) {
+        return address instanceof InternetAddress ? ((InternetAddress) address).getAddress()
+                : address.toString();
+    }
+
+    private static void addAll(List<Address> to, Address[] addresses) {
+        if (addresses != null) {
+            Collections.addAll(to, addresses);
+        }
+    }
+
+    private static Address[] toArray(List<Address> addresses) {
+        return addresses.toArray(new Address[addresses.size()]);
+    }
+
+    /**
+     * Outcome by recipient of one message over all domains.
+     */
+    private static final class Delivery {
+        final List<Address> sent = new ArrayList<Address>();
+        final List<Address> unsent = new ArrayList<Address>();
+        final List<Address> rejected = new ArrayList<Address>();
+        Exception cause;
+
+        void fail(List<Address> temporary, List<Address> permanent, Exception e) {
+            if (temporary != null) {
+                unsent.addAll(temporary);
+            }
+            if (permanent != null) {
+                rejected.addAll(permanent);
+            }
+            if (e != null) {
+                cause = e;
+            }
+        }
+    }
+
+    public Session getSession() {
+        return session;
+    }
+
+    /**
+     * @param session SMTP properties of the connections to MX hosts
+     */
+    public void setSession(Session session) {
+        this.session = session;
+    }
+
+    public DnsResolver getResolver() {
+        return resolver;
+    }
+
+    public void setResolver(DnsResolver resolver) {
+        this.resolver = resolver;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public int getMaxAddresses() {
+        return maxAddresses;
+    }
+
+    /**
+     * @param maxAddresses addresses tried for one domain at most, over all its hosts
+     */
+    public void setMaxAddresses(int maxAddresses) {
+        Validate.isTrue(maxAddresses > 0, "Max addresses must be positive");
+        this.maxAddresses = maxAddresses;
+    }
+
+    public boolean isIpv6Enabled() {
+        return ipv6Enabled;
+    }
+
+    /**
+     * @param ipv6Enabled whether AAAA addresses are tried too, after the A ones of
+     *            each host
+     */
+    public void setIpv6Enabled(boolean ipv6Enabled) {
+        this.ipv6Enabled = ipv6Enabled;
+    }
+
+}
@@ -0,0 +1,32 @@
+package com.github.sinsinpub.smtp.relay.transport;
+
+import com.github.sinsinpub.smtp.relay.context.MailContext;
+
+/**
+ * Takes over a task whose try failed until its next try is due.
+ *
+ * @author sin_sin
+ */
+public interface RetryHandler {
+
+    /**
+     * What became of a deferred task.
+     */
+    enum Result {
+        /** The task itself is run again once due */
+        SCHEDULED,
+        /** Retry state is kept elsewhere, the task and its mail data may be dropped */
+        HANDED_OVER,
+        /** Not taken, being stopped */
+        REFUSED
+    }
+
+    /**
+     * @param task failed task
+     * @param mail its mail, with failed tries, next attempt time and last error set
+     * @param delayMillis from now on until the next try
+     * @return what became of the task
+     */
+    Result defer(Runnable task, MailContext mail, long delayMillis);
+
+}
@@ -0,0 +1,225 @@
+package com.github.sinsinpub.smtp.relay.transport;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.commons.lang.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.sinsinpub.smtp.relay.context.MailContext;
+
+/**
+ * Holds failed tasks until their next try is due, then hands them to the executor
+ * again, so that no worker thread sleeps through a backend outage.
+ * <p>
+ * Tasks wait in a delay queue taken by a single scheduler thread. A due task the
+ * executor has no room for is put back for a short while. Scheduling and handing
+ * back on {@link #shutdownNow()} hold the scheduler monitor, so that no task falls
+ * between them.
+ *
+ * @author sin_sin
+ */
+@ThreadSafe
+public class RetryScheduler implements RetryHandler {
+
+    /** Wait before offering a due task again to a full executor */
+    public static final long REJECTED_RETRY_DELAY_MILLIS = 1000L;
+
+    private final static Logger logger = LoggerFactory.getLogger(RetryScheduler.class);
+
+    private final Executor executor;
+    private final DelayQueue<ScheduledTask> queue = new DelayQueue<ScheduledTask>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong numScheduled = new AtomicLong();
+    private final AtomicLong numRejected = new AtomicLong();
+    @GuardedBy("this")
+    private Thread thread;
+    private volatile boolean running;
+
+    /**
+     * @param executor runs tasks once due
+     */
+    public RetryScheduler(Executor executor) {
+        Validate.notNull(executor, "Executor must not be null");
+        this.executor = executor;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatch();
+            }
+        }, "RetryScheduler");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop dispatching. Tasks still waiting are dropped.
+     *
+     * @return number of tasks dropped
+     */
+    public synchronized int stop() {
+        int dropped = shutdownNow().size();
+        if (dropped > 0) {
+            logger.info("Retry scheduler stopped, {} pending retries dropped", dropped);
+        }
+        return dropped;
+    }
+
+    /**
+     * Stop dispatching and hand back the tasks still waiting.
+     *
+     * @return tasks not run, the earliest due first
+     */
+    public synchronized List<Runnable> shutdownNow() {
+        if (!running) {
+            return Collections.emptyList();
+        }
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+        ScheduledTask[] waiting = queue.toArray(new ScheduledTask[0]);
+        queue.clear();
+        Arrays.sort(waiting);
+        List<Runnable> tasks = new ArrayList<Runnable>(waiting.length);
+        for (ScheduledTask scheduled : waiting) {
+            tasks.add(scheduled.task);
+        }
+        return tasks;
+    }
+
+    /**
+     * @param task to be run by the executor
+     * @param delayMillis from now on
+     * @return false if the scheduler is stopped
+     */
+    public synchronized boolean schedule(Runnable task, long delayMillis) {
+        if (!running) {
+            return false;
+        }
+        queue.add(new ScheduledTask(task, System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(Math.max(0L, delayMillis)), sequence
+                .getAndIncrement()));
+        numScheduled.getAndIncrement();
+        return true;
+    }
+
+    /**
+     * Keep the task itself until due.
+     */
+    @Override
+    public Result defer(Runnable task, MailContext mail, long delayMillis) {
+        return schedule(task, delayMillis) ? Result.SCHEDULED : Result.REFUSED;
+    }
+
+    private void dispatch() {
+        while (running) {
+            ScheduledTask scheduled;
+            try {
+                scheduled = queue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            try {
+                executor.execute(scheduled.task);
+            } catch (RejectedExecutionException e) {
+                if (!running) {
+                    // Handed back by shutdownNow() with the others
+                    queue.add(scheduled);
+                    break;
+                }
+                numRejected.getAndIncrement();
+                logger.debug("Executor full, retry put back for {} ms",
+                        REJECTED_RETRY_DELAY_MILLIS);
+                queue.add(new ScheduledTask(scheduled.task, System.nanoTime()
+                        + TimeUnit.MILLISECONDS.toNanos(REJECTED_RETRY_DELAY_MILLIS),
+                        scheduled.sequence));
+            }
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return number of tasks waiting for their next try
+     */
+    public int getPendingCnt() {
+        return queue.size();
+    }
+
+    /**
+     * @return milliseconds the earliest task has been due for, negative if not due
+     *         yet, 0 if none waiting
+     */
+    public long getOldestDueAgeMillis() {
+        ScheduledTask head = queue.peek();
+        return head == null ? 0L : -head.getDelay(TimeUnit.MILLISECONDS);
+    }
+
+    public long getNumScheduled() {
+        return numScheduled.get();
+    }
+
+    /**
+     * @return times a due task was put back as the executor was full
+     */
+    public long getNumRejected() {
+        return numRejected.get();
+    }
+
+    /**
+     * A task and when it is due, ties broken by scheduling order.
+     */
+    private static final class ScheduledTask implements Delayed {
+        final Runnable task;
+        final long dueNanos;
+        final long sequence;
+
+        ScheduledTask(Runnable task, long dueNanos, long sequence) {
+            this.task = task;
+            this.dueNanos = dueNanos;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            ScheduledTask that = (ScheduledTask) other;
+            long diff = dueNanos - that.dueNanos;
+            if (diff != 0) {
+                return diff < 0 ? -1 : 1;
+            }
+            return sequence < that.sequence ? -1 : (sequence == that.sequence ? 0 : 1);
+        }
+    }
+
+}
@@ -34,24 +34,58 @@ public abstract class RetryStrategy {
         return numberOfTriesLeft;
     }
 
+    public int getFailedTries() {
+        return numberOfRetries - numberOfTriesLeft;
+    }
+
+    /**
+     * Count on from the tries failed before, by another command for the same mail
+     * before a restart for example. At least one try is left.
+     * 
+     * @param failedTries
+     */
+    public void resume(int failedTries) {
+        int tries = Math.min(failedTries, numberOfRetries - 1);
+        while (getFailedTries() < tries) {
+            numberOfTriesLeft--;
+            getTimeToWait();
+        }
+    }
+
     public String printRetriesCount() {
         return String.format("%s/%s", retriesLeft(), getNumberOfRetries());
     }
 
+    /**
+     * Count a failed try and wait until the next one on the calling thread.
+     * 
+     * @throws RetryException if no more retries left
+     */
     public void tryRetry() throws RetryException {
+        waitUntilNextTry(nextRetryDelay());
+    }
+
+    /**
+     * Count a failed try without waiting, for the caller to schedule the next one.
+     * 
+     * @return milliseconds to wait before the next try
+     * @throws RetryException if no more retries left
+     */
+    public long nextRetryDelay() throws RetryException {
         numberOfTriesLeft--;
         if (!shouldRetry()) {
             throw new RetryException(String.format("No more retries left (%s)",
                     printRetriesCount()));
         }
-        waitUntilNextTry();
+        return getTimeToWait();
     }
 
-    private void waitUntilNextTry() {
-        long timeToWait = getTimeToWait();
+    private void waitUntilNextTry(long timeToWait) {
         try {
             TimeUnit.MILLISECONDS.sleep(timeToWait);
-        } catch (InterruptedException ignored) {
+        } catch (InterruptedException e) {
+            // Retry at once, but let the caller know it is being stopped
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -0,0 +1,609 @@
+package com.github.sinsinpub.smtp.relay.transport;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+
+import org.apache.commons.lang.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import com.sun.mail.smtp.SMTPTransport;
+
+/**
+ * Keeps backend SMTP connections open between messages, by mail session, so that
+ * the TCP connect, TLS handshake and AUTH of a connection are paid once for many
+ * messages instead of once for each as by <code>Transport.send</code>.
+ * <p>
+ * A connection idle for longer than the validation time is checked by NOOP before
+ * being borrowed again. A connection having sent the max messages is closed on
+ * return, so that no backend session lives forever. An evictor closes connections
+ * idle for longer than the idle timeout down to the min idle, and opens new ones up
+ * to the min idle for sessions used before.
+ * <p>
+ * A connection given back after a failed send is reset by RSET and kept, so that a
+ * rejected message costs no reconnect. Within a batch, connections given back stay
+ * pinned to the thread, so that the messages of the batch are sent as back to back
+ * transactions on one connection.
+ *
+ * @author sin_sin
+ */
+@ThreadSafe
+@ManagedResource(objectName = TransportPool.OBJECT_NAME, description = "Pool of connected backend SMTP transports by mail session.")
+public class TransportPool implements InitializingBean, DisposableBean {
+
+    public static final String OBJECT_NAME = "com.github.sinsinpub.smtp.relay:type=Backend,name=TransportPool";
+    public static final int DEFAULT_MAX_IDLE = 8;
+    public static final int DEFAULT_MIN_IDLE = 0;
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 60000L;
+    public static final long DEFAULT_VALIDATE_AFTER_MILLIS = 5000L;
+    public static final int DEFAULT_MAX_MESSAGES_PER_CONNECTION = 100;
+    public static final long DEFAULT_EVICTION_INTERVAL_MILLIS = 10000L;
+
+    private final static Logger logger = LoggerFactory.getLogger(TransportPool.class);
+
+    private volatile int maxIdle = DEFAULT_MAX_IDLE;
+    private volatile int minIdle = DEFAULT_MIN_IDLE;
+    private volatile long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+    private volatile long validateAfterMillis = DEFAULT_VALIDATE_AFTER_MILLIS;
+    private volatile int maxMessagesPerConnection = DEFAULT_MAX_MESSAGES_PER_CONNECTION;
+    private volatile long evictionIntervalMillis = DEFAULT_EVICTION_INTERVAL_MILLIS;
+
+    /** Sessions do not override equals, so keyed by identity */
+    private final ConcurrentMap<Session, SessionPool> pools = new ConcurrentHashMap<Session, SessionPool>();
+    /** Connections kept by the thread between the messages of a batch */
+    private final ThreadLocal<Map<SessionPool, PooledTransport>> pinned = new ThreadLocal<Map<SessionPool, PooledTransport>>();
+    @GuardedBy("this")
+    private Thread evictor;
+    private volatile boolean closed;
+
+    private final AtomicLong numBorrowed = new AtomicLong();
+    private final AtomicLong numCreated = new AtomicLong();
+    private final AtomicLong numReused = new AtomicLong();
+    private final AtomicLong numClosed = new AtomicLong();
+    private final AtomicLong numValidationFailed = new AtomicLong();
+    private final AtomicLong numResets = new AtomicLong();
+    private final AtomicLong numEvicted = new AtomicLong();
+    private final AtomicLong numMessagesSent = new AtomicLong();
+
+    @Override
+    public void afterPropertiesSet() {
+        start();
+    }
+
+    @Override
+    public void destroy() {
+        close();
+    }
+
+    /**
+     * Start the evictor.
+     */
+    public synchronized void start() {
+        if (evictor != null) {
+            return;
+        }
+        closed = false;
+        evictor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                evictLoop();
+            }
+        }, "TransportPoolEvictor");
+        evictor.setDaemon(true);
+        evictor.start();
+    }
+
+    /**
+     * Stop the evictor and close idle connections. Connections borrowed are closed
+     * once given back.
+     */
+    public void close() {
+        Thread stopping;
+        synchronized (this) {
+            closed = true;
+            stopping = evictor;
+            evictor = null;
+            notifyAll();
+        }
+        if (stopping != null) {
+            try {
+                stopping.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        clear();
+    }
+
+    /**
+     * Take an idle connection of the session, validated if idle for long, or open
+     * a new one.
+     *
+     * @param session
+     * @return connected transport, to be given back once done with
+     * @throws MessagingException if connecting failed
+     */
+    public PooledTransport borrow(Session session) throws MessagingException {
+        Validate.notNull(session, "Mail session must not be null");
+        SessionPool pool = poolOf(session);
+        numBorrowed.getAndIncrement();
+        Map<SessionPool, PooledTransport> batch = pinned.get();
+        PooledTransport connection = batch == null ? null : batch.remove(pool);
+        if (connection != null) {
+            numReused.getAndIncrement();
+            return connection;
+        }
+        while ((connection = pool.pollIdle()) != null) {
+            long idle = System.currentTimeMillis() - connection.lastUsedMillis;
+            // isConnected() of SMTP transports sends NOOP
+            if (idle < validateAfterMillis || connection.transport.isConnected()) {
+                numReused.getAndIncrement();
+                return connection;
+            }
+            numValidationFailed.getAndIncrement();
+            pool.returned(connection, false);
+            closeQuietly(connection);
+        }
+        return connect(pool);
+    }
+
+    /**
+     * @param connection borrowed before
+     * @param sent false if the last send failed, the connection is then reset by
+     *            RSET to be reused, or closed if that fails too
+     */
+    public void giveBack(PooledTransport connection, boolean sent) {
+        if (connection == null) {
+            return;
+        }
+        connection.lastUsedMillis = System.currentTimeMillis();
+        boolean keep = !closed && connection.messageCnt < maxMessagesPerConnection
+                && (sent || reset(connection));
+        Map<SessionPool, PooledTransport> batch = pinned.get();
+        if (keep && batch != null && !batch.containsKey(connection.pool)) {
+            batch.put(connection.pool, connection);
+            return;
+        }
+        if (!connection.pool.returned(connection, keep)) {
+            closeQuietly(connection);
+        }
+    }
+
+    /**
+     * Pin connections given back by the current thread to it until the batch ends,
+     * so that the next message to the same session goes over the same connection.
+     */
+    public void beginBatch() {
+        if (pinned.get() == null) {
+            pinned.set(new HashMap<SessionPool, PooledTransport>(4));
+        }
+    }
+
+    /**
+     * Give the connections pinned to the current thread back to the pool.
+     */
+    public void endBatch() {
+        Map<SessionPool, PooledTransport> batch = pinned.get();
+        if (batch == null) {
+            return;
+        }
+        pinned.remove();
+        for (PooledTransport connection : batch.values()) {
+            giveBack(connection, true);
+        }
+    }
+
+    /**
+     * @return false if the connection can not be reset, not an SMTP one or broken
+     */
+    private boolean reset(PooledTransport connection) {
+        if (!(connection.transport instanceof SMTPTransport)) {
+            return false;
+        }
+        try {
+            numResets.getAndIncrement();
+            return ((SMTPTransport) connection.transport).simpleCommand("RSET") == 250;
+        } catch (MessagingException e) {
+            logger.debug("Resetting backend connection failed: {}", e.toString());
+            return false;
+        }
+    }
+
+    private SessionPool poolOf(Session session) {
+        SessionPool pool = pools.get(session);
+        if (pool == null) {
+            SessionPool created = new SessionPool(session);
+            pool = pools.putIfAbsent(session, created);
+            if (pool == null) {
+                pool = created;
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Open a new connection counted as borrowed from the pool.
+     */
+    private PooledTransport connect(SessionPool pool) throws MessagingException {
+        pool.borrowed();
+        boolean connected = false;
+        try {
+            Transport transport = pool.session.getTransport();
+            transport.connect();
+            connected = true;
+            numCreated.getAndIncrement();
+            return new PooledTransport(this, pool, transport);
+        } finally {
+            if (!connected) {
+                pool.returned(null, false);
+            }
+        }
+    }
+
+    private void closeQuietly(PooledTransport connection) {
+        numClosed.getAndIncrement();
+        try {
+            connection.transport.close();
+        } catch (MessagingException e) {
+            logger.debug("Closing backend connection failed: {}", e.toString());
+        }
+    }
+
+    private void evictLoop() {
+        while (true) {
+            synchronized (this) {
+                long deadline = System.currentTimeMillis() + evictionIntervalMillis;
+                long wait;
+                while (!closed && (wait = deadline - System.currentTimeMillis()) > 0) {
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+            }
+            try {
+                evict();
+            } catch (RuntimeException e) {
+                logger.error("Evicting backend connections failed: " + e.toString(), e);
+            }
+        }
+    }
+
+    /**
+     * Close connections idle for longer than the idle timeout down to the min idle,
+     * then open new ones up to the min idle.
+     */
+    @ManagedOperation(description = "Close connections idle too long and open ones up to the min idle")
+    public void evict() {
+        long expired = System.currentTimeMillis() - idleTimeoutMillis;
+        for (SessionPool pool : pools.values()) {
+            for (PooledTransport connection : pool.evictIdle(expired, minIdle)) {
+                numEvicted.getAndIncrement();
+                closeQuietly(connection);
+            }
+            while (!closed && pool.getIdleCnt() < minIdle) {
+                PooledTransport connection;
+                try {
+                    connection = connect(pool);
+                } catch (MessagingException e) {
+                    logger.warn("Opening idle backend connection failed: {}", e.toString());
+                    break;
+                }
+                if (!pool.returned(connection, true)) {
+                    closeQuietly(connection);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Close all idle connections.
+     */
+    @ManagedOperation(description = "Close all idle connections")
+    public void clear() {
+        for (SessionPool pool : pools.values()) {
+            for (PooledTransport connection : pool.evictIdle(Long.MAX_VALUE, 0)) {
+                closeQuietly(connection);
+            }
+        }
+    }
+
+    @ManagedAttribute
+    public int getMaxIdle() {
+        return maxIdle;
+    }
+
+    /**
+     * @param maxIdle idle connections kept per session, 0 for closing every
+     *            connection once given back
+     */
+    @ManagedAttribute
+    public void setMaxIdle(int maxIdle) {
+        Validate.isTrue(maxIdle >= 0, "Max idle must not be negative");
+        this.maxIdle = maxIdle;
+    }
+
+    @ManagedAttribute
+    public int getMinIdle() {
+        return minIdle;
+    }
+
+    /**
+     * @param minIdle idle connections kept open per session used before, even if
+     *            idle for longer than the idle timeout
+     */
+    @ManagedAttribute
+    public void setMinIdle(int minIdle) {
+        Validate.isTrue(minIdle >= 0, "Min idle must not be negative");
+        this.minIdle = minIdle;
+    }
+
+    @ManagedAttribute
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    @ManagedAttribute
+    public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    @ManagedAttribute
+    public long getValidateAfterMillis() {
+        return validateAfterMillis;
+    }
+
+    /**
+     * @param validateAfterMillis idle time after which a connection is checked by
+     *            NOOP before being borrowed, 0 for always
+     */
+    @ManagedAttribute
+    public void setValidateAfterMillis(long validateAfterMillis) {
+        this.validateAfterMillis = validateAfterMillis;
+    }
+
+    @ManagedAttribute
+    public int getMaxMessagesPerConnection() {
+        return maxMessagesPerConnection;
+    }
+
+    @ManagedAttribute
+    public void setMaxMessagesPerConnection(int maxMessagesPerConnection) {
+        Validate.isTrue(maxMessagesPerConnection > 0,
+                "Max messages per connection must be positive");
+        this.maxMessagesPerConnection = maxMessagesPerConnection;
+    }
+
+    @ManagedAttribute
+    public long getEvictionIntervalMillis() {
+        return evictionIntervalMillis;
+    }
+
+    @ManagedAttribute
+    public void setEvictionIntervalMillis(long evictionIntervalMillis) {
+        Validate.isTrue(evictionIntervalMillis > 0, "Eviction interval must be positive");
+        this.evictionIntervalMillis = evictionIntervalMillis;
+    }
+
+    @ManagedAttribute
+    public int getIdleCnt() {
+        int idle = 0;
+        for (SessionPool pool : pools.values()) {
+            idle += pool.getIdleCnt();
+        }
+        return idle;
+    }
+
+    @ManagedAttribute
+    public int getActiveCnt() {
+        int active = 0;
+        for (SessionPool pool : pools.values()) {
+            active += pool.getActiveCnt();
+        }
+        return active;
+    }
+
+    /**
+     * @return idle and borrowed connections by backend host and port
+     */
+    @ManagedAttribute
+    public Map<String, String> getConnectionsBySession() {
+        Map<String, String> connections = new HashMap<String, String>();
+        for (SessionPool pool : pools.values()) {
+            connections.put(pool.name, "idle=" + pool.getIdleCnt() + ",active="
+                    + pool.getActiveCnt());
+        }
+        return connections;
+    }
+
+    @ManagedAttribute
+    public Number getNumBorrowed() {
+        return numBorrowed.get();
+    }
+
+    @ManagedAttribute
+    public Number getNumCreated() {
+        return numCreated.get();
+    }
+
+    /**
+     * @return times a borrow was served by an open connection
+     */
+    @ManagedAttribute
+    public Number getNumReused() {
+        return numReused.get();
+    }
+
+    @ManagedAttribute
+    public Number getNumClosed() {
+        return numClosed.get();
+    }
+
+    @ManagedAttribute
+    public Number getNumValidationFailed() {
+        return numValidationFailed.get();
+    }
+
+    /**
+     * @return times a connection was reset by RSET after a failed send
+     */
+    @ManagedAttribute
+    public Number getNumResets() {
+        return numResets.get();
+    }
+
+    @ManagedAttribute
+    public Number getNumEvicted() {
+        return numEvicted.get();
+    }
+
+    @ManagedAttribute
+    public Number getNumMessagesSent() {
+        return numMessagesSent.get();
+    }
+
+    /**
+     * Idle connections of a session, the most recently used first so that extra
+     * ones stay idle long enough to be evicted.
+     */
+    private final class SessionPool {
+        final Session session;
+        final String name;
+        @GuardedBy("this")
+        final ArrayDeque<PooledTransport> idle = new ArrayDeque<PooledTransport>();
+        @GuardedBy("this")
+        int active;
+
+        SessionPool(Session session) {
+            this.session = session;
+            this.name = session.getProperty("mail.smtp.host") + ":"
+                    + session.getProperty("mail.smtp.port");
+        }
+
+        synchronized PooledTransport pollIdle() {
+            PooledTransport connection = idle.pollFirst();
+            if (connection != null) {
+                active++;
+            }
+            return connection;
+        }
+
+        synchronized void borrowed() {
+            active++;
+        }
+
+        /**
+         * @param connection given back, or null if connecting failed
+         * @param keep whether to keep it idle if there is room
+         * @return false if not kept, to be closed
+         */
+        synchronized boolean returned(PooledTransport connection, boolean keep) {
+            active--;
+            if (connection == null || !keep || idle.size() >= maxIdle) {
+                return false;
+            }
+            idle.addFirst(connection);
+            return true;
+        }
+
+        /**
+         * @return connections used last before the time, oldest first, leaving the
+         *         min idle
+         */
+        synchronized List<PooledTransport> evictIdle(long before, int min) {
+            List<PooledTransport> evicted = new ArrayList<PooledTransport>();
+            Iterator<PooledTransport> it = idle.descendingIterator();
+            while (it.hasNext() && idle.size() > min) {
+                PooledTransport connection = it.next();
+                if (connection.lastUsedMillis >= before) {
+                    break;
+                }
+                it.remove();
+                evicted.add(connection);
+            }
+            return evicted;
+        }
+
+        synchronized int getIdleCnt() {
+            return idle.size();
+        }
+
+        synchronized int getActiveCnt() {
+            return active;
+        }
+    }
+
+    /**
+     * A connected transport borrowed from the pool.
+     */
+    @NotThreadSafe
+    public static final class PooledTransport {
+        private final TransportPool owner;
+        private final SessionPool pool;
+        private final Transport transport;
+        private final long createdMillis = System.currentTimeMillis();
+        private volatile long lastUsedMillis = createdMillis;
+        private volatile int messageCnt;
+
+        PooledTransport(TransportPool owner, SessionPool pool, Transport transport) {
+            this.owner = owner;
+            this.pool = pool;
+            this.transport = transport;
+        }
+
+        /**
+         * Send the message as <code>Transport.send</code> does, over this
+         * connection.
+         *
+         * @param message
+         * @param recipients null for all recipients of the message
+         * @throws MessagingException
+         */
+        public void send(Message message, Address[] recipients) throws MessagingException {
+            message.saveChanges();
+            messageCnt++;
+            transport.sendMessage(message, recipients == null ? message.getAllRecipients()
+                    : recipients);
+            owner.numMessagesSent.getAndIncrement();
+        }
+
+        public Transport getTransport() {
+            return transport;
+        }
+
+        public long getCreatedMillis() {
+            return createdMillis;
+        }
+
+        public int getMessageCnt() {
+            return messageCnt;
+        }
+    }
+
+}
@@ -10,6 +10,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.lang.math.NumberUtils;
@@ -126,4 +129,50 @@ public abstract class ConcurrentUtil {
         return toStringList(list.iterator());
     }
 
+    /**
+     * @return whether the running JVM provides virtual threads
+     */
+    public static boolean isVirtualThreadSupported() {
+        return newVirtualThreadFactory("probe-") != null;
+    }
+
+    /**
+     * Executor starting a new virtual thread per task, named by prefix and sequence
+     * number. Looked up by reflection, so that the code still builds and runs on
+     * JVMs without virtual threads.
+     * 
+     * @param namePrefix thread name prefix
+     * @return new executor, or null if virtual threads are not supported
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor(String namePrefix) {
+        ThreadFactory factory = newVirtualThreadFactory(namePrefix);
+        if (factory == null) {
+            return null;
+        }
+        try {
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor",
+                    ThreadFactory.class).invoke(null, factory);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Equals to <code>Thread.ofVirtual().name(namePrefix, 1).factory()</code>.
+     * 
+     * @param namePrefix thread name prefix
+     * @return virtual thread factory, or null if virtual threads are not supported
+     */
+    public static ThreadFactory newVirtualThreadFactory(String namePrefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder,
+                    namePrefix, 1L);
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
 }
@@ -0,0 +1,201 @@
+package com.github.sinsinpub.smtp.relay.utils;
+
+import java.util.Locale;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Matches mail addresses against a compiled list of domains, on label boundaries.
+ * <p>
+ * Entries are interpreted as:
+ * <ul>
+ * <li><code>example.com</code>, <code>.example.com</code> or
+ * <code>*.example.com</code>: the domain and all its sub-domains</li>
+ * <li><code>@example.com</code>: that domain only</li>
+ * <li><code>user@example.com</code>: that address only</li>
+ * </ul>
+ * Entries are kept in open-addressing hash tables. A lookup hashes the address once
+ * from right to left, probing at every label boundary of its domain part, so it
+ * costs a fixed amount per label and allocates nothing. Matching ignores case.
+ *
+ * @author sin_sin
+ */
+@Immutable
+public final class DomainSuffixMatcher {
+
+    private static final int SUFFIX = 0;
+    private static final int DOMAIN = 1;
+    private static final int ADDRESS = 2;
+    private static final DomainSuffixMatcher EMPTY = new DomainSuffixMatcher(new String[0]);
+
+    /** Domains matched with their sub-domains */
+    private final Table suffixes;
+    /** Domains matched exactly */
+    private final Table domains;
+    /** Whole addresses */
+    private final Table addresses;
+    private final int size;
+
+    private DomainSuffixMatcher(String[] entries) {
+        String[] normalized = new String[entries.length];
+        int[] kinds = new int[entries.length];
+        int[] counts = new int[3];
+        for (int i = 0; i < entries.length; i++) {
+            String entry = entries[i] == null ? "" : entries[i].trim().toLowerCase(Locale.ENGLISH);
+            int at = entry.lastIndexOf('@');
+            if (at == 0) {
+                entry = entry.substring(1);
+                kinds[i] = DOMAIN;
+            } else if (at > 0) {
+                kinds[i] = ADDRESS;
+            } else if (entry.startsWith("*.")) {
+                entry = entry.substring(2);
+            } else if (entry.startsWith(".")) {
+                entry = entry.substring(1);
+            }
+            normalized[i] = entry;
+            counts[kinds[i]]++;
+        }
+        Table[] tables = new Table[] { new Table(counts[SUFFIX]), new Table(counts[DOMAIN]),
+                new Table(counts[ADDRESS]) };
+        int added = 0;
+        for (int i = 0; i < entries.length; i++) {
+            if (normalized[i].length() > 0 && tables[kinds[i]].add(normalized[i])) {
+                added++;
+            }
+        }
+        suffixes = tables[SUFFIX];
+        domains = tables[DOMAIN];
+        addresses = tables[ADDRESS];
+        size = added;
+    }
+
+    /**
+     * @param entries list of domains or addresses, null or blank ones ignored
+     * @return matcher of the entries
+     */
+    public static DomainSuffixMatcher compile(String... entries) {
+        if (entries == null || entries.length == 0) {
+            return EMPTY;
+        }
+        return new DomainSuffixMatcher(entries);
+    }
+
+    /**
+     * @param address mail address, or just a domain
+     * @return true if any entry matches
+     */
+    public boolean matches(String address) {
+        if (address == null || size == 0) {
+            return false;
+        }
+        int end = address.length();
+        int at = address.lastIndexOf('@');
+        int domainStart = at + 1;
+        int hash = 0;
+        for (int i = end - 1; i >= 0; i--) {
+            hash = hash(hash, address.charAt(i));
+            if (i > domainStart) {
+                if (address.charAt(i - 1) == '.' && suffixes.contains(address, i, end, hash)) {
+                    return true;
+                }
+            } else if (i == domainStart) {
+                if (suffixes.contains(address, i, end, hash)
+                        || domains.contains(address, i, end, hash)) {
+                    return true;
+                }
+                if (addresses.isEmpty()) {
+                    return false;
+                }
+            }
+        }
+        return addresses.contains(address, 0, end, hash);
+    }
+
+    /**
+     * @return number of distinct entries compiled
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Hash characters appended from right to left, case-insensitive.
+     */
+    private static int hash(int hash, char c) {
+        char lower = c < 0x80 ? (c >= 'A' && c <= 'Z' ? (char) (c + 32) : c) : Character
+                .toLowerCase(c);
+        return hash * 31 + lower;
+    }
+
+    private static int hashOf(String entry) {
+        int hash = 0;
+        for (int i = entry.length() - 1; i >= 0; i--) {
+            hash = hash(hash, entry.charAt(i));
+        }
+        return hash;
+    }
+
+    /**
+     * Open-addressing hash set of lower-cased strings, probed by regions of another
+     * string with their pre-computed hashes.
+     */
+    private static final class Table {
+        private final String[] keys;
+        private final int[] hashes;
+        private final int mask;
+        private int size;
+
+        Table(int expected) {
+            int capacity = 2;
+            while (capacity < expected * 2) {
+                capacity <<= 1;
+            }
+            keys = new String[capacity];
+            hashes = new int[capacity];
+            mask = capacity - 1;
+        }
+
+        boolean add(String key) {
+            int hash = hashOf(key);
+            int index = spread(hash) & mask;
+            while (keys[index] != null) {
+                if (hashes[index] == hash && keys[index].equals(key)) {
+                    return false;
+                }
+                index = (index + 1) & mask;
+            }
+            keys[index] = key;
+            hashes[index] = hash;
+            size++;
+            return true;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        boolean contains(String s, int start, int end, int hash) {
+            int length = end - start;
+            int index = spread(hash) & mask;
+            String key;
+            while ((key = keys[index]) != null) {
+                if (hashes[index] == hash && key.length() == length
+                        && s.regionMatches(true, start, key, 0, length)) {
+                    return true;
+                }
+                index = (index + 1) & mask;
+            }
+            return false;
+        }
+
+        private static int spread(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+    }
+
+}
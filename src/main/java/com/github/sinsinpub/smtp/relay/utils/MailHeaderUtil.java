@@ -0,0 +1,60 @@
+package com.github.sinsinpub.smtp.relay.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetHeaders;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.sinsinpub.smtp.relay.spool.MessageStorage;
+
+/**
+ * Stored message header helpers, reading the header block only, not the body.
+ *
+ * @author sin_sin
+ */
+public abstract class MailHeaderUtil {
+
+    private final static Logger logger = LoggerFactory.getLogger(MailHeaderUtil.class);
+
+    /**
+     * @param storage
+     * @return headers of the message, or null if not readable
+     */
+    public static InternetHeaders readHeaders(MessageStorage storage) {
+        if (storage == null) {
+            return null;
+        }
+        InputStream in = null;
+        try {
+            in = storage.openStream();
+            return new InternetHeaders(in);
+        } catch (IOException e) {
+            logger.debug("Reading message headers failed: {}", e.toString());
+        } catch (MessagingException e) {
+            logger.debug("Parsing message headers failed: {}", e.toString());
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        return null;
+    }
+
+    /**
+     * @param storage
+     * @param name header name, case ignored
+     * @return first value of the header trimmed, or null if none or not readable
+     */
+    public static String readHeader(MessageStorage storage, String name) {
+        InternetHeaders headers = readHeaders(storage);
+        if (headers == null) {
+            return null;
+        }
+        String value = headers.getHeader(name, null);
+        return value == null ? null : value.trim();
+    }
+
+}
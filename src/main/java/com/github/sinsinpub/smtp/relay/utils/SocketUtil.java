@@ -0,0 +1,162 @@
+package com.github.sinsinpub.smtp.relay.utils;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.channels.NetworkChannel;
+import java.nio.channels.ServerSocketChannel;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Listening socket helpers.
+ * <p>
+ * <code>SO_REUSEPORT</code> is looked up by reflection, so that the code still
+ * builds and runs on JDKs before 9, just without the option.
+ *
+ * @author sin_sin
+ */
+public abstract class SocketUtil {
+
+    private static final SocketOption<Boolean> SO_REUSEPORT = lookupReusePort();
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> lookupReusePort() {
+        try {
+            SocketOption<Boolean> option = (SocketOption<Boolean>) StandardSocketOptions.class
+                    .getField("SO_REUSEPORT").get(null);
+            // Declared by the JDK, not necessarily supported by the platform
+            ServerSocketChannel probe = ServerSocketChannel.open();
+            try {
+                return probe.supportedOptions().contains(option) ? option : null;
+            } finally {
+                probe.close();
+            }
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return whether several listening sockets may be bound to the same port, the
+     *         kernel balancing connections among them
+     */
+    public static boolean isReusePortSupported() {
+        return SO_REUSEPORT != null;
+    }
+
+    /**
+     * Enable <code>SO_REUSEPORT</code>, before binding.
+     *
+     * @param channel
+     * @throws IOException if not supported
+     */
+    public static void setReusePort(NetworkChannel channel) throws IOException {
+        checkReusePortSupported();
+        channel.setOption(SO_REUSEPORT, Boolean.TRUE);
+    }
+
+    /**
+     * Enable <code>SO_REUSEPORT</code>, before binding.
+     *
+     * @param socket
+     * @throws IOException if not supported
+     */
+    public static void setReusePort(ServerSocket socket) throws IOException {
+        checkReusePortSupported();
+        try {
+            ServerSocket.class.getMethod("setOption", SocketOption.class, Object.class).invoke(
+                    socket, SO_REUSEPORT, Boolean.TRUE);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Setting SO_REUSEPORT failed", e.getCause());
+        } catch (Exception e) {
+            throw new IOException("Setting SO_REUSEPORT failed", e);
+        }
+    }
+
+    private static void checkReusePortSupported() throws IOException {
+        if (SO_REUSEPORT == null) {
+            throw new IOException("SO_REUSEPORT is not supported on this platform");
+        }
+    }
+
+    /**
+     * Parse a listening endpoint in the form of <code>host:port</code>,
+     * <code>[ipv6]:port</code>, <code>:port</code> or <code>*:port</code> for all
+     * interfaces, a bare port, or a bare host.
+     *
+     * @param endpoint
+     * @param defaultPort used if no port given
+     * @return socket address, wildcard if no host given
+     * @throws IllegalArgumentException if the port is not a number or the host can
+     *             not be resolved
+     */
+    public static InetSocketAddress parseEndpoint(String endpoint, int defaultPort) {
+        String value = StringUtils.trimToEmpty(endpoint);
+        String host = value;
+        String port = null;
+        if (value.startsWith("[")) {
+            int end = value.indexOf(']');
+            if (end < 0) {
+                throw new IllegalArgumentException("Bad endpoint: " + endpoint);
+            }
+            host = value.substring(1, end);
+            if (value.length() > end + 1) {
+                if (value.charAt(end + 1) != ':') {
+                    throw new IllegalArgumentException("Bad endpoint: " + endpoint);
+                }
+                port = value.substring(end + 2);
+            }
+        } else if (StringUtils.countMatches(value, ":") == 1) {
+            int colon = value.indexOf(':');
+            host = value.substring(0, colon);
+            port = value.substring(colon + 1);
+        } else if (StringUtils.isNumeric(value) && value.length() > 0) {
+            host = null;
+            port = value;
+        }
+        int portNumber = defaultPort;
+        if (port != null) {
+            try {
+                portNumber = Integer.parseInt(port.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad port of endpoint: " + endpoint);
+            }
+        }
+        host = StringUtils.trimToNull(host);
+        if (host == null || "*".equals(host)) {
+            return new InetSocketAddress(portNumber);
+        }
+        try {
+            return new InetSocketAddress(InetAddress.getByName(host), portNumber);
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * @param address
+     * @return address in the form of host:port, * for all interfaces
+     */
+    public static String toDisplayableString(InetSocketAddress address) {
+        InetAddress host = address.getAddress();
+        String hostString;
+        if (host == null || host.isAnyLocalAddress()) {
+            hostString = "*";
+        } else if (host.getHostAddress().indexOf(':') >= 0) {
+            hostString = "[" + host.getHostAddress() + "]";
+        } else {
+            hostString = host.getHostAddress();
+        }
+        return hostString + ":" + address.getPort();
+    }
+
+}
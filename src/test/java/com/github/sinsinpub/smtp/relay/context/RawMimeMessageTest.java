@@ -0,0 +1,116 @@
+package com.github.sinsinpub.smtp.relay.context;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import com.github.sinsinpub.smtp.relay.spool.HeapMessageStorage;
+
+/**
+ * Writes messages out of heap data, which must come out byte for byte as stored
+ * but for the header lines asked to be left out.
+ *
+ * @author sin_sin
+ */
+public class RawMimeMessageTest {
+
+    private static final Session SESSION = Session.getInstance(new Properties());
+
+    @Test
+    public void dataIsWrittenAsReceived() throws Exception {
+        byte[] data = bytes("Subject:  =?UTF-8?B?w6k=?=\r\n"
+                + "X-Odd:no space\r\n\tfolded\r\n"
+                + "\r\n"
+                + "8bit éè body\nbare LF\r\n.\r\n..dot\r\n");
+        RawMimeMessage message = message(data);
+        assertArrayEquals(data, write(message, null));
+        message.saveChanges();
+        assertArrayEquals(data, write(message, null));
+        assertNull(message.getHeader("Message-ID"));
+        assertEquals(data.length, message.getSize());
+    }
+
+    @Test
+    public void headersAreParsed() throws Exception {
+        RawMimeMessage message = message(bytes("To: a@domain.net\r\n"
+                + "Subject: parsed\r\n\r\nbody\r\n"));
+        assertEquals("parsed", message.getHeader("Subject", null));
+        assertEquals("a@domain.net", message.getHeader("to", null));
+    }
+
+    @Test
+    public void ignoredHeadersAreLeftOutWithTheirFoldedLines() throws Exception {
+        byte[] data = bytes("BCC: a@domain.net,\r\n b@domain.net\r\n"
+                + "To: c@domain.net\r\n"
+                + "Bcc-Copy: kept\r\n"
+                + "bcc: d@domain.net\r\n"
+                + "\te@domain.net\r\n"
+                + "\r\n"
+                + "Bcc: in the body\r\n");
+        String written = new String(write(message(data), new String[] { "Bcc" }), "UTF-8");
+        assertEquals("To: c@domain.net\r\nBcc-Copy: kept\r\n\r\nBcc: in the body\r\n",
+                written);
+    }
+
+    @Test
+    public void contentIsTheBodyOnly() throws Exception {
+        RawMimeMessage message = message(bytes("Subject: content\n\nline one\r\n\r\nline two"));
+        InputStream in = message.getContentStream();
+        try {
+            assertEquals("line one\r\n\r\nline two", IOUtils.toString(in, "UTF-8"));
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    @Test
+    public void messageOfHeadersOnlyIsWrittenWhole() throws Exception {
+        byte[] data = bytes("Subject: no body\r\nTo: a@domain.net");
+        RawMimeMessage message = message(data);
+        assertArrayEquals(data, write(message, null));
+        InputStream in = message.getContentStream();
+        try {
+            assertEquals(-1, in.read());
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    @Test
+    public void longHeaderLineIsCopiedWhole() throws Exception {
+        StringBuilder references = new StringBuilder("References:");
+        for (int i = 0; i < 100; i++) {
+            references.append(" <").append(i).append("@domain.net>");
+        }
+        byte[] data = bytes(references + "\r\nBcc: a@domain.net\r\n\r\nbody\r\n");
+        String written = new String(write(message(data), new String[] { "bcc" }), "UTF-8");
+        assertEquals(references + "\r\n\r\nbody\r\n", written);
+    }
+
+    private static RawMimeMessage message(byte[] data) throws MessagingException {
+        return new RawMimeMessage(SESSION, new HeapMessageStorage(data));
+    }
+
+    private static byte[] write(RawMimeMessage message, String[] ignoreList)
+            throws IOException, MessagingException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out, ignoreList);
+        return out.toByteArray();
+    }
+
+    private static byte[] bytes(String data) throws IOException {
+        return data.getBytes("UTF-8");
+    }
+
+}
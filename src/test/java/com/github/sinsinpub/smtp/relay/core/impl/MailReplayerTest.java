@@ -0,0 +1,110 @@
+package com.github.sinsinpub.smtp.relay.core.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.sinsinpub.smtp.relay.context.MailContext;
+import com.github.sinsinpub.smtp.relay.exception.DeliveryDeferredException;
+import com.github.sinsinpub.smtp.relay.spool.DeadLetterStore;
+import com.github.sinsinpub.smtp.relay.spool.HeapMessageStorage;
+
+/**
+ * Replays dead letters into a listener whose forwarder queue is full until the
+ * test makes room, to see that a replay waits for room being made rather than for
+ * its next poll.
+ *
+ * @author sin_sin
+ */
+public class MailReplayerTest {
+
+    private File directory;
+    private DeadLetterStore store;
+    private FullListener listener;
+    private MailReplayer replayer;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("replay", "");
+        FileUtils.forceDelete(directory);
+        FileUtils.forceMkdir(directory);
+        store = new DeadLetterStore(directory, DeadLetterStore.DEFAULT_SEGMENT_SIZE);
+        store.open();
+        for (int i = 0; i < 3; i++) {
+            List<String> to = Collections.singletonList("x@y.net");
+            store.add(new MailContext("a@domain.net", to, new HeapMessageStorage(
+                    ("Subject: " + i + "\r\n\r\nbody\r\n").getBytes("UTF-8"))), "rule@", "");
+        }
+        listener = new FullListener();
+        replayer = new MailReplayer(listener, null, null, null);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        replayer.stop();
+        store.close();
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Test(timeout = 10000)
+    public void replayGoesOnOnceRoomIsMade() throws InterruptedException {
+        assertEquals(3, replayer.replayDeadLetters(store, DeadLetterStore.FIELD_ALL, null, 0));
+        assertTrue(listener.refused.await(5, TimeUnit.SECONDS));
+        long roomMade = System.currentTimeMillis();
+        listener.full = false;
+        replayer.queueLeft();
+        while (store.getEntryCnt() > 0) {
+            Thread.sleep(5);
+        }
+        // Well before the wait would have run out by itself
+        assertTrue(System.currentTimeMillis() - roomMade < MailReplayer.ROOM_WAIT_MILLIS / 2);
+        assertEquals(3, listener.forwarded.get());
+        assertEquals(3L, replayer.getNumDeadLettersReplayed());
+    }
+
+    @Test(timeout = 10000)
+    public void stoppedReplayKeepsDeadLetters() throws InterruptedException {
+        replayer.replayDeadLetters(store, DeadLetterStore.FIELD_ALL, null, 0);
+        assertTrue(listener.refused.await(5, TimeUnit.SECONDS));
+        replayer.stop();
+        listener.full = false;
+        Thread.sleep(100);
+        assertEquals(0, listener.forwarded.get());
+        assertEquals(3, store.getEntryCnt());
+        assertEquals(0, replayer.replayDeadLetters(store, DeadLetterStore.FIELD_ALL, null, 0));
+    }
+
+    /**
+     * Refuses mail while full, as if the forwarder queue were.
+     */
+    private static class FullListener extends SmtpListener {
+        volatile boolean full = true;
+        final CountDownLatch refused = new CountDownLatch(1);
+        final AtomicInteger forwarded = new AtomicInteger();
+
+        @Override
+        protected void executeForwarding(String from, List<String> recipients,
+                InputStream data) throws IOException {
+            if (full) {
+                refused.countDown();
+                throw new DeliveryDeferredException(451,
+                        "4.3.0 Forwarder queue is full, try again later");
+            }
+            forwarded.incrementAndGet();
+        }
+    }
+
+}
@@ -0,0 +1,279 @@
+package com.github.sinsinpub.smtp.relay.core.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.github.sinsinpub.smtp.relay.core.MailForwardCommand;
+
+/**
+ * Hands tasks over to a pool, or to an executor holding them, so that what is
+ * queued and what is in flight is up to the test.
+ *
+ * @author sin_sin
+ */
+public class RouteFairExecutorTest {
+
+    private ExecutorService pool;
+
+    @After
+    public void tearDown() {
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void queuedTasksAreDrainedWhenIdle() throws InterruptedException {
+        pool = Executors.newFixedThreadPool(1);
+        RouteFairExecutor executor = new RouteFairExecutor(pool, 1, 10);
+        final List<String> run = new ArrayList<String>();
+        for (int i = 0; i < 3; i++) {
+            final String name = "task" + i;
+            executor.execute("a", MailForwardCommand.LANE_NORMAL, new Runnable() {
+                @Override
+                public void run() {
+                    sleep(50);
+                    synchronized (run) {
+                        run.add(name);
+                    }
+                }
+            });
+        }
+        assertTrue(executor.getQueuedCnt() > 0);
+        assertTrue(executor.awaitIdle(5, TimeUnit.SECONDS));
+        assertEquals(0, executor.getQueuedCnt());
+        assertEquals(0, executor.getInFlight());
+        synchronized (run) {
+            assertEquals(3, run.size());
+        }
+        assertTrue(executor.shutdownNow().isEmpty());
+    }
+
+    @Test
+    public void idleWaitTimesOutWithTasksQueued() throws InterruptedException {
+        HeldExecutor held = new HeldExecutor();
+        RouteFairExecutor executor = new RouteFairExecutor(held, 1, 10);
+        executor.execute("a", MailForwardCommand.LANE_NORMAL, task());
+        executor.execute("a", MailForwardCommand.LANE_NORMAL, task());
+        assertFalse(executor.awaitIdle(50, TimeUnit.MILLISECONDS));
+        assertEquals(1, executor.getQueuedCnt());
+        assertEquals(1, executor.shutdownNow().size());
+    }
+
+    @Test
+    public void routesTakeTurnsByWeight() {
+        HeldExecutor held = new HeldExecutor();
+        RouteFairExecutor executor = new RouteFairExecutor(held, 1, 20);
+        executor.setMaxBatchSize(1);
+        executor.setWeights(Collections.singletonMap("a", 2));
+        List<String> run = new ArrayList<String>();
+        executor.execute("c", MailForwardCommand.LANE_NORMAL, recording(run, "first"));
+        for (int i = 1; i <= 4; i++) {
+            executor.execute("a", MailForwardCommand.LANE_NORMAL, recording(run, "a" + i));
+            executor.execute("b", MailForwardCommand.LANE_NORMAL, recording(run, "b" + i));
+        }
+        for (int i = 0; i < 9; i++) {
+            held.runNext();
+        }
+        assertEquals(Arrays.asList("first", "a1", "a2", "b1", "a3", "a4", "b2", "b3", "b4"),
+                run);
+        assertEquals(Long.valueOf(4), executor.getNumExecutedByRoute().get("a"));
+    }
+
+    @Test
+    public void routeAtItsCapLeavesOthersMoving() {
+        HeldExecutor held = new HeldExecutor();
+        RouteFairExecutor executor = new RouteFairExecutor(held, 4, 20);
+        executor.setMaxInFlightPerRoute(1);
+        executor.execute("slow", MailForwardCommand.LANE_NORMAL, task());
+        executor.execute("slow", MailForwardCommand.LANE_NORMAL, task());
+        executor.execute("slow", MailForwardCommand.LANE_NORMAL, task());
+        executor.execute("fast", MailForwardCommand.LANE_NORMAL, task());
+        // One of the slow route and the fast one, the other slow ones queued
+        assertEquals(2, held.size());
+        assertEquals(2, executor.getQueuedCnt());
+        assertEquals(Integer.valueOf(2), executor.getQueueDepths().get("slow"));
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void fullExecutorRefusesTasks() {
+        RouteFairExecutor executor = new RouteFairExecutor(new HeldExecutor(), 1, 2);
+        for (int i = 0; i < 4; i++) {
+            executor.execute("a", MailForwardCommand.LANE_NORMAL, task());
+        }
+    }
+
+    @Test
+    public void routesOfOneBackendShareItsLimit() {
+        HeldExecutor held = new HeldExecutor();
+        RouteFairExecutor executor = new RouteFairExecutor(held, 10, 10);
+        executor.setBackendLimit(2);
+        Map<String, Object> backends = new HashMap<String, Object>();
+        Object session = new Object();
+        backends.put("a", session);
+        backends.put("b", session);
+        executor.setRouteBackends(backends);
+        for (String route : new String[] { "a", "b", "c", "a", "b", "c" }) {
+            executor.execute(route, MailForwardCommand.LANE_NORMAL, task());
+        }
+        // Two for the shared backend of a and b, two for c on its own
+        assertEquals(4, held.size());
+        assertEquals(2, executor.getQueuedCnt());
+        held.runNext();
+        assertEquals(4, held.size());
+        assertEquals(1, executor.getQueuedCnt());
+    }
+
+    @Test
+    public void inFlightCountsToBackendHandedOverFor() {
+        HeldExecutor held = new HeldExecutor();
+        RouteFairExecutor executor = new RouteFairExecutor(held, 10, 10);
+        executor.setBackendLimit(1);
+        executor.execute("a", MailForwardCommand.LANE_NORMAL, task());
+        executor.execute("b", MailForwardCommand.LANE_NORMAL, task());
+        assertEquals(2, held.size());
+        Map<String, Object> backends = new HashMap<String, Object>();
+        Object session = new Object();
+        backends.put("a", session);
+        backends.put("b", session);
+        executor.setRouteBackends(backends);
+        executor.execute("a", MailForwardCommand.LANE_NORMAL, task());
+        executor.execute("b", MailForwardCommand.LANE_NORMAL, task());
+        // Those in flight count to the backends they were handed over for
+        assertEquals(3, held.size());
+        assertEquals(1, executor.getQueuedCnt());
+        held.runNext();
+        held.runNext();
+        assertEquals(1, held.size());
+        assertEquals(1, executor.getQueuedCnt());
+        held.runNext();
+        assertEquals(1, held.size());
+        assertEquals(0, executor.getQueuedCnt());
+    }
+
+    @Test
+    public void batchIsChargedPerTask() {
+        HeldExecutor held = new HeldExecutor();
+        RouteFairExecutor executor = new RouteFairExecutor(held, 1, 20);
+        executor.setMaxBatchSize(4);
+        List<String> run = new ArrayList<String>();
+        executor.execute("a", MailForwardCommand.LANE_NORMAL, recording(run, "a0"));
+        for (int i = 1; i <= 8; i++) {
+            executor.execute("a", MailForwardCommand.LANE_NORMAL, recording(run, "a" + i));
+        }
+        executor.execute("b", MailForwardCommand.LANE_NORMAL, recording(run, "b1"));
+        held.runNext();
+        // The backlog of a goes in one batch, then b
+        held.runNext();
+        assertEquals(Arrays.asList("a0", "a1", "a2", "a3", "a4"), run);
+        executor.execute("b", MailForwardCommand.LANE_NORMAL, recording(run, "b2"));
+        held.runNext();
+        // a still pays off its batch
+        held.runNext();
+        assertEquals(Arrays.asList("a0", "a1", "a2", "a3", "a4", "b1", "b2"), run);
+        held.runNext();
+        assertEquals(11, run.size());
+        assertEquals("a8", run.get(run.size() - 1));
+    }
+
+    @Test
+    public void higherLanesGoFirst() {
+        HeldExecutor held = new HeldExecutor();
+        RouteFairExecutor executor = new RouteFairExecutor(held, 1, 10);
+        List<String> run = new ArrayList<String>();
+        executor.execute("a", MailForwardCommand.LANE_LOW, recording(run, "first"));
+        executor.execute("a", MailForwardCommand.LANE_LOW, recording(run, "low"));
+        executor.execute("b", MailForwardCommand.LANE_NORMAL, recording(run, "normal"));
+        executor.execute("c", MailForwardCommand.LANE_HIGH, recording(run, "high"));
+        for (int i = 0; i < 4; i++) {
+            held.runNext();
+        }
+        assertEquals(Arrays.asList("first", "high", "normal", "low"), run);
+    }
+
+    @Test
+    public void agedTaskMovesUpALane() {
+        HeldExecutor held = new HeldExecutor();
+        RouteFairExecutor executor = new RouteFairExecutor(held, 1, 10);
+        executor.setMaxBatchSize(1);
+        executor.setAgingMillis(50);
+        List<String> run = new ArrayList<String>();
+        executor.execute("a", MailForwardCommand.LANE_NORMAL, recording(run, "first"));
+        executor.execute("a", MailForwardCommand.LANE_LOW, recording(run, "low"));
+        sleep(100);
+        executor.execute("b", MailForwardCommand.LANE_NORMAL, recording(run, "normal1"));
+        executor.execute("b", MailForwardCommand.LANE_NORMAL, recording(run, "normal2"));
+        for (int i = 0; i < 4; i++) {
+            held.runNext();
+        }
+        // Taking turns with the normal lane instead of waiting for it to empty
+        assertEquals(Arrays.asList("first", "normal1", "low", "normal2"), run);
+        assertEquals(1, executor.getNumPromoted());
+    }
+
+    static Runnable recording(final List<String> run, final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                run.add(name);
+            }
+        };
+    }
+
+    static Runnable task() {
+        return new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+    }
+
+    static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Keeps the tasks handed over until run by the test.
+     */
+    static final class HeldExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override
+        public synchronized void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        synchronized int size() {
+            return tasks.size();
+        }
+
+        void runNext() {
+            Runnable task;
+            synchronized (this) {
+                task = tasks.remove(0);
+            }
+            task.run();
+        }
+    }
+
+}
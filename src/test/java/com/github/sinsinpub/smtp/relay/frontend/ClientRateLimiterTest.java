@@ -0,0 +1,141 @@
+package com.github.sinsinpub.smtp.relay.frontend;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.github.sinsinpub.smtp.relay.frontend.ClientRateLimiter.ClientState;
+
+/**
+ * Takes from the limits of made up client addresses, rates slow enough that no
+ * bucket refills during a test unless it is meant to.
+ *
+ * @author sin_sin
+ */
+public class ClientRateLimiterTest {
+
+    @Test
+    public void connectionsAreLimitedPerClient() {
+        ClientRateLimiter limiter = new ClientRateLimiter();
+        limiter.setMaxConnectionsPerClient(2);
+        ClientState first = limiter.acquireConnection(client(1));
+        assertNotNull(first);
+        assertNotNull(limiter.acquireConnection(client(1)));
+        assertNull(limiter.acquireConnection(client(1)));
+        assertNotNull(limiter.acquireConnection(client(2)));
+        limiter.releaseConnection(first);
+        assertNotNull(limiter.acquireConnection(client(1)));
+        assertEquals(1, limiter.getNumRefusedConnections().intValue());
+    }
+
+    @Test
+    public void messagesAreThrottledOverTheBurst() {
+        ClientRateLimiter limiter = new ClientRateLimiter();
+        limiter.setMessageRate(0.001);
+        limiter.setMessageBurst(2);
+        assertTrue(limiter.tryAcquireMessage(client(1)));
+        assertTrue(limiter.tryAcquireMessage(client(1)));
+        assertFalse(limiter.tryAcquireMessage(client(1)));
+        assertTrue(limiter.tryAcquireMessage(client(2)));
+        assertEquals(1, limiter.getNumThrottledMessages().intValue());
+    }
+
+    @Test
+    public void largeMessagePutsBytesInDebt() {
+        ClientRateLimiter limiter = new ClientRateLimiter();
+        limiter.setByteRate(1);
+        limiter.setByteBurst(1000);
+        assertTrue(limiter.tryAcquireMessage(client(1)));
+        limiter.consumeBytes(client(1), 100000);
+        assertFalse(limiter.tryAcquireMessage(client(1)));
+    }
+
+    @Test
+    public void throttledClientIsNotEvicted() {
+        ClientRateLimiter limiter = new ClientRateLimiter();
+        limiter.setMaxConnectionsPerClient(10);
+        limiter.setMessageRate(0.001);
+        limiter.setMessageBurst(1);
+        limiter.setMaxTrackedClients(2);
+        assertTrue(limiter.tryAcquireMessage(client(1)));
+        assertFalse(limiter.tryAcquireMessage(client(1)));
+        for (int i = 2; i < 10; i++) {
+            limiter.releaseConnection(limiter.acquireConnection(client(i)));
+        }
+        assertTrue(limiter.getNumEvictedClients().intValue() > 0);
+        // Still in debt, not handed a full bucket by eviction
+        assertFalse(limiter.tryAcquireMessage(client(1)));
+    }
+
+    @Test
+    public void connectedClientIsNotEvicted() {
+        ClientRateLimiter limiter = new ClientRateLimiter();
+        limiter.setMaxConnectionsPerClient(1);
+        limiter.setMaxTrackedClients(2);
+        assertNotNull(limiter.acquireConnection(client(1)));
+        for (int i = 2; i < 10; i++) {
+            limiter.releaseConnection(limiter.acquireConnection(client(i)));
+        }
+        assertTrue(limiter.getNumEvictedClients().intValue() > 0);
+        assertNull(limiter.acquireConnection(client(1)));
+    }
+
+    @Test(timeout = 30000)
+    public void connectionLimitHoldsWhileEvicting() throws InterruptedException {
+        final ClientRateLimiter limiter = new ClientRateLimiter();
+        limiter.setMaxConnectionsPerClient(1);
+        limiter.setMaxTrackedClients(4);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicInteger open = new AtomicInteger();
+        final AtomicInteger exceeded = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int churnFrom = 100 * (t + 1);
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int n = 0;
+                    while (running.get()) {
+                        ClientState ticket = limiter.acquireConnection(client(1));
+                        if (ticket != null) {
+                            if (open.incrementAndGet() > 1) {
+                                exceeded.incrementAndGet();
+                            }
+                            open.decrementAndGet();
+                            limiter.releaseConnection(ticket);
+                        }
+                        // Other clients coming and going, evicting now and then
+                        InetAddress other = client(churnFrom + n++ % 50);
+                        limiter.releaseConnection(limiter.acquireConnection(other));
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        Thread.sleep(1000);
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(limiter.getNumEvictedClients().intValue() > 0);
+        assertEquals(0, exceeded.get());
+    }
+
+    private static InetAddress client(int n) {
+        try {
+            return InetAddress.getByAddress(new byte[] { 10, 0, (byte) (n >> 8), (byte) n });
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,147 @@
+package com.github.sinsinpub.smtp.relay.frontend;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Decodes DATA sections fed whole and byte by byte, as they may arrive split
+ * anywhere.
+ *
+ * @author sin_sin
+ */
+public class DataDecoderTest {
+
+    private static final int BUFFER_SIZE = 4;
+
+    @Test
+    public void leadingDotsAreRemoved() throws IOException {
+        String data = "Subject: dots\r\n\r\n..one\r\n...two\r\nthree.\r\n.\r\n";
+        String expected = "Subject: dots\r\n\r\n.one\r\n..two\r\nthree.\r\n";
+        assertEquals(expected, decodeWhole(data));
+        assertEquals(expected, decodeByteByByte(data));
+    }
+
+    @Test
+    public void dotNotLeadingIsKept() throws IOException {
+        String data = "a.b\r\n x.\r\n.\r\n";
+        assertEquals("a.b\r\n x.\r\n", decodeWhole(data));
+        assertEquals("a.b\r\n x.\r\n", decodeByteByByte(data));
+    }
+
+    @Test
+    public void dotLineNotTerminatingIsKept() throws IOException {
+        // A dot followed by CR but not LF ends no data
+        String data = "line\r\n.\rmore\r\n.\r\n";
+        assertEquals("line\r\n\rmore\r\n", decodeWhole(data));
+        assertEquals("line\r\n\rmore\r\n", decodeByteByByte(data));
+    }
+
+    @Test
+    public void emptyData() throws IOException {
+        assertEquals("", decodeWhole(".\r\n"));
+        assertEquals("", decodeByteByByte(".\r\n"));
+    }
+
+    @Test
+    public void bytesAfterTerminatorAreLeft() throws IOException {
+        DataDecoder decoder = new DataDecoder(BUFFER_SIZE);
+        ByteBuffer in = ascii("body\r\n.\r\nQUIT\r\n");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(decoder.decode(in, out));
+        assertEquals("body\r\n", out.toString("ISO-8859-1"));
+        assertEquals("QUIT\r\n", remaining(in));
+    }
+
+    @Test
+    public void incompleteDataIsNotEnded() throws IOException {
+        DataDecoder decoder = new DataDecoder(BUFFER_SIZE);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertFalse(decoder.decode(ascii("body\r\n."), out));
+        assertEquals("body\r\n", out.toString("ISO-8859-1"));
+        assertTrue(decoder.decode(ascii("\r\n"), out));
+        assertEquals("body\r\n", out.toString("ISO-8859-1"));
+    }
+
+    @Test
+    public void resetStartsAtLineStart() throws IOException {
+        DataDecoder decoder = new DataDecoder(BUFFER_SIZE);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertFalse(decoder.decode(ascii("cut short"), out));
+        decoder.reset();
+        out.reset();
+        assertTrue(decoder.decode(ascii("..next\r\n.\r\n"), out));
+        assertEquals(".next\r\n", out.toString("ISO-8859-1"));
+    }
+
+    @Test
+    public void decodingGoesOnAfterSinkFailure() throws IOException {
+        DataDecoder decoder = new DataDecoder(BUFFER_SIZE);
+        ByteBuffer in = ascii("a long line\r\n.\r\nNOOP\r\n");
+        try {
+            decoder.decode(in, new FailingOutputStream());
+        } catch (IOException e) {
+            // Goes on discarding as a session does
+        }
+        assertTrue(decoder.decode(in, null));
+        assertEquals("NOOP\r\n", remaining(in));
+    }
+
+    @Test
+    public void chunksAreCopiedAsTheyAre() throws IOException {
+        DataDecoder decoder = new DataDecoder(BUFFER_SIZE);
+        ByteBuffer in = ascii("..x\r\n.\r\nrest");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        decoder.copy(in, 8, out);
+        assertEquals("..x\r\n.\r\n", out.toString("ISO-8859-1"));
+        assertEquals("rest", remaining(in));
+    }
+
+    private static String decodeWhole(String data) throws IOException {
+        DataDecoder decoder = new DataDecoder(BUFFER_SIZE);
+        ByteBuffer in = ascii(data);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(decoder.decode(in, out));
+        assertFalse(in.hasRemaining());
+        return out.toString("ISO-8859-1");
+    }
+
+    private static String decodeByteByByte(String data) throws IOException {
+        DataDecoder decoder = new DataDecoder(BUFFER_SIZE);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] bytes = data.getBytes("ISO-8859-1");
+        for (int i = 0; i < bytes.length; i++) {
+            boolean ended = decoder.decode(ByteBuffer.wrap(bytes, i, 1), out);
+            assertEquals(i == bytes.length - 1, ended);
+        }
+        return out.toString("ISO-8859-1");
+    }
+
+    private static ByteBuffer ascii(String s) throws IOException {
+        return ByteBuffer.wrap(s.getBytes("ISO-8859-1"));
+    }
+
+    private static String remaining(ByteBuffer in) throws IOException {
+        return new String(in.array(), in.position(), in.remaining(), "ISO-8859-1");
+    }
+
+    private static final class FailingOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            throw new IOException("Disk full");
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            throw new IOException("Disk full");
+        }
+    }
+
+}
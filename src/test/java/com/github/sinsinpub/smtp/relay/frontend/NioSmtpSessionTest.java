@@ -0,0 +1,143 @@
+package com.github.sinsinpub.smtp.relay.frontend;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.subethamail.smtp.MessageContext;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.MessageHandlerFactory;
+
+import com.github.sinsinpub.smtp.relay.spool.MailSpooler;
+
+/**
+ * Talks SMTP to a server on the loopback, whole scripts pipelined in one write,
+ * and reads the replies up to the close after QUIT.
+ *
+ * @author sin_sin
+ */
+public class NioSmtpSessionTest {
+
+    private NioSmtpServer server;
+    private int port;
+    private final List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp() throws IOException {
+        ServerSocket probe = new ServerSocket(0);
+        port = probe.getLocalPort();
+        probe.close();
+        server = new NioSmtpServer(new MessageHandlerFactory() {
+            @Override
+            public MessageHandler create(MessageContext context) {
+                return new RecordingHandler();
+            }
+        }, new MailSpooler(null, Integer.MAX_VALUE, 8192, 0L));
+        server.setBindAddress(InetAddress.getLoopbackAddress());
+        server.setPort(port);
+        server.setIoThreadCnt(1);
+        server.setDeliveryThreadCnt(1);
+        server.setHostName("relay.test");
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test(timeout = 10000)
+    public void bdatChunkIsDelivered() throws IOException {
+        List<String> replies = talk("EHLO client\r\nMAIL FROM:<a@x.net>\r\nRCPT TO:<b@y.net>\r\n"
+                + "BDAT 6\r\nSubjecBDAT 3 LAST\r\nt\r\nQUIT\r\n");
+        assertEquals("250 2.0.0 6 octets received", replies.get(replies.size() - 3));
+        assertEquals("250 Ok", replies.get(replies.size() - 2));
+        assertEquals(1, delivered.size());
+        assertTrue(delivered.get(0).endsWith("\r\nSubject\r\n"));
+    }
+
+    @Test(timeout = 10000)
+    public void bdatBeforeMailIsRefused() throws IOException {
+        List<String> replies = talk("EHLO client\r\nBDAT 5\r\nabcdeNOOP\r\nQUIT\r\n");
+        assertEquals("503 5.5.1 Error: need MAIL command", replies.get(replies.size() - 3));
+        // The chunk is skipped, the session goes on
+        assertEquals("250 Ok", replies.get(replies.size() - 2));
+        assertEquals("221 2.0.0 Bye", replies.get(replies.size() - 1));
+        assertEquals(0, delivered.size());
+    }
+
+    @Test(timeout = 10000)
+    public void bdatBeforeRcptIsRefused() throws IOException {
+        List<String> replies = talk("HELO client\r\nMAIL FROM:<a@x.net>\r\nBDAT 4 LAST\r\n"
+                + "abcdRSET\r\nQUIT\r\n");
+        assertEquals("503 5.5.1 Error: need RCPT command", replies.get(replies.size() - 3));
+        assertEquals("250 Ok", replies.get(replies.size() - 2));
+        assertEquals(0, delivered.size());
+    }
+
+    @Test(timeout = 10000)
+    public void dotStuffedDataIsDelivered() throws IOException {
+        List<String> replies = talk("HELO client\r\nMAIL FROM:<a@x.net>\r\nRCPT TO:<b@y.net>\r\n"
+                + "DATA\r\n..dot\r\n.\r\nQUIT\r\n");
+        assertEquals("354 End data with <CR><LF>.<CR><LF>", replies.get(replies.size() - 3));
+        assertEquals("250 Ok", replies.get(replies.size() - 2));
+        assertTrue(delivered.get(0).endsWith("\r\n.dot\r\n"));
+    }
+
+    private List<String> talk(String script) throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        try {
+            OutputStream out = socket.getOutputStream();
+            out.write(script.getBytes("ISO-8859-1"));
+            out.flush();
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), "ISO-8859-1"));
+            List<String> replies = new ArrayList<String>();
+            String line;
+            while ((line = in.readLine()) != null) {
+                replies.add(line);
+            }
+            return replies;
+        } finally {
+            IOUtils.closeQuietly(socket);
+        }
+    }
+
+    private class RecordingHandler implements MessageHandler {
+        @Override
+        public void from(String from) {
+        }
+
+        @Override
+        public void recipient(String recipient) {
+        }
+
+        @Override
+        public void data(InputStream data) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            IOUtils.copy(data, bytes);
+            delivered.add(bytes.toString("ISO-8859-1"));
+        }
+
+        @Override
+        public void done() {
+        }
+    }
+
+}
@@ -0,0 +1,202 @@
+package com.github.sinsinpub.smtp.relay.spool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+/**
+ * Interns heap data counting how often each storage is released, since the
+ * store must release every copy exactly once and only with its last reference.
+ *
+ * @author sin_sin
+ */
+public class ContentStoreTest {
+
+    private static final int MIN_SIZE = 16;
+
+    @Test
+    public void sameDataIsKeptOnce() throws IOException {
+        ContentStore store = new ContentStore(MIN_SIZE);
+        CountedStorage first = new CountedStorage(data('a', 100));
+        CountedStorage second = new CountedStorage(data('a', 100));
+        MessageStorage firstRef = store.intern(first);
+        MessageStorage secondRef = store.intern(second);
+        assertEquals(1, store.getBodyCnt());
+        assertEquals(100, store.getBodyBytes());
+        assertEquals(1, store.getNumDeduplicated());
+        assertEquals(100, store.getNumDeduplicatedBytes());
+        // The copy is released at once, the kept one read through both
+        assertEquals(0, first.released.get());
+        assertEquals(1, second.released.get());
+        assertArrayEquals(data('a', 100), read(secondRef));
+
+        firstRef.release();
+        assertEquals(0, first.released.get());
+        secondRef.release();
+        assertEquals(1, first.released.get());
+        assertEquals(0, store.getBodyCnt());
+        assertEquals(0, store.getBodyBytes());
+    }
+
+    @Test
+    public void referenceIsReleasedOnce() throws IOException {
+        ContentStore store = new ContentStore(MIN_SIZE);
+        CountedStorage kept = new CountedStorage(data('a', 100));
+        MessageStorage firstRef = store.intern(kept);
+        MessageStorage secondRef = store.intern(new CountedStorage(data('a', 100)));
+        firstRef.release();
+        firstRef.release();
+        assertEquals(0, kept.released.get());
+        assertEquals(1, store.getBodyCnt());
+        secondRef.release();
+        secondRef.release();
+        assertEquals(1, kept.released.get());
+    }
+
+    @Test
+    public void differentDataIsKeptApart() throws IOException {
+        ContentStore store = new ContentStore(MIN_SIZE);
+        MessageStorage a = store.intern(new CountedStorage(data('a', 100)));
+        MessageStorage b = store.intern(new CountedStorage(data('b', 100)));
+        MessageStorage longer = store.intern(new CountedStorage(data('a', 101)));
+        assertEquals(3, store.getBodyCnt());
+        assertEquals(0, store.getNumDeduplicated());
+        assertArrayEquals(data('b', 100), read(b));
+        a.release();
+        b.release();
+        longer.release();
+        assertEquals(0, store.getBodyCnt());
+    }
+
+    @Test
+    public void smallDataIsReturnedAsIs() throws IOException {
+        ContentStore store = new ContentStore(MIN_SIZE);
+        CountedStorage small = new CountedStorage(data('a', MIN_SIZE - 1));
+        assertSame(small, store.intern(small));
+        assertSame(small, store.intern(small));
+        assertEquals(0, store.getBodyCnt());
+        assertEquals(0, store.getNumInterned());
+    }
+
+    @Test
+    public void digestTakenOnSpoolingIsUsed() throws IOException {
+        ContentStore store = new ContentStore(MIN_SIZE);
+        byte[] data = data('a', 100);
+        MessageStorage read = store.intern(new CountedStorage(data));
+        // Digest of other data, so it is not read back to be matched
+        CountedStorage spooled = new CountedStorage(data);
+        MessageStorage digested = store.intern(new DigestedMessageStorage(spooled,
+                ContentStore.newDigest().digest(data('b', 100))));
+        assertEquals(2, store.getBodyCnt());
+        assertEquals(0, spooled.opened.get());
+
+        CountedStorage again = new CountedStorage(data);
+        MessageStorage same = store.intern(new DigestedMessageStorage(again,
+                ContentStore.newDigest().digest(data)));
+        assertEquals(2, store.getBodyCnt());
+        assertEquals(1, again.released.get());
+        read.release();
+        digested.release();
+        same.release();
+        assertEquals(0, store.getBodyCnt());
+        assertEquals(1, spooled.released.get());
+    }
+
+    @Test(timeout = 30000)
+    public void concurrentInternsKeepCountsRight() throws Exception {
+        final ContentStore store = new ContentStore(MIN_SIZE);
+        final List<CountedStorage> storages = new ArrayList<CountedStorage>();
+        final List<MessageStorage> refs = new ArrayList<MessageStorage>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < 200; i++) {
+                            CountedStorage storage = new CountedStorage(data('a', 100));
+                            MessageStorage ref = store.intern(storage);
+                            synchronized (storages) {
+                                storages.add(storage);
+                                refs.add(ref);
+                            }
+                        }
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, failures.get());
+        assertEquals(1, store.getBodyCnt());
+        assertEquals(storages.size() - 1, store.getNumDeduplicated());
+        for (MessageStorage ref : refs) {
+            ref.release();
+        }
+        assertEquals(0, store.getBodyCnt());
+        for (CountedStorage storage : storages) {
+            assertEquals(1, storage.released.get());
+        }
+    }
+
+    private static byte[] read(MessageStorage storage) throws IOException {
+        InputStream in = storage.openStream();
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private static byte[] data(char c, int size) {
+        byte[] data = new byte[size];
+        Arrays.fill(data, (byte) c);
+        return data;
+    }
+
+    /**
+     * Heap data counting how often it is opened and released.
+     */
+    private static class CountedStorage extends HeapMessageStorage {
+        private static final long serialVersionUID = 1L;
+
+        final AtomicInteger opened = new AtomicInteger();
+        final AtomicInteger released = new AtomicInteger();
+
+        CountedStorage(byte[] data) {
+            super(data);
+        }
+
+        @Override
+        public InputStream openStream() {
+            opened.incrementAndGet();
+            return super.openStream();
+        }
+
+        @Override
+        public void release() {
+            released.incrementAndGet();
+            super.release();
+        }
+    }
+
+}
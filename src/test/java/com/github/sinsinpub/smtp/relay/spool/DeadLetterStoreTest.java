@@ -0,0 +1,193 @@
+package com.github.sinsinpub.smtp.relay.spool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.sinsinpub.smtp.relay.context.MailContext;
+
+/**
+ * Keeps messages in a store in a temporary directory, and reopens it as on a
+ * restart.
+ *
+ * @author sin_sin
+ */
+public class DeadLetterStoreTest {
+
+    /** Every message rolls over to a new segment */
+    private static final long TINY_SEGMENT = 1;
+    private static final long LARGE_SEGMENT = 1024 * 1024;
+
+    private File directory;
+    private DeadLetterStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("deadletter", "");
+        FileUtils.forceDelete(directory);
+        FileUtils.forceMkdir(directory);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (store != null) {
+            store.close();
+        }
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Test
+    public void keptMessagesAreReadBack() throws IOException {
+        // The small one stored as is, the large one deflated
+        open(LARGE_SEGMENT, 1024);
+        byte[] small = data("<small@domain.net>", 1);
+        byte[] large = data("<large@domain.net>", 1000);
+        long first = store.add(mail("a@domain.net", small), "rule@", "550 No such user");
+        long second = store.add(mail("b@domain.net", large), "rule@", "554 Rejected");
+        assertArrayEquals(small, read(first));
+        assertArrayEquals(large, read(second));
+        assertArrayEquals(new String[] { "a@domain.net", "x@y.net" }, store.getEnvelope(first));
+
+        reopen(LARGE_SEGMENT);
+        assertEquals(2, store.getEntryCnt());
+        assertArrayEquals(small, read(first));
+        assertArrayEquals(large, read(second));
+    }
+
+    @Test
+    public void entriesAreSelectedByField() throws IOException {
+        open(LARGE_SEGMENT, -1);
+        long first = store.add(mail("a@domain.net", data("<1@domain.net>", 1)), "one@",
+                "550 No such user");
+        long second = store.add(mail("b@domain.net", data("<2@domain.net>", 1)), "two@",
+                "550 No such user");
+        long third = store.add(mail("a@domain.net", data("<3@domain.net>", 1)), "two@",
+                "554 Rejected");
+        assertEquals(Arrays.asList(first, second, third),
+                store.select(DeadLetterStore.FIELD_ALL, null, 0));
+        assertEquals(Arrays.asList(first, third),
+                store.select(DeadLetterStore.FIELD_SENDER, "a@domain.net", 0));
+        assertEquals(Arrays.asList(second),
+                store.select(DeadLetterStore.FIELD_ROUTE, "two@", 1));
+        assertEquals(Arrays.asList(second),
+                store.select(DeadLetterStore.FIELD_MESSAGE_ID, "<2@domain.net>", 0));
+        assertEquals(2, store.count(DeadLetterStore.FIELD_REASON, "550 No such user"));
+        assertEquals(Integer.valueOf(2), store.countBy(DeadLetterStore.FIELD_ROUTE).get("two@"));
+        assertTrue(store.select(DeadLetterStore.FIELD_ROUTE, "three@", 0).isEmpty());
+    }
+
+    @Test
+    public void removedEntriesStayRemoved() throws IOException {
+        open(LARGE_SEGMENT, -1);
+        long first = store.add(mail("a@domain.net", data("<1@domain.net>", 1)), "one@", "");
+        long second = store.add(mail("b@domain.net", data("<2@domain.net>", 1)), "one@", "");
+        assertTrue(store.remove(first));
+        assertFalse(store.remove(first));
+        assertEquals(Collections.singletonList(second),
+                store.select(DeadLetterStore.FIELD_ROUTE, "one@", 0));
+
+        reopen(LARGE_SEGMENT);
+        assertEquals(Collections.singletonList(second),
+                store.select(DeadLetterStore.FIELD_ALL, null, 0));
+        try {
+            store.openData(first);
+            fail("Removed entry read");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("No dead letter"));
+        }
+        // Ids are not reused
+        long third = store.add(mail("c@domain.net", data("<3@domain.net>", 1)), "one@", "");
+        assertTrue(third > second);
+    }
+
+    @Test
+    public void emptySegmentsAreDeleted() throws IOException {
+        open(TINY_SEGMENT, -1);
+        long first = store.add(mail("a@domain.net", data("<1@domain.net>", 1)), "one@", "");
+        long second = store.add(mail("b@domain.net", data("<2@domain.net>", 1)), "one@", "");
+        // Two full ones and the current one
+        assertEquals(3, store.getSegmentCnt());
+        store.remove(first);
+        assertEquals(2, store.getSegmentCnt());
+        store.remove(second);
+        assertEquals(1, store.getSegmentCnt());
+        assertEquals(1, directory.list().length);
+    }
+
+    @Test
+    public void lineCutShortIsSkipped() throws IOException {
+        open(LARGE_SEGMENT, -1);
+        long id = store.add(mail("a@domain.net", data("<1@domain.net>", 1)), "one@", "");
+        store.close();
+        File[] indexes = directory.listFiles();
+        for (File index : indexes) {
+            if (index.getName().endsWith(DeadLetterStore.INDEX_FILE_SUFFIX)
+                    && index.length() > 0) {
+                // As if crashed while adding the next one
+                FileOutputStream out = new FileOutputStream(index, true);
+                try {
+                    out.write("E\t2\t".getBytes("UTF-8"));
+                } finally {
+                    IOUtils.closeQuietly(out);
+                }
+            }
+        }
+        open(LARGE_SEGMENT, -1);
+        assertEquals(Collections.singletonList(id),
+                store.select(DeadLetterStore.FIELD_ALL, null, 0));
+    }
+
+    private void open(long segmentSize, long compressMinSize) throws IOException {
+        store = new DeadLetterStore(directory, segmentSize, compressMinSize);
+        store.open();
+    }
+
+    private void reopen(long segmentSize) throws IOException {
+        store.close();
+        open(segmentSize, -1);
+    }
+
+    private byte[] read(long id) throws IOException {
+        InputStream in = store.openData(id);
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private static MailContext mail(String from, byte[] data) {
+        List<String> to = Collections.singletonList("x@y.net");
+        return new MailContext(from, to, new HeapMessageStorage(data));
+    }
+
+    private static byte[] data(String messageId, int bodyLines) {
+        StringBuilder message = new StringBuilder("Message-ID: " + messageId
+                + "\r\nSubject: Dead letter\r\n\r\n");
+        for (int i = 0; i < bodyLines; i++) {
+            message.append("Body line ").append(i).append("\r\n");
+        }
+        try {
+            return message.toString().getBytes("UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
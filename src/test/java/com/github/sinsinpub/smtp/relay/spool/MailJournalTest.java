@@ -0,0 +1,401 @@
+package com.github.sinsinpub.smtp.relay.spool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.sinsinpub.smtp.relay.context.MailContext;
+
+/**
+ * Appends to a journal in a temporary directory, and reopens it as on a restart.
+ *
+ * @author sin_sin
+ */
+public class MailJournalTest {
+
+    /** Every record rolls over to a new segment */
+    private static final long TINY_SEGMENT = 1;
+
+    /** Rolls after the second message of the tests */
+    private static final long TWO_MESSAGE_SEGMENT = 150;
+    /** No roll in the tests */
+    private static final long LARGE_SEGMENT = 1024 * 1024;
+
+    private File directory;
+    private MailJournal journal;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("journal", "");
+        FileUtils.forceDelete(directory);
+        FileUtils.forceMkdir(directory);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Test
+    public void appendedMessagesAreReplayed() throws IOException {
+        open(LARGE_SEGMENT);
+        MailContext first = mail("first@domain.net", "a@x.net");
+        MailContext second = mail("second@domain.net", "b@y.net", "c@z.net");
+        journal.append(first);
+        journal.append(second);
+        assertEquals(2, journal.getNumAppends());
+        assertEquals(2, journal.getPendingCnt());
+
+        List<MailContext> pending = reopen(LARGE_SEGMENT);
+        assertEquals(2, pending.size());
+        assertReplayed(pending.get(0), first.getJournalId(), "first@domain.net", "a@x.net");
+        assertReplayed(pending.get(1), second.getJournalId(), "second@domain.net", "b@y.net",
+                "c@z.net");
+        assertTrue(journal.getDeferredDueTimes().isEmpty());
+    }
+
+    @Test
+    public void completedMessagesAreNotReplayed() throws IOException {
+        open(LARGE_SEGMENT);
+        MailContext first = mail("first@domain.net", "a@x.net");
+        MailContext second = mail("second@domain.net", "b@y.net");
+        journal.append(first);
+        journal.append(second);
+        journal.complete(first);
+        assertNull(journal.load(first.getJournalId()));
+        assertEquals(1, journal.getPendingCnt());
+
+        List<MailContext> pending = reopen(LARGE_SEGMENT);
+        assertEquals(1, pending.size());
+        assertReplayed(pending.get(0), second.getJournalId(), "second@domain.net", "b@y.net");
+    }
+
+    @Test
+    public void doneSegmentsAreDeleted() throws IOException {
+        open(TINY_SEGMENT);
+        List<MailContext> mails = new ArrayList<MailContext>();
+        for (int i = 0; i < 3; i++) {
+            MailContext mail = mail("sender" + i + "@domain.net", "a@x.net");
+            journal.append(mail);
+            mails.add(mail);
+        }
+        // One segment per message, and the current one
+        assertEquals(4, journal.getSegmentCnt());
+        assertEquals(4, segmentFiles());
+
+        for (MailContext mail : mails) {
+            journal.complete(mail);
+        }
+        assertEquals(0, journal.getPendingCnt());
+        assertEquals(1, journal.getSegmentCnt());
+        assertTrue(journal.getNumDeletedBytes() > 0);
+
+        assertTrue(reopen(TINY_SEGMENT).isEmpty());
+        assertEquals(0, journal.getPendingCnt());
+    }
+
+    @Test
+    public void compactionRelocatesLiveMessages() throws IOException {
+        open(TWO_MESSAGE_SEGMENT);
+        MailContext done = mail("done@domain.net", "a@x.net");
+        MailContext kept = mail("kept@domain.net", "b@y.net");
+        journal.append(done);
+        journal.append(kept);
+        assertEquals(2, journal.getSegmentCnt());
+        journal.complete(done);
+
+        List<Long> candidates = journal.getCompactionCandidates(0.9);
+        assertEquals(1, candidates.size());
+        List<Long> ids = journal.beginCompaction(candidates.get(0));
+        assertEquals(Collections.singletonList(kept.getJournalId()), ids);
+        assertTrue(journal.relocate(kept.getJournalId()) > 0);
+        journal.endCompaction(candidates.get(0));
+        assertEquals(1, journal.getNumRelocated());
+        assertEquals(1, journal.getSegmentCnt());
+
+        List<MailContext> pending = reopen(TWO_MESSAGE_SEGMENT);
+        assertEquals(1, pending.size());
+        assertReplayed(pending.get(0), kept.getJournalId(), "kept@domain.net", "b@y.net");
+    }
+
+    @Test
+    public void tooLongEnvelopeIsNotJournaled() throws IOException {
+        open(LARGE_SEGMENT);
+        StringBuilder recipient = new StringBuilder();
+        while (recipient.length() <= 0xffff) {
+            recipient.append("recipient@domain.net");
+        }
+        try {
+            journal.append(mail("sender@domain.net", recipient.toString()));
+            fail("Too long envelope journaled");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Envelope too long"));
+        }
+        // Still appendable after the failure
+        MailContext mail = mail("sender@domain.net", "a@x.net");
+        journal.append(mail);
+
+        List<MailContext> pending = reopen(LARGE_SEGMENT);
+        assertEquals(1, pending.size());
+        assertReplayed(pending.get(0), mail.getJournalId(), "sender@domain.net", "a@x.net");
+    }
+
+    @Test(timeout = 10000)
+    public void appendsCopyDataAtTheSameTime() throws Exception {
+        open(LARGE_SEGMENT);
+        HeldStorage held = new HeldStorage(data("first@domain.net"));
+        MailContext first = new MailContext("first@domain.net", Arrays.asList("a@x.net"), held);
+        Appender appender = new Appender(first);
+        appender.start();
+        held.reading.await();
+        // Not waiting for the copy of the first one
+        MailContext second = mail("second@domain.net", "b@y.net");
+        journal.append(second);
+        assertEquals(1, journal.getPendingCnt());
+        held.proceed.countDown();
+        appender.join();
+        assertNull(appender.failure);
+        assertEquals(2, journal.getPendingCnt());
+
+        List<MailContext> pending = reopen(LARGE_SEGMENT);
+        assertEquals(2, pending.size());
+        assertReplayed(pending.get(0), first.getJournalId(), "first@domain.net", "a@x.net");
+        assertReplayed(pending.get(1), second.getJournalId(), "second@domain.net", "b@y.net");
+    }
+
+    @Test(timeout = 10000)
+    public void appendCutShortIsSkippedOnReplay() throws Exception {
+        open(LARGE_SEGMENT);
+        HeldStorage held = new HeldStorage(data("first@domain.net"));
+        Appender appender = new Appender(new MailContext("first@domain.net",
+                Arrays.asList("a@x.net"), held));
+        appender.start();
+        held.reading.await();
+        MailContext second = mail("second@domain.net", "b@y.net");
+        journal.append(second);
+        // As if crashed while the first one was copied
+        journal.close();
+        held.proceed.countDown();
+        appender.join();
+        assertTrue(appender.failure instanceof IOException);
+
+        List<MailContext> pending = open(LARGE_SEGMENT);
+        assertEquals(1, pending.size());
+        assertReplayed(pending.get(0), second.getJournalId(), "second@domain.net", "b@y.net");
+        MailContext third = mail("third@domain.net", "c@z.net");
+        journal.append(third);
+        assertTrue(third.getJournalId() > second.getJournalId());
+    }
+
+    @Test
+    public void retryStateSurvivesRestart() throws IOException {
+        List<MailContext> pending = open(TINY_SEGMENT);
+        assertTrue(pending.isEmpty());
+        MailContext mail = mail("sender@domain.net", "a@x.net", "b@y.net");
+        journal.append(mail);
+        long due = System.currentTimeMillis() + 60000;
+        defer(mail, due, "b@y.net");
+        assertEquals(Collections.singletonMap(mail.getJournalId(), due),
+                journal.getDeferredDueTimes());
+
+        assertTrue(reopen(TINY_SEGMENT).isEmpty());
+        assertDeferred(mail.getJournalId(), due, "b@y.net");
+    }
+
+    @Test
+    public void retryStateSurvivesCompaction() throws IOException {
+        open(TINY_SEGMENT);
+        MailContext mail = mail("sender@domain.net", "a@x.net", "b@y.net");
+        journal.append(mail);
+        long due = System.currentTimeMillis() + 60000;
+        defer(mail, due, "b@y.net");
+        // The ENQUEUE segment, then the one with only the RETRY record
+        List<Long> candidates = journal.getCompactionCandidates(1.01);
+        assertEquals(2, candidates.size());
+        compact(candidates);
+        assertEquals(1, journal.getNumRelocated());
+        assertEquals(2, journal.getSegmentCnt());
+
+        assertTrue(reopen(TINY_SEGMENT).isEmpty());
+        assertDeferred(mail.getJournalId(), due, "b@y.net");
+    }
+
+    @Test
+    public void retryOnlySegmentIsCompacted() throws IOException {
+        open(TINY_SEGMENT);
+        MailContext mail = mail("sender@domain.net", "a@x.net", "b@y.net");
+        journal.append(mail);
+        long due = System.currentTimeMillis() + 60000;
+        defer(mail, due, "b@y.net");
+        List<Long> candidates = journal.getCompactionCandidates(0.5);
+        assertEquals(1, candidates.size());
+        compact(candidates);
+        // The retry state is written again, the message is not copied
+        assertEquals(0, journal.getNumRelocated());
+        assertEquals(3, journal.getSegmentCnt());
+
+        assertTrue(reopen(TINY_SEGMENT).isEmpty());
+        assertDeferred(mail.getJournalId(), due, "b@y.net");
+    }
+
+    @Test
+    public void unloadedMessageIsRelocatedAgain() throws IOException {
+        open(TINY_SEGMENT);
+        MailContext mail = mail("sender@domain.net", "a@x.net");
+        journal.append(mail);
+        defer(mail, System.currentTimeMillis() + 60000, "a@x.net");
+        long index = journal.getCompactionCandidates(1.01).get(0);
+        // Loaded for its retry, left in place
+        MailContext loaded = journal.load(mail.getJournalId());
+        assertTrue(journal.beginCompaction(index).isEmpty());
+        journal.endCompaction(index);
+        // Not queued after all
+        loaded.release();
+        journal.unload(mail.getJournalId());
+        assertEquals(Arrays.asList(mail.getJournalId()), journal.beginCompaction(index));
+        journal.endCompaction(index);
+    }
+
+    private int segmentFiles() {
+        return directory.list().length;
+    }
+
+    private void assertReplayed(MailContext replayed, long id, String from, String... to)
+            throws IOException {
+        assertEquals(id, replayed.getJournalId());
+        assertEquals(from, replayed.getEnvelopeSender());
+        assertEquals(Arrays.asList(to), replayed.getEnvelopeRecipients());
+        assertEquals(0, replayed.getFailedTries());
+        assertArrayEquals(data(from), read(replayed));
+    }
+
+    private List<MailContext> open(long segmentSize) throws IOException {
+        journal = new MailJournal(directory, MailJournal.FSYNC_NONE, segmentSize, 0);
+        return journal.open();
+    }
+
+    private List<MailContext> reopen(long segmentSize) throws IOException {
+        journal.close();
+        return open(segmentSize);
+    }
+
+    private void defer(MailContext mail, long due, String... recipients) throws IOException {
+        mail.setFailedTries(mail.getFailedTries() + 1);
+        mail.setNextAttemptTime(due);
+        mail.setLastError("451 Try again later");
+        mail.setEnvelopeRecipients(Arrays.asList(recipients));
+        journal.retry(mail);
+    }
+
+    private void compact(List<Long> segments) throws IOException {
+        for (long index : segments) {
+            for (long id : journal.beginCompaction(index)) {
+                journal.relocate(id);
+            }
+            journal.endCompaction(index);
+        }
+    }
+
+    private void assertDeferred(long id, long due, String... recipients) throws IOException {
+        assertEquals(Collections.singletonMap(id, due), journal.getDeferredDueTimes());
+        MailContext loaded = journal.load(id);
+        assertEquals(1, loaded.getFailedTries());
+        assertEquals(due, loaded.getNextAttemptTime());
+        assertEquals("451 Try again later", loaded.getLastError());
+        assertEquals("sender@domain.net", loaded.getEnvelopeSender());
+        assertEquals(Arrays.asList(recipients), loaded.getEnvelopeRecipients());
+        assertArrayEquals(data("sender@domain.net"), read(loaded));
+    }
+
+    private static MailContext mail(String from, String... to) {
+        return new MailContext(from, Arrays.asList(to), new HeapMessageStorage(data(from)));
+    }
+
+    private static byte[] data(String from) {
+        try {
+            return ("From: " + from + "\r\nSubject: Journal\r\n\r\nBody\r\n").getBytes("UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Data the stream of which holds the first read until the test lets it proceed.
+     */
+    private static final class HeldStorage extends HeapMessageStorage {
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        private final byte[] data;
+
+        HeldStorage(byte[] data) {
+            super(data);
+            this.data = data;
+        }
+
+        @Override
+        public InputStream openStream() {
+            return new ByteArrayInputStream(data) {
+                @Override
+                public synchronized int read(byte[] b, int off, int len) {
+                    reading.countDown();
+                    try {
+                        proceed.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return super.read(b, off, len);
+                }
+            };
+        }
+    }
+
+    private final class Appender extends Thread {
+        private final MailContext mail;
+        volatile Exception failure;
+
+        Appender(MailContext mail) {
+            this.mail = mail;
+        }
+
+        @Override
+        public void run() {
+            try {
+                journal.append(mail);
+            } catch (Exception e) {
+                failure = e;
+            }
+        }
+    }
+
+    private static byte[] read(MailContext mail) throws IOException {
+        InputStream in = mail.getMessageStorage().openStream();
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+}
@@ -0,0 +1,218 @@
+package com.github.sinsinpub.smtp.relay.test.manual;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import com.github.sinsinpub.smtp.relay.transport.DnsResolver;
+import com.github.sinsinpub.smtp.relay.transport.MxRoute;
+
+/**
+ * Resolves MX hosts against a stub DNS server on the loopback, twice, to show the
+ * ordering, the fallback to the domain itself, the null MX, negative answers and
+ * the cache. Pass the port of a listening SMTP server, such as
+ * {@link SmtpServerTest}, as the first argument to deliver to it too, the MX hosts
+ * of <code>example.test</code> being loopback addresses.
+ */
+public class MxResolverTest {
+
+    private static final String[] DOMAINS = { "example.test", "nomx.test", "nullmx.test",
+            "missing.test" };
+
+    public static void main(String[] args) throws Exception {
+        StubDnsServer dns = new StubDnsServer();
+        Thread server = new Thread(dns, "Stub-DNS");
+        server.setDaemon(true);
+        server.start();
+
+        DnsResolver resolver = new DnsResolver();
+        resolver.setServers(Arrays.asList(new InetSocketAddress(InetAddress
+                .getLoopbackAddress(), dns.getPort())));
+        resolver.afterPropertiesSet();
+        MxRoute route = new MxRoute();
+        route.setSession(Session.getInstance(new Properties()));
+        route.setResolver(resolver);
+        route.afterPropertiesSet();
+
+        for (int round = 1; round <= 2; round++) {
+            for (String domain : DOMAINS) {
+                System.out.println(domain + " hosts " + route.lookupHosts(domain)
+                        + " addresses " + route.lookupTargets(domain));
+            }
+            System.out.println("Round " + round + ": " + dns.queries.get()
+                    + " queries served, " + resolver.getNumCacheHits() + " cache hits, "
+                    + resolver.getNumNegativeHits() + " negative");
+        }
+
+        if (args.length > 0) {
+            route.setPort(Integer.parseInt(args[0]));
+            Message message = new MimeMessage(route.getSession());
+            message.setFrom(new InternetAddress("sender@domain.net"));
+            message.setSubject("Testing MX delivery");
+            message.setText("Delivered by MX of example.test");
+            route.send(message, new Address[] { new InternetAddress("receiver@example.test") });
+            System.out.println("Delivered");
+        }
+    }
+
+    /**
+     * Answers from a fixed zone: NXDOMAIN for unknown names, NODATA for known names
+     * without records of the type, both with an SOA record.
+     */
+    static class StubDnsServer implements Runnable {
+        final AtomicInteger queries = new AtomicInteger();
+        private final DatagramSocket socket;
+
+        StubDnsServer() throws IOException {
+            socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        }
+
+        int getPort() {
+            return socket.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[512];
+            while (true) {
+                try {
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    socket.receive(packet);
+                    queries.incrementAndGet();
+                    byte[] response = answer(Arrays.copyOf(buffer, packet.getLength()));
+                    socket.send(new DatagramPacket(response, response.length, packet
+                            .getSocketAddress()));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+            }
+        }
+
+        private byte[] answer(byte[] query) throws IOException {
+            ByteBuffer in = ByteBuffer.wrap(query);
+            int id = in.getShort() & 0xffff;
+            in.position(12);
+            StringBuilder name = new StringBuilder();
+            for (int length = in.get(); length > 0; length = in.get()) {
+                byte[] label = new byte[length];
+                in.get(label);
+                name.append(name.length() > 0 ? "." : "").append(new String(label, "US-ASCII"));
+            }
+            int type = in.getShort();
+            byte[] question = Arrays.copyOfRange(query, 12, in.position() + 2);
+            String domain = name.toString();
+
+            ByteArrayOutputStream records = new ByteArrayOutputStream();
+            int answers = 0;
+            boolean known = true;
+            if (type == DnsResolver.TYPE_MX && domain.equals("example.test")) {
+                answers += mx(records, domain, 20, "mx2.example.test");
+                answers += mx(records, domain, 10, "mx1.example.test");
+                answers += mx(records, domain, 10, "mx1b.example.test");
+            } else if (type == DnsResolver.TYPE_MX && domain.equals("nullmx.test")) {
+                answers += mx(records, domain, 0, "");
+            } else if (type == DnsResolver.TYPE_A && domain.equals("mx1.example.test")) {
+                answers += a(records, domain, 127, 0, 0, 1);
+            } else if (type == DnsResolver.TYPE_A && domain.equals("mx1b.example.test")) {
+                answers += a(records, domain, 127, 0, 0, 2);
+            } else if (type == DnsResolver.TYPE_A && domain.equals("mx2.example.test")) {
+                answers += a(records, domain, 127, 0, 0, 3);
+            } else if (type == DnsResolver.TYPE_A && domain.equals("nomx.test")) {
+                answers += a(records, domain, 127, 0, 0, 4);
+            } else {
+                known = domain.endsWith("example.test") || domain.equals("nomx.test")
+                        || domain.equals("nullmx.test");
+            }
+            if (answers == 0) {
+                soa(records, domain.substring(domain.indexOf('.') + 1));
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeShort(id);
+            out.writeShort(0x8180 | (known ? 0 : DnsResolver.RCODE_NXDOMAIN));
+            out.writeShort(1);
+            out.writeShort(answers);
+            out.writeShort(answers == 0 ? 1 : 0);
+            out.writeShort(0);
+            out.write(question);
+            records.writeTo(out);
+            return bytes.toByteArray();
+        }
+
+        private static int mx(ByteArrayOutputStream records, String owner, int preference,
+                String host) throws IOException {
+            byte[] exchange = name(host);
+            DataOutputStream out = header(records, owner, DnsResolver.TYPE_MX, 600,
+                    2 + exchange.length);
+            out.writeShort(preference);
+            out.write(exchange);
+            return 1;
+        }
+
+        private static int a(ByteArrayOutputStream records, String owner, int... address)
+                throws IOException {
+            DataOutputStream out = header(records, owner, DnsResolver.TYPE_A, 300, 4);
+            for (int b : address) {
+                out.writeByte(b);
+            }
+            return 1;
+        }
+
+        /**
+         * Negative TTL of 60 seconds by the minimum field.
+         */
+        private static void soa(ByteArrayOutputStream records, String zone) throws IOException {
+            byte[] mname = name("ns." + zone);
+            byte[] rname = name("hostmaster." + zone);
+            DataOutputStream out = header(records, zone, DnsResolver.TYPE_SOA, 3600,
+                    mname.length + rname.length + 20);
+            out.write(mname);
+            out.write(rname);
+            out.writeInt(1);
+            out.writeInt(7200);
+            out.writeInt(900);
+            out.writeInt(86400);
+            out.writeInt(60);
+        }
+
+        private static DataOutputStream header(ByteArrayOutputStream records, String owner,
+                int type, int ttl, int length) throws IOException {
+            DataOutputStream out = new DataOutputStream(records);
+            out.write(name(owner));
+            out.writeShort(type);
+            out.writeShort(1);
+            out.writeInt(ttl);
+            out.writeShort(length);
+            return out;
+        }
+
+        private static byte[] name(String domain) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (String label : domain.split("\\.")) {
+                if (label.length() > 0) {
+                    out.write(label.length());
+                    out.write(label.getBytes("US-ASCII"));
+                }
+            }
+            out.write(0);
+            return out.toByteArray();
+        }
+    }
+
+}
@@ -0,0 +1,101 @@
+package com.github.sinsinpub.smtp.relay.test.manual;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+import com.github.sinsinpub.smtp.relay.spool.DeflatedFileMessageStorage;
+import com.github.sinsinpub.smtp.relay.spool.MailSpooler;
+import com.github.sinsinpub.smtp.relay.spool.MessageStorage;
+
+/**
+ * Compares spooling text mail plain and deflated: wall time and CPU time to spool
+ * and to read back, and bytes on disk. Pass the spool directory as the first
+ * argument, a temporary one is used otherwise.
+ */
+public class SpoolCompressionBenchmark {
+
+    private static final int[] SIZES = { 64 * 1024, 1024 * 1024, 8 * 1024 * 1024 };
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 20;
+
+    public static void main(String[] args) throws Exception {
+        File dir = args.length > 0 ? new File(args[0]) : new File(
+                System.getProperty("java.io.tmpdir"), "spool-benchmark");
+        dir.mkdirs();
+        MailSpooler plain = new MailSpooler(dir, 0, MailSpooler.DEFAULT_BUFFER_SIZE,
+                MailSpooler.MAX_SPOOLED_SIZE, -1);
+        MailSpooler deflated = new MailSpooler(dir, 0, MailSpooler.DEFAULT_BUFFER_SIZE,
+                MailSpooler.MAX_SPOOLED_SIZE, 0);
+        System.out.println("size      mode      spool MB/s  spool cpu ms/MB  read MB/s  read cpu ms/MB  disk ratio");
+        for (int size : SIZES) {
+            byte[] message = newTextMessage(size);
+            run(plain, "plain", message, WARMUP_ROUNDS);
+            run(deflated, "deflated", message, WARMUP_ROUNDS);
+            System.out.println(run(plain, "plain", message, ROUNDS));
+            System.out.println(run(deflated, "deflated", message, ROUNDS));
+        }
+    }
+
+    private static String run(MailSpooler spooler, String mode, byte[] message, int rounds)
+            throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        byte[] buffer = new byte[65536];
+        long spoolNanos = 0, spoolCpu = 0, readNanos = 0, readCpu = 0, stored = 0;
+        for (int i = 0; i < rounds; i++) {
+            long wall = System.nanoTime();
+            long cpu = threads.getCurrentThreadCpuTime();
+            MessageStorage storage = spooler.spool(new ByteArrayInputStream(message));
+            spoolNanos += System.nanoTime() - wall;
+            spoolCpu += threads.getCurrentThreadCpuTime() - cpu;
+            stored += storage instanceof DeflatedFileMessageStorage ? ((DeflatedFileMessageStorage) storage)
+                    .getStoredSize() : storage.getSize();
+            wall = System.nanoTime();
+            cpu = threads.getCurrentThreadCpuTime();
+            InputStream in = storage.openStream();
+            long read = 0;
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                read += n;
+            }
+            in.close();
+            readNanos += System.nanoTime() - wall;
+            readCpu += threads.getCurrentThreadCpuTime() - cpu;
+            storage.release();
+            if (read != message.length) {
+                throw new IllegalStateException("Read " + read + " of " + message.length);
+            }
+        }
+        double mb = (double) message.length * rounds / (1024 * 1024);
+        return String.format("%-9d %-9s %10.1f %16.2f %10.1f %15.2f %11.3f", message.length,
+                mode, mb / (spoolNanos / 1e9), spoolCpu / 1e6 / mb, mb / (readNanos / 1e9),
+                readCpu / 1e6 / mb, (double) stored / ((long) message.length * rounds));
+    }
+
+    /**
+     * @return HTML mail of about the size, words drawn from a small vocabulary
+     */
+    private static byte[] newTextMessage(int size) {
+        String[] words = { "the", "relay", "message", "delivery", "customer", "order",
+                "<p>", "</p>", "<a href=\"https://example.com/track?id=", "\">", "</a>",
+                "account", "notification", "please", "confirm", "your", "status", "shipped",
+                "<td class=\"cell\">", "</td>", "\r\n" };
+        Random random = new Random(size);
+        StringBuilder sb = new StringBuilder(size + 256);
+        sb.append("From: sender@example.com\r\nTo: receiver@example.com\r\n");
+        sb.append("Subject: Benchmark\r\nContent-Type: text/html; charset=UTF-8\r\n\r\n");
+        while (sb.length() < size) {
+            String word = words[random.nextInt(words.length)];
+            sb.append(word);
+            if (word.endsWith("id=")) {
+                sb.append(random.nextInt(1000000));
+            }
+            sb.append(' ');
+        }
+        return sb.toString().getBytes();
+    }
+
+}
@@ -0,0 +1,130 @@
+package com.github.sinsinpub.smtp.relay.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Schedules tasks with an executor run in the test thread, so that when a task
+ * is handed over and whether it is refused are up to the test.
+ *
+ * @author sin_sin
+ */
+public class RetrySchedulerTest {
+
+    private RetryScheduler scheduler;
+
+    @After
+    public void tearDown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void dueTasksRunInDueOrder() throws InterruptedException {
+        final List<Runnable> run = Collections.synchronizedList(new ArrayList<Runnable>());
+        final CountDownLatch done = new CountDownLatch(2);
+        scheduler = new RetryScheduler(new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                run.add(task);
+                done.countDown();
+            }
+        });
+        scheduler.start();
+        Runnable later = task();
+        Runnable sooner = task();
+        assertTrue(scheduler.schedule(later, 200));
+        assertTrue(scheduler.schedule(sooner, 0));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(sooner, later), run);
+        assertEquals(2, scheduler.getNumScheduled());
+        assertEquals(0, scheduler.getPendingCnt());
+    }
+
+    @Test
+    public void waitingTasksAreHandedBackEarliestFirst() {
+        scheduler = new RetryScheduler(new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                throw new AssertionError("Not due yet");
+            }
+        });
+        scheduler.start();
+        Runnable later = task();
+        Runnable sooner = task();
+        scheduler.schedule(later, 60000);
+        scheduler.schedule(sooner, 30000);
+        assertEquals(2, scheduler.getPendingCnt());
+        assertEquals(Arrays.asList(sooner, later), scheduler.shutdownNow());
+        assertFalse(scheduler.isRunning());
+        // Not taken once handed back
+        assertFalse(scheduler.schedule(task(), 0));
+        assertEquals(0, scheduler.getPendingCnt());
+    }
+
+    @Test(timeout = 10000)
+    public void refusedTaskIsPutBack() throws InterruptedException {
+        final CountDownLatch offered = new CountDownLatch(2);
+        scheduler = new RetryScheduler(new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                offered.countDown();
+                throw new RejectedExecutionException("Full");
+            }
+        });
+        scheduler.start();
+        Runnable task = task();
+        scheduler.schedule(task, 0);
+        // Offered again after the rejected retry delay
+        assertTrue(offered.await(5, TimeUnit.SECONDS));
+        assertTrue(scheduler.getNumRejected() >= 1);
+        List<Runnable> left = scheduler.shutdownNow();
+        assertEquals(1, left.size());
+        assertSame(task, left.get(0));
+    }
+
+    @Test(timeout = 10000)
+    public void taskRefusedOnShutdownIsHandedBack() throws InterruptedException {
+        final CountDownLatch taken = new CountDownLatch(1);
+        scheduler = new RetryScheduler(new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                taken.countDown();
+                // Refused as the executor is shut down along with the scheduler
+                while (scheduler.isRunning()) {
+                    Thread.yield();
+                }
+                throw new RejectedExecutionException("Shut down");
+            }
+        });
+        scheduler.start();
+        Runnable task = task();
+        scheduler.schedule(task, 0);
+        assertTrue(taken.await(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList(task), scheduler.shutdownNow());
+    }
+
+    private static Runnable task() {
+        return new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+    }
+
+}
@@ -0,0 +1,311 @@
+package com.github.sinsinpub.smtp.relay.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Provider;
+import javax.mail.Session;
+import javax.mail.URLName;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.sinsinpub.smtp.relay.transport.TransportPool.PooledTransport;
+import com.sun.mail.smtp.SMTPTransport;
+
+/**
+ * Pools transports of a protocol registered with the session for the test, which
+ * connect to nothing and record what they are asked to do. The evictor is not
+ * started, evictions are run by the test.
+ *
+ * @author sin_sin
+ */
+public class TransportPoolTest {
+
+    private static final String PROTOCOL = "fakesmtp";
+
+    private TransportPool pool;
+    private Session session;
+
+    @Before
+    public void setUp() {
+        FakeTransport.reset();
+        pool = new TransportPool();
+        session = session("backend.net");
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Test
+    public void connectionIsReusedOnceGivenBack() throws MessagingException {
+        PooledTransport first = pool.borrow(session);
+        assertEquals(1, pool.getActiveCnt());
+        pool.giveBack(first, true);
+        assertEquals(0, pool.getActiveCnt());
+        assertEquals(1, pool.getIdleCnt());
+        PooledTransport second = pool.borrow(session);
+        assertSame(first, second);
+        assertEquals(1, pool.getNumCreated().intValue());
+        assertEquals(1, pool.getNumReused().intValue());
+        // Validated only once idle for long
+        assertEquals(0, transport(second).noops);
+    }
+
+    @Test
+    public void sessionsAreNotShared() throws MessagingException {
+        pool.giveBack(pool.borrow(session), true);
+        PooledTransport other = pool.borrow(session("other.net"));
+        assertEquals(2, FakeTransport.created.size());
+        assertSame(FakeTransport.created.get(1), other.getTransport());
+        assertEquals("idle=1,active=0", pool.getConnectionsBySession().get("backend.net:25"));
+        assertEquals("idle=0,active=1", pool.getConnectionsBySession().get("other.net:25"));
+    }
+
+    @Test
+    public void failedSendIsResetAndKept() throws MessagingException {
+        PooledTransport connection = pool.borrow(session);
+        pool.giveBack(connection, false);
+        assertEquals(Collections.singletonList("RSET"), transport(connection).commands);
+        assertFalse(transport(connection).closed);
+        assertSame(connection, pool.borrow(session));
+        assertEquals(1, pool.getNumResets().intValue());
+    }
+
+    @Test
+    public void connectionNotResetIsClosed() throws MessagingException {
+        PooledTransport connection = pool.borrow(session);
+        transport(connection).resetReply = 421;
+        pool.giveBack(connection, false);
+        assertTrue(transport(connection).closed);
+        assertEquals(0, pool.getIdleCnt());
+        assertFalse(connection == pool.borrow(session));
+    }
+
+    @Test
+    public void connectionIsClosedAfterMaxMessages() throws MessagingException {
+        pool.setMaxMessagesPerConnection(2);
+        PooledTransport connection = pool.borrow(session);
+        connection.send(message(), recipients());
+        pool.giveBack(connection, true);
+        assertSame(connection, pool.borrow(session));
+        connection.send(message(), recipients());
+        assertEquals(2, connection.getMessageCnt());
+        assertEquals(2, transport(connection).sent);
+        pool.giveBack(connection, true);
+        assertTrue(transport(connection).closed);
+        assertEquals(0, pool.getIdleCnt());
+        assertEquals(2, pool.getNumMessagesSent().intValue());
+    }
+
+    @Test
+    public void brokenIdleConnectionIsReplaced() throws MessagingException {
+        pool.setValidateAfterMillis(0);
+        PooledTransport first = pool.borrow(session);
+        pool.giveBack(first, true);
+        transport(first).broken = true;
+        PooledTransport second = pool.borrow(session);
+        assertFalse(first == second);
+        assertEquals(1, transport(first).noops);
+        assertTrue(transport(first).closed);
+        assertEquals(1, pool.getNumValidationFailed().intValue());
+        assertEquals(1, pool.getActiveCnt());
+    }
+
+    @Test
+    public void extraIdleConnectionsAreClosed() throws MessagingException {
+        pool.setMaxIdle(1);
+        PooledTransport first = pool.borrow(session);
+        PooledTransport second = pool.borrow(session);
+        pool.giveBack(first, true);
+        pool.giveBack(second, true);
+        assertEquals(1, pool.getIdleCnt());
+        assertFalse(transport(first).closed);
+        assertTrue(transport(second).closed);
+    }
+
+    @Test
+    public void failedConnectIsNotCounted() {
+        FakeTransport.refused = true;
+        try {
+            pool.borrow(session);
+            fail("Connected though refused");
+        } catch (MessagingException e) {
+            assertEquals(0, pool.getActiveCnt());
+            assertEquals(0, pool.getNumCreated().intValue());
+        }
+    }
+
+    @Test
+    public void batchKeepsConnectionToItsThread() throws Exception {
+        pool.beginBatch();
+        PooledTransport pinned = pool.borrow(session);
+        pool.giveBack(pinned, true);
+        assertEquals(0, pool.getIdleCnt());
+        assertSame(pinned, pool.borrow(session));
+        pool.giveBack(pinned, true);
+
+        final AtomicReference<Object> other = new AtomicReference<Object>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    other.set(pool.borrow(session));
+                } catch (MessagingException e) {
+                    other.set(e);
+                }
+            }
+        });
+        thread.start();
+        thread.join();
+        assertTrue(other.get() instanceof PooledTransport);
+        assertFalse(pinned == other.get());
+
+        pool.endBatch();
+        assertEquals(1, pool.getIdleCnt());
+        assertEquals(1, pool.getActiveCnt());
+        assertSame(pinned, pool.borrow(session));
+    }
+
+    @Test
+    public void evictionLeavesMinIdle() throws Exception {
+        pool.setIdleTimeoutMillis(1);
+        pool.setMinIdle(1);
+        List<PooledTransport> borrowed = new ArrayList<PooledTransport>();
+        for (int i = 0; i < 3; i++) {
+            borrowed.add(pool.borrow(session));
+        }
+        for (PooledTransport connection : borrowed) {
+            pool.giveBack(connection, true);
+        }
+        Thread.sleep(20);
+        pool.evict();
+        assertEquals(1, pool.getIdleCnt());
+        assertEquals(2, pool.getNumEvicted().intValue());
+        // The most recently used one is kept
+        assertFalse(transport(borrowed.get(2)).closed);
+
+        pool.setMinIdle(2);
+        pool.evict();
+        assertEquals(2, pool.getIdleCnt());
+        assertEquals(4, FakeTransport.created.size());
+    }
+
+    @Test
+    public void connectionGivenBackAfterCloseIsClosed() throws MessagingException {
+        PooledTransport idle = pool.borrow(session);
+        PooledTransport busy = pool.borrow(session);
+        pool.giveBack(idle, true);
+        pool.close();
+        assertTrue(transport(idle).closed);
+        assertFalse(transport(busy).closed);
+        pool.giveBack(busy, true);
+        assertTrue(transport(busy).closed);
+        assertEquals(0, pool.getIdleCnt());
+    }
+
+    private static Session session(String host) {
+        Properties props = new Properties();
+        props.setProperty("mail.transport.protocol", PROTOCOL);
+        props.setProperty("mail.smtp.host", host);
+        props.setProperty("mail.smtp.port", "25");
+        Session session = Session.getInstance(props);
+        session.addProvider(new Provider(Provider.Type.TRANSPORT, PROTOCOL,
+                FakeTransport.class.getName(), "test", "1"));
+        return session;
+    }
+
+    private Message message() throws MessagingException {
+        MimeMessage message = new MimeMessage(session);
+        message.setText("Pooled");
+        return message;
+    }
+
+    private static Address[] recipients() throws MessagingException {
+        return new Address[] { new InternetAddress("x@y.net") };
+    }
+
+    private static FakeTransport transport(PooledTransport connection) {
+        return (FakeTransport) connection.getTransport();
+    }
+
+    /**
+     * Connects to nothing, replies to commands as told and counts what it is
+     * asked to do.
+     */
+    public static class FakeTransport extends SMTPTransport {
+
+        static final List<FakeTransport> created = Collections.synchronizedList(new ArrayList<FakeTransport>());
+        static volatile boolean refused;
+
+        final List<String> commands = new ArrayList<String>();
+        volatile int resetReply = 250;
+        volatile boolean broken;
+        volatile boolean closed;
+        volatile int noops;
+        volatile int sent;
+
+        public FakeTransport(Session session, URLName urlname) {
+            super(session, urlname);
+        }
+
+        static void reset() {
+            created.clear();
+            refused = false;
+        }
+
+        @Override
+        protected synchronized boolean protocolConnect(String host, int port, String user,
+                String password) throws MessagingException {
+            if (refused) {
+                throw new MessagingException("Connection refused");
+            }
+            created.add(this);
+            return true;
+        }
+
+        @Override
+        public synchronized boolean isConnected() {
+            if (!super.isConnected()) {
+                return false;
+            }
+            noops++;
+            return !broken;
+        }
+
+        @Override
+        public synchronized int simpleCommand(String command) {
+            commands.add(command);
+            return resetReply;
+        }
+
+        @Override
+        public synchronized void sendMessage(Message message, Address[] addresses) {
+            sent++;
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+            setConnected(false);
+        }
+    }
+
+}
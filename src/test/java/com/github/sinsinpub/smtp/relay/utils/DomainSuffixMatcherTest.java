@@ -0,0 +1,88 @@
+package com.github.sinsinpub.smtp.relay.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Matches addresses against each kind of entry, and at the edges of label
+ * boundaries.
+ *
+ * @author sin_sin
+ */
+public class DomainSuffixMatcherTest {
+
+    @Test
+    public void domainMatchesItsSubDomains() {
+        for (String entry : new String[] { "example.com", ".example.com", "*.example.com" }) {
+            DomainSuffixMatcher matcher = DomainSuffixMatcher.compile(entry);
+            assertTrue(entry, matcher.matches("user@example.com"));
+            assertTrue(entry, matcher.matches("user@mail.example.com"));
+            assertTrue(entry, matcher.matches("user@a.b.example.com"));
+            assertTrue(entry, matcher.matches("example.com"));
+            assertFalse(entry, matcher.matches("user@example.org"));
+        }
+    }
+
+    @Test
+    public void suffixMatchesOnLabelBoundariesOnly() {
+        DomainSuffixMatcher matcher = DomainSuffixMatcher.compile("example.com");
+        assertFalse(matcher.matches("user@badexample.com"));
+        assertFalse(matcher.matches("user@example.com.evil.net"));
+        assertFalse(matcher.matches("example.com@evil.net"));
+        assertFalse(matcher.matches("user@com"));
+    }
+
+    @Test
+    public void atDomainMatchesThatDomainOnly() {
+        DomainSuffixMatcher matcher = DomainSuffixMatcher.compile("@example.com");
+        assertTrue(matcher.matches("user@example.com"));
+        assertFalse(matcher.matches("user@mail.example.com"));
+    }
+
+    @Test
+    public void addressMatchesThatAddressOnly() {
+        DomainSuffixMatcher matcher = DomainSuffixMatcher.compile("postmaster@example.com");
+        assertTrue(matcher.matches("postmaster@example.com"));
+        assertFalse(matcher.matches("user@example.com"));
+        assertFalse(matcher.matches("xpostmaster@example.com"));
+        assertFalse(matcher.matches("postmaster@mail.example.com"));
+    }
+
+    @Test
+    public void matchingIgnoresCase() {
+        DomainSuffixMatcher matcher = DomainSuffixMatcher.compile("Example.COM",
+                "Admin@Example.org");
+        assertTrue(matcher.matches("user@MAIL.example.Com"));
+        assertTrue(matcher.matches("ADMIN@example.ORG"));
+    }
+
+    @Test
+    public void blankAndDuplicateEntriesAreIgnored() {
+        DomainSuffixMatcher matcher = DomainSuffixMatcher.compile(" example.com ", null, "",
+                "*.EXAMPLE.com", "@");
+        assertEquals(1, matcher.size());
+        assertTrue(matcher.matches("user@example.com"));
+        assertTrue(DomainSuffixMatcher.compile().isEmpty());
+        assertFalse(DomainSuffixMatcher.compile().matches("user@example.com"));
+        assertFalse(matcher.matches(null));
+    }
+
+    @Test
+    public void manyEntriesAreAllFound() {
+        String[] entries = new String[1000];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = "d" + i + ".example.net";
+        }
+        DomainSuffixMatcher matcher = DomainSuffixMatcher.compile(entries);
+        assertEquals(entries.length, matcher.size());
+        for (int i = 0; i < entries.length; i++) {
+            assertTrue(matcher.matches("user@mx.d" + i + ".example.net"));
+        }
+        assertFalse(matcher.matches("user@d1000.example.net"));
+        assertFalse(matcher.matches("user@example.net"));
+    }
+
+}